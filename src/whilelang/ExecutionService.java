@@ -0,0 +1,250 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import whilelang.io.Lexer;
+import whilelang.io.Parser;
+import whilelang.lang.WhileFile;
+import whilelang.runtime.Limits;
+import whilelang.util.TypeChecker;
+
+/**
+ * <p>
+ * Runs many While programs concurrently within a single JVM. Each submitted
+ * program is parsed, checked, prepared and has its <code>main()</code>
+ * function run on one of a fixed pool of worker threads. Runs are isolated
+ * from one another: each gets its own interpreter, and its own buffer into
+ * which anything it prints is captured. Programs can also be constrained by
+ * <code>Limits</code>, so that one runaway program cannot hold on to a worker
+ * indefinitely.
+ * </p>
+ * <p>
+ * The number of runs which may be waiting for a worker is bounded. Once this
+ * is reached, <code>submit()</code> blocks until a run completes, thereby
+ * applying back-pressure to whoever is submitting work.
+ * </p>
+ *
+ */
+public final class ExecutionService {
+	/**
+	 * The stack size for worker threads, which must accommodate the deep
+	 * recursion of the interpreter.
+	 */
+	private static final long WORKER_STACK = 16 << 20;
+
+	private final ExecutorService executor;
+	private final Semaphore slots;
+	private final boolean copyOnWrite;
+	private final Limits limits;
+
+	/**
+	 * Construct an execution service.
+	 *
+	 * @param threads
+	 *            Number of worker threads, which is the number of programs run
+	 *            at once.
+	 * @param capacity
+	 *            Number of submitted programs which may wait for a worker
+	 *            before <code>submit()</code> blocks.
+	 * @param copyOnWrite
+	 *            If true, lists and records are represented with copy-on-write
+	 *            values; otherwise, persistent values are used.
+	 * @param limits
+	 *            Limits placed on each run.
+	 */
+	public ExecutionService(int threads, int capacity, boolean copyOnWrite,
+			Limits limits) {
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(null, r, "while-worker-"
+								+ count.incrementAndGet(), WORKER_STACK);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.slots = new Semaphore(threads + capacity);
+		this.copyOnWrite = copyOnWrite;
+		this.limits = limits;
+	}
+
+	/**
+	 * Submit a While source file to be run.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws InterruptedException
+	 *             If interrupted whilst waiting for space to submit the run.
+	 */
+	public Future<Result> submit(File file) throws IOException,
+			InterruptedException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF8");
+		try {
+			StringBuilder text = new StringBuilder();
+			char[] buffer = new char[4096];
+			int n;
+			while ((n = reader.read(buffer)) != -1) {
+				text.append(buffer, 0, n);
+			}
+			return submit(file.getPath(), text.toString());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Submit a While program to be run. This blocks whilst the maximum number
+	 * of runs are already waiting.
+	 *
+	 * @param filename
+	 *            Name used to identify the program in error messages.
+	 * @param source
+	 *            Source text of the program.
+	 * @return
+	 * @throws InterruptedException
+	 *             If interrupted whilst waiting for space to submit the run.
+	 */
+	public Future<Result> submit(final String filename, final String source)
+			throws InterruptedException {
+		slots.acquire();
+		try {
+			return executor.submit(new Callable<Result>() {
+				public Result call() {
+					try {
+						return run(filename, source);
+					} finally {
+						slots.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			slots.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop accepting new runs. Runs which have already been submitted will
+	 * still complete.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Wait for all submitted runs to complete after a shutdown.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return False if the timeout elapsed first.
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	private Result run(String filename, String source) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+		Throwable error = null;
+		try {
+			Lexer lexer = new Lexer(new StringReader(source));
+			WhileFile ast = new Parser(filename, lexer.scan()).read();
+			new TypeChecker().check(ast);
+			PreparedProgram program = PreparedProgram.prepare(ast,
+					copyOnWrite, limits);
+			if (program.functions().contains("main")) {
+				program.call(output, "main");
+			} else {
+				error = new RuntimeException("Cannot find a main() function");
+			}
+		} catch (Exception e) {
+			error = e;
+		} catch (StackOverflowError e) {
+			error = e;
+		}
+		try {
+			return new Result(filename, output.toString("UTF8"), error,
+					System.nanoTime() - start);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The outcome of running a single program.
+	 */
+	public static final class Result {
+		private final String filename;
+		private final String output;
+		private final Throwable error;
+		private final long nanos;
+
+		private Result(String filename, String output, Throwable error,
+				long nanos) {
+			this.filename = filename;
+			this.output = output;
+			this.error = error;
+			this.nanos = nanos;
+		}
+
+		public String filename() {
+			return filename;
+		}
+
+		/**
+		 * Get everything the program printed (up to the point it failed, if
+		 * it did).
+		 *
+		 * @return
+		 */
+		public String output() {
+			return output;
+		}
+
+		/**
+		 * Get the error which ended the run, or <code>null</code> if it
+		 * completed successfully.
+		 *
+		 * @return
+		 */
+		public Throwable error() {
+			return error;
+		}
+
+		/**
+		 * Get the time taken to parse, check and run the program, in
+		 * nanoseconds.
+		 *
+		 * @return
+		 */
+		public long nanos() {
+			return nanos;
+		}
+	}
+}
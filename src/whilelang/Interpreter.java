@@ -18,9 +18,16 @@
 
 package whilelang;
 
+import java.io.OutputStream;
 import java.util.*;
 import whilelang.lang.*;
+import whilelang.runtime.*;
 import whilelang.util.Pair;
+import whilelang.util.EffectAnalysis;
+import whilelang.util.FunctionResolver;
+import whilelang.util.Profiler;
+import whilelang.util.Sampler;
+import whilelang.util.VariableResolver;
 import static whilelang.util.SyntaxError.*;
 
 /**
@@ -28,32 +35,187 @@ import static whilelang.util.SyntaxError.*;
  * Abstract Syntax Tree form directly. The interpreter is not designed to be
  * efficient in anyway, however it's purpose is to provide a reference
  * implementation for the language.
+ * <p>
+ * By default, lists and records are represented as immutable values (see
+ * <code>PersistentVector</code> and <code>PersistentRecord</code>). This means
+ * they can be freely shared between variables without copying, whilst still
+ * preserving the value semantics of While. Alternatively, the interpreter can
+ * use copy-on-write values (see <code>CowList</code> and
+ * <code>CowRecord</code>), which are updated in place unless shared.
+ * </p>
+ * <p>
+ * A run can be constrained by <code>Limits</code> on the number of statements
+ * executed, the memory allocated for compound values and the time taken. These
+ * are tracked by a <code>Budget</code>, which is cheap enough to leave on.
+ * </p>
+ * <p>
+ * Optionally, calls to pure functions (see <code>EffectAnalysis</code>) can be
+ * memoised in a <code>MemoTable</code>, so that a function called again with
+ * the same arguments returns its earlier result without being executed.
+ * </p>
  * 
  * @author David J. Pearce
  * 
  */
 public class Interpreter {
-	private HashMap<String, WhileFile.Decl> declarations;
+	// Estimates used when accounting for the memory allocated by a run.
+	private static final int PATH_SLOTS = 32;
+	private static final int CHARS_PER_SLOT = 4;
+	
+	private final boolean copyOnWrite;
+	private final ValuePrinter output;
+	private final Limits limits;
+	private final int memoCapacity;
+	private Budget budget;
+	private MemoTable memo;
+	private Profiler profiler;
+	private Sampler sampler;
 	private WhileFile file;
 	
+	public Interpreter() {
+		this(false);
+	}
+	
+	/**
+	 * Construct an interpreter.
+	 * 
+	 * @param copyOnWrite
+	 *            If true, lists and records are represented with copy-on-write
+	 *            values; otherwise, persistent values are used.
+	 */
+	public Interpreter(boolean copyOnWrite) {
+		this(copyOnWrite, Limits.NONE);
+	}
+	
+	/**
+	 * Construct an interpreter.
+	 * 
+	 * @param copyOnWrite
+	 *            If true, lists and records are represented with copy-on-write
+	 *            values; otherwise, persistent values are used.
+	 * @param limits
+	 *            Limits placed on each run. A run which exceeds them fails
+	 *            with a <code>LimitExceededException</code>.
+	 */
+	public Interpreter(boolean copyOnWrite, Limits limits) {
+		this(copyOnWrite, limits, System.out);
+	}
+	
+	/**
+	 * Construct an interpreter.
+	 * 
+	 * @param copyOnWrite
+	 *            If true, lists and records are represented with copy-on-write
+	 *            values; otherwise, persistent values are used.
+	 * @param limits
+	 *            Limits placed on each run. A run which exceeds them fails
+	 *            with a <code>LimitExceededException</code>.
+	 * @param output
+	 *            Stream onto which the program's print statements write.
+	 */
+	public Interpreter(boolean copyOnWrite, Limits limits, OutputStream output) {
+		this(copyOnWrite, limits, output, 0);
+	}
+	
+	/**
+	 * Construct an interpreter.
+	 * 
+	 * @param copyOnWrite
+	 *            If true, lists and records are represented with copy-on-write
+	 *            values; otherwise, persistent values are used.
+	 * @param limits
+	 *            Limits placed on each run. A run which exceeds them fails
+	 *            with a <code>LimitExceededException</code>.
+	 * @param output
+	 *            Stream onto which the program's print statements write.
+	 * @param memoCapacity
+	 *            If positive, the results of calls to pure functions are
+	 *            memoised, and up to this many results are kept.
+	 */
+	public Interpreter(boolean copyOnWrite, Limits limits, OutputStream output,
+			int memoCapacity) {
+		this.copyOnWrite = copyOnWrite;
+		this.output = new ValuePrinter(output);
+		this.limits = limits;
+		this.memoCapacity = memoCapacity;
+	}
+	
+	/**
+	 * Record a profile of subsequent runs.
+	 * 
+	 * @param profiler
+	 *            Profiler to record into, or <code>null</code> to stop
+	 *            profiling.
+	 */
+	public void setProfiler(Profiler profiler) {
+		this.profiler = profiler;
+	}
+	
+	/**
+	 * Maintain a shadow stack for a given sampling profiler during subsequent
+	 * runs.
+	 * 
+	 * @param sampler
+	 *            Sampler to maintain the stack of, or <code>null</code> for
+	 *            none.
+	 */
+	public void setSampler(Sampler sampler) {
+		this.sampler = sampler;
+	}
+	
 	public void run(WhileFile wf) {
 		// First, initialise the map of declaration names to their bodies.
-		declarations = new HashMap<String,WhileFile.Decl>();
+		HashMap<String,WhileFile.Decl> declarations = new HashMap<String,WhileFile.Decl>();
 		for(WhileFile.Decl decl : wf.declarations) {
 			declarations.put(decl.name(), decl);
 		}
-		this.file = wf;
 		
-		// Second, pick the main method (if one exits) and execute it
+		// Second, allocate every variable to a fixed slot in its function's
+		// stack frame.
+		new VariableResolver().resolve(wf);
+		
+		// Third, link every function invocation to the function it calls.
+		new FunctionResolver().resolve(wf);
+		if(memoCapacity > 0) {
+			new EffectAnalysis().analyse(wf);
+		}
+		
+		// Fourth, pick the main method (if one exits) and execute it
 		WhileFile.Decl main = declarations.get("main");
 		if(main instanceof WhileFile.FunDecl) {
-			WhileFile.FunDecl fd = (WhileFile.FunDecl) main;
-			execute(fd);
+			call(wf, (WhileFile.FunDecl) main);
 		} else {
 			System.out.println("Cannot find a main() function");
 		}
 	}
 	
+	/**
+	 * Call a given function of a given file, whose variables and invocations
+	 * have already been resolved. This is the entry point for
+	 * <code>PreparedProgram</code>, which prepares a file once and then uses a
+	 * fresh interpreter for each call.
+	 * 
+	 * @param wf
+	 *            File containing the function.
+	 * @param function
+	 *            Function to call.
+	 * @param arguments
+	 *            Argument values, which must not be shared with any other run.
+	 * @return The value returned by the function, or <code>null</code> if it
+	 *         returns nothing.
+	 */
+	Object call(WhileFile wf, WhileFile.FunDecl function, Object... arguments) {
+		this.file = wf;
+		this.budget = new Budget(limits);
+		this.memo = memoCapacity > 0 ? new MemoTable(memoCapacity) : null;
+		try {
+			Object r = execute(function, arguments);
+			return r == Collections.EMPTY_SET ? null : r;
+		} finally {
+			output.flush();
+		}
+	}
+	
 	/**
 	 * Execute a given function with the given argument values. If the number of
 	 * arguments is incorrect, then an exception is thrown.
@@ -73,18 +235,60 @@ public class Interpreter {
 		}
 		
 		// Second, construct the stack frame in which this function will
-		// execute.
-		HashMap<String,Object> frame = new HashMap<String,Object>();
+		// execute. Every variable has already been allocated a slot within it.
+		Object[] frame = new Object[function.getFrameSize()];
 		for(int i=0;i!=arguments.length;++i) {
 			WhileFile.Parameter parameter = function.parameters.get(i);
-			frame.put(parameter.name,arguments[i]);
+			frame[parameter.getSlot()] = arguments[i];
 		}
 		
 		// Third, execute the function body!
-		return execute(function.statements,frame);
+		Object r;
+		if(profiler != null || sampler != null) {
+			r = executeProfiled(function, frame);
+		} else {
+			r = execute(function.statements,frame);
+		}
+		
+		// Finally, the frame's variables no longer hold their values.
+		if(copyOnWrite) {
+			for(int i=0;i!=frame.length;++i) {
+				CompoundValue.release(frame[i]);
+			}
+		}
+		return r;
 	}
 	
-	private Object execute(List<Stmt> block, HashMap<String,Object> frame) {
+	/**
+	 * Execute the body of a given function, whilst recording it with the
+	 * profiler and/or sampler.
+	 * 
+	 * @param function
+	 *            Function declaration to execute.
+	 * @param frame
+	 *            Stack frame for the function.
+	 * @return
+	 */
+	private Object executeProfiled(WhileFile.FunDecl function, Object[] frame) {
+		if(profiler != null) {
+			profiler.enter(function);
+		}
+		if(sampler != null) {
+			sampler.push(function);
+		}
+		try {
+			return execute(function.statements,frame);
+		} finally {
+			if(sampler != null) {
+				sampler.pop();
+			}
+			if(profiler != null) {
+				profiler.exit();
+			}
+		}
+	}
+	
+	private Object execute(List<Stmt> block, Object[] frame) {
 		for(int i=0;i!=block.size();i=i+1) {			
 			Object r = execute(block.get(i),frame);			
 			if(r != null) {
@@ -100,10 +304,17 @@ public class Interpreter {
 	 * @param stmt
 	 *            Statement to execute.
 	 * @param frame
-	 *            Stack frame mapping variables to their current value.
+	 *            Stack frame holding the current value of each variable slot.
 	 * @return
 	 */
-	private Object execute(Stmt stmt, HashMap<String,Object> frame) {		
+	private Object execute(Stmt stmt, Object[] frame) {
+		budget.tick();
+		if(profiler != null) {
+			profiler.count(stmt);
+		}
+		if(sampler != null) {
+			sampler.at(stmt);
+		}
 		if(stmt instanceof Stmt.Assign) {
 			return execute((Stmt.Assign) stmt,frame);
 		} else if(stmt instanceof Stmt.For) {
@@ -119,46 +330,156 @@ public class Interpreter {
 		} else if(stmt instanceof Stmt.Print) {
 			return execute((Stmt.Print) stmt,frame);
 		} else if(stmt instanceof Expr.Invoke) {
-			return execute((Expr.Invoke) stmt,frame);
+			// the value returned (if any) is discarded
+			execute((Expr.Invoke) stmt,frame);
+			return null;
 		} else {
 			internalFailure("unknown statement encountered (" + stmt + ")", file.filename,stmt);
 			return null;
 		} 
 	}
 	
-	private Object execute(Stmt.Assign stmt, HashMap<String,Object> frame) {	
+	private Object execute(Stmt.Assign stmt, Object[] frame) {	
 		Expr lhs = stmt.getLhs();
 		if(lhs instanceof Expr.Variable) {
 			Expr.Variable ev = (Expr.Variable) lhs;
-			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			frame.put(ev.getName(),deepClone(rhs));
-		} else if(lhs instanceof Expr.RecordAccess) {
-			Expr.RecordAccess ra = (Expr.RecordAccess) lhs;
-			Map<String,Object> src = (Map) execute(ra.getSource(),frame);
-			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			src.put(ra.getName(), deepClone(rhs));
-		} else if(lhs instanceof Expr.IndexOf) {
-			Expr.IndexOf io = (Expr.IndexOf) lhs;
-			ArrayList<Object> src = (ArrayList) execute(io.getSource(),frame);
-			Integer idx = (Integer) execute(io.getIndex(),frame);
-			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			src.set(idx,deepClone(rhs));
+			Object old = frame[ev.getSlot()];
+			Object rhs;
+			if(isSelfAppend(ev, stmt.getRhs())) {
+				// The old value is being discarded, so a list can be extended
+				// in place (provided no one else holds it).
+				Expr.Binary e = (Expr.Binary) stmt.getRhs();
+				Object r = execute(e.getRhs(),frame);
+				if(old instanceof ListValue && r instanceof ListValue) {
+					budget.allocate(((ListValue) r).size());
+					rhs = ((ListValue) old).appendInPlace((ListValue) r);
+				} else {
+					rhs = append(old,r,e);
+				}
+			} else {
+				rhs = copy(stmt.getRhs(),execute(stmt.getRhs(),frame));
+			}
+			frame[ev.getSlot()] = rhs;
+			if(old != rhs) {
+				CompoundValue.release(old);
+			}
 		} else {
-			internalFailure("unknown lval encountered (" + lhs + ")", file.filename,stmt);
+			// Assigning into a compound value means building an updated copy
+			// of it (or updating it in place, if it is not shared), and of
+			// every value enclosing it, back up to the variable at the root
+			// of the lval. First, evaluate the path of fields and indices
+			// being assigned.
+			ArrayList<Object> path = new ArrayList<Object>();
+			Expr.Variable root = evaluatePath(lhs, path, frame);
+			Object rhs = copy(stmt.getRhs(),execute(stmt.getRhs(),frame));
+			// Second, rebuild the root value along that path.
+			int slot = root.getSlot();
+			frame[slot] = update(frame[slot], path, 0, rhs);
 		}
 		
 		return null;
 	}
 	
-	private Object execute(Stmt.For stmt, HashMap<String,Object> frame) {
+	/**
+	 * Check whether a given assignment has the form <code>x = x ++ e</code>,
+	 * when using copy-on-write values.
+	 * 
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	private boolean isSelfAppend(Expr.Variable lhs, Expr rhs) {
+		if (!copyOnWrite || !(rhs instanceof Expr.Binary)) {
+			return false;
+		}
+		Expr.Binary e = (Expr.Binary) rhs;
+		return e.getOp() == Expr.BOp.APPEND
+				&& e.getLhs() instanceof Expr.Variable
+				&& ((Expr.Variable) e.getLhs()).getSlot() == lhs.getSlot();
+	}
+	
+	/**
+	 * Evaluate the fields and indices along the path from the variable at the
+	 * root of a given lval to the location being assigned. For example,
+	 * <code>x[i].f</code> has root <code>x</code> and path <code>[i, f]</code>
+	 * (where <code>f</code> is the lookup of that field).
+	 * 
+	 * @param lval
+	 *            LVal expression being assigned.
+	 * @param path
+	 *            List to which the path is appended.
+	 * @param frame
+	 *            Stack frame holding the current value of each variable slot.
+	 * @return The root variable of the lval.
+	 */
+	private Expr.Variable evaluatePath(Expr lval, List<Object> path,
+			Object[] frame) {
+		if (lval instanceof Expr.Variable) {
+			return (Expr.Variable) lval;
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			Expr.Variable root = evaluatePath(ra.getSource(), path, frame);
+			path.add(ra.getLookup());
+			return root;
+		} else if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			Expr.Variable root = evaluatePath(io.getSource(), path, frame);
+			path.add((Integer) execute(io.getIndex(), frame));
+			return root;
+		} else {
+			internalFailure("unknown lval encountered (" + lval + ")",
+					file.filename, lval);
+			return null;
+		}
+	}
+	
+	/**
+	 * Produce a copy of a given value where the location identified by a path
+	 * of field names and indices is replaced with a new value. Each compound
+	 * value along the path is first made unique, such that copy-on-write
+	 * values are only updated in place when no other owner can observe it.
+	 * 
+	 * @param value
+	 *            Value being updated.
+	 * @param path
+	 *            Path of field lookups (<code>FieldLookup</code>) and indices
+	 *            (<code>Integer</code>) identifying the location to update.
+	 * @param index
+	 *            Current position within the path.
+	 * @param rhs
+	 *            New value to be stored at the location.
+	 * @return
+	 */
+	private Object update(Object value, List<Object> path, int index,
+			Object rhs) {
+		if (index == path.size()) {
+			return rhs;
+		}
+		Object key = path.get(index);
+		if (key instanceof FieldLookup) {
+			RecordValue r = ((RecordValue) value).unique();
+			if (r != value || !copyOnWrite) {
+				budget.allocate(r.shape().size());
+			}
+			int i = ((FieldLookup) key).indexIn(r.shape());
+			return r.set(i, update(r.get(i), path, index + 1, rhs));
+		} else {
+			int i = (Integer) key;
+			ListValue l = ((ListValue) value).unique();
+			if (l != value) {
+				budget.allocate(l.size());
+			} else if (!copyOnWrite) {
+				// NOTE: a persistent vector copies one node per level.
+				budget.allocate(PATH_SLOTS);
+			}
+			return l.set(i, update(l.get(i), path, index + 1, rhs));
+		}
+	}
+	
+	private Object execute(Stmt.For stmt, Object[] frame) {
 		execute(stmt.getDeclaration(),frame);
 		while((Boolean) execute(stmt.getCondition(),frame)) {
+			budget.tick();
 			Object ret = execute(stmt.getBody(),frame);
 			if(ret != null) {
 				return ret;
@@ -168,8 +489,9 @@ public class Interpreter {
 		return null;
 	}
 	
-	private Object execute(Stmt.While stmt, HashMap<String,Object> frame) {
+	private Object execute(Stmt.While stmt, Object[] frame) {
 		while((Boolean) execute(stmt.getCondition(),frame)) {
+			budget.tick();
 			Object ret = execute(stmt.getBody(),frame);
 			if(ret != null) {
 				return ret;
@@ -178,7 +500,7 @@ public class Interpreter {
 		return null;
 	}
 	
-	private Object execute(Stmt.IfElse stmt, HashMap<String,Object> frame) {
+	private Object execute(Stmt.IfElse stmt, Object[] frame) {
 		boolean condition = (Boolean) execute(stmt.getCondition(),frame);
 		if(condition) {
 			return execute(stmt.getTrueBranch(),frame);
@@ -187,34 +509,33 @@ public class Interpreter {
 		}
 	}
 	
-	private Object execute(Stmt.Return stmt, HashMap<String,Object> frame) {
+	private Object execute(Stmt.Return stmt, Object[] frame) {
 		Expr re = stmt.getExpr();
 		if(re != null) {
-			return execute(re,frame);
+			return copy(re,execute(re,frame));
 		} else {
 			return Collections.EMPTY_SET; // used to indicate a function has returned
 		}
 	}
 	
 	private Object execute(Stmt.VariableDeclaration stmt,
-			HashMap<String, Object> frame) {
+			Object[] frame) {
 		Expr re = stmt.getExpr();
 		Object value;
 		if (re != null) {
-			value = execute(re, frame);
+			value = copy(re, execute(re, frame));
 		} else {
 			value = Collections.EMPTY_SET; // used to indicate a variable has
 											// been declared
 		}
-		// We need to perform a deep clone here to ensure the value
-		// semantics used in While are preserved.
-		frame.put(stmt.getName(), deepClone(value));
+		Object old = frame[stmt.getSlot()];
+		frame[stmt.getSlot()] = value;
+		CompoundValue.release(old);
 		return null;
 	}
 	
-	private Object execute(Stmt.Print stmt, HashMap<String,Object> frame) {
-		String str = toString(execute(stmt.getExpr(),frame));
-		System.out.println(str);
+	private Object execute(Stmt.Print stmt, Object[] frame) {
+		output.println(execute(stmt.getExpr(),frame));
 		return null;
 	}
 	
@@ -224,10 +545,10 @@ public class Interpreter {
 	 * @param expr
 	 *            Expression to execute.
 	 * @param frame
-	 *            Stack frame mapping variables to their current value.
+	 *            Stack frame holding the current value of each variable slot.
 	 * @return
 	 */
-	private Object execute(Expr expr, HashMap<String,Object> frame) {
+	private Object execute(Expr expr, Object[] frame) {
 		if(expr instanceof Expr.Binary) {
 			return execute((Expr.Binary) expr,frame);
 		} else if(expr instanceof Expr.Cast) {
@@ -254,7 +575,7 @@ public class Interpreter {
 		} 
 	}
 	
-	private Object execute(Expr.Binary expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.Binary expr, Object[] frame) {
 		// First, deal with the short-circuiting operators first
 		Object lhs = execute(expr.getLhs(), frame);
 		
@@ -300,9 +621,9 @@ public class Interpreter {
 				return ((Double)lhs) % ((Double)rhs);
 			}
 		case EQ:
-			return lhs.equals(rhs);
+			return StringValue.equal(lhs, rhs);
 		case NEQ:
-			return !lhs.equals(rhs);
+			return !StringValue.equal(lhs, rhs);
 		case LT:
 			if(lhs instanceof Integer) {
 				return ((Integer)lhs) < ((Integer)rhs);
@@ -328,17 +649,7 @@ public class Interpreter {
 				return ((Double)lhs) >= ((Double)rhs);
 			}
 		case APPEND:
-			if(lhs instanceof String && rhs instanceof String) {
-				return ((String)lhs) + ((String)rhs);
-			} else if(lhs instanceof String) {
-				return ((String)lhs) + toString(rhs);
-			} else if(rhs instanceof String) {
-				return toString(lhs) + ((String)rhs);
-			} else if(lhs instanceof ArrayList && rhs instanceof ArrayList) {
-				ArrayList l = (ArrayList) lhs;
-				l.addAll((ArrayList)rhs);
-				return l;
-			}
+			return append(lhs, rhs, expr);
 		}
 
 		internalFailure("unknown binary expression encountered (" + expr + ")",
@@ -346,68 +657,121 @@ public class Interpreter {
 		return null;
 	}
 	
-	private Object execute(Expr.Cast expr, HashMap<String, Object> frame) {
+	private Object append(Object lhs, Object rhs, Expr.Binary expr) {
+		if(lhs instanceof CharSequence || rhs instanceof CharSequence) {
+			CharSequence l = lhs instanceof CharSequence ? (CharSequence) lhs : toString(lhs);
+			CharSequence r = rhs instanceof CharSequence ? (CharSequence) rhs : toString(rhs);
+			budget.allocate((r.length() + CHARS_PER_SLOT - 1) / CHARS_PER_SLOT);
+			return StringValue.append(l, r);
+		} else if(lhs instanceof ListValue && rhs instanceof ListValue) {
+			budget.allocate(((ListValue) rhs).size());
+			return ((ListValue) lhs).append((ListValue) rhs);
+		}
+		
+		internalFailure("unknown binary expression encountered (" + expr + ")",
+				file.filename, expr);
+		return null;
+	}
+	
+	private Object execute(Expr.Cast expr, Object[] frame) {
 		Object rhs = execute(expr.getSource(), frame);		
 		// TODO: we need to actually implement casting here!
 		return rhs;
 	}
 	
-	private Object execute(Expr.Constant expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.Constant expr, Object[] frame) {
 		return expr.getValue();
 	}
 	
-	private Object execute(Expr.Invoke expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.Invoke expr, Object[] frame) {
 		List<Expr> arguments = expr.getArguments();
 		Object[] values = new Object[arguments.size()];
 		for (int i = 0; i != values.length; ++i) {
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			values[i] = deepClone(execute(arguments.get(i), frame));
+			Expr argument = arguments.get(i);
+			values[i] = copy(argument, execute(argument, frame));
 		}
-		WhileFile.FunDecl fun = (WhileFile.FunDecl) declarations.get(expr
-				.getName());
-		return execute(fun, values);
+		WhileFile.FunDecl target = expr.getTarget();
+		if(memo != null && target.isPure() && !(target.ret instanceof Type.Void)) {
+			return executeMemoised(target, values);
+		}
+		return execute(target, values);
 	}
 	
-	private Object execute(Expr.IndexOf expr, HashMap<String,Object> frame) {
+	/**
+	 * Execute a pure function, reusing the result of an earlier call with the
+	 * same arguments where possible.
+	 * 
+	 * @param function
+	 *            Function declaration to execute.
+	 * @param arguments
+	 *            Array of argument values.
+	 * @return
+	 */
+	private Object executeMemoised(WhileFile.FunDecl function, Object[] arguments) {
+		Object r = memo.get(function, arguments);
+		if(r != null) {
+			// The arguments are not passed on, so lose the ownership they
+			// were given for the call.
+			for(Object argument : arguments) {
+				CompoundValue.release(argument);
+			}
+			return r;
+		}
+		for(Object argument : arguments) {
+			CompoundValue.share(argument);
+		}
+		r = execute(function, arguments);
+		memo.put(function, arguments, r);
+		return r;
+	}
+	
+	private Object execute(Expr.IndexOf expr, Object[] frame) {
 		Object _src = execute(expr.getSource(),frame);
 		int idx = (Integer) execute(expr.getIndex(),frame);
-		if(_src instanceof String) {
-			String src = (String) _src;
+		if(_src instanceof CharSequence) {
+			CharSequence src = (CharSequence) _src;
 			return src.charAt(idx);
 		} else {
-			ArrayList<Object> src = (ArrayList<Object>) _src;
+			ListValue src = (ListValue) _src;
 			return src.get(idx);
 		}
 	}
 	
 	private Object execute(Expr.ListConstructor expr,
-			HashMap<String, Object> frame) {
+			Object[] frame) {
 		List<Expr> es = expr.getArguments();
 		ArrayList<Object> ls = new ArrayList<Object>();
 		for (int i = 0; i != es.size(); ++i) {
-			ls.add(execute(es.get(i), frame));
+			Expr e = es.get(i);
+			ls.add(copy(e, execute(e, frame)));
+		}
+		budget.allocate(ls.size());
+		if (copyOnWrite) {
+			return CowList.of(ls.toArray());
+		} else {
+			return PersistentVector.of(ls);
 		}
-		return ls;
 	}
 	
-	private Object execute(Expr.RecordAccess expr, HashMap<String, Object> frame) {
-		HashMap<String, Object> src = (HashMap) execute(expr.getSource(), frame);
-		return src.get(expr.getName());
+	private Object execute(Expr.RecordAccess expr, Object[] frame) {
+		RecordValue src = (RecordValue) execute(expr.getSource(), frame);
+		return expr.getLookup().get(src);
 	}
 	
-	private Object execute(Expr.RecordConstructor expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.RecordConstructor expr, Object[] frame) {
 		List<Pair<String,Expr>> es = expr.getFields();
-		HashMap<String,Object> rs = new HashMap<String,Object>();
+		Object[] values = new Object[es.size()];
 		
-		for(Pair<String,Expr> e : es) {
-			rs.put(e.first(),execute(e.second(),frame));
+		for (int i = 0; i != values.length; ++i) {
+			Expr e = es.get(i).second();
+			values[i] = copy(e, execute(e, frame));
 		}
+		budget.allocate(values.length);
 		
-		return rs;
+		return expr.getLayout().construct(values, copyOnWrite);
 	}
 	
-	private Object execute(Expr.Unary expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.Unary expr, Object[] frame) {
 		Object value = execute(expr.getExpr(), frame);
 		switch (expr.getOp()) {
 		case NOT:
@@ -419,10 +783,10 @@ public class Interpreter {
 				return -((Integer) value);
 			}
 		case LENGTHOF:
-			if(value instanceof String) {
-				return ((String) value).length();
+			if(value instanceof CharSequence) {
+				return ((CharSequence) value).length();
 			} else {
-				return ((ArrayList) value).size();
+				return ((ListValue) value).size();
 			}
 		}
 
@@ -431,76 +795,66 @@ public class Interpreter {
 		return null;
 	}
 	
-	private Object execute(Expr.Variable expr, HashMap<String,Object> frame) {
-		return frame.get(expr.getName());
+	private Object execute(Expr.Variable expr, Object[] frame) {
+		return frame[expr.getSlot()];
 	}
 	
 	/**
-	 * Perform a deep clone of the given object value. This is either a
-	 * <code>Boolean</code>, <code>Integer</code>, <code>Double</code>,
-	 * <code>Character</code>, <code>String</code>, <code>ArrayList</code> (for
-	 * lists) or <code>HaspMap</code> (for records). Only the latter two need to
-	 * be cloned, since the others are immutable.
+	 * Prepare the value of a given expression for being stored in a new
+	 * location (e.g. a variable, list element or argument). If the expression
+	 * only reads a value held elsewhere (e.g. <code>x</code> or
+	 * <code>x[i]</code>), then that value gains an additional owner. Otherwise,
+	 * the value is freshly created and can be stored as is.
 	 * 
-	 * @param o
+	 * @param expr
+	 *            Expression which produced the value.
+	 * @param value
+	 *            Value to be stored.
 	 * @return
 	 */
-	private Object deepClone(Object o) {
-		if (o instanceof ArrayList) {
-			ArrayList<Object> l = (ArrayList) o;
-			ArrayList<Object> n = new ArrayList<Object>();
-			for (int i = 0; i != l.size(); ++i) {
-				n.add(deepClone(l.get(i)));
-			}
-			return n;
-		} else if (o instanceof HashMap) {
-			HashMap<String, Object> m = (HashMap) o;
-			HashMap<String, Object> n = new HashMap<String, Object>();
-			for (String field : m.keySet()) {
-				n.put(field, deepClone(m.get(field)));
-			}
-			return n;
-		} else {
-			// other cases can be ignored
-			return o;
+	private static Object copy(Expr expr, Object value) {
+		while (expr instanceof Expr.Cast) {
+			expr = ((Expr.Cast) expr).getSource();
 		}
+		if (expr instanceof Expr.Variable || expr instanceof Expr.IndexOf
+				|| expr instanceof Expr.RecordAccess) {
+			return CompoundValue.share(value);
+		}
+		return value;
 	}
 	
 	/**
 	 * Convert the given object value to a string. This is either a
 	 * <code>Boolean</code>, <code>Integer</code>, <code>Double</code>,
-	 * <code>Character</code>, <code>String</code>, <code>ArrayList</code> (for
-	 * lists) or <code>HaspMap</code> (for records). The latter two must be
-	 * treated recursively.
+	 * <code>Character</code>, <code>String</code>, <code>StringValue</code>,
+	 * <code>ListValue</code> (for lists) or <code>RecordValue</code> (for
+	 * records). The latter two must be treated recursively.
 	 * 
 	 * @param o
 	 * @return
 	 */
 	private String toString(Object o) {
-		if (o instanceof ArrayList) {
-			ArrayList<Object> l = (ArrayList) o;
-			String r = "[";
+		if (o instanceof ListValue) {
+			ListValue l = (ListValue) o;
+			StringBuilder r = new StringBuilder("[");
 			for (int i = 0; i != l.size(); ++i) {
 				if(i != 0) {
-					r = r + ", ";
+					r.append(", ");
 				}
-				r += toString(l.get(i));
+				r.append(toString(l.get(i)));
 			}
-			return r + "]";
-		} else if (o instanceof HashMap) {
-			HashMap<String, Object> m = (HashMap) o;
-			String r = "{";
-			boolean firstTime = true;
-			ArrayList<String> fields = new ArrayList<String>(m.keySet());
-			Collections.sort(fields);
-			for (String field : fields) {
-				if(!firstTime) {
-					r += ",";
+			return r.append("]").toString();
+		} else if (o instanceof RecordValue) {
+			RecordValue m = (RecordValue) o;
+			Shape shape = m.shape();
+			StringBuilder r = new StringBuilder("{");
+			for (int i = 0; i != shape.size(); ++i) {
+				if(i != 0) {
+					r.append(",");
 				}
-				firstTime=false;
-				r += field + ":" + toString(m.get(field));
+				r.append(shape.field(i)).append(":").append(toString(m.get(i)));
 			}
-			return r + "}";
+			return r.append("}").toString();
 		} else if(o != null) {
 			// other cases can use their default toString methods.
 			return o.toString();
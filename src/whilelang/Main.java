@@ -22,15 +22,20 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.Future;
 
 import jasm.io.ClassFileWriter;
 import jasm.lang.ClassFile;
 import jx86.io.AsmFileWriter;
 import jx86.lang.Target;
 import jx86.lang.X86File;
+import whilelang.closure.ClosureInterpreter;
 import whilelang.io.*;
 import whilelang.lang.WhileFile;
+import whilelang.runtime.Limits;
 import whilelang.util.*;
+import whilelang.vm.*;
 
 public class Main {
 
@@ -46,10 +51,30 @@ public class Main {
 
 	private static enum Mode { interpret, jvm, x86 };
 	
+	private static enum Engine { interpreter, closure, vm };
+	
 	public static boolean run(String[] args) {
 		boolean verbose = false;
+		boolean copyOnWrite = false;
+		boolean unboxed = false;
+		Engine engine = Engine.interpreter;
+		int stack = VirtualMachine.DEFAULT_MAX_REGISTERS;
+		long maxStatements = Limits.UNLIMITED;
+		long maxMemory = Limits.UNLIMITED;
+		long maxTime = Limits.UNLIMITED;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int memo = 0;
+		boolean profile = false;
+		String samples = null;
+		boolean stats = false;
+		boolean optimise = false;
+		int inline = Inliner.DEFAULT_MAX_SIZE;
 		int fileArgsBegin = 0;
 		Mode mode = Mode.interpret;
+		// Options which only the tree-walking interpreter implements.
+		ArrayList<String> interpreterOnly = new ArrayList<String>();
+		// Options which are not implemented when running several files.
+		ArrayList<String> singleFileOnly = new ArrayList<String>();
 		
 		for (int i = 0; i != args.length; ++i) {
 			if (args[i].startsWith("-")) {
@@ -62,6 +87,53 @@ public class Main {
 					System.exit(0);
 				} else if (arg.equals("-verbose")) {
 					verbose = true;
+				} else if (arg.startsWith("-engine=")) {
+					engine = Engine.valueOf(arg.substring("-engine=".length()));
+					if(engine != Engine.interpreter) {
+						singleFileOnly.add(arg);
+					}
+				} else if (arg.equals("-vm")) {
+					engine = Engine.vm;
+					singleFileOnly.add(arg);
+				} else if (arg.startsWith("-stack=")) {
+					stack = Integer.parseInt(arg.substring("-stack=".length()));
+				} else if (arg.equals("-profile")) {
+					profile = true;
+					interpreterOnly.add(arg);
+					singleFileOnly.add(arg);
+				} else if (arg.startsWith("-sample=")) {
+					samples = arg.substring("-sample=".length());
+					interpreterOnly.add(arg);
+					singleFileOnly.add(arg);
+				} else if (arg.equals("-O")) {
+					optimise = true;
+					singleFileOnly.add(arg);
+				} else if (arg.startsWith("-inline=")) {
+					inline = Integer.parseInt(arg.substring("-inline=".length()));
+				} else if (arg.equals("-stats")) {
+					stats = true;
+					singleFileOnly.add(arg);
+				} else if (arg.startsWith("-memo=")) {
+					memo = Integer.parseInt(arg.substring("-memo=".length()));
+					interpreterOnly.add(arg);
+					singleFileOnly.add(arg);
+				} else if (arg.startsWith("-threads=")) {
+					threads = Integer.parseInt(arg.substring("-threads=".length()));
+				} else if (arg.startsWith("-limit-statements=")) {
+					interpreterOnly.add(arg);
+					maxStatements = Long.parseLong(arg.substring("-limit-statements=".length()));
+				} else if (arg.startsWith("-limit-memory=")) {
+					interpreterOnly.add(arg);
+					maxMemory = Long.parseLong(arg.substring("-limit-memory=".length()));
+				} else if (arg.startsWith("-limit-time=")) {
+					interpreterOnly.add(arg);
+					maxTime = Long.parseLong(arg.substring("-limit-time=".length()));
+				} else if (arg.equals("-cow")) {
+					copyOnWrite = true;
+				} else if (arg.equals("-unboxed")) {
+					engine = Engine.closure;
+					unboxed = true;
+					singleFileOnly.add(arg);
 				} else if (arg.equals("-jvm")) {
 					mode = Mode.jvm;
 				} else if (arg.equals("-x86")) {
@@ -77,33 +149,131 @@ public class Main {
 		if (fileArgsBegin == args.length) {
 			usage();
 			return false;
+		} else if (maxStatements < 0 || maxMemory < 0 || maxTime < 0) {
+			errout.println("Error: limits cannot be negative");
+			return false;
+		} else if (threads <= 0) {
+			errout.println("Error: threads must be positive");
+			return false;
+		} else if (memo < 0) {
+			errout.println("Error: memo cannot be negative");
+			return false;
+		} else if (!interpreterOnly.isEmpty()
+				&& (mode != Mode.interpret || engine != Engine.interpreter)) {
+			// Reject these, rather than silently running without them.
+			errout.println("Error: " + interpreterOnly.get(0)
+					+ " is only supported by the interpreter engine");
+			return false;
+		} else if (args.length - fileArgsBegin > 1 && mode == Mode.interpret) {
+			if (!singleFileOnly.isEmpty()) {
+				// Several files are always run by the interpreter, on an
+				// ExecutionService, which supports none of these.
+				errout.println("Error: " + singleFileOnly.get(0)
+						+ " cannot be used when running several files");
+				return false;
+			}
+			Limits limits = new Limits(maxStatements, maxMemory, maxTime);
+			List<String> filenames = Arrays.asList(args).subList(
+					fileArgsBegin, args.length);
+			return runAll(filenames, threads, copyOnWrite, limits, verbose);
 		}
 
+		PhaseStats phases = new PhaseStats(stats);
 		try {
 			String filename = args[fileArgsBegin];
 			File srcFile = new File(filename);
 
 			// First, lex and parse the source file
+			phases.begin("lex");
 			Lexer lexer = new Lexer(srcFile.getPath());
-			Parser parser = new Parser(srcFile.getPath(), lexer.scan());
+			List<Lexer.Token> tokens = lexer.scan();
+			phases.end(tokens.size() + " tokens");
+			phases.begin("parse");
+			Parser parser = new Parser(srcFile.getPath(), tokens);
 			WhileFile ast = parser.read();
+			phases.end(stats ? PhaseStats.countNodes(ast) + " nodes" : null);
 			
-			// Second, we'd want to perform some kind of type checking here.			
+			// Second, type check the file. This also annotates every
+			// expression with its type, which later stages may rely on.
 			// new DefiniteAssignment().check(ast);
-			// new TypeChecker().check(ast);
+			phases.begin("check");
+			new TypeChecker().check(ast);
+			phases.end(null);
 			
-			// Third, we'd want to run the interpreter or compile the file.
+			// Third, optimise the file (if requested). This must come after
+			// type checking, and before any backend.
+			if(optimise) {
+				phases.begin("optimise");
+				if(inline > 0) {
+					Inliner inliner = new Inliner(inline);
+					inliner.optimise(ast);
+					if(verbose) {
+						inliner.report(errout);
+					}
+				}
+				new ConstantPropagation().optimise(ast);
+				new DeadCodeElimination().optimise(ast);
+				new LoopInvariantCodeMotion().optimise(ast);
+				new CommonSubexpressionElimination().optimise(ast);
+				phases.end(stats ? PhaseStats.countNodes(ast) + " nodes" : null);
+			}
+			
+			// Fourth, we'd want to run the interpreter or compile the file.
 			switch(mode) {
 			case interpret:
-				new Interpreter().run(ast);
+				if(engine == Engine.closure) {
+					phases.begin("run");
+					new ClosureInterpreter(copyOnWrite, unboxed).run(ast);
+					phases.end(null);
+				} else if(engine == Engine.vm) {
+					phases.begin("compile");
+					BytecodeProgram program = new BytecodeCompiler(copyOnWrite).compile(ast);
+					phases.end(null);
+					if(verbose) {
+						System.err.println(program);
+					}
+					phases.begin("run");
+					new VirtualMachine(program, copyOnWrite, stack).run();
+					phases.end(null);
+				} else {
+					Limits limits = new Limits(maxStatements, maxMemory, maxTime);
+					Interpreter interpreter = new Interpreter(copyOnWrite, limits, System.out, memo);
+					Profiler profiler = profile ? new Profiler(ast) : null;
+					Sampler sampler = samples != null ? new Sampler(ast, 1) : null;
+					interpreter.setProfiler(profiler);
+					interpreter.setSampler(sampler);
+					if(sampler != null) {
+						sampler.start();
+					}
+					try {
+						phases.begin("run");
+						interpreter.run(ast);
+						phases.end(null);
+					} finally {
+						if(profiler != null) {
+							profiler.stop();
+							profiler.report(errout);
+						}
+						if(sampler != null) {
+							sampler.stop();
+							PrintStream out = new PrintStream(samples, "UTF-8");
+							sampler.write(out);
+							out.close();
+						}
+					}
+				}
 				break;
 			case jvm:
                 System.out.println("Compiling to JVM Bytecode...");
                 FileOutputStream fos = new FileOutputStream(filename.substring(0, filename.lastIndexOf(".")) + ".class");
+                phases.begin("codegen");
                 Writer w = new Writer(ast);
                 ClassFile cf = w.write(filename);
+                phases.end(null);
+                phases.begin("write");
                 ClassFileWriter cfw = new ClassFileWriter(fos);
                 cfw.write(cf);
+                phases.end(null);
                 System.out.println("Done compiling");
 				break;
 			case x86:
@@ -113,37 +283,89 @@ public class Main {
 				// First, determine output filename
 				File asFile = new File(filename.substring(0,filename.lastIndexOf('.')) + ".s");
 				// Second, build the x86 file
+				phases.begin("codegen");
 				X86File xf = new X86FileWriter(Target.MACOS_X86_64).build(ast);
+				phases.end(null);
 				// Third, write that file in GAS compatible assembly language
+				phases.begin("write");
 				AsmFileWriter afw = new AsmFileWriter(asFile);
 				afw.write(xf);
 				afw.close();
+				phases.end(null);
 				break;
 			}
 			
-		} catch (SyntaxError e) {
-			if (e.filename() != null) {
-				e.outputSourceError(System.out);
-			} else {
-				System.err.println("syntax error (" + e.getMessage() + ").");
-			}
-
-			if (verbose) {
-				e.printStackTrace(errout);
-			}
-
-			return false;
 		} catch (Exception e) {
-			errout.println("Error: " + e.getMessage());
-			if (verbose) {
-				e.printStackTrace(errout);
-			}
+			report(e, verbose);
 			return false;
+		} finally {
+			phases.report(errout);
 		}
 
 		return true;
 	}
 
+	/**
+	 * Run several source files on a shared execution service, printing the
+	 * output of each in turn (regardless of the order in which they finish).
+	 *
+	 * @param filenames
+	 * @param threads
+	 *            Number of files to run at once.
+	 * @param copyOnWrite
+	 * @param limits
+	 * @param verbose
+	 * @return True if every file ran successfully.
+	 */
+	private static boolean runAll(List<String> filenames, int threads,
+			boolean copyOnWrite, Limits limits, boolean verbose) {
+		ExecutionService service = new ExecutionService(threads, 4 * threads,
+				copyOnWrite, limits);
+		boolean ok = true;
+		try {
+			ArrayList<Future<ExecutionService.Result>> runs = new ArrayList<Future<ExecutionService.Result>>();
+			for (String filename : filenames) {
+				runs.add(service.submit(new File(filename)));
+			}
+			for (Future<ExecutionService.Result> run : runs) {
+				ExecutionService.Result r = run.get();
+				System.out.print(r.output());
+				if (r.error() != null) {
+					report(r.error(), verbose);
+					ok = false;
+				}
+			}
+		} catch (Exception e) {
+			report(e, verbose);
+			ok = false;
+		} finally {
+			service.shutdown();
+		}
+		return ok;
+	}
+
+	/**
+	 * Report an error which ended the compilation or run of a file.
+	 *
+	 * @param e
+	 * @param verbose
+	 */
+	private static void report(Throwable e, boolean verbose) {
+		if (e instanceof SyntaxError) {
+			SyntaxError se = (SyntaxError) e;
+			if (se.filename() != null) {
+				se.outputSourceError(System.out);
+			} else {
+				System.err.println("syntax error (" + e.getMessage() + ").");
+			}
+		} else {
+			errout.println("Error: " + e.getMessage());
+		}
+		if (verbose) {
+			e.printStackTrace(errout);
+		}
+	}
+
 	public static void main(String[] args) throws Exception {
 		run(args);
 	}
@@ -157,6 +379,36 @@ public class Main {
 				{ "version", "Print version information" },
 				{ "verbose",
 				"Print detailed information on what the compiler is doing" },
+				{ "engine=<name>",
+				"Interpret using the given engine (interpreter, closure or vm)" },
+				{ "vm",
+				"Compile to bytecode and execute on the virtual machine" },
+				{ "stack=<n>",
+				"Limit the virtual machine's stack to n registers" },
+				{ "profile",
+				"Print a profile of the functions and statements interpreted" },
+				{ "sample=<file>",
+				"Write sampled call stacks to file, as collapsed stacks" },
+				{ "O",
+				"Optimise the file before running or compiling it" },
+				{ "inline=<n>",
+				"Under -O, inline functions of up to n nodes (0 disables)" },
+				{ "stats",
+				"Print the time, allocation and output size of each phase" },
+				{ "memo=<n>",
+				"Memoise up to n results of calls to pure functions" },
+				{ "threads=<n>",
+				"Interpret up to n files at once, when given several" },
+				{ "limit-statements=<n>",
+				"Stop the interpreter after n statements" },
+				{ "limit-memory=<n>",
+				"Stop the interpreter after allocating roughly n bytes" },
+				{ "limit-time=<n>",
+				"Stop the interpreter after n milliseconds" },
+				{ "cow",
+				"Interpret using copy-on-write (rather than persistent) values" },
+				{ "unboxed",
+				"Keep int and real variables unboxed (implies -engine=closure)" },
 				{ "jvm",
 				"Generate JVM Bytecode" },
 				{ "x86",
@@ -0,0 +1,242 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang;
+
+import java.io.OutputStream;
+import java.util.*;
+
+import whilelang.lang.WhileFile;
+import whilelang.runtime.*;
+import whilelang.util.FunctionResolver;
+import whilelang.util.VariableResolver;
+
+/**
+ * <p>
+ * A While program which has been prepared for execution once, and can then be
+ * run any number of times, by any number of threads at once. This is the
+ * entry point for embedding While in another application. For example:
+ * </p>
+ *
+ * <pre>
+ * PreparedProgram program = PreparedProgram.prepare(ast);
+ * Object r = program.call(&quot;sum&quot;, Arrays.asList(1, 2, 3));
+ * </pre>
+ * <p>
+ * Preparing a program resolves its variables and invocations (which annotates
+ * the AST), after which neither the AST nor the program is ever changed. Each
+ * call then runs on a fresh <code>Interpreter</code>, and so calls share no
+ * mutable state. The file must not be modified, or prepared again, once it
+ * has been prepared.
+ * </p>
+ * <p>
+ * Arguments are converted from Java values to While values, and results back
+ * again, as follows: <code>null</code> is While's <code>null</code>;
+ * <code>Boolean</code>, <code>Integer</code>, <code>Double</code> and
+ * <code>Character</code> are passed as is; any <code>CharSequence</code> is a
+ * string; a <code>java.util.List</code> is a list; and a
+ * <code>java.util.Map</code> from field names is a record. Lists, records and
+ * strings returned from a call are converted to unmodifiable
+ * <code>List</code>s, <code>Map</code>s and <code>String</code>s, so a result
+ * never shares structure with another call.
+ * </p>
+ *
+ */
+public final class PreparedProgram {
+	private final WhileFile file;
+	private final Map<String, WhileFile.FunDecl> functions;
+	private final boolean copyOnWrite;
+	private final Limits limits;
+
+	private PreparedProgram(WhileFile file, boolean copyOnWrite, Limits limits) {
+		HashMap<String, WhileFile.FunDecl> functions = new HashMap<String, WhileFile.FunDecl>();
+		for (WhileFile.Decl decl : file.declarations) {
+			if (decl instanceof WhileFile.FunDecl) {
+				functions.put(decl.name(), (WhileFile.FunDecl) decl);
+			}
+		}
+		this.file = file;
+		this.functions = Collections.unmodifiableMap(functions);
+		this.copyOnWrite = copyOnWrite;
+		this.limits = limits;
+	}
+
+	/**
+	 * Prepare a given (parsed and type checked) file for execution, using
+	 * persistent values and no limits.
+	 *
+	 * @param wf
+	 * @return
+	 */
+	public static PreparedProgram prepare(WhileFile wf) {
+		return prepare(wf, false, Limits.NONE);
+	}
+
+	/**
+	 * Prepare a given (parsed and type checked) file for execution.
+	 *
+	 * @param wf
+	 * @param copyOnWrite
+	 *            If true, lists and records are represented with copy-on-write
+	 *            values; otherwise, persistent values are used.
+	 * @param limits
+	 *            Limits placed on each call.
+	 * @return
+	 */
+	public static PreparedProgram prepare(WhileFile wf, boolean copyOnWrite,
+			Limits limits) {
+		new VariableResolver().resolve(wf);
+		new FunctionResolver().resolve(wf);
+		return new PreparedProgram(wf, copyOnWrite, limits);
+	}
+
+	/**
+	 * Get the names of the functions which can be called.
+	 *
+	 * @return
+	 */
+	public Set<String> functions() {
+		return functions.keySet();
+	}
+
+	/**
+	 * Call a given function, with anything it prints going to
+	 * <code>System.out</code>.
+	 *
+	 * @param name
+	 *            Name of the function to call.
+	 * @param arguments
+	 *            Java values to pass as arguments.
+	 * @return The Java value returned, or <code>null</code> if the function
+	 *         returns nothing. Since <code>null</code> is also a While value,
+	 *         a <code>null</code> result from a function which returns a value
+	 *         is While's <code>null</code>.
+	 * @throws LimitExceededException
+	 *             If the call exceeds one of the program's limits.
+	 */
+	public Object call(String name, Object... arguments) {
+		return call(System.out, name, arguments);
+	}
+
+	/**
+	 * Call a given function, with anything it prints going to a given stream.
+	 *
+	 * @param output
+	 *            Stream onto which the function's print statements write.
+	 * @param name
+	 *            Name of the function to call.
+	 * @param arguments
+	 *            Java values to pass as arguments.
+	 * @return The Java value returned, or <code>null</code> if the function
+	 *         returns nothing. Since <code>null</code> is also a While value,
+	 *         a <code>null</code> result from a function which returns a value
+	 *         is While's <code>null</code>.
+	 * @throws LimitExceededException
+	 *             If the call exceeds one of the program's limits.
+	 */
+	public Object call(OutputStream output, String name, Object... arguments) {
+		WhileFile.FunDecl function = functions.get(name);
+		if (function == null) {
+			throw new IllegalArgumentException("unknown function \"" + name
+					+ "\"");
+		}
+		Object[] values = new Object[arguments.length];
+		for (int i = 0; i != values.length; ++i) {
+			values[i] = toValue(arguments[i]);
+		}
+		Interpreter interpreter = new Interpreter(copyOnWrite, limits, output);
+		return toJava(interpreter.call(file, function, values));
+	}
+
+	// ==========================================
+	// Conversions
+	// ==========================================
+
+	/**
+	 * Convert a Java value into the While value it represents.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private Object toValue(Object value) {
+		if (value == null || value instanceof Boolean || value instanceof Integer
+				|| value instanceof Double || value instanceof Character) {
+			return value;
+		} else if (value instanceof CharSequence) {
+			return value.toString();
+		} else if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			Object[] elements = new Object[list.size()];
+			for (int i = 0; i != elements.length; ++i) {
+				elements[i] = toValue(list.get(i));
+			}
+			if (copyOnWrite) {
+				return CowList.of(elements);
+			} else {
+				return PersistentVector.of(Arrays.asList(elements));
+			}
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			ArrayList<String> fields = new ArrayList<String>();
+			for (Object key : map.keySet()) {
+				fields.add((String) key);
+			}
+			Shape shape = Shape.of(fields);
+			Object[] values = new Object[shape.size()];
+			for (int i = 0; i != values.length; ++i) {
+				values[i] = toValue(map.get(shape.field(i)));
+			}
+			if (copyOnWrite) {
+				return new CowRecord(shape, values);
+			} else {
+				return new PersistentRecord(shape, values);
+			}
+		}
+		throw new IllegalArgumentException("cannot pass "
+				+ value.getClass().getName() + " to a While function");
+	}
+
+	/**
+	 * Convert a While value into an equivalent Java value.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static Object toJava(Object value) {
+		if (value instanceof CharSequence) {
+			return value.toString();
+		} else if (value instanceof ListValue) {
+			ListValue list = (ListValue) value;
+			ArrayList<Object> r = new ArrayList<Object>(list.size());
+			for (int i = 0; i != list.size(); ++i) {
+				r.add(toJava(list.get(i)));
+			}
+			return Collections.unmodifiableList(r);
+		} else if (value instanceof RecordValue) {
+			RecordValue record = (RecordValue) value;
+			Shape shape = record.shape();
+			LinkedHashMap<String, Object> r = new LinkedHashMap<String, Object>();
+			for (int i = 0; i != shape.size(); ++i) {
+				r.put(shape.field(i), toJava(record.get(i)));
+			}
+			return Collections.unmodifiableMap(r);
+		}
+		return value;
+	}
+}
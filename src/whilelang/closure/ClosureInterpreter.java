@@ -0,0 +1,664 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.closure;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.*;
+
+import whilelang.lang.*;
+import whilelang.runtime.ValuePrinter;
+import whilelang.util.Pair;
+import whilelang.util.FunctionResolver;
+import whilelang.util.VariableResolver;
+
+/**
+ * <p>
+ * An execution engine for WhileLang programs which, rather than walking the
+ * Abstract Syntax Tree on every execution, first compiles each function into a
+ * tree of closures (see <code>StmtNode</code> and <code>ExprNode</code>). Each
+ * node is linked directly to its children, and to the functions it calls, so
+ * that executing a node requires only a single virtual call to it (rather than
+ * a chain of <code>instanceof</code> tests).
+ * </p>
+ * <p>
+ * The semantics are intended to be identical to those of
+ * <code>Interpreter</code>, which remains the reference implementation.
+ * </p>
+ * <p>
+ * Optionally, variables declared as <code>int</code> or <code>real</code> can
+ * be kept unboxed (see <code>Function</code>), so that arithmetic on them
+ * allocates nothing. This relies on the program having been type checked,
+ * since the declared type of every such variable must then hold for every
+ * value assigned to it. Since casts are not yet implemented (as in
+ * <code>Interpreter</code>), they can break this, and so a file containing
+ * any cast is run with every variable boxed.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ClosureInterpreter {
+	private final boolean copyOnWrite;
+	private final boolean unboxed;
+	private final ValuePrinter output;
+	private HashMap<String, Function> functions;
+	private HashMap<String, WhileFile.TypeDecl> types;
+	private WhileFile file;
+
+	// The layout of the frame of the function being compiled.
+	private int frameSize;
+	private int[] kinds;
+
+	public ClosureInterpreter() {
+		this(false);
+	}
+
+	/**
+	 * Construct a closure interpreter.
+	 *
+	 * @param copyOnWrite
+	 *            If true, lists and records are represented with copy-on-write
+	 *            values; otherwise, persistent values are used.
+	 */
+	public ClosureInterpreter(boolean copyOnWrite) {
+		this(copyOnWrite, false);
+	}
+
+	/**
+	 * Construct a closure interpreter.
+	 *
+	 * @param copyOnWrite
+	 *            If true, lists and records are represented with copy-on-write
+	 *            values; otherwise, persistent values are used.
+	 * @param unboxed
+	 *            If true, <code>int</code> and <code>real</code> variables are
+	 *            kept unboxed. The program must have been type checked.
+	 */
+	public ClosureInterpreter(boolean copyOnWrite, boolean unboxed) {
+		this.copyOnWrite = copyOnWrite;
+		this.unboxed = unboxed;
+		this.output = new ValuePrinter(System.out);
+	}
+
+	public void run(WhileFile wf) {
+		compile(wf);
+
+		Function main = functions.get("main");
+		if (main != null) {
+			try {
+				main.invoke();
+			} finally {
+				output.flush();
+			}
+		} else {
+			System.out.println("Cannot find a main() function");
+		}
+	}
+
+	/**
+	 * Compile every function in a given file.
+	 *
+	 * @param wf
+	 * @return Map from function names to compiled functions.
+	 */
+	public Map<String, Function> compile(WhileFile wf) {
+		this.file = wf;
+		this.functions = new HashMap<String, Function>();
+		this.types = new HashMap<String, WhileFile.TypeDecl>();
+		for (WhileFile.Decl decl : wf.declarations) {
+			if (decl instanceof WhileFile.TypeDecl) {
+				types.put(decl.name(), (WhileFile.TypeDecl) decl);
+			}
+		}
+
+		// First, allocate every variable to a fixed slot in its function's
+		// stack frame.
+		new VariableResolver().resolve(wf);
+		new FunctionResolver().resolve(wf);
+
+		// Second, create every function (without its body) so that calls can
+		// be linked directly to their target.
+		boolean unbox = unboxed && !hasCasts(wf);
+		for (WhileFile.Decl decl : wf.declarations) {
+			if (decl instanceof WhileFile.FunDecl) {
+				WhileFile.FunDecl fd = (WhileFile.FunDecl) decl;
+				int[] parameters = new int[fd.parameters.size()];
+				for (int i = 0; i != parameters.length; ++i) {
+					parameters[i] = fd.parameters.get(i).getSlot();
+				}
+				functions.put(fd.name, new Function(fd.name, parameters,
+						fd.getFrameSize(), copyOnWrite, unbox ? kinds(fd)
+								: null));
+			}
+		}
+
+		// Third, compile the body of every function.
+		for (WhileFile.Decl decl : wf.declarations) {
+			if (decl instanceof WhileFile.FunDecl) {
+				WhileFile.FunDecl fd = (WhileFile.FunDecl) decl;
+				Function f = functions.get(fd.name);
+				frameSize = fd.getFrameSize();
+				kinds = f.kinds();
+				f.setBody(compile(fd.statements));
+			}
+		}
+
+		return functions;
+	}
+
+	// ==========================================
+	// Unboxed Variables
+	// ==========================================
+
+	/**
+	 * Determine the kind of each variable slot in a given function. A slot is
+	 * kept unboxed only if every parameter and declaration allocated to it
+	 * has the same type (<code>int</code> or <code>real</code>).
+	 *
+	 * @param fd
+	 * @return
+	 */
+	private int[] kinds(WhileFile.FunDecl fd) {
+		int[] kinds = new int[fd.getFrameSize()];
+		Arrays.fill(kinds, -1);
+		for (WhileFile.Parameter p : fd.parameters) {
+			declare(p.getSlot(), p.type, kinds);
+		}
+		kinds(fd.statements, kinds);
+		for (int i = 0; i != kinds.length; ++i) {
+			// NOTE: a slot without any declaration (e.g. for a constant) is
+			// never assigned, so must remain boxed.
+			if (kinds[i] == -1) {
+				kinds[i] = Function.OBJECT;
+			}
+		}
+		return kinds;
+	}
+
+	private void kinds(List<Stmt> block, int[] kinds) {
+		for (Stmt stmt : block) {
+			if (stmt instanceof Stmt.VariableDeclaration) {
+				Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+				declare(s.getSlot(), s.getType(), kinds);
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				kinds(s.getTrueBranch(), kinds);
+				kinds(s.getFalseBranch(), kinds);
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				declare(s.getDeclaration().getSlot(), s.getDeclaration()
+						.getType(), kinds);
+				kinds(s.getBody(), kinds);
+			} else if (stmt instanceof Stmt.While) {
+				kinds(((Stmt.While) stmt).getBody(), kinds);
+			}
+		}
+	}
+
+	private void declare(int slot, Type type, int[] kinds) {
+		type = expand(type);
+		int kind;
+		if (type instanceof Type.Int) {
+			kind = Function.INT;
+		} else if (type instanceof Type.Real) {
+			kind = Function.REAL;
+		} else {
+			kind = Function.OBJECT;
+		}
+		if (kinds[slot] == -1 || kinds[slot] == kind) {
+			kinds[slot] = kind;
+		} else {
+			kinds[slot] = Function.OBJECT;
+		}
+	}
+
+	/**
+	 * Check whether a given file contains a cast anywhere.
+	 *
+	 * @param wf
+	 * @return
+	 */
+	private static boolean hasCasts(WhileFile wf) {
+		for (WhileFile.Decl decl : wf.declarations) {
+			if (decl instanceof WhileFile.ConstDecl) {
+				if (hasCasts(((WhileFile.ConstDecl) decl).constant)) {
+					return true;
+				}
+			} else if (decl instanceof WhileFile.FunDecl) {
+				if (hasCasts(((WhileFile.FunDecl) decl).statements)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasCasts(List<Stmt> block) {
+		for (Stmt stmt : block) {
+			if (hasCasts(stmt)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasCasts(Stmt stmt) {
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			return hasCasts(s.getLhs()) || hasCasts(s.getRhs());
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			return (s.getDeclaration() != null && hasCasts(s.getDeclaration()))
+					|| hasCasts(s.getCondition())
+					|| (s.getIncrement() != null && hasCasts(s.getIncrement()))
+					|| hasCasts(s.getBody());
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			return hasCasts(s.getCondition()) || hasCasts(s.getBody());
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			return hasCasts(s.getCondition()) || hasCasts(s.getTrueBranch())
+					|| hasCasts(s.getFalseBranch());
+		} else if (stmt instanceof Stmt.Return) {
+			return hasCasts(((Stmt.Return) stmt).getExpr());
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			return hasCasts(((Stmt.VariableDeclaration) stmt).getExpr());
+		} else if (stmt instanceof Stmt.Print) {
+			return hasCasts(((Stmt.Print) stmt).getExpr());
+		} else if (stmt instanceof Expr.Invoke) {
+			return hasCasts((Expr) stmt);
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether a given expression, which may be <code>null</code>,
+	 * contains a cast.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static boolean hasCasts(Expr expr) {
+		if (expr instanceof Expr.Cast) {
+			return true;
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			return hasCasts(e.getLhs()) || hasCasts(e.getRhs());
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return hasCasts(e.getSource()) || hasCasts(e.getIndex());
+		} else if (expr instanceof Expr.Invoke) {
+			return hasCasts(((Expr.Invoke) expr).getArguments());
+		} else if (expr instanceof Expr.ListConstructor) {
+			return hasCasts(((Expr.ListConstructor) expr).getArguments());
+		} else if (expr instanceof Expr.RecordAccess) {
+			return hasCasts(((Expr.RecordAccess) expr).getSource());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				if (hasCasts(p.second())) {
+					return true;
+				}
+			}
+		} else if (expr instanceof Expr.Unary) {
+			return hasCasts(((Expr.Unary) expr).getExpr());
+		}
+		return false;
+	}
+
+	private static boolean hasCasts(Collection<Expr> exprs) {
+		for (Expr e : exprs) {
+			if (hasCasts(e)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Expand a named type into its definition.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private Type expand(Type type) {
+		while (type instanceof Type.Named
+				&& types.containsKey(((Type.Named) type).getName())) {
+			type = types.get(((Type.Named) type).getName()).type;
+		}
+		return type;
+	}
+
+	private int kind(int slot) {
+		return kinds != null ? kinds[slot] : Function.OBJECT;
+	}
+
+	/**
+	 * Assign to a variable slot which is kept unboxed.
+	 *
+	 * @param slot
+	 * @param value
+	 * @return
+	 */
+	private StmtNode assign(int slot, ExprNode value) {
+		if (kind(slot) == Function.INT) {
+			return new StmtNode.IntAssign(slot, frameSize, value);
+		} else {
+			return new StmtNode.RealAssign(slot, frameSize + 1, value);
+		}
+	}
+
+	// ==========================================
+	// Statements
+	// ==========================================
+
+	private StmtNode[] compile(List<Stmt> block) {
+		StmtNode[] nodes = new StmtNode[block.size()];
+		for (int i = 0; i != nodes.length; ++i) {
+			nodes[i] = compile(block.get(i));
+		}
+		return nodes;
+	}
+
+	private StmtNode compile(Stmt stmt) {
+		if (stmt instanceof Stmt.Assign) {
+			return compile((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			return compile((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			return compile((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.IfElse) {
+			return compile((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.Return) {
+			return compile((Stmt.Return) stmt);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			return compile((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Stmt.Print) {
+			return new StmtNode.Print(compile(((Stmt.Print) stmt).getExpr()),
+					output);
+		} else if (stmt instanceof Expr.Invoke) {
+			return new StmtNode.Eval(compile((Expr.Invoke) stmt));
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")",
+					file.filename, stmt);
+			return null;
+		}
+	}
+
+	private StmtNode compile(Stmt.Assign stmt) {
+		Expr lhs = stmt.getLhs();
+		Expr rhs = stmt.getRhs();
+		if (lhs instanceof Expr.Variable) {
+			int slot = ((Expr.Variable) lhs).getSlot();
+			if (kind(slot) != Function.OBJECT) {
+				return assign(slot, compile(rhs));
+			} else if (copyOnWrite && isSelfAppend(slot, rhs)) {
+				Expr.Binary e = (Expr.Binary) rhs;
+				return new StmtNode.AppendAssign(slot, compile(e.getRhs()),
+						file.filename, e);
+			}
+			return new StmtNode.Assign(slot, compileStored(rhs));
+		} else {
+			ArrayList<ExprNode> path = new ArrayList<ExprNode>();
+			int slot = compilePath(lhs, path);
+			return new StmtNode.AssignPath(slot,
+					path.toArray(new ExprNode[path.size()]),
+					compileStored(rhs));
+		}
+	}
+
+	/**
+	 * Check whether an assignment to a given variable slot has the form
+	 * <code>x = x ++ e</code>.
+	 *
+	 * @param slot
+	 * @param rhs
+	 * @return
+	 */
+	private static boolean isSelfAppend(int slot, Expr rhs) {
+		if (!(rhs instanceof Expr.Binary)) {
+			return false;
+		}
+		Expr.Binary e = (Expr.Binary) rhs;
+		return e.getOp() == Expr.BOp.APPEND
+				&& e.getLhs() instanceof Expr.Variable
+				&& ((Expr.Variable) e.getLhs()).getSlot() == slot;
+	}
+
+	/**
+	 * Compile the path of field lookups and indices from the variable at the
+	 * root of a given lval to the location being assigned.
+	 *
+	 * @param lval
+	 * @param path
+	 *            List to which the compiled keys are appended.
+	 * @return The slot of the root variable.
+	 */
+	private int compilePath(Expr lval, List<ExprNode> path) {
+		if (lval instanceof Expr.Variable) {
+			return ((Expr.Variable) lval).getSlot();
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			int slot = compilePath(ra.getSource(), path);
+			path.add(new ExprNode.Constant(ra.getLookup()));
+			return slot;
+		} else if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			int slot = compilePath(io.getSource(), path);
+			path.add(compile(io.getIndex()));
+			return slot;
+		} else {
+			internalFailure("unknown lval encountered (" + lval + ")",
+					file.filename, lval);
+			return -1;
+		}
+	}
+
+	private StmtNode compile(Stmt.For stmt) {
+		return new StmtNode.For(compile(stmt.getDeclaration()),
+				compile(stmt.getCondition()), compile(stmt.getIncrement()),
+				compile(stmt.getBody()));
+	}
+
+	private StmtNode compile(Stmt.While stmt) {
+		return new StmtNode.While(compile(stmt.getCondition()),
+				compile(stmt.getBody()));
+	}
+
+	private StmtNode compile(Stmt.IfElse stmt) {
+		return new StmtNode.IfElse(compile(stmt.getCondition()),
+				compile(stmt.getTrueBranch()), compile(stmt.getFalseBranch()));
+	}
+
+	private StmtNode compile(Stmt.Return stmt) {
+		Expr re = stmt.getExpr();
+		return new StmtNode.Return(re != null ? compileStored(re) : null);
+	}
+
+	private StmtNode compile(Stmt.VariableDeclaration stmt) {
+		Expr re = stmt.getExpr();
+		ExprNode value;
+		if (kind(stmt.getSlot()) == Function.INT) {
+			value = re != null ? compile(re) : new ExprNode.Constant(0);
+			return assign(stmt.getSlot(), value);
+		} else if (kind(stmt.getSlot()) == Function.REAL) {
+			value = re != null ? compile(re) : new ExprNode.Constant(0.0);
+			return assign(stmt.getSlot(), value);
+		} else if (re != null) {
+			value = compileStored(re);
+		} else {
+			// used to indicate a variable has been declared
+			value = new ExprNode.Constant(Collections.EMPTY_SET);
+		}
+		return new StmtNode.Assign(stmt.getSlot(), value);
+	}
+
+	// ==========================================
+	// Expressions
+	// ==========================================
+
+	/**
+	 * Compile an expression whose value is to be stored in a new location
+	 * (e.g. a variable, list element or argument). For copy-on-write values,
+	 * if the expression only reads a value held elsewhere (e.g. <code>x</code>
+	 * or <code>x[i]</code>), then that value must gain an additional owner.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private ExprNode compileStored(Expr expr) {
+		ExprNode node = compile(expr);
+		while (expr instanceof Expr.Cast) {
+			expr = ((Expr.Cast) expr).getSource();
+		}
+		if (copyOnWrite
+				&& ((expr instanceof Expr.Variable && kind(((Expr.Variable) expr)
+						.getSlot()) == Function.OBJECT)
+						|| expr instanceof Expr.IndexOf
+						|| expr instanceof Expr.RecordAccess)) {
+			return new ExprNode.Share(node);
+		}
+		return node;
+	}
+
+	private ExprNode[] compileStored(List<Expr> exprs) {
+		ExprNode[] nodes = new ExprNode[exprs.size()];
+		for (int i = 0; i != nodes.length; ++i) {
+			nodes[i] = compileStored(exprs.get(i));
+		}
+		return nodes;
+	}
+
+	private ExprNode compile(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			return compile((Expr.Binary) expr);
+		} else if (expr instanceof Expr.Cast) {
+			// TODO: we need to actually implement casting here!
+			return compile(((Expr.Cast) expr).getSource());
+		} else if (expr instanceof Expr.Constant) {
+			return new ExprNode.Constant(((Expr.Constant) expr).getValue());
+		} else if (expr instanceof Expr.Invoke) {
+			return compile((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return new ExprNode.IndexOf(compile(e.getSource()),
+					compile(e.getIndex()));
+		} else if (expr instanceof Expr.ListConstructor) {
+			Expr.ListConstructor e = (Expr.ListConstructor) expr;
+			return new ExprNode.ListConstructor(
+					compileStored(e.getArguments()), copyOnWrite);
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			return new ExprNode.RecordAccess(compile(e.getSource()),
+					e.getLookup());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			return compile((Expr.RecordConstructor) expr);
+		} else if (expr instanceof Expr.Unary) {
+			return compile((Expr.Unary) expr);
+		} else if (expr instanceof Expr.Variable) {
+			int slot = ((Expr.Variable) expr).getSlot();
+			switch (kind(slot)) {
+			case Function.INT:
+				return new ExprNode.IntVariable(slot, frameSize);
+			case Function.REAL:
+				return new ExprNode.RealVariable(slot, frameSize + 1);
+			default:
+				return new ExprNode.Variable(slot);
+			}
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")",
+					file.filename, expr);
+			return null;
+		}
+	}
+
+	private ExprNode compile(Expr.Binary expr) {
+		ExprNode lhs = compile(expr.getLhs());
+		ExprNode rhs = compile(expr.getRhs());
+
+		switch (expr.getOp()) {
+		case AND:
+			return new ExprNode.And(lhs, rhs);
+		case OR:
+			return new ExprNode.Or(lhs, rhs);
+		case ADD:
+			return new ExprNode.Add(lhs, rhs);
+		case SUB:
+			return new ExprNode.Sub(lhs, rhs);
+		case MUL:
+			return new ExprNode.Mul(lhs, rhs);
+		case DIV:
+			return new ExprNode.Div(lhs, rhs);
+		case REM:
+			return new ExprNode.Rem(lhs, rhs);
+		case EQ:
+			return new ExprNode.Eq(lhs, rhs);
+		case NEQ:
+			return new ExprNode.NotEq(lhs, rhs);
+		case LT:
+			return new ExprNode.Lt(lhs, rhs);
+		case LTEQ:
+			return new ExprNode.LtEq(lhs, rhs);
+		case GT:
+			return new ExprNode.Gt(lhs, rhs);
+		case GTEQ:
+			return new ExprNode.GtEq(lhs, rhs);
+		case APPEND:
+			return new ExprNode.Append(lhs, rhs, file.filename, expr);
+		}
+
+		internalFailure("unknown binary expression encountered (" + expr + ")",
+				file.filename, expr);
+		return null;
+	}
+
+	private ExprNode compile(Expr.Unary expr) {
+		ExprNode operand = compile(expr.getExpr());
+
+		switch (expr.getOp()) {
+		case NOT:
+			return new ExprNode.Not(operand);
+		case NEG:
+			return new ExprNode.Neg(operand);
+		case LENGTHOF:
+			return new ExprNode.LengthOf(operand);
+		}
+
+		internalFailure("unknown unary expression encountered (" + expr + ")",
+				file.filename, expr);
+		return null;
+	}
+
+	private ExprNode compile(Expr.Invoke expr) {
+		return new ExprNode.Invoke(functions.get(expr.getTarget().name),
+				compileStored(expr.getArguments()));
+	}
+
+	private ExprNode compile(Expr.RecordConstructor expr) {
+		List<Pair<String, Expr>> es = expr.getFields();
+		ExprNode[] values = new ExprNode[es.size()];
+		for (int i = 0; i != values.length; ++i) {
+			values[i] = compileStored(es.get(i).second());
+		}
+		return new ExprNode.RecordConstructor(expr.getLayout(), values,
+				copyOnWrite);
+	}
+}
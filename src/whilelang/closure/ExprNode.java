@@ -0,0 +1,1151 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.closure;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.*;
+
+import whilelang.runtime.*;
+import whilelang.util.SyntacticElement;
+
+/**
+ * <p>
+ * A compiled expression, which is evaluated directly by calling its
+ * <code>eval()</code> method. There is one kind of node for every kind of
+ * expression (and, for binary and unary expressions, for every operator), so
+ * each node knows exactly what to do without inspecting the syntax tree.
+ * </p>
+ * <p>
+ * A node can also be evaluated with <code>evalInt()</code>,
+ * <code>evalReal()</code> or <code>evalBool()</code> when its parent expects
+ * a value of that type. Nodes which can produce such a value without boxing
+ * it (e.g. arithmetic) override these; if the value turns out to have another
+ * type, then <code>UnexpectedValue</code> is thrown carrying it instead.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public abstract class ExprNode {
+
+	/**
+	 * Evaluate this expression in a given stack frame.
+	 *
+	 * @param frame
+	 *            Stack frame holding the current value of each variable slot.
+	 * @return
+	 */
+	public abstract Object eval(Object[] frame);
+
+	/**
+	 * Evaluate this expression in a given stack frame, where it is expected to
+	 * produce an integer.
+	 *
+	 * @param frame
+	 * @return
+	 * @throws UnexpectedValue
+	 *             if the expression produced some other value.
+	 */
+	public int evalInt(Object[] frame) throws UnexpectedValue {
+		Object value = eval(frame);
+		if (value instanceof Integer) {
+			return (Integer) value;
+		}
+		throw new UnexpectedValue(value);
+	}
+
+	/**
+	 * Evaluate this expression in a given stack frame, where it is expected to
+	 * produce a real.
+	 *
+	 * @param frame
+	 * @return
+	 * @throws UnexpectedValue
+	 *             if the expression produced some other value.
+	 */
+	public double evalReal(Object[] frame) throws UnexpectedValue {
+		Object value = eval(frame);
+		if (value instanceof Double) {
+			return (Double) value;
+		}
+		throw new UnexpectedValue(value);
+	}
+
+	/**
+	 * Evaluate this expression in a given stack frame, where it must produce a
+	 * boolean (e.g. the condition of an if statement).
+	 *
+	 * @param frame
+	 * @return
+	 */
+	public boolean evalBool(Object[] frame) {
+		return (Boolean) eval(frame);
+	}
+
+	// The states of a self-specializing node.
+	private static final int UNINITIALIZED = 0;
+	private static final int INT = 1;
+	private static final int REAL = 2;
+	private static final int GENERIC = 3;
+
+	/**
+	 * Determine the specialization for an operator first applied to the given
+	 * operands.
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	private static int specialize(Object lhs, Object rhs) {
+		if (lhs instanceof Integer && rhs instanceof Integer) {
+			return INT;
+		} else if (lhs instanceof Double && rhs instanceof Double) {
+			return REAL;
+		} else {
+			return GENERIC;
+		}
+	}
+
+	public static final class Constant extends ExprNode {
+		private final Object value;
+
+		public Constant(Object value) {
+			this.value = value;
+		}
+
+		public Object eval(Object[] frame) {
+			return value;
+		}
+
+		public int evalInt(Object[] frame) throws UnexpectedValue {
+			if (value instanceof Integer) {
+				return (Integer) value;
+			}
+			throw new UnexpectedValue(value);
+		}
+
+		public double evalReal(Object[] frame) throws UnexpectedValue {
+			if (value instanceof Double) {
+				return (Double) value;
+			}
+			throw new UnexpectedValue(value);
+		}
+	}
+
+	public static final class Variable extends ExprNode {
+		private final int slot;
+
+		public Variable(int slot) {
+			this.slot = slot;
+		}
+
+		public int slot() {
+			return slot;
+		}
+
+		public Object eval(Object[] frame) {
+			return frame[slot];
+		}
+
+		public int evalInt(Object[] frame) throws UnexpectedValue {
+			Object value = frame[slot];
+			if (value instanceof Integer) {
+				return (Integer) value;
+			}
+			throw new UnexpectedValue(value);
+		}
+
+		public double evalReal(Object[] frame) throws UnexpectedValue {
+			Object value = frame[slot];
+			if (value instanceof Double) {
+				return (Double) value;
+			}
+			throw new UnexpectedValue(value);
+		}
+	}
+
+	/**
+	 * Reads an <code>int</code> variable which is kept unboxed (see
+	 * <code>Function</code>).
+	 */
+	public static final class IntVariable extends ExprNode {
+		private final int slot;
+		private final int ints;
+
+		public IntVariable(int slot, int ints) {
+			this.slot = slot;
+			this.ints = ints;
+		}
+
+		public Object eval(Object[] frame) {
+			return (int) ((long[]) frame[ints])[slot];
+		}
+
+		public int evalInt(Object[] frame) {
+			return (int) ((long[]) frame[ints])[slot];
+		}
+	}
+
+	/**
+	 * Reads a <code>real</code> variable which is kept unboxed (see
+	 * <code>Function</code>).
+	 */
+	public static final class RealVariable extends ExprNode {
+		private final int slot;
+		private final int reals;
+
+		public RealVariable(int slot, int reals) {
+			this.slot = slot;
+			this.reals = reals;
+		}
+
+		public Object eval(Object[] frame) {
+			return ((double[]) frame[reals])[slot];
+		}
+
+		public double evalReal(Object[] frame) {
+			return ((double[]) frame[reals])[slot];
+		}
+	}
+
+	/**
+	 * Evaluates an expression which reads a value held elsewhere, and records
+	 * that the value is gaining a new owner. This is only used for
+	 * copy-on-write values, where the result is about to be stored (e.g. in a
+	 * variable).
+	 */
+	public static final class Share extends ExprNode {
+		private final ExprNode source;
+
+		public Share(ExprNode source) {
+			this.source = source;
+		}
+
+		public Object eval(Object[] frame) {
+			return CompoundValue.share(source.eval(frame));
+		}
+	}
+
+	// ==========================================
+	// Binary Operators
+	// ==========================================
+
+	private static abstract class Binary extends ExprNode {
+		protected final ExprNode lhs;
+		protected final ExprNode rhs;
+
+		public Binary(ExprNode lhs, ExprNode rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+	}
+
+	public static final class And extends Binary {
+		public And(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object eval(Object[] frame) {
+			return evalBool(frame);
+		}
+
+		public boolean evalBool(Object[] frame) {
+			return lhs.evalBool(frame) && rhs.evalBool(frame);
+		}
+	}
+
+	public static final class Or extends Binary {
+		public Or(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object eval(Object[] frame) {
+			return evalBool(frame);
+		}
+
+		public boolean evalBool(Object[] frame) {
+			return lhs.evalBool(frame) || rhs.evalBool(frame);
+		}
+	}
+
+	/**
+	 * <p>
+	 * An arithmetic operator which specializes itself according to the values
+	 * it is first applied to. If both operands are integers (or both are
+	 * reals), then the node switches to a mode in which it evaluates its
+	 * operands with <code>evalInt()</code> (resp. <code>evalReal()</code>),
+	 * thereby avoiding any type tests or boxing of intermediate results.
+	 * </p>
+	 * <p>
+	 * Should an operand later produce a value of a different type, the
+	 * specialization's guard fails and the node permanently reverts to the
+	 * generic implementation (which behaves exactly as the interpreter does).
+	 * </p>
+	 * <p>
+	 * <b>NOTE:</b> each operator implements the specialized methods itself
+	 * (rather than inheriting them from here), so that the JIT compiler sees
+	 * separate call sites, and hence separate type profiles, for each.
+	 * </p>
+	 */
+	private static abstract class Arithmetic extends Binary {
+		protected int state = UNINITIALIZED;
+
+		public Arithmetic(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		/**
+		 * Apply this operator generically to two boxed operands.
+		 */
+		protected abstract Object apply(Object lhs, Object rhs);
+
+		protected final Object evalGeneric(Object[] frame) {
+			Object l = lhs.eval(frame);
+			Object r = rhs.eval(frame);
+			if (state == UNINITIALIZED) {
+				state = specialize(l, r);
+			}
+			return apply(l, r);
+		}
+
+		/**
+		 * Handle the failure of the guard on the left operand, by reverting to
+		 * the generic implementation and completing the evaluation with it.
+		 *
+		 * @return An exception carrying the result.
+		 */
+		protected final UnexpectedValue lhsFailed(UnexpectedValue e,
+				Object[] frame) {
+			state = GENERIC;
+			return new UnexpectedValue(apply(e.value(), rhs.eval(frame)));
+		}
+
+		/**
+		 * Handle the failure of the guard on the right operand, by reverting to
+		 * the generic implementation and completing the evaluation with it.
+		 *
+		 * @return An exception carrying the result.
+		 */
+		protected final UnexpectedValue rhsFailed(Object l, UnexpectedValue e) {
+			state = GENERIC;
+			return new UnexpectedValue(apply(l, e.value()));
+		}
+	}
+
+	public static final class Add extends Arithmetic {
+		public Add(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object eval(Object[] frame) {
+			try {
+				switch (state) {
+				case INT:
+					return evalInt(frame);
+				case REAL:
+					return evalReal(frame);
+				}
+			} catch (UnexpectedValue e) {
+				return e.value();
+			}
+			return evalGeneric(frame);
+		}
+
+		public int evalInt(Object[] frame) throws UnexpectedValue {
+			if (state != INT) {
+				return super.evalInt(frame);
+			}
+			int l;
+			try {
+				l = lhs.evalInt(frame);
+			} catch (UnexpectedValue e) {
+				throw lhsFailed(e, frame);
+			}
+			try {
+				return l + rhs.evalInt(frame);
+			} catch (UnexpectedValue e) {
+				throw rhsFailed(l, e);
+			}
+		}
+
+		public double evalReal(Object[] frame) throws UnexpectedValue {
+			if (state != REAL) {
+				return super.evalReal(frame);
+			}
+			double l;
+			try {
+				l = lhs.evalReal(frame);
+			} catch (UnexpectedValue e) {
+				throw lhsFailed(e, frame);
+			}
+			try {
+				return l + rhs.evalReal(frame);
+			} catch (UnexpectedValue e) {
+				throw rhsFailed(l, e);
+			}
+		}
+
+		protected Object apply(Object l, Object r) {
+			if (l instanceof Integer) {
+				return ((Integer) l) + ((Integer) r);
+			} else {
+				return ((Double) l) + ((Double) r);
+			}
+		}
+	}
+
+	public static final class Sub extends Arithmetic {
+		public Sub(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object eval(Object[] frame) {
+			try {
+				switch (state) {
+				case INT:
+					return evalInt(frame);
+				case REAL:
+					return evalReal(frame);
+				}
+			} catch (UnexpectedValue e) {
+				return e.value();
+			}
+			return evalGeneric(frame);
+		}
+
+		public int evalInt(Object[] frame) throws UnexpectedValue {
+			if (state != INT) {
+				return super.evalInt(frame);
+			}
+			int l;
+			try {
+				l = lhs.evalInt(frame);
+			} catch (UnexpectedValue e) {
+				throw lhsFailed(e, frame);
+			}
+			try {
+				return l - rhs.evalInt(frame);
+			} catch (UnexpectedValue e) {
+				throw rhsFailed(l, e);
+			}
+		}
+
+		public double evalReal(Object[] frame) throws UnexpectedValue {
+			if (state != REAL) {
+				return super.evalReal(frame);
+			}
+			double l;
+			try {
+				l = lhs.evalReal(frame);
+			} catch (UnexpectedValue e) {
+				throw lhsFailed(e, frame);
+			}
+			try {
+				return l - rhs.evalReal(frame);
+			} catch (UnexpectedValue e) {
+				throw rhsFailed(l, e);
+			}
+		}
+
+		protected Object apply(Object l, Object r) {
+			if (l instanceof Integer) {
+				return ((Integer) l) - ((Integer) r);
+			} else {
+				return ((Double) l) - ((Double) r);
+			}
+		}
+	}
+
+	public static final class Mul extends Arithmetic {
+		public Mul(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object eval(Object[] frame) {
+			try {
+				switch (state) {
+				case INT:
+					return evalInt(frame);
+				case REAL:
+					return evalReal(frame);
+				}
+			} catch (UnexpectedValue e) {
+				return e.value();
+			}
+			return evalGeneric(frame);
+		}
+
+		public int evalInt(Object[] frame) throws UnexpectedValue {
+			if (state != INT) {
+				return super.evalInt(frame);
+			}
+			int l;
+			try {
+				l = lhs.evalInt(frame);
+			} catch (UnexpectedValue e) {
+				throw lhsFailed(e, frame);
+			}
+			try {
+				return l * rhs.evalInt(frame);
+			} catch (UnexpectedValue e) {
+				throw rhsFailed(l, e);
+			}
+		}
+
+		public double evalReal(Object[] frame) throws UnexpectedValue {
+			if (state != REAL) {
+				return super.evalReal(frame);
+			}
+			double l;
+			try {
+				l = lhs.evalReal(frame);
+			} catch (UnexpectedValue e) {
+				throw lhsFailed(e, frame);
+			}
+			try {
+				return l * rhs.evalReal(frame);
+			} catch (UnexpectedValue e) {
+				throw rhsFailed(l, e);
+			}
+		}
+
+		protected Object apply(Object l, Object r) {
+			if (l instanceof Integer) {
+				return ((Integer) l) * ((Integer) r);
+			} else {
+				return ((Double) l) * ((Double) r);
+			}
+		}
+	}
+
+	public static final class Div extends Arithmetic {
+		public Div(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object eval(Object[] frame) {
+			try {
+				switch (state) {
+				case INT:
+					return evalInt(frame);
+				case REAL:
+					return evalReal(frame);
+				}
+			} catch (UnexpectedValue e) {
+				return e.value();
+			}
+			return evalGeneric(frame);
+		}
+
+		public int evalInt(Object[] frame) throws UnexpectedValue {
+			if (state != INT) {
+				return super.evalInt(frame);
+			}
+			int l;
+			try {
+				l = lhs.evalInt(frame);
+			} catch (UnexpectedValue e) {
+				throw lhsFailed(e, frame);
+			}
+			try {
+				return l / rhs.evalInt(frame);
+			} catch (UnexpectedValue e) {
+				throw rhsFailed(l, e);
+			}
+		}
+
+		public double evalReal(Object[] frame) throws UnexpectedValue {
+			if (state != REAL) {
+				return super.evalReal(frame);
+			}
+			double l;
+			try {
+				l = lhs.evalReal(frame);
+			} catch (UnexpectedValue e) {
+				throw lhsFailed(e, frame);
+			}
+			try {
+				return l / rhs.evalReal(frame);
+			} catch (UnexpectedValue e) {
+				throw rhsFailed(l, e);
+			}
+		}
+
+		protected Object apply(Object l, Object r) {
+			if (l instanceof Integer) {
+				return ((Integer) l) / ((Integer) r);
+			} else {
+				return ((Double) l) / ((Double) r);
+			}
+		}
+	}
+
+	public static final class Rem extends Arithmetic {
+		public Rem(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object eval(Object[] frame) {
+			try {
+				switch (state) {
+				case INT:
+					return evalInt(frame);
+				case REAL:
+					return evalReal(frame);
+				}
+			} catch (UnexpectedValue e) {
+				return e.value();
+			}
+			return evalGeneric(frame);
+		}
+
+		public int evalInt(Object[] frame) throws UnexpectedValue {
+			if (state != INT) {
+				return super.evalInt(frame);
+			}
+			int l;
+			try {
+				l = lhs.evalInt(frame);
+			} catch (UnexpectedValue e) {
+				throw lhsFailed(e, frame);
+			}
+			try {
+				return l % rhs.evalInt(frame);
+			} catch (UnexpectedValue e) {
+				throw rhsFailed(l, e);
+			}
+		}
+
+		public double evalReal(Object[] frame) throws UnexpectedValue {
+			if (state != REAL) {
+				return super.evalReal(frame);
+			}
+			double l;
+			try {
+				l = lhs.evalReal(frame);
+			} catch (UnexpectedValue e) {
+				throw lhsFailed(e, frame);
+			}
+			try {
+				return l % rhs.evalReal(frame);
+			} catch (UnexpectedValue e) {
+				throw rhsFailed(l, e);
+			}
+		}
+
+		protected Object apply(Object l, Object r) {
+			if (l instanceof Integer) {
+				return ((Integer) l) % ((Integer) r);
+			} else {
+				return ((Double) l) % ((Double) r);
+			}
+		}
+	}
+
+	public static final class Eq extends Binary {
+		public Eq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object eval(Object[] frame) {
+			return evalBool(frame);
+		}
+
+		public boolean evalBool(Object[] frame) {
+			Object l = lhs.eval(frame);
+			Object r = rhs.eval(frame);
+			return StringValue.equal(l, r);
+		}
+	}
+
+	public static final class NotEq extends Binary {
+		public NotEq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object eval(Object[] frame) {
+			return evalBool(frame);
+		}
+
+		public boolean evalBool(Object[] frame) {
+			Object l = lhs.eval(frame);
+			Object r = rhs.eval(frame);
+			return !StringValue.equal(l, r);
+		}
+	}
+
+	/**
+	 * A comparison operator which, like <code>Arithmetic</code>, specializes
+	 * itself to integer or real operands according to the values it is first
+	 * applied to.
+	 */
+	private static abstract class Comparison extends Binary {
+		protected int state = UNINITIALIZED;
+
+		public Comparison(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		/**
+		 * Apply this operator generically to two boxed operands.
+		 */
+		protected abstract boolean apply(Object lhs, Object rhs);
+
+		public Object eval(Object[] frame) {
+			return evalBool(frame);
+		}
+
+		protected final boolean evalGeneric(Object[] frame) {
+			Object l = lhs.eval(frame);
+			Object r = rhs.eval(frame);
+			if (state == UNINITIALIZED) {
+				state = specialize(l, r);
+			}
+			return apply(l, r);
+		}
+
+		protected final boolean lhsFailed(UnexpectedValue e, Object[] frame) {
+			state = GENERIC;
+			return apply(e.value(), rhs.eval(frame));
+		}
+
+		protected final boolean rhsFailed(Object l, UnexpectedValue e) {
+			state = GENERIC;
+			return apply(l, e.value());
+		}
+	}
+
+	public static final class Lt extends Comparison {
+		public Lt(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evalBool(Object[] frame) {
+			switch (state) {
+			case INT: {
+				int l;
+				try {
+					l = lhs.evalInt(frame);
+				} catch (UnexpectedValue e) {
+					return lhsFailed(e, frame);
+				}
+				try {
+					return l < rhs.evalInt(frame);
+				} catch (UnexpectedValue e) {
+					return rhsFailed(l, e);
+				}
+			}
+			case REAL: {
+				double l;
+				try {
+					l = lhs.evalReal(frame);
+				} catch (UnexpectedValue e) {
+					return lhsFailed(e, frame);
+				}
+				try {
+					return l < rhs.evalReal(frame);
+				} catch (UnexpectedValue e) {
+					return rhsFailed(l, e);
+				}
+			}
+			}
+			return evalGeneric(frame);
+		}
+
+		protected boolean apply(Object l, Object r) {
+			if (l instanceof Integer) {
+				return ((Integer) l) < ((Integer) r);
+			} else {
+				return ((Double) l) < ((Double) r);
+			}
+		}
+	}
+
+	public static final class LtEq extends Comparison {
+		public LtEq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evalBool(Object[] frame) {
+			switch (state) {
+			case INT: {
+				int l;
+				try {
+					l = lhs.evalInt(frame);
+				} catch (UnexpectedValue e) {
+					return lhsFailed(e, frame);
+				}
+				try {
+					return l <= rhs.evalInt(frame);
+				} catch (UnexpectedValue e) {
+					return rhsFailed(l, e);
+				}
+			}
+			case REAL: {
+				double l;
+				try {
+					l = lhs.evalReal(frame);
+				} catch (UnexpectedValue e) {
+					return lhsFailed(e, frame);
+				}
+				try {
+					return l <= rhs.evalReal(frame);
+				} catch (UnexpectedValue e) {
+					return rhsFailed(l, e);
+				}
+			}
+			}
+			return evalGeneric(frame);
+		}
+
+		protected boolean apply(Object l, Object r) {
+			if (l instanceof Integer) {
+				return ((Integer) l) <= ((Integer) r);
+			} else {
+				return ((Double) l) <= ((Double) r);
+			}
+		}
+	}
+
+	public static final class Gt extends Comparison {
+		public Gt(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evalBool(Object[] frame) {
+			switch (state) {
+			case INT: {
+				int l;
+				try {
+					l = lhs.evalInt(frame);
+				} catch (UnexpectedValue e) {
+					return lhsFailed(e, frame);
+				}
+				try {
+					return l > rhs.evalInt(frame);
+				} catch (UnexpectedValue e) {
+					return rhsFailed(l, e);
+				}
+			}
+			case REAL: {
+				double l;
+				try {
+					l = lhs.evalReal(frame);
+				} catch (UnexpectedValue e) {
+					return lhsFailed(e, frame);
+				}
+				try {
+					return l > rhs.evalReal(frame);
+				} catch (UnexpectedValue e) {
+					return rhsFailed(l, e);
+				}
+			}
+			}
+			return evalGeneric(frame);
+		}
+
+		protected boolean apply(Object l, Object r) {
+			if (l instanceof Integer) {
+				return ((Integer) l) > ((Integer) r);
+			} else {
+				return ((Double) l) > ((Double) r);
+			}
+		}
+	}
+
+	public static final class GtEq extends Comparison {
+		public GtEq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evalBool(Object[] frame) {
+			switch (state) {
+			case INT: {
+				int l;
+				try {
+					l = lhs.evalInt(frame);
+				} catch (UnexpectedValue e) {
+					return lhsFailed(e, frame);
+				}
+				try {
+					return l >= rhs.evalInt(frame);
+				} catch (UnexpectedValue e) {
+					return rhsFailed(l, e);
+				}
+			}
+			case REAL: {
+				double l;
+				try {
+					l = lhs.evalReal(frame);
+				} catch (UnexpectedValue e) {
+					return lhsFailed(e, frame);
+				}
+				try {
+					return l >= rhs.evalReal(frame);
+				} catch (UnexpectedValue e) {
+					return rhsFailed(l, e);
+				}
+			}
+			}
+			return evalGeneric(frame);
+		}
+
+		protected boolean apply(Object l, Object r) {
+			if (l instanceof Integer) {
+				return ((Integer) l) >= ((Integer) r);
+			} else {
+				return ((Double) l) >= ((Double) r);
+			}
+		}
+	}
+
+	public static final class Append extends Binary {
+		private final String filename;
+		private final SyntacticElement element;
+
+		public Append(ExprNode lhs, ExprNode rhs, String filename,
+				SyntacticElement element) {
+			super(lhs, rhs);
+			this.filename = filename;
+			this.element = element;
+		}
+
+		public Object eval(Object[] frame) {
+			return append(lhs.eval(frame), rhs.eval(frame), filename, element);
+		}
+	}
+
+	/**
+	 * Append two values, which are either both lists or (at least one) a
+	 * string.
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @param filename
+	 *            File containing the append (for error reporting).
+	 * @param element
+	 *            Expression being evaluated (for error reporting).
+	 * @return
+	 */
+	static Object append(Object lhs, Object rhs, String filename,
+			SyntacticElement element) {
+		if (lhs instanceof CharSequence || rhs instanceof CharSequence) {
+			return StringValue.append(text(lhs), text(rhs));
+		} else if (lhs instanceof ListValue && rhs instanceof ListValue) {
+			return ((ListValue) lhs).append((ListValue) rhs);
+		}
+		internalFailure("unknown binary expression encountered (" + element
+				+ ")", filename, element);
+		return null;
+	}
+
+	private static CharSequence text(Object value) {
+		if (value instanceof CharSequence) {
+			return (CharSequence) value;
+		}
+		return String.valueOf(value);
+	}
+
+	// ==========================================
+	// Unary Operators
+	// ==========================================
+
+	public static final class Not extends ExprNode {
+		private final ExprNode operand;
+
+		public Not(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object eval(Object[] frame) {
+			return evalBool(frame);
+		}
+
+		public boolean evalBool(Object[] frame) {
+			return !operand.evalBool(frame);
+		}
+	}
+
+	public static final class Neg extends ExprNode {
+		private final ExprNode operand;
+
+		public Neg(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object eval(Object[] frame) {
+			Object value = operand.eval(frame);
+			if (value instanceof Double) {
+				return -((Double) value);
+			} else {
+				return -((Integer) value);
+			}
+		}
+	}
+
+	public static final class LengthOf extends ExprNode {
+		private final ExprNode operand;
+
+		public LengthOf(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object eval(Object[] frame) {
+			Object value = operand.eval(frame);
+			if (value instanceof CharSequence) {
+				return ((CharSequence) value).length();
+			} else {
+				return ((ListValue) value).size();
+			}
+		}
+	}
+
+	// ==========================================
+	// Compound Values
+	// ==========================================
+
+	public static final class IndexOf extends ExprNode {
+		private final ExprNode source;
+		private final ExprNode index;
+
+		public IndexOf(ExprNode source, ExprNode index) {
+			this.source = source;
+			this.index = index;
+		}
+
+		public Object eval(Object[] frame) {
+			return get(source.eval(frame), (Integer) index.eval(frame));
+		}
+
+		public int evalInt(Object[] frame) throws UnexpectedValue {
+			Object src = source.eval(frame);
+			int idx = (Integer) index.eval(frame);
+			if (src instanceof IntList) {
+				return ((IntList) src).getInt(idx);
+			}
+			Object value = get(src, idx);
+			if (value instanceof Integer) {
+				return (Integer) value;
+			}
+			throw new UnexpectedValue(value);
+		}
+
+		public double evalReal(Object[] frame) throws UnexpectedValue {
+			Object src = source.eval(frame);
+			int idx = (Integer) index.eval(frame);
+			if (src instanceof RealList) {
+				return ((RealList) src).getReal(idx);
+			}
+			Object value = get(src, idx);
+			if (value instanceof Double) {
+				return (Double) value;
+			}
+			throw new UnexpectedValue(value);
+		}
+
+		private static Object get(Object src, int idx) {
+			if (src instanceof CharSequence) {
+				return ((CharSequence) src).charAt(idx);
+			} else {
+				return ((ListValue) src).get(idx);
+			}
+		}
+	}
+
+	public static final class ListConstructor extends ExprNode {
+		private final ExprNode[] elements;
+		private final boolean copyOnWrite;
+
+		public ListConstructor(ExprNode[] elements, boolean copyOnWrite) {
+			this.elements = elements;
+			this.copyOnWrite = copyOnWrite;
+		}
+
+		public Object eval(Object[] frame) {
+			Object[] values = new Object[elements.length];
+			for (int i = 0; i != values.length; ++i) {
+				values[i] = elements[i].eval(frame);
+			}
+			if (copyOnWrite) {
+				return CowList.of(values);
+			} else {
+				return PersistentVector.of(Arrays.asList(values));
+			}
+		}
+	}
+
+	public static final class RecordAccess extends ExprNode {
+		private final ExprNode source;
+		private final FieldLookup field;
+
+		public RecordAccess(ExprNode source, FieldLookup field) {
+			this.source = source;
+			this.field = field;
+		}
+
+		public Object eval(Object[] frame) {
+			return field.get((RecordValue) source.eval(frame));
+		}
+	}
+
+	public static final class RecordConstructor extends ExprNode {
+		private final RecordLayout layout;
+		private final ExprNode[] values;
+		private final boolean copyOnWrite;
+
+		public RecordConstructor(RecordLayout layout, ExprNode[] values,
+				boolean copyOnWrite) {
+			this.layout = layout;
+			this.values = values;
+			this.copyOnWrite = copyOnWrite;
+		}
+
+		public Object eval(Object[] frame) {
+			Object[] vs = new Object[values.length];
+			for (int i = 0; i != vs.length; ++i) {
+				vs[i] = values[i].eval(frame);
+			}
+			return layout.construct(vs, copyOnWrite);
+		}
+	}
+
+	// ==========================================
+	// Function Calls
+	// ==========================================
+
+	public static final class Invoke extends ExprNode {
+		private final Function function;
+		private final ExprNode[] arguments;
+
+		public Invoke(Function function, ExprNode[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+		}
+
+		public Object eval(Object[] frame) {
+			Object[] values = new Object[arguments.length];
+			for (int i = 0; i != values.length; ++i) {
+				values[i] = arguments[i].eval(frame);
+			}
+			return function.invoke(values);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.closure;
+
+import whilelang.runtime.CompoundValue;
+
+/**
+ * <p>
+ * A compiled function, made up of its compiled body and the layout of its
+ * stack frame. A function is created before its body is compiled, so that
+ * calls to it (including recursive ones) can refer to it directly.
+ * </p>
+ * <p>
+ * Normally, every variable slot of the frame holds a (boxed) value. However,
+ * a function may instead keep its <code>int</code> and <code>real</code>
+ * variables unboxed, in a <code>long[]</code> and a <code>double[]</code>
+ * respectively. These arrays are held in the two slots following the
+ * variable slots (i.e. at <code>frameSize</code> and
+ * <code>frameSize + 1</code>), and are indexed by variable slot.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Function {
+	/** The kinds of variable slot. */
+	public static final int OBJECT = 0;
+	public static final int INT = 1;
+	public static final int REAL = 2;
+
+	private final String name;
+	private final int[] parameters;
+	private final int frameSize;
+	private final boolean copyOnWrite;
+	private final int[] kinds;
+	private final boolean hasInts;
+	private final boolean hasReals;
+	private StmtNode[] body;
+
+	/**
+	 * Construct a function whose body is not yet compiled.
+	 *
+	 * @param name
+	 *            Name of the function.
+	 * @param parameters
+	 *            Frame slot of each parameter, in order.
+	 * @param frameSize
+	 *            Number of slots in the function's stack frame.
+	 * @param copyOnWrite
+	 *            Whether variables hold copy-on-write values, which must be
+	 *            released when the function returns.
+	 */
+	public Function(String name, int[] parameters, int frameSize,
+			boolean copyOnWrite) {
+		this(name, parameters, frameSize, copyOnWrite, null);
+	}
+
+	/**
+	 * Construct a function whose body is not yet compiled, and which may keep
+	 * some of its variables unboxed.
+	 *
+	 * @param name
+	 *            Name of the function.
+	 * @param parameters
+	 *            Frame slot of each parameter, in order.
+	 * @param frameSize
+	 *            Number of variable slots in the function's stack frame.
+	 * @param copyOnWrite
+	 *            Whether variables hold copy-on-write values, which must be
+	 *            released when the function returns.
+	 * @param kinds
+	 *            The kind of each variable slot (i.e. <code>OBJECT</code>,
+	 *            <code>INT</code> or <code>REAL</code>), or null if all slots
+	 *            hold boxed values.
+	 */
+	public Function(String name, int[] parameters, int frameSize,
+			boolean copyOnWrite, int[] kinds) {
+		this.name = name;
+		this.parameters = parameters;
+		this.frameSize = frameSize;
+		this.copyOnWrite = copyOnWrite;
+		this.kinds = kinds;
+		boolean hasInts = false;
+		boolean hasReals = false;
+		for (int i = 0; kinds != null && i != kinds.length; ++i) {
+			hasInts |= kinds[i] == INT;
+			hasReals |= kinds[i] == REAL;
+		}
+		this.hasInts = hasInts;
+		this.hasReals = hasReals;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * Get the kind of each variable slot, or null if all slots hold boxed
+	 * values.
+	 *
+	 * @return
+	 */
+	public int[] kinds() {
+		return kinds;
+	}
+
+	public void setBody(StmtNode[] body) {
+		this.body = body;
+	}
+
+	/**
+	 * Execute this function with the given argument values. If the number of
+	 * arguments is incorrect, then an exception is thrown.
+	 *
+	 * @param arguments
+	 * @return
+	 */
+	public Object invoke(Object... arguments) {
+		if (parameters.length != arguments.length) {
+			throw new RuntimeException(
+					"invalid number of arguments supplied to execution of function \""
+							+ name + "\"");
+		}
+
+		Object[] frame;
+		if (kinds == null) {
+			frame = new Object[frameSize];
+			for (int i = 0; i != arguments.length; ++i) {
+				frame[parameters[i]] = arguments[i];
+			}
+		} else {
+			frame = new Object[frameSize + 2];
+			long[] ints = hasInts ? new long[frameSize] : null;
+			double[] reals = hasReals ? new double[frameSize] : null;
+			frame[frameSize] = ints;
+			frame[frameSize + 1] = reals;
+			for (int i = 0; i != arguments.length; ++i) {
+				int slot = parameters[i];
+				switch (kinds[slot]) {
+				case INT:
+					ints[slot] = (Integer) arguments[i];
+					break;
+				case REAL:
+					reals[slot] = (Double) arguments[i];
+					break;
+				default:
+					frame[slot] = arguments[i];
+				}
+			}
+		}
+
+		Object r = StmtNode.execute(body, frame);
+
+		if (copyOnWrite) {
+			for (int i = 0; i != frame.length; ++i) {
+				CompoundValue.release(frame[i]);
+			}
+		}
+		return r;
+	}
+}
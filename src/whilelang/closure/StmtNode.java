@@ -0,0 +1,341 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.closure;
+
+import java.util.*;
+
+import whilelang.runtime.*;
+import whilelang.util.SyntacticElement;
+
+/**
+ * A compiled statement, which is executed directly by calling its
+ * <code>exec()</code> method. As for the interpreter, executing a statement
+ * produces <code>null</code> unless it causes the enclosing function to
+ * return, in which case the return value is produced (or
+ * <code>Collections.EMPTY_SET</code> for a return without a value).
+ *
+ * @author David J. Pearce
+ *
+ */
+public abstract class StmtNode {
+
+	/**
+	 * Execute this statement in a given stack frame.
+	 *
+	 * @param frame
+	 *            Stack frame holding the current value of each variable slot.
+	 * @return
+	 */
+	public abstract Object exec(Object[] frame);
+
+	/**
+	 * Execute a block of statements in a given stack frame, stopping early if
+	 * one of them returns.
+	 *
+	 * @param block
+	 * @param frame
+	 * @return
+	 */
+	public static Object execute(StmtNode[] block, Object[] frame) {
+		for (int i = 0; i != block.length; ++i) {
+			Object r = block[i].exec(frame);
+			if (r != null) {
+				return r;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Assigns a value to a variable (or declares a variable with an initial
+	 * value). Any copy-on-write value previously held by the variable loses an
+	 * owner.
+	 */
+	public static final class Assign extends StmtNode {
+		private final int slot;
+		private final ExprNode rhs;
+
+		public Assign(int slot, ExprNode rhs) {
+			this.slot = slot;
+			this.rhs = rhs;
+		}
+
+		public Object exec(Object[] frame) {
+			Object value = rhs.eval(frame);
+			Object old = frame[slot];
+			frame[slot] = value;
+			CompoundValue.release(old);
+			return null;
+		}
+	}
+
+	/**
+	 * Assigns a value to an <code>int</code> variable which is kept unboxed
+	 * (see <code>Function</code>).
+	 */
+	public static final class IntAssign extends StmtNode {
+		private final int slot;
+		private final int ints;
+		private final ExprNode rhs;
+
+		public IntAssign(int slot, int ints, ExprNode rhs) {
+			this.slot = slot;
+			this.ints = ints;
+			this.rhs = rhs;
+		}
+
+		public Object exec(Object[] frame) {
+			try {
+				((long[]) frame[ints])[slot] = rhs.evalInt(frame);
+			} catch (UnexpectedValue e) {
+				throw new RuntimeException("expected int, found " + e.value());
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Assigns a value to a <code>real</code> variable which is kept unboxed
+	 * (see <code>Function</code>).
+	 */
+	public static final class RealAssign extends StmtNode {
+		private final int slot;
+		private final int reals;
+		private final ExprNode rhs;
+
+		public RealAssign(int slot, int reals, ExprNode rhs) {
+			this.slot = slot;
+			this.reals = reals;
+			this.rhs = rhs;
+		}
+
+		public Object exec(Object[] frame) {
+			try {
+				((double[]) frame[reals])[slot] = rhs.evalReal(frame);
+			} catch (UnexpectedValue e) {
+				throw new RuntimeException("expected real, found " + e.value());
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Assigns <code>x = x ++ e</code> for copy-on-write values, where the list
+	 * held in <code>x</code> can be extended in place (if not shared).
+	 */
+	public static final class AppendAssign extends StmtNode {
+		private final int slot;
+		private final ExprNode rhs;
+		private final String filename;
+		private final SyntacticElement element;
+
+		public AppendAssign(int slot, ExprNode rhs, String filename,
+				SyntacticElement element) {
+			this.slot = slot;
+			this.rhs = rhs;
+			this.filename = filename;
+			this.element = element;
+		}
+
+		public Object exec(Object[] frame) {
+			Object old = frame[slot];
+			Object r = rhs.eval(frame);
+			Object value;
+			if (old instanceof ListValue && r instanceof ListValue) {
+				value = ((ListValue) old).appendInPlace((ListValue) r);
+			} else {
+				value = ExprNode.append(old, r, filename, element);
+			}
+			frame[slot] = value;
+			if (old != value) {
+				CompoundValue.release(old);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Assigns a value to a location within the compound value held in a
+	 * variable (e.g. <code>x[i].f = e</code>). The location is identified by a
+	 * path of keys, each of which evaluates to either a field lookup (
+	 * <code>FieldLookup</code>) or an index (<code>Integer</code>).
+	 */
+	public static final class AssignPath extends StmtNode {
+		private final int slot;
+		private final ExprNode[] path;
+		private final ExprNode rhs;
+
+		public AssignPath(int slot, ExprNode[] path, ExprNode rhs) {
+			this.slot = slot;
+			this.path = path;
+			this.rhs = rhs;
+		}
+
+		public Object exec(Object[] frame) {
+			Object[] keys = new Object[path.length];
+			for (int i = 0; i != keys.length; ++i) {
+				keys[i] = path[i].eval(frame);
+			}
+			Object value = rhs.eval(frame);
+			frame[slot] = update(frame[slot], keys, 0, value);
+			return null;
+		}
+
+		private static Object update(Object value, Object[] keys, int index,
+				Object rhs) {
+			if (index == keys.length) {
+				return rhs;
+			}
+			Object key = keys[index];
+			if (key instanceof FieldLookup) {
+				RecordValue r = ((RecordValue) value).unique();
+				int i = ((FieldLookup) key).indexIn(r.shape());
+				return r.set(i, update(r.get(i), keys, index + 1, rhs));
+			} else {
+				int i = (Integer) key;
+				ListValue l = ((ListValue) value).unique();
+				return l.set(i, update(l.get(i), keys, index + 1, rhs));
+			}
+		}
+	}
+
+	public static final class Print extends StmtNode {
+		private final ExprNode expr;
+		private final ValuePrinter output;
+
+		public Print(ExprNode expr, ValuePrinter output) {
+			this.expr = expr;
+			this.output = output;
+		}
+
+		public Object exec(Object[] frame) {
+			output.println(expr.eval(frame));
+			return null;
+		}
+	}
+
+	public static final class Return extends StmtNode {
+		private final ExprNode expr;
+
+		/**
+		 * Construct a return statement.
+		 *
+		 * @param expr
+		 *            Expression being returned, or <code>null</code> if there
+		 *            is none.
+		 */
+		public Return(ExprNode expr) {
+			this.expr = expr;
+		}
+
+		public Object exec(Object[] frame) {
+			if (expr != null) {
+				return expr.eval(frame);
+			} else {
+				return Collections.EMPTY_SET;
+			}
+		}
+	}
+
+	/**
+	 * Evaluates an expression for its side-effects only (i.e. a function call
+	 * used as a statement).
+	 */
+	public static final class Eval extends StmtNode {
+		private final ExprNode expr;
+
+		public Eval(ExprNode expr) {
+			this.expr = expr;
+		}
+
+		public Object exec(Object[] frame) {
+			expr.eval(frame);
+			return null;
+		}
+	}
+
+	public static final class IfElse extends StmtNode {
+		private final ExprNode condition;
+		private final StmtNode[] trueBranch;
+		private final StmtNode[] falseBranch;
+
+		public IfElse(ExprNode condition, StmtNode[] trueBranch,
+				StmtNode[] falseBranch) {
+			this.condition = condition;
+			this.trueBranch = trueBranch;
+			this.falseBranch = falseBranch;
+		}
+
+		public Object exec(Object[] frame) {
+			if (condition.evalBool(frame)) {
+				return execute(trueBranch, frame);
+			} else {
+				return execute(falseBranch, frame);
+			}
+		}
+	}
+
+	public static final class While extends StmtNode {
+		private final ExprNode condition;
+		private final StmtNode[] body;
+
+		public While(ExprNode condition, StmtNode[] body) {
+			this.condition = condition;
+			this.body = body;
+		}
+
+		public Object exec(Object[] frame) {
+			while (condition.evalBool(frame)) {
+				Object r = execute(body, frame);
+				if (r != null) {
+					return r;
+				}
+			}
+			return null;
+		}
+	}
+
+	public static final class For extends StmtNode {
+		private final StmtNode declaration;
+		private final ExprNode condition;
+		private final StmtNode increment;
+		private final StmtNode[] body;
+
+		public For(StmtNode declaration, ExprNode condition,
+				StmtNode increment, StmtNode[] body) {
+			this.declaration = declaration;
+			this.condition = condition;
+			this.increment = increment;
+			this.body = body;
+		}
+
+		public Object exec(Object[] frame) {
+			declaration.exec(frame);
+			while (condition.evalBool(frame)) {
+				Object r = execute(body, frame);
+				if (r != null) {
+					return r;
+				}
+				increment.exec(frame);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.closure;
+
+/**
+ * Thrown when a node evaluated with <code>evalInt()</code> or
+ * <code>evalReal()</code> produces a value of some other type. The value
+ * itself is carried by the exception, so that the caller can continue
+ * generically without evaluating the node again.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class UnexpectedValue extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	private final Object value;
+
+	public UnexpectedValue(Object value) {
+		this.value = value;
+	}
+
+	public Object value() {
+		return value;
+	}
+
+	/**
+	 * This exception is used for control flow, rather than to report an
+	 * error, so there is no need for (expensive) stack traces.
+	 */
+	public Throwable fillInStackTrace() {
+		return this;
+	}
+}
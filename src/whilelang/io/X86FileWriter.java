@@ -18,7 +18,6 @@ public class X86FileWriter {
 	// ==========================================
 
 	private final Target target;
-	private HashMap<String, WhileFile.FunDecl> functions;
 	private HashMap<String,WhileFile.TypeDecl> types;
 	
 	// ==========================================
@@ -57,14 +56,13 @@ public class X86FileWriter {
 		X86File.Code code = new X86File.Code();
 		X86File.Data data = new X86File.Data();
 
-		this.functions = new HashMap<String, WhileFile.FunDecl>();
 		this.types = new HashMap<String,WhileFile.TypeDecl>();
 		
+		// Link every function invocation to the function it calls.
+		new FunctionResolver().resolve(wf);
+		
 		for (WhileFile.Decl declaration : wf.declarations) {
-			if (declaration instanceof WhileFile.FunDecl) {
-				WhileFile.FunDecl fd = (WhileFile.FunDecl) declaration;
-				this.functions.put(fd.name(), fd);
-			} else if(declaration instanceof WhileFile.TypeDecl) {
+			if(declaration instanceof WhileFile.TypeDecl) {
 				WhileFile.TypeDecl fd = (WhileFile.TypeDecl) declaration;
 				this.types.put(fd.name(), fd);
 			}
@@ -651,7 +649,7 @@ public class X86FileWriter {
 
 		// First, determine the amount of space to reserve on the stack for
 		// parameters and the return value (if applicable).
-		WhileFile.FunDecl fd = functions.get(e.getName());
+		WhileFile.FunDecl fd = e.getTarget();
 		int alignedWidth = determineCallerEnvironmentAlignedWidth(fd);
 
 		// Second, create space on the stack for parameters and return value
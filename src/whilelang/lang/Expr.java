@@ -20,6 +20,8 @@ package whilelang.lang;
 
 import java.util.*;
 
+import whilelang.runtime.FieldLookup;
+import whilelang.runtime.RecordLayout;
 import whilelang.util.*;
 
 /**
@@ -54,6 +56,7 @@ public interface Expr extends SyntacticElement {
 			LVal {
 
 		private String name;
+		private int slot = -1;
 
 		/**
 		 * Construct a variable expression from a given variable name.
@@ -83,6 +86,20 @@ public interface Expr extends SyntacticElement {
 		public void setVar(String var) {
 			this.name = var;
 		}
+
+		/**
+		 * Get the slot in the enclosing function's stack frame which holds
+		 * this variable.
+		 * 
+		 * @return The slot index, or -1 if no slot has been allocated.
+		 */
+		public int getSlot() {
+			return slot;
+		}
+
+		public void setSlot(int slot) {
+			this.slot = slot;
+		}
 	}
 
 	/**
@@ -474,6 +491,10 @@ public interface Expr extends SyntacticElement {
 			this.source = src;
 		}
 
+		public String toString() {
+			return "(" + getType() + ") " + getSource();
+		}
+
 		public Expr getSource() {
 			return source;
 		}
@@ -528,6 +549,10 @@ public interface Expr extends SyntacticElement {
 			}
 		}
 
+		public String toString() {
+			return getArguments().toString();
+		}
+
 		/**
 		 * Get the list of element expressions used in this list constructor
 		 * expression.
@@ -553,6 +578,7 @@ public interface Expr extends SyntacticElement {
 
 		private final Expr source;
 		private final String name;
+		private final FieldLookup lookup;
 
 		/**
 		 * Construct a record access expression from a given source expression
@@ -570,6 +596,7 @@ public interface Expr extends SyntacticElement {
 			super(attributes);
 			this.source = source;
 			this.name = name;
+			this.lookup = new FieldLookup(name);
 		}
 
 		public String toString() {
@@ -593,6 +620,16 @@ public interface Expr extends SyntacticElement {
 		public String getName() {
 			return name;
 		}
+
+		/**
+		 * Get the lookup of this field, which remembers where the field was
+		 * found in the last record accessed.
+		 * 
+		 * @return
+		 */
+		public FieldLookup getLookup() {
+			return lookup;
+		}
 	}
 
 	/**
@@ -609,6 +646,7 @@ public interface Expr extends SyntacticElement {
 			implements Expr {
 
 		private final ArrayList<Pair<String, Expr>> fields;
+		private final RecordLayout layout;
 
 		/**
 		 * Construct a record constructor expression from a given mapping of
@@ -623,6 +661,22 @@ public interface Expr extends SyntacticElement {
 				Attribute... attributes) {
 			super(attributes);
 			this.fields = new ArrayList<Pair<String, Expr>>(fields);
+			String[] names = new String[fields.size()];
+			for (int i = 0; i != names.length; ++i) {
+				names[i] = fields.get(i).first();
+			}
+			this.layout = new RecordLayout(names);
+		}
+
+		public String toString() {
+			String r = "{";
+			for (Pair<String, Expr> field : getFields()) {
+				if (r.length() > 1) {
+					r = r + ", ";
+				}
+				r = r + field.first() + ": " + field.second();
+			}
+			return r + "}";
 		}
 
 		/**
@@ -633,7 +687,17 @@ public interface Expr extends SyntacticElement {
 		 */
 		public List<Pair<String, Expr>> getFields() {
 			return fields;
-		}				
+		}
+
+		/**
+		 * Get the layout of the records constructed by this expression, which
+		 * determines where each field value is placed.
+		 * 
+		 * @return
+		 */
+		public RecordLayout getLayout() {
+			return layout;
+		}
 	}
 
 	/**
@@ -645,11 +709,11 @@ public interface Expr extends SyntacticElement {
 	 * @author David J. Pearce
 	 * 
 	 */
-	public static class Invoke extends SyntacticElement.Impl implements Expr,
-			Stmt {
+	public static class Invoke extends Stmt.Impl implements Expr {
 
 		private final String name;
 		private final ArrayList<Expr> arguments;
+		private WhileFile.FunDecl target;
 
 		/**
 		 * Construct a function invocation expression from a given function name
@@ -670,6 +734,17 @@ public interface Expr extends SyntacticElement {
 			this.arguments = new ArrayList<Expr>(arguments);
 		}
 
+		public String toString() {
+			String r = getName() + "(";
+			for (int i = 0; i != getArguments().size(); ++i) {
+				if (i != 0) {
+					r = r + ", ";
+				}
+				r = r + getArguments().get(i);
+			}
+			return r + ")";
+		}
+
 		/**
 		 * Get the function name being invoked in this expression; guaranteed to
 		 * be non-null.
@@ -689,5 +764,19 @@ public interface Expr extends SyntacticElement {
 		public List<Expr> getArguments() {
 			return arguments;
 		}
+
+		/**
+		 * Get the function declaration which this invocation calls.
+		 * 
+		 * @return The function declaration, or null if this invocation has not
+		 *         been linked.
+		 */
+		public WhileFile.FunDecl getTarget() {
+			return target;
+		}
+
+		public void setTarget(WhileFile.FunDecl target) {
+			this.target = target;
+		}
 	}
 }
@@ -32,6 +32,46 @@ import whilelang.util.*;
  */
 public interface Stmt extends SyntacticElement {
 
+	/**
+	 * Get the index of this statement amongst all statements in its file.
+	 * This allows information about each statement to be kept in an array,
+	 * rather than a map (e.g. by a profiler).
+	 * 
+	 * @return The index, or -1 if no index has been allocated (see
+	 *         <code>VariableResolver</code>).
+	 */
+	public int getIndex();
+
+	public void setIndex(int index);
+
+	/**
+	 * The base class of every kind of statement, which holds its index. The
+	 * interpreter's profiler looks up an index for every statement executed.
+	 * Going through this class, rather than the <code>Stmt</code> interface,
+	 * allows that lookup to be inlined, since the interface has too many
+	 * implementations for a call through it to be.
+	 */
+	public static abstract class Impl extends SyntacticElement.Impl implements
+			Stmt {
+		private int index = -1;
+
+		public Impl(Attribute... attributes) {
+			super(attributes);
+		}
+
+		public Impl(Collection<Attribute> attributes) {
+			super(attributes);
+		}
+
+		public final int getIndex() {
+			return index;
+		}
+
+		public final void setIndex(int index) {
+			this.index = index;
+		}
+	}
+
 	/**
 	 * Represents an assignment statement of the form <code>lhs = rhs</code>.
 	 * Here, the <code>rhs</code> is any expression, whilst the <code>lhs</code>
@@ -53,8 +93,7 @@ public interface Stmt extends SyntacticElement {
 	 * @author David J. Pearce
 	 * 
 	 */
-	public static final class Assign extends SyntacticElement.Impl implements
-			Stmt {
+	public static final class Assign extends Stmt.Impl {
 
 		private final Expr.LVal lhs;
 		private final Expr rhs;
@@ -130,8 +169,7 @@ public interface Stmt extends SyntacticElement {
 	 * @author David J. Pearce
 	 * 
 	 */
-	public static final class Return extends SyntacticElement.Impl implements
-			Stmt {
+	public static final class Return extends Stmt.Impl {
 
 		private final Expr expr;
 
@@ -197,8 +235,7 @@ public interface Stmt extends SyntacticElement {
 	 * @author David J. Pearce
 	 * 
 	 */
-	public static final class While extends SyntacticElement.Impl implements
-			Stmt {
+	public static final class While extends Stmt.Impl {
 
 		private final Expr condition;
 		private final ArrayList<Stmt> body;
@@ -239,6 +276,10 @@ public interface Stmt extends SyntacticElement {
 			this.body = new ArrayList<Stmt>(body);
 		}
 
+		public String toString() {
+			return "while " + getCondition() + " " + getBody();
+		}
+
 		/**
 		 * Get the condition which controls the while loop.
 		 * 
@@ -291,7 +332,7 @@ public interface Stmt extends SyntacticElement {
 	 * @author David J. Pearce
 	 * 
 	 */
-	public static final class For extends SyntacticElement.Impl implements Stmt {
+	public static final class For extends Stmt.Impl {
 
 		private final VariableDeclaration declaration;
 		private final Expr condition;
@@ -346,6 +387,11 @@ public interface Stmt extends SyntacticElement {
 			this.body = new ArrayList<Stmt>(body);
 		}
 
+		public String toString() {
+			return "for " + getDeclaration() + "; " + getCondition() + "; "
+					+ getIncrement() + " " + getBody();
+		}
+
 		/**
 		 * Get the variable declaration for this loop.
 		 * 
@@ -399,8 +445,7 @@ public interface Stmt extends SyntacticElement {
 	 * @author David J. Pearce
 	 * 
 	 */
-	public static final class IfElse extends SyntacticElement.Impl implements
-			Stmt {
+	public static final class IfElse extends Stmt.Impl {
 
 		private final Expr condition;
 		private final ArrayList<Stmt> trueBranch;
@@ -450,6 +495,11 @@ public interface Stmt extends SyntacticElement {
 			this.falseBranch = new ArrayList<Stmt>(falseBranch);
 		}
 
+		public String toString() {
+			return "if " + getCondition() + " " + getTrueBranch() + " else "
+					+ getFalseBranch();
+		}
+
 		/**
 		 * Get the if-condition.
 		 * 
@@ -494,8 +544,7 @@ public interface Stmt extends SyntacticElement {
 	 * @author David J. Pearce
 	 * 
 	 */
-	public static final class Print extends SyntacticElement.Impl implements
-			Stmt {
+	public static final class Print extends Stmt.Impl {
 
 		private final Expr expr;
 
@@ -555,11 +604,11 @@ public interface Stmt extends SyntacticElement {
 	 * @author David J. Pearce
 	 * 
 	 */
-	public static final class VariableDeclaration extends SyntacticElement.Impl implements
-			Stmt {
+	public static final class VariableDeclaration extends Stmt.Impl {
 		private final Type type;
 		private final String name;
 		private final Expr expr;
+		private int slot = -1;
 
 		/**
 		 * Construct a variable declaration from a given type, variable name and
@@ -636,5 +685,19 @@ public interface Stmt extends SyntacticElement {
 		public Expr getExpr() {
 			return expr;
 		}
+
+		/**
+		 * Get the slot in the enclosing function's stack frame which holds
+		 * the variable being declared.
+		 * 
+		 * @return The slot index, or -1 if no slot has been allocated.
+		 */
+		public int getSlot() {
+			return slot;
+		}
+
+		public void setSlot(int slot) {
+			this.slot = slot;
+		}
 	}
 }
@@ -146,6 +146,8 @@ public class WhileFile {
 		public final Type ret;
 		public final ArrayList<Parameter> parameters;
 		public final ArrayList<Stmt> statements;
+		private int frameSize = -1;
+		private boolean pure;
 
 		/**
 		 * Construct an object representing a Whiley function.
@@ -172,6 +174,34 @@ public class WhileFile {
 		public String name() {
 			return name;
 		}
+
+		/**
+		 * Get the number of slots needed for the stack frame of this
+		 * function, covering its parameters and all declared variables.
+		 * 
+		 * @return The frame size, or -1 if slots have not been allocated.
+		 */
+		public int getFrameSize() {
+			return frameSize;
+		}
+
+		public void setFrameSize(int frameSize) {
+			this.frameSize = frameSize;
+		}
+
+		/**
+		 * Check whether this function has been found to be pure (i.e. it
+		 * has no effects, and its result depends only on its arguments).
+		 * 
+		 * @return False if it is impure, or has not been analysed.
+		 */
+		public boolean isPure() {
+			return pure;
+		}
+
+		public void setPure(boolean pure) {
+			this.pure = pure;
+		}
 	}
 
 	public static final class Parameter extends SyntacticElement.Impl implements
@@ -179,6 +209,7 @@ public class WhileFile {
 
 		public final Type type;
 		public final String name;
+		private int slot = -1;
 
 		public Parameter(Type type, String name, Attribute... attributes) {
 			super(attributes);
@@ -189,5 +220,19 @@ public class WhileFile {
 		public String name() {
 			return name;
 		}
+
+		/**
+		 * Get the slot in the enclosing function's stack frame which holds
+		 * this parameter.
+		 * 
+		 * @return The slot index, or -1 if no slot has been allocated.
+		 */
+		public int getSlot() {
+			return slot;
+		}
+
+		public void setSlot(int slot) {
+			this.slot = slot;
+		}
 	}
 }
@@ -0,0 +1,99 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.runtime;
+
+import java.util.Arrays;
+
+/**
+ * A copy-on-write list of booleans, packed one bit per element into a
+ * <code>long[]</code> (see <code>PrimitiveList</code>).
+ *
+ */
+public final class BoolList extends PrimitiveList {
+	private long[] words;
+
+	/**
+	 * Construct a list from a given array of elements.
+	 *
+	 * @param elements
+	 */
+	public BoolList(boolean[] elements) {
+		this(new long[words(elements.length)], elements.length);
+		for (int i = 0; i != elements.length; ++i) {
+			if (elements[i]) {
+				words[i >> 6] |= 1L << i;
+			}
+		}
+	}
+
+	private BoolList(long[] words, int size) {
+		super(size);
+		this.words = words;
+	}
+
+	/**
+	 * Get the element at a given index, without boxing it.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public boolean getBool(int index) {
+		checkIndex(index);
+		return (words[index >> 6] & (1L << index)) != 0;
+	}
+
+	protected boolean accepts(Object value) {
+		return value instanceof Boolean;
+	}
+
+	protected Object load(int index) {
+		return (words[index >> 6] & (1L << index)) != 0;
+	}
+
+	protected void store(int index, Object value) {
+		if ((Boolean) value) {
+			words[index >> 6] |= 1L << index;
+		} else {
+			words[index >> 6] &= ~(1L << index);
+		}
+	}
+
+	protected int capacity() {
+		return words.length << 6;
+	}
+
+	protected void grow(int capacity) {
+		words = Arrays.copyOf(words, words(capacity));
+	}
+
+	protected BoolList copy(int capacity) {
+		return new BoolList(Arrays.copyOf(words, words(capacity)), size);
+	}
+
+	/**
+	 * Determine the number of words needed to hold a given number of bits.
+	 *
+	 * @param bits
+	 * @return
+	 */
+	private static int words(int bits) {
+		return (bits + 63) >> 6;
+	}
+}
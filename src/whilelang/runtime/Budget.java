@@ -0,0 +1,148 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.runtime;
+
+/**
+ * <p>
+ * Tracks the resources used by a single run of a While program against its
+ * <code>Limits</code>. The interpreter calls <code>tick()</code> for every
+ * statement executed, and <code>allocate()</code> whenever it creates or
+ * copies a list, record or string.
+ * </p>
+ * <p>
+ * Checking the limits has to be cheap enough to leave on all the time. Hence,
+ * <code>tick()</code> only decrements a counter, and the statement count and
+ * clock are examined once that counter runs out (i.e. every few thousand
+ * statements, or sooner when the statement limit is close). Thus, the time
+ * limit is enforced to within the time taken by that many statements.
+ * </p>
+ * <p>
+ * The memory used is an estimate of the bytes allocated by the program over
+ * the whole run, rather than of its live heap. This errs on the side of
+ * stopping a program too early, but needs no cooperation from the garbage
+ * collector.
+ * </p>
+ *
+ */
+public final class Budget {
+	private static final int CHECK_INTERVAL = 1 << 12;
+	private static final int HEADER_BYTES = 16;
+	private static final int SLOT_BYTES = 8;
+
+	private final Limits limits;
+	private final long start;
+	private long statements;
+	private int interval;
+	private int countdown;
+	private long bytes;
+
+	/**
+	 * Start tracking a run, whose clock starts now.
+	 *
+	 * @param limits
+	 */
+	public Budget(Limits limits) {
+		this.limits = limits;
+		this.start = System.nanoTime();
+		reset();
+	}
+
+	/**
+	 * Record that a statement is about to be executed.
+	 *
+	 * @throws LimitExceededException
+	 *             If the statement or time limit has been exceeded.
+	 */
+	public void tick() {
+		if (--countdown == 0) {
+			check();
+		}
+	}
+
+	/**
+	 * Record that a compound value with a given number of slots (i.e.
+	 * elements, fields or characters) has been created or copied.
+	 *
+	 * @param slots
+	 * @throws LimitExceededException
+	 *             If the memory limit has been exceeded.
+	 */
+	public void allocate(int slots) {
+		bytes += HEADER_BYTES + (long) SLOT_BYTES * slots;
+		if (bytes > limits.bytes()) {
+			throw new LimitExceededException(LimitExceededException.Kind.MEMORY,
+					limits.bytes(), bytes);
+		}
+	}
+
+	/**
+	 * Get the number of statements executed so far.
+	 *
+	 * @return
+	 */
+	public long statements() {
+		return statements + pending();
+	}
+
+	/**
+	 * Get the estimated number of bytes allocated so far.
+	 *
+	 * @return
+	 */
+	public long bytes() {
+		return bytes;
+	}
+
+	// ==========================================
+	// Helpers
+	// ==========================================
+
+	private void check() {
+		statements += pending();
+		if (statements > limits.statements()) {
+			throw new LimitExceededException(
+					LimitExceededException.Kind.STATEMENTS,
+					limits.statements(), statements);
+		}
+		if (limits.millis() != Limits.UNLIMITED) {
+			long millis = (System.nanoTime() - start) / 1000000;
+			if (millis > limits.millis()) {
+				throw new LimitExceededException(LimitExceededException.Kind.TIME,
+						limits.millis(), millis);
+			}
+		}
+		reset();
+	}
+
+	/**
+	 * Determine how many statements can be executed before the limits must
+	 * next be checked. This is chosen so that the check happens on the first
+	 * statement beyond the limit.
+	 */
+	private void reset() {
+		long remaining = Math.max(0, limits.statements() - statements);
+		interval = (int) Math.min(CHECK_INTERVAL, remaining) + 1;
+		countdown = interval;
+	}
+
+	private int pending() {
+		return interval - countdown;
+	}
+}
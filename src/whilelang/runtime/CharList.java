@@ -0,0 +1,91 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.runtime;
+
+import java.util.Arrays;
+
+/**
+ * A copy-on-write list of characters, held unboxed in a <code>char[]</code>
+ * (see <code>PrimitiveList</code>).
+ *
+ */
+public final class CharList extends PrimitiveList {
+	private char[] elements;
+
+	/**
+	 * Construct a list from a given array of elements. The array is owned by
+	 * the list from this point on.
+	 *
+	 * @param elements
+	 */
+	public CharList(char[] elements) {
+		this(elements, elements.length);
+	}
+
+	private CharList(char[] elements, int size) {
+		super(size);
+		this.elements = elements;
+	}
+
+	/**
+	 * Get the element at a given index, without boxing it.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public char getChar(int index) {
+		checkIndex(index);
+		return elements[index];
+	}
+
+	protected boolean accepts(Object value) {
+		return value instanceof Character;
+	}
+
+	protected Object load(int index) {
+		return elements[index];
+	}
+
+	protected void store(int index, Object value) {
+		elements[index] = (Character) value;
+	}
+
+	protected int capacity() {
+		return elements.length;
+	}
+
+	protected void grow(int capacity) {
+		elements = Arrays.copyOf(elements, capacity);
+	}
+
+	protected CharList copy(int capacity) {
+		return new CharList(Arrays.copyOf(elements, capacity), size);
+	}
+
+	protected void extend(ListValue other) {
+		if (other instanceof CharList) {
+			CharList l = (CharList) other;
+			System.arraycopy(l.elements, 0, elements, size, l.size);
+			size += l.size;
+		} else {
+			super.extend(other);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.runtime;
+
+/**
+ * <p>
+ * The common base of all compound (i.e. list and record) values used by the
+ * interpreter. Compound values may be represented in one of two ways:
+ * </p>
+ * <ul>
+ * <li><b>Persistent.</b> The value is never modified once created, and updates
+ * produce a new value sharing structure with the old one.</li>
+ * <li><b>Copy-on-write.</b> The value carries a count of how many additional
+ * owners share it. Updating an unshared value modifies it in place, whilst
+ * updating a shared value first makes a private (shallow) copy.</li>
+ * </ul>
+ * <p>
+ * To support the latter, the interpreter must call <code>share()</code>
+ * whenever it stores an existing compound value in a new location (e.g. a
+ * variable, list element or argument), and <code>release()</code> when a
+ * location holding one is discarded. Both are no-ops for persistent values.
+ * </p>
+ *
+ */
+public abstract class CompoundValue {
+
+	/**
+	 * Record that this value has gained an additional owner.
+	 *
+	 * @return This value.
+	 */
+	public CompoundValue share() {
+		return this;
+	}
+
+	/**
+	 * Record that this value has lost one of its owners.
+	 */
+	public void release() {
+	}
+
+	/**
+	 * Get a version of this value which may safely be updated in place by its
+	 * current owner. For a shared copy-on-write value, this is a fresh copy;
+	 * otherwise, it is the value itself.
+	 *
+	 * @return
+	 */
+	public abstract CompoundValue unique();
+
+	/**
+	 * Record that a given value has gained an additional owner, if it is a
+	 * compound value.
+	 *
+	 * @param value
+	 * @return The given value.
+	 */
+	public static Object share(Object value) {
+		if (value instanceof CompoundValue) {
+			((CompoundValue) value).share();
+		}
+		return value;
+	}
+
+	/**
+	 * Record that a given value has lost one of its owners, if it is a compound
+	 * value.
+	 *
+	 * @param value
+	 */
+	public static void release(Object value) {
+		if (value instanceof CompoundValue) {
+			((CompoundValue) value).release();
+		}
+	}
+}
@@ -0,0 +1,207 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.runtime;
+
+import java.util.*;
+
+/**
+ * <p>
+ * A copy-on-write list value, backed by an array. The list keeps a count of
+ * how many additional owners share it (see <code>CompoundValue</code>). An
+ * unshared list is updated in place, whilst a shared list is copied on its
+ * first update. Since most lists are built once and then only read, this
+ * avoids almost all copying whilst preserving the value semantics of While.
+ * An unshared list may also be extended in place, with its array growing
+ * geometrically as for <code>ArrayList</code>.
+ * </p>
+ * <p>
+ * This is the generic representation of a copy-on-write list. A list whose
+ * elements are all ints, reals, chars or bools is instead represented by a
+ * <code>PrimitiveList</code>, which holds them unboxed (see
+ * <code>of()</code>).
+ * </p>
+ *
+ */
+public final class CowList extends ListValue {
+	private Object[] elements;
+	private int size;
+	private int shares;
+
+	/**
+	 * Construct a list from a given array of elements. The array is owned by
+	 * the list from this point on.
+	 *
+	 * @param elements
+	 */
+	public CowList(Object[] elements) {
+		this(elements, elements.length);
+	}
+
+	private CowList(Object[] elements, int size) {
+		this.elements = elements;
+		this.size = size;
+	}
+
+	/**
+	 * Construct a copy-on-write list from a given array of elements, using
+	 * the most compact representation which can hold them. The array is owned
+	 * by the list from this point on.
+	 *
+	 * @param elements
+	 * @return
+	 */
+	public static ListValue of(Object[] elements) {
+		int n = elements.length;
+		Class<?> kind = n == 0 || elements[0] == null ? null : elements[0]
+				.getClass();
+		for (int i = 1; i < n && kind != null; ++i) {
+			if (elements[i] == null || elements[i].getClass() != kind) {
+				kind = null;
+			}
+		}
+		if (kind == Integer.class) {
+			int[] ints = new int[n];
+			for (int i = 0; i != n; ++i) {
+				ints[i] = (Integer) elements[i];
+			}
+			return new IntList(ints);
+		} else if (kind == Double.class) {
+			double[] reals = new double[n];
+			for (int i = 0; i != n; ++i) {
+				reals[i] = (Double) elements[i];
+			}
+			return new RealList(reals);
+		} else if (kind == Character.class) {
+			char[] chars = new char[n];
+			for (int i = 0; i != n; ++i) {
+				chars[i] = (Character) elements[i];
+			}
+			return new CharList(chars);
+		} else if (kind == Boolean.class) {
+			boolean[] bools = new boolean[n];
+			for (int i = 0; i != n; ++i) {
+				bools[i] = (Boolean) elements[i];
+			}
+			return new BoolList(bools);
+		}
+		return new CowList(elements);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Object get(int index) {
+		checkIndex(index);
+		return elements[index];
+	}
+
+	public CowList set(int index, Object value) {
+		checkIndex(index);
+		CowList l = unique();
+		l.elements[index] = value;
+		return l;
+	}
+
+	public ListValue append(ListValue other) {
+		int n = other.size();
+		if (size == 0) {
+			// The elements of an empty list don't determine its
+			// representation, so choose one for the other list's elements.
+			return copyOf(other);
+		}
+		Object[] nelements = Arrays.copyOf(elements, size + n);
+		for (int i = 0; i != n; ++i) {
+			nelements[size + i] = other.get(i);
+		}
+		return shareAll(nelements, nelements.length);
+	}
+
+	public ListValue appendInPlace(ListValue other) {
+		if (shares > 0 || size == 0) {
+			return append(other);
+		}
+		int n = other.size();
+		if (size + n > elements.length) {
+			int capacity = Math.max(size + n, elements.length + (elements.length >> 1));
+			elements = Arrays.copyOf(elements, capacity);
+		}
+		for (int i = 0; i != n; ++i) {
+			elements[size + i] = CompoundValue.share(other.get(i));
+		}
+		size += n;
+		return this;
+	}
+
+	public CowList share() {
+		shares++;
+		return this;
+	}
+
+	public void release() {
+		if (shares > 0) {
+			shares--;
+		}
+	}
+
+	public CowList unique() {
+		if (shares == 0) {
+			return this;
+		}
+		shares--;
+		return shareAll(Arrays.copyOf(elements, size), size);
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		}
+	}
+
+	/**
+	 * Construct a new list from an array whose elements are also held by some
+	 * other list. Every compound element therefore gains an owner.
+	 *
+	 * @param elements
+	 * @param size
+	 * @return
+	 */
+	private static CowList shareAll(Object[] elements, int size) {
+		for (int i = 0; i != size; ++i) {
+			CompoundValue.share(elements[i]);
+		}
+		return new CowList(elements, size);
+	}
+
+	/**
+	 * Construct a new list holding the same elements as a given list, using
+	 * the most compact representation which can hold them.
+	 *
+	 * @param other
+	 * @return
+	 */
+	private static ListValue copyOf(ListValue other) {
+		Object[] elements = new Object[other.size()];
+		for (int i = 0; i != elements.length; ++i) {
+			elements[i] = CompoundValue.share(other.get(i));
+		}
+		return of(elements);
+	}
+}
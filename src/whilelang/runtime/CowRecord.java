@@ -0,0 +1,81 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.runtime;
+
+/**
+ * A copy-on-write record value, made up of a shape and a corresponding array of
+ * field values. As for <code>CowList</code>, an unshared record is updated in
+ * place, whilst a shared record is copied on its first update.
+ *
+ */
+public final class CowRecord extends RecordValue {
+	private final Shape shape;
+	private final Object[] values;
+	private int shares;
+
+	/**
+	 * Construct a record of a given shape. The values array is laid out
+	 * according to the shape, and is not copied.
+	 *
+	 * @param shape
+	 * @param values
+	 */
+	public CowRecord(Shape shape, Object[] values) {
+		this.shape = shape;
+		this.values = values;
+	}
+
+	public Shape shape() {
+		return shape;
+	}
+
+	public Object get(int index) {
+		return values[index];
+	}
+
+	public CowRecord set(int index, Object value) {
+		CowRecord r = unique();
+		r.values[index] = value;
+		return r;
+	}
+
+	public CowRecord share() {
+		shares++;
+		return this;
+	}
+
+	public void release() {
+		if (shares > 0) {
+			shares--;
+		}
+	}
+
+	public CowRecord unique() {
+		if (shares == 0) {
+			return this;
+		}
+		shares--;
+		// Every compound field value is now held by both records.
+		Object[] nvalues = values.clone();
+		for (Object v : nvalues) {
+			CompoundValue.share(v);
+		}
+		return new CowRecord(shape, nvalues);
+	}
+}
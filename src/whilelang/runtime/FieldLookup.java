@@ -0,0 +1,83 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.runtime;
+
+/**
+ * A lookup of a given field in record values. Since records of the same shape
+ * hold a field at the same index, a lookup remembers the index it found for
+ * the shape of the last record it was applied to. Thus, when a lookup is
+ * repeatedly applied to records of the same shape (which is almost always the
+ * case), accessing the field is a single array load.
+ *
+ */
+public final class FieldLookup {
+	private final String field;
+	private volatile Entry last;
+
+	/**
+	 * The position of the field in a given shape. This is immutable, so that
+	 * a lookup can be safely shared between threads.
+	 */
+	private static final class Entry {
+		final Shape shape;
+		final int index;
+
+		Entry(Shape shape, int index) {
+			this.shape = shape;
+			this.index = index;
+		}
+	}
+
+	public FieldLookup(String field) {
+		this.field = field;
+	}
+
+	public String field() {
+		return field;
+	}
+
+	/**
+	 * Get the position of this field in a given shape, or <code>-1</code> if
+	 * it has no such field.
+	 *
+	 * @param shape
+	 * @return
+	 */
+	public int indexIn(Shape shape) {
+		Entry e = last;
+		if (e == null || e.shape != shape) {
+			e = new Entry(shape, shape.indexOf(field));
+			last = e;
+		}
+		return e.index;
+	}
+
+	/**
+	 * Get the value of this field in a given record, or <code>null</code> if
+	 * the record has no such field.
+	 *
+	 * @param record
+	 * @return
+	 */
+	public Object get(RecordValue record) {
+		int i = indexIn(record.shape());
+		return i >= 0 ? record.get(i) : null;
+	}
+}
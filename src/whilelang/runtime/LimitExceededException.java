@@ -0,0 +1,72 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.runtime;
+
+/**
+ * Thrown when a run of a While program exceeds one of its limits. This
+ * identifies which limit was exceeded, what it was, and how much of the
+ * resource had been used at the point the run was stopped.
+ *
+ * @see Limits
+ */
+public final class LimitExceededException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The resources which may be limited.
+	 */
+	public enum Kind {
+		STATEMENTS("statement", "statements"),
+		MEMORY("memory", "bytes"),
+		TIME("time", "ms");
+
+		private final String name;
+		private final String unit;
+
+		private Kind(String name, String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+	}
+
+	private final Kind kind;
+	private final long limit;
+	private final long used;
+
+	public LimitExceededException(Kind kind, long limit, long used) {
+		super(kind.name + " limit exceeded (used " + used + " of " + limit
+				+ " " + kind.unit + ")");
+		this.kind = kind;
+		this.limit = limit;
+		this.used = used;
+	}
+
+	public Kind kind() {
+		return kind;
+	}
+
+	public long limit() {
+		return limit;
+	}
+
+	public long used() {
+		return used;
+	}
+}
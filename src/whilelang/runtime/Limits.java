@@ -0,0 +1,81 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.runtime;
+
+/**
+ * The limits placed on a single run of a While program. A run which exceeds
+ * any of them is ended with a <code>LimitExceededException</code>. Limits are
+ * immutable, and so one instance can be shared between any number of runs.
+ *
+ * @see Budget
+ */
+public final class Limits {
+	/**
+	 * Denotes that a particular resource is not limited.
+	 */
+	public static final long UNLIMITED = Long.MAX_VALUE;
+
+	/**
+	 * The limits which place no constraints on a run at all.
+	 */
+	public static final Limits NONE = new Limits(UNLIMITED, UNLIMITED,
+			UNLIMITED);
+
+	private final long statements;
+	private final long bytes;
+	private final long millis;
+
+	/**
+	 * Construct a given set of limits. Any of these can be
+	 * <code>UNLIMITED</code>.
+	 *
+	 * @param statements
+	 *            Maximum number of statements executed (where each iteration
+	 *            of a loop counts as a statement).
+	 * @param bytes
+	 *            Maximum (approximate) number of bytes allocated for lists,
+	 *            records and strings.
+	 * @param millis
+	 *            Maximum wall-clock time, in milliseconds.
+	 * @throws IllegalArgumentException
+	 *             If any limit is negative.
+	 */
+	public Limits(long statements, long bytes, long millis) {
+		if (statements < 0 || bytes < 0 || millis < 0) {
+			throw new IllegalArgumentException("negative limit: " + statements
+					+ ", " + bytes + ", " + millis);
+		}
+		this.statements = statements;
+		this.bytes = bytes;
+		this.millis = millis;
+	}
+
+	public long statements() {
+		return statements;
+	}
+
+	public long bytes() {
+		return bytes;
+	}
+
+	public long millis() {
+		return millis;
+	}
+}
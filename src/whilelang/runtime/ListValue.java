@@ -0,0 +1,156 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.runtime;
+
+import java.util.*;
+
+/**
+ * The common base of all list values. Two lists are equal if they contain equal
+ * elements in the same order, regardless of how they are represented.
+ *
+ */
+public abstract class ListValue extends CompoundValue implements
+		Iterable<Object> {
+
+	/**
+	 * Get the number of elements in this list.
+	 *
+	 * @return
+	 */
+	public abstract int size();
+
+	/**
+	 * Get the element at a given index.
+	 *
+	 * @param index
+	 * @return
+	 * @throws IndexOutOfBoundsException
+	 *             if the index is negative, or not less than the size.
+	 */
+	public abstract Object get(int index);
+
+	/**
+	 * Return a list identical to this one, except that the element at the
+	 * given index is replaced with the given value. Other owners of this list
+	 * will not observe the change, although the list itself may be updated in
+	 * place when it is not shared.
+	 *
+	 * @param index
+	 * @param value
+	 * @return
+	 */
+	public abstract ListValue set(int index, Object value);
+
+	/**
+	 * Return the list obtained by appending all elements of a given list onto
+	 * the end of this one. Neither list is changed.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public abstract ListValue append(ListValue other);
+
+	/**
+	 * Return the list obtained by appending all elements of a given list onto
+	 * the end of this one, on behalf of an owner which is about to discard
+	 * this list (e.g. as in <code>xs = xs ++ ys</code>). Other owners of this
+	 * list will not observe the change, although the list itself may be
+	 * extended in place when it is not shared.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public ListValue appendInPlace(ListValue other) {
+		return append(other);
+	}
+
+	public ListValue share() {
+		return this;
+	}
+
+	public ListValue unique() {
+		return this;
+	}
+
+	public Iterator<Object> iterator() {
+		return new Iterator<Object>() {
+			private int index = 0;
+
+			public boolean hasNext() {
+				return index < size();
+			}
+
+			public Object next() {
+				if (index >= size()) {
+					throw new NoSuchElementException();
+				}
+				return get(index++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		} else if (o instanceof ListValue) {
+			ListValue l = (ListValue) o;
+			int size = size();
+			if (l.size() != size) {
+				return false;
+			}
+			for (int i = 0; i != size; ++i) {
+				Object a = get(i);
+				Object b = l.get(i);
+				if (!StringValue.equal(a, b)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	public int hashCode() {
+		int hash = 1;
+		for (int i = 0, size = size(); i != size; ++i) {
+			Object e = get(i);
+			hash = 31 * hash + (e == null ? 0 : e.hashCode());
+		}
+		return hash;
+	}
+
+	/**
+	 * Convert this list to a string, in the form printed by a While program
+	 * (e.g. <code>[1, 2, 3]</code>).
+	 */
+	public String toString() {
+		StringBuilder r = new StringBuilder("[");
+		for (int i = 0, size = size(); i != size; ++i) {
+			if (i != 0) {
+				r.append(", ");
+			}
+			r.append(get(i));
+		}
+		return r.append("]").toString();
+	}
+}
@@ -0,0 +1,129 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.runtime;
+
+import java.util.*;
+
+/**
+ * <p>
+ * A table of the results of previous calls to pure functions, keyed by the
+ * function called and the values of its arguments. The table holds at most a
+ * fixed number of results, and discards the least recently used result to make
+ * room for a new one.
+ * </p>
+ * <p>
+ * The table is an owner of the arguments and results it holds (see
+ * <code>CompoundValue</code>). Thus, copy-on-write values held in the table
+ * are never updated in place by anyone else, and a result taken from the table
+ * gains an additional owner.
+ * </p>
+ *
+ */
+public final class MemoTable {
+	private final LinkedHashMap<Key, Object> results;
+
+	/**
+	 * Construct a memo table.
+	 *
+	 * @param capacity
+	 *            Maximum number of results held.
+	 */
+	public MemoTable(final int capacity) {
+		this.results = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+				if (size() > capacity) {
+					for (Object argument : eldest.getKey().arguments) {
+						CompoundValue.release(argument);
+					}
+					CompoundValue.release(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Look up the result of a previous call.
+	 *
+	 * @param function
+	 *            Function called.
+	 * @param arguments
+	 *            Argument values.
+	 * @return The result, which has gained an additional owner, or
+	 *         <code>null</code> if there is none.
+	 */
+	public Object get(Object function, Object[] arguments) {
+		return CompoundValue.share(results.get(new Key(function, arguments)));
+	}
+
+	/**
+	 * Record the result of a call.
+	 *
+	 * @param function
+	 *            Function called.
+	 * @param arguments
+	 *            Argument values, which the table must have been made an
+	 *            owner of before the call (otherwise, the call could have
+	 *            updated them in place).
+	 * @param result
+	 *            Value returned, which the table becomes an owner of.
+	 */
+	public void put(Object function, Object[] arguments, Object result) {
+		CompoundValue.share(result);
+		results.put(new Key(function, arguments), result);
+	}
+
+	private static final class Key {
+		private final Object function;
+		private final Object[] arguments;
+		private final int hash;
+
+		Key(Object function, Object[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+			this.hash = System.identityHashCode(function) * 31
+					+ Arrays.hashCode(arguments);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			if (function != k.function || hash != k.hash
+					|| arguments.length != k.arguments.length) {
+				return false;
+			}
+			for (int i = 0; i != arguments.length; ++i) {
+				if (!StringValue.equal(arguments[i], k.arguments[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
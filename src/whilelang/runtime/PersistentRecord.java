@@ -0,0 +1,58 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.runtime;
+
+/**
+ * An immutable record value, made up of a shape and a corresponding array of
+ * field values. Updating a field produces a new record which shares the shape,
+ * and the values of all other fields, with the original. Since records in While
+ * are typically small, this is cheaper than a hash-based structure whilst still
+ * avoiding any deep copying.
+ *
+ */
+public final class PersistentRecord extends RecordValue {
+	private final Shape shape;
+	private final Object[] values;
+
+	/**
+	 * Construct a record of a given shape. The values array is laid out
+	 * according to the shape, and is not copied.
+	 *
+	 * @param shape
+	 * @param values
+	 */
+	public PersistentRecord(Shape shape, Object[] values) {
+		this.shape = shape;
+		this.values = values;
+	}
+
+	public Shape shape() {
+		return shape;
+	}
+
+	public Object get(int index) {
+		return values[index];
+	}
+
+	public PersistentRecord set(int index, Object value) {
+		Object[] nvalues = values.clone();
+		nvalues[index] = value;
+		return new PersistentRecord(shape, nvalues);
+	}
+}
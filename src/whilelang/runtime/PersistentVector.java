@@ -0,0 +1,262 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.runtime;
+
+import java.util.*;
+
+/**
+ * <p>
+ * An immutable list value, implemented as a persistent vector (i.e. a 32-way
+ * branching trie, plus a separate "tail" array holding the last few
+ * elements). Updating an element produces a new vector which shares all but
+ * the path from the root to that element with the original. Thus, a list value
+ * can be freely aliased between variables, list elements and function
+ * arguments without any copying, whilst preserving the value semantics of
+ * While.
+ * </p>
+ * <p>
+ * Element access and update are <code>O(log32 n)</code>, which is effectively
+ * constant for any list which fits in memory. Appending one vector onto
+ * another costs time proportional to the length of the second.
+ * </p>
+ *
+ */
+public final class PersistentVector extends ListValue {
+	private static final int BITS = 5;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+
+	/**
+	 * A node in the trie. Nodes created by a builder are tagged with that
+	 * builder's edit token, which permits the builder (and only the builder)
+	 * to update them in place.
+	 */
+	private static final class Node {
+		final Object edit;
+		final Object[] array;
+
+		Node(Object edit) {
+			this.edit = edit;
+			this.array = new Object[WIDTH];
+		}
+
+		Node(Object edit, Object[] array) {
+			this.edit = edit;
+			this.array = array;
+		}
+	}
+
+	private static final Node EMPTY_NODE = new Node(null);
+
+	public static final PersistentVector EMPTY = new PersistentVector(0, BITS,
+			EMPTY_NODE, new Object[0]);
+
+	private final int count;
+	private final int shift;
+	private final Node root;
+	private final Object[] tail;
+
+	private PersistentVector(int count, int shift, Node root, Object[] tail) {
+		this.count = count;
+		this.shift = shift;
+		this.root = root;
+		this.tail = tail;
+	}
+
+	/**
+	 * Construct a vector from a given sequence of elements.
+	 *
+	 * @param elements
+	 * @return
+	 */
+	public static PersistentVector of(Collection<?> elements) {
+		Builder b = new Builder(EMPTY);
+		for (Object e : elements) {
+			b.add(e);
+		}
+		return b.build();
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public Object get(int index) {
+		return arrayFor(index)[index & MASK];
+	}
+
+	public PersistentVector set(int index, Object value) {
+		checkIndex(index);
+		if (index >= tailOffset()) {
+			Object[] ntail = tail.clone();
+			ntail[index & MASK] = value;
+			return new PersistentVector(count, shift, root, ntail);
+		} else {
+			return new PersistentVector(count, shift, set(shift, root, index,
+					value), tail);
+		}
+	}
+
+	public ListValue append(ListValue other) {
+		int n = other.size();
+		if (n == 0) {
+			return this;
+		} else if (count == 0 && other instanceof PersistentVector) {
+			return other;
+		}
+		Builder b = new Builder(this);
+		for (int i = 0; i != n; ++i) {
+			b.add(other.get(i));
+		}
+		return b.build();
+	}
+
+	// ==========================================
+	// Helpers
+	// ==========================================
+
+	private int tailOffset() {
+		if (count < WIDTH) {
+			return 0;
+		}
+		return ((count - 1) >>> BITS) << BITS;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ count);
+		}
+	}
+
+	private Object[] arrayFor(int index) {
+		checkIndex(index);
+		if (index >= tailOffset()) {
+			return tail;
+		}
+		Node node = root;
+		for (int level = shift; level > 0; level -= BITS) {
+			node = (Node) node.array[(index >>> level) & MASK];
+		}
+		return node.array;
+	}
+
+	private static Node set(int level, Node node, int index, Object value) {
+		Node r = new Node(null, node.array.clone());
+		if (level == 0) {
+			r.array[index & MASK] = value;
+		} else {
+			int subidx = (index >>> level) & MASK;
+			r.array[subidx] = set(level - BITS, (Node) node.array[subidx],
+					index, value);
+		}
+		return r;
+	}
+
+	private static Node newPath(Object edit, int level, Node node) {
+		if (level == 0) {
+			return node;
+		}
+		Node r = new Node(edit);
+		r.array[0] = newPath(edit, level - BITS, node);
+		return r;
+	}
+
+	/**
+	 * Responsible for efficiently constructing a vector by repeatedly adding
+	 * elements onto the end. Nodes created by the builder are updated in place,
+	 * whilst nodes inherited from the initial vector are copied before being
+	 * changed (so the initial vector is never affected). A builder must not be
+	 * used after <code>build()</code> has been called.
+	 */
+	private static final class Builder {
+		private final Object edit = new Object();
+		private int count;
+		private int shift;
+		private Node root;
+		private Object[] tail;
+
+		Builder(PersistentVector v) {
+			this.count = v.count;
+			this.shift = v.shift;
+			this.root = new Node(edit, v.root.array.clone());
+			this.tail = new Object[WIDTH];
+			System.arraycopy(v.tail, 0, tail, 0, v.tail.length);
+		}
+
+		void add(Object value) {
+			if (count - tailOffset() < WIDTH) {
+				tail[count & MASK] = value;
+				++count;
+				return;
+			}
+			// The tail is full, so push it into the tree.
+			Node tailnode = new Node(edit, tail);
+			tail = new Object[WIDTH];
+			tail[0] = value;
+			if ((count >>> BITS) > (1 << shift)) {
+				// root overflow
+				Node nroot = new Node(edit);
+				nroot.array[0] = root;
+				nroot.array[1] = newPath(edit, shift, tailnode);
+				root = nroot;
+				shift += BITS;
+			} else {
+				root = pushTail(shift, root, tailnode);
+			}
+			++count;
+		}
+
+		PersistentVector build() {
+			int n = count - tailOffset();
+			Object[] ntail = new Object[n];
+			System.arraycopy(tail, 0, ntail, 0, n);
+			return new PersistentVector(count, shift, root, ntail);
+		}
+
+		private int tailOffset() {
+			if (count < WIDTH) {
+				return 0;
+			}
+			return ((count - 1) >>> BITS) << BITS;
+		}
+
+		private Node editable(Node node) {
+			if (node.edit == edit) {
+				return node;
+			}
+			return new Node(edit, node.array.clone());
+		}
+
+		private Node pushTail(int level, Node parent, Node tailnode) {
+			parent = editable(parent);
+			int subidx = ((count - 1) >>> level) & MASK;
+			Node insert;
+			if (level == BITS) {
+				insert = tailnode;
+			} else {
+				Node child = (Node) parent.array[subidx];
+				insert = child != null ? pushTail(level - BITS, child,
+						tailnode) : newPath(edit, level - BITS, tailnode);
+			}
+			parent.array[subidx] = insert;
+			return parent;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.runtime;
+
+/**
+ * <p>
+ * The common base of copy-on-write lists whose elements are all of one
+ * primitive type (e.g. <code>int</code>), and are held unboxed in an array of
+ * that type. This uses a fraction of the memory of a list of boxed elements,
+ * and avoids chasing a pointer for every element read. As for
+ * <code>CowList</code>, an unshared list is updated (or extended) in place,
+ * whilst a shared list is copied on its first update.
+ * </p>
+ * <p>
+ * Storing an element of some other type into a primitive list (e.g. a real
+ * into a list of ints, which is permitted when the list has a union element
+ * type) produces a generic <code>CowList</code> holding the same elements.
+ * Since primitive elements are never compound values, a primitive list never
+ * needs to share its elements when it is copied.
+ * </p>
+ *
+ */
+public abstract class PrimitiveList extends ListValue {
+	protected int size;
+	private int shares;
+
+	protected PrimitiveList(int size) {
+		this.size = size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Object get(int index) {
+		checkIndex(index);
+		return load(index);
+	}
+
+	public ListValue set(int index, Object value) {
+		checkIndex(index);
+		if (!accepts(value)) {
+			return generalize().set(index, value);
+		}
+		PrimitiveList l = unique();
+		l.store(index, value);
+		return l;
+	}
+
+	public ListValue append(ListValue other) {
+		if (!acceptsAll(other)) {
+			return new CowList(toArray()).appendInPlace(other);
+		}
+		PrimitiveList l = copy(size + other.size());
+		l.extend(other);
+		return l;
+	}
+
+	public ListValue appendInPlace(ListValue other) {
+		if (shares > 0) {
+			return append(other);
+		} else if (!acceptsAll(other)) {
+			return generalize().appendInPlace(other);
+		}
+		int n = size + other.size();
+		int capacity = capacity();
+		if (n > capacity) {
+			grow(Math.max(n, capacity + (capacity >> 1)));
+		}
+		extend(other);
+		return this;
+	}
+
+	public PrimitiveList share() {
+		shares++;
+		return this;
+	}
+
+	public void release() {
+		if (shares > 0) {
+			shares--;
+		}
+	}
+
+	public PrimitiveList unique() {
+		if (shares == 0) {
+			return this;
+		}
+		shares--;
+		return copy(size);
+	}
+
+	/**
+	 * Get the elements of this list as an array of (boxed) values.
+	 *
+	 * @return
+	 */
+	public Object[] toArray() {
+		Object[] elements = new Object[size];
+		for (int i = 0; i != size; ++i) {
+			elements[i] = load(i);
+		}
+		return elements;
+	}
+
+	// ==========================================
+	// Storage
+	// ==========================================
+
+	/**
+	 * Check whether a given value can be held in this list.
+	 *
+	 * @param value
+	 * @return
+	 */
+	protected abstract boolean accepts(Object value);
+
+	/**
+	 * Read the element at a given index, which is known to be within bounds.
+	 *
+	 * @param index
+	 * @return
+	 */
+	protected abstract Object load(int index);
+
+	/**
+	 * Write the element at a given index, which is known to be within bounds
+	 * (or capacity), with a value which is known to be accepted.
+	 *
+	 * @param index
+	 * @param value
+	 */
+	protected abstract void store(int index, Object value);
+
+	/**
+	 * Get the number of elements which this list can hold without growing.
+	 *
+	 * @return
+	 */
+	protected abstract int capacity();
+
+	/**
+	 * Increase the capacity of this list.
+	 *
+	 * @param capacity
+	 */
+	protected abstract void grow(int capacity);
+
+	/**
+	 * Construct an unshared list of the same kind, holding the same elements,
+	 * with a given capacity.
+	 *
+	 * @param capacity
+	 * @return
+	 */
+	protected abstract PrimitiveList copy(int capacity);
+
+	/**
+	 * Add the elements of a given list (all of which are accepted) onto the
+	 * end of this list, which has sufficient capacity for them.
+	 *
+	 * @param other
+	 */
+	protected void extend(ListValue other) {
+		for (int i = 0, n = other.size(); i != n; ++i) {
+			store(size++, other.get(i));
+		}
+	}
+
+	// ==========================================
+	// Helpers
+	// ==========================================
+
+	protected void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		}
+	}
+
+	private boolean acceptsAll(ListValue other) {
+		if (other.getClass() == getClass()) {
+			return true;
+		}
+		for (int i = 0, n = other.size(); i != n; ++i) {
+			if (!accepts(other.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get a generic list holding the same elements as this list, on behalf of
+	 * an owner which is about to discard this list.
+	 *
+	 * @return
+	 */
+	private CowList generalize() {
+		release();
+		return new CowList(toArray());
+	}
+}
@@ -0,0 +1,85 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.runtime;
+
+import java.util.*;
+
+/**
+ * Describes how a record constructor (e.g. <code>{y:1,x:2}</code>) builds its
+ * records. The fields of a constructor are given in source order, whilst the
+ * values of a record are held in the order of its shape. Therefore, the shape
+ * of the constructed records, and the index in that shape of each field, are
+ * determined once when the layout is created, rather than for every record.
+ *
+ */
+public final class RecordLayout {
+	private final String[] fields;
+	private final Shape shape;
+	private final int[] indices;
+
+	/**
+	 * Construct the layout for a record constructor with a given sequence of
+	 * field names.
+	 *
+	 * @param fields
+	 *            Field names in source order.
+	 */
+	public RecordLayout(String[] fields) {
+		this.fields = fields;
+		this.shape = Shape.of(Arrays.asList(fields));
+		this.indices = shape.indicesOf(fields);
+	}
+
+	/**
+	 * Get the field names of this layout, in source order.
+	 *
+	 * @return
+	 */
+	public String[] fields() {
+		return fields;
+	}
+
+	public Shape shape() {
+		return shape;
+	}
+
+	/**
+	 * Construct a record from a given sequence of field values.
+	 *
+	 * @param values
+	 *            Field values in source order (i.e. matching the field names
+	 *            of this layout).
+	 * @param copyOnWrite
+	 *            If true, a <code>CowRecord</code> is constructed; otherwise,
+	 *            a <code>PersistentRecord</code> is constructed.
+	 * @return
+	 */
+	public RecordValue construct(Object[] values, boolean copyOnWrite) {
+		Object[] nvalues = new Object[shape.size()];
+		for (int i = 0; i != values.length; ++i) {
+			nvalues[indices[i]] = values[i];
+		}
+		if (copyOnWrite) {
+			return new CowRecord(shape, nvalues);
+		} else {
+			return new PersistentRecord(shape, nvalues);
+		}
+	}
+}
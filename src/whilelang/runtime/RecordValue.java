@@ -0,0 +1,152 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.runtime;
+
+import java.util.*;
+
+/**
+ * The common base of all record values. Every record has a shape, which
+ * determines the index at which each of its fields is held. Two records are
+ * equal if they have the same fields, holding equal values, regardless of how
+ * they are represented.
+ *
+ */
+public abstract class RecordValue extends CompoundValue {
+
+	/**
+	 * Get the shape of this record.
+	 *
+	 * @return
+	 */
+	public abstract Shape shape();
+
+	/**
+	 * Get the value of the field at a given index in this record's shape.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public abstract Object get(int index);
+
+	/**
+	 * Return a record identical to this one, except that the field at the
+	 * given index holds the given value. Other owners of this record will not
+	 * observe the change, although the record itself may be updated in place
+	 * when it is not shared.
+	 *
+	 * @param index
+	 * @param value
+	 * @return
+	 */
+	public abstract RecordValue set(int index, Object value);
+
+	/**
+	 * Get the field names of this record, in sorted order.
+	 *
+	 * @return
+	 */
+	public List<String> fields() {
+		return shape().fields();
+	}
+
+	/**
+	 * Get the value of a given field, or <code>null</code> if this record has
+	 * no such field.
+	 *
+	 * @param field
+	 * @return
+	 */
+	public Object get(String field) {
+		int i = shape().indexOf(field);
+		return i >= 0 ? get(i) : null;
+	}
+
+	/**
+	 * Return a record identical to this one, except that the given field holds
+	 * the given value.
+	 *
+	 * @param field
+	 * @param value
+	 * @return
+	 */
+	public RecordValue set(String field, Object value) {
+		int i = shape().indexOf(field);
+		if (i < 0) {
+			throw new IllegalArgumentException("unknown field: " + field);
+		}
+		return set(i, value);
+	}
+
+	public RecordValue share() {
+		return this;
+	}
+
+	public RecordValue unique() {
+		return this;
+	}
+
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		} else if (o instanceof RecordValue) {
+			RecordValue r = (RecordValue) o;
+			// NOTE: shapes are interned, hence this compares field names.
+			Shape shape = shape();
+			if (shape != r.shape()) {
+				return false;
+			}
+			for (int i = 0; i != shape.size(); ++i) {
+				Object a = get(i);
+				Object b = r.get(i);
+				if (!StringValue.equal(a, b)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	public int hashCode() {
+		Shape shape = shape();
+		int hash = 0;
+		for (int i = 0; i != shape.size(); ++i) {
+			Object v = get(i);
+			hash ^= shape.field(i).hashCode() + 31
+					* (v == null ? 0 : v.hashCode());
+		}
+		return hash;
+	}
+
+	/**
+	 * Convert this record to a string, in the form printed by a While program
+	 * (e.g. <code>{x:1,y:2}</code>).
+	 */
+	public String toString() {
+		StringBuilder r = new StringBuilder("{");
+		Shape shape = shape();
+		for (int i = 0; i != shape.size(); ++i) {
+			if (i != 0) {
+				r.append(",");
+			}
+			r.append(shape.field(i)).append(":").append(get(i));
+		}
+		return r.append("}").toString();
+	}
+}
@@ -0,0 +1,139 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.runtime;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * <p>
+ * The shape of a record value, which is its set of field names in sorted order.
+ * A record stores the values of its fields in an array whose layout is given
+ * by its shape, with the field at position <code>i</code> of the shape being
+ * held at index <code>i</code> of the array. Thus, the field names are stored
+ * once per shape, rather than once per record.
+ * </p>
+ * <p>
+ * Shapes are interned, so that two records have the same fields if and only if
+ * they have the same shape. This allows a field access to remember the index
+ * it found for a given shape, and reuse it for all later records of that shape
+ * (see <code>FieldLookup</code>).
+ * </p>
+ * <p>
+ * The intern table holds its shapes weakly, so that a long-running process
+ * (e.g. an <code>ExecutionService</code>) does not keep the shape of every
+ * record it has ever seen. Each entry is keyed by its shape's own list of
+ * fields, and so lasts exactly as long as the shape is reachable. Shapes are
+ * only interned when a record expression is parsed, or a record is passed in
+ * from Java, and never when a running program constructs a record.
+ * </p>
+ *
+ */
+public final class Shape {
+	private static final WeakHashMap<List<String>, WeakReference<Shape>> shapes = new WeakHashMap<List<String>, WeakReference<Shape>>();
+
+	private final String[] fields;
+	private final List<String> fieldList;
+
+	private Shape(String[] fields) {
+		this.fields = fields;
+		this.fieldList = Collections.unmodifiableList(Arrays.asList(fields));
+	}
+
+	/**
+	 * Get the shape made up of a given set of field names, which may be given
+	 * in any order.
+	 *
+	 * @param fields
+	 * @return
+	 */
+	public static Shape of(Collection<String> fields) {
+		String[] sorted = new TreeSet<String>(fields).toArray(new String[0]);
+		List<String> key = Arrays.asList(sorted);
+		synchronized (shapes) {
+			WeakReference<Shape> ref = shapes.get(key);
+			Shape shape = ref == null ? null : ref.get();
+			if (shape == null) {
+				shape = new Shape(sorted);
+				shapes.put(shape.fieldList, new WeakReference<Shape>(shape));
+			}
+			return shape;
+		}
+	}
+
+	/**
+	 * Get the number of fields in this shape.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return fields.length;
+	}
+
+	/**
+	 * Get the name of the field at a given position in this shape.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public String field(int index) {
+		return fields[index];
+	}
+
+	/**
+	 * Get the field names of this shape, in sorted order.
+	 *
+	 * @return
+	 */
+	public List<String> fields() {
+		return fieldList;
+	}
+
+	/**
+	 * Get the position of a given field in this shape, or <code>-1</code> if
+	 * there is no such field.
+	 *
+	 * @param field
+	 * @return
+	 */
+	public int indexOf(String field) {
+		int i = Arrays.binarySearch(fields, field);
+		return i >= 0 ? i : -1;
+	}
+
+	/**
+	 * Determine the position in this shape of each of a given sequence of
+	 * field names.
+	 *
+	 * @param fields
+	 * @return
+	 */
+	public int[] indicesOf(String[] fields) {
+		int[] indices = new int[fields.length];
+		for (int i = 0; i != fields.length; ++i) {
+			indices[i] = indexOf(fields[i]);
+		}
+		return indices;
+	}
+
+	public String toString() {
+		return fieldList.toString();
+	}
+}
@@ -0,0 +1,191 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.runtime;
+
+/**
+ * <p>
+ * A string value produced by appending onto another string. Building a string
+ * through a sequence of appends (e.g. <code>s = s ++ x</code> in a loop) would
+ * be quadratic if each step copied the string so far. Instead, a string value
+ * is a prefix of a shared, growable character buffer. Appending onto the
+ * value which ends at the buffer's current end simply extends the buffer in
+ * place, and so costs (amortised) time proportional to what is appended. The
+ * original value is unaffected, since it only sees its own prefix. Appending
+ * onto any other value copies it into a fresh buffer first.
+ * </p>
+ * <p>
+ * String values and <code>String</code>s are interchangeable as far as a While
+ * program is concerned. Both are <code>CharSequence</code>s, so length and
+ * indexing work directly on the buffer. A string value is only flattened into
+ * a <code>String</code> (once, after which it is cached) when it is compared,
+ * hashed or printed. Since <code>String.equals()</code> does not recognise
+ * string values, values which may be strings should be compared using
+ * <code>equal()</code>.
+ * </p>
+ *
+ */
+public final class StringValue implements CharSequence {
+
+	/**
+	 * The characters shared between all string values built from the same
+	 * starting point. Only the first <code>used</code> characters have been
+	 * claimed by some string value.
+	 */
+	private static final class Buffer {
+		char[] chars;
+		int used;
+
+		Buffer(int capacity) {
+			this.chars = new char[capacity];
+		}
+	}
+
+	private final Buffer buffer;
+	private final int length;
+	private String flat;
+
+	private StringValue(Buffer buffer, int length) {
+		this.buffer = buffer;
+		this.length = length;
+	}
+
+	/**
+	 * Append two strings, producing a string value.
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	public static StringValue append(CharSequence lhs, CharSequence rhs) {
+		if (lhs instanceof StringValue) {
+			return ((StringValue) lhs).append(rhs);
+		}
+		int n = lhs.length();
+		Buffer buffer = new Buffer(capacity(n + rhs.length()));
+		copy(lhs, buffer.chars, 0);
+		buffer.used = n;
+		return new StringValue(buffer, n).append(rhs);
+	}
+
+	/**
+	 * Append a string onto this value. This extends the underlying buffer in
+	 * place when this value ends at the buffer's end, and otherwise copies
+	 * this value into a new buffer.
+	 *
+	 * @param rhs
+	 * @return
+	 */
+	public StringValue append(CharSequence rhs) {
+		int n = rhs.length();
+		int nlength = length + n;
+		synchronized (buffer) {
+			if (buffer.used == length) {
+				if (nlength > buffer.chars.length) {
+					char[] nchars = new char[capacity(nlength)];
+					System.arraycopy(buffer.chars, 0, nchars, 0, length);
+					buffer.chars = nchars;
+				}
+				copy(rhs, buffer.chars, length);
+				buffer.used = nlength;
+				return new StringValue(buffer, nlength);
+			}
+		}
+		Buffer nbuffer = new Buffer(capacity(nlength));
+		System.arraycopy(buffer.chars, 0, nbuffer.chars, 0, length);
+		copy(rhs, nbuffer.chars, length);
+		nbuffer.used = nlength;
+		return new StringValue(nbuffer, nlength);
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new StringIndexOutOfBoundsException(index);
+		}
+		return buffer.chars[index];
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		return toString().subSequence(start, end);
+	}
+
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		} else if (o instanceof StringValue || o instanceof String) {
+			return toString().equals(o.toString());
+		}
+		return false;
+	}
+
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	public String toString() {
+		String r = flat;
+		if (r == null) {
+			r = new String(buffer.chars, 0, length);
+			flat = r;
+		}
+		return r;
+	}
+
+	/**
+	 * Compare two values for equality, where either may be a string value or
+	 * a <code>String</code>.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static boolean equal(Object a, Object b) {
+		if (a == null) {
+			return b == null;
+		} else if (b instanceof StringValue) {
+			return b.equals(a);
+		}
+		return a.equals(b);
+	}
+
+	// ==========================================
+	// Helpers
+	// ==========================================
+
+	private static int capacity(int length) {
+		return Math.max(16, length + (length >> 1));
+	}
+
+	private static void copy(CharSequence src, char[] dst, int offset) {
+		if (src instanceof String) {
+			((String) src).getChars(0, src.length(), dst, offset);
+		} else if (src instanceof StringValue) {
+			StringValue s = (StringValue) src;
+			System.arraycopy(s.buffer.chars, 0, dst, offset, s.length);
+		} else {
+			for (int i = 0, n = src.length(); i != n; ++i) {
+				dst[offset + i] = src.charAt(i);
+			}
+		}
+	}
+}
@@ -0,0 +1,235 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.runtime;
+
+import java.io.*;
+
+/**
+ * <p>
+ * Responsible for printing values, as done by a While <code>print</code>
+ * statement. Values are written straight into a reusable byte buffer, which is
+ * only passed on to the underlying stream when it fills up or when
+ * <code>flush()</code> is called. Lists and records are traversed in place,
+ * and field names, strings and integers are encoded character by character,
+ * so printing a value creates no intermediate strings (the one exception
+ * being reals, which are formatted by <code>Double.toString()</code>).
+ * </p>
+ * <p>
+ * The buffer is only allocated once something is printed, so that a printer
+ * is cheap to create for a run which may never use it. Output is encoded as
+ * UTF-8. The format is identical to that given by the
+ * <code>toString()</code> methods of the values themselves (e.g.
+ * <code>[1, 2, 3]</code> for lists and <code>{x:1,y:2}</code> for records).
+ * </p>
+ *
+ */
+public final class ValuePrinter {
+	private static final int DEFAULT_BUFFER = 1 << 16;
+	private static final char[] NEWLINE = System.getProperty(
+			"line.separator", "\n").toCharArray();
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final OutputStream out;
+	private final int capacity;
+	private byte[] buffer = EMPTY;
+	private int count;
+
+	/**
+	 * Construct a printer which writes onto a given stream.
+	 *
+	 * @param out
+	 */
+	public ValuePrinter(OutputStream out) {
+		this(out, DEFAULT_BUFFER);
+	}
+
+	/**
+	 * Construct a printer which writes onto a given stream.
+	 *
+	 * @param out
+	 * @param bufferSize
+	 *            Number of bytes to accumulate before writing them to the
+	 *            stream. Must be at least 16.
+	 */
+	public ValuePrinter(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.capacity = Math.max(16, bufferSize);
+	}
+
+	/**
+	 * Print a given value followed by a line separator.
+	 *
+	 * @param value
+	 */
+	public void println(Object value) {
+		print(value);
+		write(NEWLINE);
+	}
+
+	/**
+	 * Print a given value. This is either a <code>Boolean</code>,
+	 * <code>Integer</code>, <code>Double</code>, <code>Character</code>,
+	 * <code>String</code>, <code>StringValue</code>, <code>ListValue</code> or
+	 * <code>RecordValue</code>.
+	 *
+	 * @param value
+	 */
+	public void print(Object value) {
+		if (value instanceof Integer) {
+			write((Integer) value);
+		} else if (value instanceof CharSequence) {
+			write((CharSequence) value);
+		} else if (value instanceof ListValue) {
+			ListValue l = (ListValue) value;
+			write('[');
+			for (int i = 0, size = l.size(); i != size; ++i) {
+				if (i != 0) {
+					write(',');
+					write(' ');
+				}
+				print(l.get(i));
+			}
+			write(']');
+		} else if (value instanceof RecordValue) {
+			RecordValue r = (RecordValue) value;
+			Shape shape = r.shape();
+			write('{');
+			for (int i = 0; i != shape.size(); ++i) {
+				if (i != 0) {
+					write(',');
+				}
+				write(shape.field(i));
+				write(':');
+				print(r.get(i));
+			}
+			write('}');
+		} else if (value instanceof Character) {
+			write((char) (Character) value);
+		} else {
+			write(String.valueOf(value));
+		}
+	}
+
+	/**
+	 * Write any buffered output to the underlying stream, and flush it.
+	 */
+	public void flush() {
+		try {
+			out.write(buffer, 0, count);
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			count = 0;
+		}
+	}
+
+	// ==========================================
+	// Helpers
+	// ==========================================
+
+	private void write(int value) {
+		if (value < 0) {
+			write('-');
+		} else {
+			value = -value;
+		}
+		// NOTE: digits are produced from the negated value, since this works
+		// for Integer.MIN_VALUE as well.
+		ensure(11);
+		int start = count;
+		do {
+			buffer[count++] = (byte) ('0' - (value % 10));
+			value /= 10;
+		} while (value != 0);
+		for (int i = start, j = count - 1; i < j; ++i, --j) {
+			byte t = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = t;
+		}
+	}
+
+	private void write(CharSequence s) {
+		for (int i = 0, n = s.length(); i != n; ++i) {
+			char c = s.charAt(i);
+			if (Character.isHighSurrogate(c) && i + 1 != n
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				encode(Character.toCodePoint(c, s.charAt(++i)));
+			} else {
+				write(c);
+			}
+		}
+	}
+
+	private void write(char[] chars) {
+		for (char c : chars) {
+			write(c);
+		}
+	}
+
+	private void write(char c) {
+		if (c < 0x80) {
+			if (count == buffer.length) {
+				flushBuffer();
+			}
+			buffer[count++] = (byte) c;
+		} else if (Character.isSurrogate(c)) {
+			// an unpaired surrogate cannot be encoded.
+			write('?');
+		} else {
+			encode(c);
+		}
+	}
+
+	private void encode(int codePoint) {
+		ensure(4);
+		if (codePoint < 0x800) {
+			buffer[count++] = (byte) (0xC0 | (codePoint >> 6));
+		} else if (codePoint < 0x10000) {
+			buffer[count++] = (byte) (0xE0 | (codePoint >> 12));
+			buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+		} else {
+			buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+			buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+			buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+		}
+		buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+	}
+
+	private void ensure(int n) {
+		if (count + n > buffer.length) {
+			flushBuffer();
+		}
+	}
+
+	private void flushBuffer() {
+		if (buffer.length != capacity) {
+			buffer = new byte[capacity];
+			return;
+		}
+		try {
+			out.write(buffer, 0, count);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+		count = 0;
+	}
+}
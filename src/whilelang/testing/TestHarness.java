@@ -9,6 +9,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 
+import whilelang.io.Lexer;
+import whilelang.io.Parser;
+import whilelang.lang.WhileFile;
+import whilelang.util.TypeChecker;
+
 public class TestHarness {
 
 	private static final String JASM_JAR = "../../lib/jasm-v0.1.1.jar".replace(
@@ -19,6 +24,7 @@ public class TestHarness {
 	protected String srcPath; // path to source files
 	protected  String outputPath; // path to output files
 	protected  String outputExtension; // the extension of output files
+	protected String[] options; // options passed to the compiler for each test
 
 	/**
 	 * Construct a test harness object.
@@ -29,17 +35,24 @@ public class TestHarness {
 	 *            The path to the sample output files to compare against.
 	 * @param outputExtension
 	 *            The extension of output files
-	 * @param verification
-	 *            if true, the verifier is used.
+	 * @param options
+	 *            Options passed to the compiler when running each test (e.g.
+	 *            to select an engine).
 	 */
-	public TestHarness(String srcPath, String outputPath, String outputExtension) {
+	public TestHarness(String srcPath, String outputPath,
+			String outputExtension, String... options) {
 		this.srcPath = srcPath.replace('/', File.separatorChar);
 		this.outputPath = outputPath.replace('/', File.separatorChar);
 		this.outputExtension = outputExtension;
+		this.options = options;
 	}
 
 	protected void runInterpreterTest(String name) {
-		String output = runJava(srcPath, "whilelang.Main", name + ".while");
+		String[] args = new String[options.length + 2];
+		args[0] = "whilelang.Main";
+		System.arraycopy(options, 0, args, 1, options.length);
+		args[args.length - 1] = name + ".while";
+		String output = runJava(srcPath, args);
 		compare(output, outputPath + File.separatorChar + name + "."
 				+ outputExtension);
 	}
@@ -54,6 +67,45 @@ public class TestHarness {
 				+ outputExtension);
 	}
 	
+	/**
+	 * Parse and type check the While program in a given file, for tests which
+	 * run it directly rather than through the compiler's command line.
+	 * 
+	 * @param filename
+	 * @return
+	 */
+	protected static WhileFile compile(String filename) {
+		try {
+			Lexer lexer = new Lexer(filename);
+			WhileFile ast = new Parser(filename, lexer.scan()).read();
+			new TypeChecker().check(ast);
+			return ast;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Parse and type check a given While program, for tests which run it
+	 * directly rather than through the compiler's command line.
+	 * 
+	 * @param filename
+	 *            Name used to identify the program in error messages.
+	 * @param source
+	 *            Source text of the program.
+	 * @return
+	 */
+	protected static WhileFile compile(String filename, String source) {
+		try {
+			Lexer lexer = new Lexer(new StringReader(source));
+			WhileFile ast = new Parser(filename, lexer.scan()).read();
+			new TypeChecker().check(ast);
+			return ast;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	protected static String runJava(String path, String... args) {
 		try {
 			// We need to have
@@ -0,0 +1,46 @@
+package whilelang.testing.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import whilelang.closure.ClosureInterpreter;
+import whilelang.closure.Function;
+
+/**
+ * Runs the valid tests on the closure-compiling engine.
+ */
+public class ClosureValidTests extends InterpreterValidTests {
+ private static final String SOURCE = "int fib(int n) {\n"
+   + " if(n < 2) {\n"
+   + "  return n;\n"
+   + " }\n"
+   + " return fib(n - 1) + fib(n - 2);\n"
+   + "}\n"
+   + "\n"
+   + "[int] fibs(int n) {\n"
+   + " [int] r = [];\n"
+   + " for(int i = 0; i < n; i = i + 1) {\n"
+   + "  r = r ++ [fib(i)];\n"
+   + " }\n"
+   + " return r;\n"
+   + "}\n";
+
+ public ClosureValidTests() {
+  super("-engine=closure");
+ }
+
+ @Test public void Closure_Compile() {
+  // Every function is compiled once, up front, and can then be invoked
+  // directly without going through the interpreter.
+  Map<String, Function> functions = new ClosureInterpreter().compile(compile(
+    "Closure.while", SOURCE));
+  assertEquals(new HashSet<String>(Arrays.asList("fib", "fibs")),
+    functions.keySet());
+  assertEquals(6765, functions.get("fib").invoke(20));
+  assertEquals("[0, 1, 1, 2, 3, 5]", functions.get("fibs").invoke(6)
+    .toString());
+ }
+}
@@ -0,0 +1,43 @@
+package whilelang.testing.tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import whilelang.runtime.CowList;
+import whilelang.runtime.ListValue;
+
+/**
+ * Runs the valid tests using copy-on-write, rather than persistent, lists and
+ * records.
+ */
+public class CowValidTests extends InterpreterValidTests {
+ public CowValidTests() {
+  super("-cow");
+ }
+
+ @Test public void Cow_UpdateInPlace() {
+  // A list with no other owners is updated without being copied.
+  CowList xs = new CowList(new Object[] { "a", "b" });
+  assertSame(xs, xs.set(0, "c"));
+  assertSame(xs, xs.appendInPlace(new CowList(new Object[] { "d" })));
+  assertEquals("[c, b, d]", xs.toString());
+ }
+
+ @Test public void Cow_CopyWhenShared() {
+  // Once shared, an update copies the list and leaves the other owner's
+  // value unchanged.
+  CowList xs = new CowList(new Object[] { "a", "b" });
+  CowList ys = xs.share();
+  CowList zs = ys.set(0, "c");
+  assertNotSame(xs, zs);
+  assertEquals("a", xs.get(0));
+  assertEquals("c", zs.get(0));
+  // Having given up its share, the copy is unshared, and so is the original.
+  assertSame(zs, zs.set(1, "d"));
+  assertSame(xs, xs.set(1, "e"));
+  ListValue ws = xs.share().appendInPlace(new CowList(new Object[] { "f" }));
+  assertNotSame(xs, ws);
+  assertEquals(2, xs.size());
+ }
+}
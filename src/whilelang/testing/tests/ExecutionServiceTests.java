@@ -0,0 +1,103 @@
+package whilelang.testing.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import whilelang.ExecutionService;
+import whilelang.Main;
+import whilelang.runtime.LimitExceededException;
+import whilelang.runtime.Limits;
+import whilelang.testing.TestHarness;
+
+/**
+ * Checks that many programs run concurrently on an execution service are
+ * isolated from one another.
+ */
+public class ExecutionServiceTests extends TestHarness {
+	private ExecutionService service;
+
+	public ExecutionServiceTests() {
+		super("tests/valid", "tests/valid", "sysout");
+	}
+
+	@Before public void start() {
+		// Few threads and little capacity, so that submit() must block.
+		service = new ExecutionService(4, 2, false, new Limits(1000000,
+				Limits.UNLIMITED, Limits.UNLIMITED));
+	}
+
+	@After public void stop() throws InterruptedException {
+		service.shutdown();
+		assertTrue(service.awaitTermination(1, TimeUnit.MINUTES));
+	}
+
+	@Test public void Run_Concurrently() throws Exception {
+		ArrayList<Future<ExecutionService.Result>> runs = new ArrayList<Future<ExecutionService.Result>>();
+		for (int i = 0; i != 32; ++i) {
+			runs.add(service.submit("Sum" + i + ".while", sum(i)));
+		}
+		for (int i = 0; i != runs.size(); ++i) {
+			ExecutionService.Result r = runs.get(i).get();
+			assertNull(r.error());
+			assertEquals("Sum" + i + ".while", r.filename());
+			assertEquals(expected(i), r.output().trim());
+		}
+	}
+
+	@Test public void Run_Failures() throws Exception {
+		Future<ExecutionService.Result> loop = service.submit("Loop.while",
+				"void main() {\n while(true) {\n  print 1;\n }\n}");
+		Future<ExecutionService.Result> index = service.submit(
+				"Index.while",
+				"void main() {\n [int] xs = [1];\n print xs[0];\n print xs[1];\n}");
+		Future<ExecutionService.Result> nomain = service.submit(
+				"NoMain.while", "int f() {\n return 1;\n}");
+		Future<ExecutionService.Result> ok = service.submit("Ok.while",
+				sum(10));
+		assertTrue(loop.get().error() instanceof LimitExceededException);
+		assertNotNull(index.get().error());
+		assertEquals("1", index.get().output().trim());
+		assertNotNull(nomain.get().error());
+		assertNull(ok.get().error());
+		assertEquals(expected(10), ok.get().output().trim());
+	}
+
+	@Test public void Unsupported_Options() {
+		// Several files are run on an ExecutionService, which cannot honour
+		// these options, so they must be refused rather than ignored.
+		String[] files = { "tests/valid/While_Valid_1.while",
+				"tests/valid/While_Valid_2.while" };
+		String[] options = { "-O", "-vm", "-engine=closure", "-unboxed",
+				"-memo=10", "-profile", "-sample=samples.txt", "-stats" };
+		for (String option : options) {
+			assertFalse(option, Main.run(new String[] { option, files[0],
+					files[1] }));
+		}
+	}
+
+	@Test public void Invalid_Threads() {
+		String[] files = { "tests/valid/While_Valid_1.while",
+				"tests/valid/While_Valid_2.while" };
+		assertFalse(Main.run(new String[] { "-threads=0", files[0], files[1] }));
+		assertFalse(Main.run(new String[] { "-threads=-1", files[0], files[1] }));
+	}
+
+	private static String sum(int n) {
+		return "void main() {\n"
+				+ " int r = 0;\n"
+				+ " for(int i = 0; i < " + (1000 * n) + "; i = i + 1) {\n"
+				+ "  r = r + i;\n"
+				+ " }\n"
+				+ " print r;\n"
+				+ "}";
+	}
+
+	private static String expected(int n) {
+		long m = 1000 * n;
+		return Long.toString(m * (m - 1) / 2);
+	}
+}
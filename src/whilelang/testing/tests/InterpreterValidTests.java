@@ -9,6 +9,14 @@ public class InterpreterValidTests extends TestHarness {
   super("tests/valid","tests/valid","sysout");
  }
 
+ /**
+  * Run every valid test with the given options, so that subclasses can check
+  * another engine or value representation produces the same output.
+  */
+ protected InterpreterValidTests(String... options) {
+  super("tests/valid","tests/valid","sysout",options);
+ }
+
  @Test public void BoolAssign_Valid_1() { runInterpreterTest("BoolAssign_Valid_1"); }
  @Test public void BoolAssign_Valid_2() { runInterpreterTest("BoolAssign_Valid_2"); }
  @Test public void BoolAssign_Valid_3() { runInterpreterTest("BoolAssign_Valid_3"); } 
@@ -27,19 +35,29 @@ public class InterpreterValidTests extends TestHarness {
  @Test public void Char_Valid_1() { runInterpreterTest("Char_Valid_1"); }
  @Test public void Char_Valid_2() { runInterpreterTest("Char_Valid_2"); }
  @Test public void Char_Valid_3() { runInterpreterTest("Char_Valid_3"); }
+ @Test public void Common_Valid_1() { runInterpreterTest("Common_Valid_1"); }
+ @Test public void Common_Valid_2() { runInterpreterTest("Common_Valid_2"); }
  @Test public void Const_Valid_1() { runInterpreterTest("Const_Valid_1"); }
  @Test public void Const_Valid_2() { runInterpreterTest("Const_Valid_2"); }
  @Test public void Const_Valid_3() { runInterpreterTest("Const_Valid_3"); }
  @Test public void Const_Valid_4() { runInterpreterTest("Const_Valid_4"); }
+ @Test public void DeadCode_Valid_1() { runInterpreterTest("DeadCode_Valid_1"); }
+ @Test public void DeadCode_Valid_2() { runInterpreterTest("DeadCode_Valid_2"); }
+ @Test public void DeadCode_Valid_3() { runInterpreterTest("DeadCode_Valid_3"); }
  @Test public void Define_Valid_1() { runInterpreterTest("Define_Valid_1"); } 
  @Test public void Define_Valid_2() { runInterpreterTest("Define_Valid_2"); } 
  @Test public void Function_Valid_1() { runInterpreterTest("Function_Valid_1"); }
  @Test public void Function_Valid_2() { runInterpreterTest("Function_Valid_2"); } 
  @Test public void Function_Valid_4() { runInterpreterTest("Function_Valid_4"); }
+ @Test public void Function_Valid_5() { runInterpreterTest("Function_Valid_5"); }
+ @Test public void Hoist_Valid_1() { runInterpreterTest("Hoist_Valid_1"); }
+ @Test public void Hoist_Valid_2() { runInterpreterTest("Hoist_Valid_2"); }
+ @Test public void Hoist_Valid_3() { runInterpreterTest("Hoist_Valid_3"); }
  @Test public void IfElse_Valid_1() { runInterpreterTest("IfElse_Valid_1"); }
  @Test public void IfElse_Valid_2() { runInterpreterTest("IfElse_Valid_2"); }
  @Test public void IfElse_Valid_3() { runInterpreterTest("IfElse_Valid_3"); } 
  @Test public void IfElse_Valid_4() { runInterpreterTest("IfElse_Valid_4"); }
+ @Test public void Inline_Valid_2() { runInterpreterTest("Inline_Valid_2"); }
  @Test public void IntDefine_Valid_1() { runInterpreterTest("IntDefine_Valid_1"); }
  @Test public void IntDiv_Valid_1() { runInterpreterTest("IntDiv_Valid_1"); }
  @Test public void IntDiv_Valid_2() { runInterpreterTest("IntDiv_Valid_2"); } 
@@ -72,6 +90,7 @@ public class InterpreterValidTests extends TestHarness {
  @Test public void ListGenerator_Valid_3() { runInterpreterTest("ListGenerator_Valid_3"); } 
  @Test public void ListLength_Valid_1() { runInterpreterTest("ListLength_Valid_1"); }
  @Test public void ListLength_Valid_2() { runInterpreterTest("ListLength_Valid_2"); }
+ @Test public void Memo_Valid_1() { runInterpreterTest("Memo_Valid_1"); }
  @Test public void MultiLineComment_Valid_1() { runInterpreterTest("MultiLineComment_Valid_1"); }
  @Test public void MultiLineComment_Valid_2() { runInterpreterTest("MultiLineComment_Valid_2"); }
  @Test public void RealDiv_Valid_1() { runInterpreterTest("RealDiv_Valid_1"); } 
@@ -90,6 +109,8 @@ public class InterpreterValidTests extends TestHarness {
  @Test public void RecordAssign_Valid_6() { runInterpreterTest("RecordAssign_Valid_6"); }
  @Test public void RecordDefine_Valid_1() { runInterpreterTest("RecordDefine_Valid_1"); } 
  @Test public void Remainder_Valid_1() { runInterpreterTest("Remainder_Valid_1"); } 
+ @Test public void Scope_Valid_1() { runInterpreterTest("Scope_Valid_1"); }
+ @Test public void Scope_Valid_2() { runInterpreterTest("Scope_Valid_2"); }
  @Test public void SingleLineComment_Valid_1() { runInterpreterTest("SingleLineComment_Valid_1"); } 
  @Test public void String_Valid_1() { runInterpreterTest("String_Valid_1"); }
  @Test public void String_Valid_2() { runInterpreterTest("String_Valid_2"); }
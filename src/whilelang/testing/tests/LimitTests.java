@@ -0,0 +1,118 @@
+package whilelang.testing.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.*;
+
+import whilelang.Main;
+import whilelang.PreparedProgram;
+import whilelang.runtime.LimitExceededException;
+import whilelang.runtime.Limits;
+import whilelang.testing.TestHarness;
+
+/**
+ * Checks that runs which exceed their limits are stopped, and that runs
+ * within their limits are not.
+ */
+public class LimitTests extends TestHarness {
+	private static final String LOOP = "void main() {\n"
+			+ " int i = 0;\n"
+			+ " while(true) {\n"
+			+ "  i = i + 1;\n"
+			+ " }\n"
+			+ "}";
+
+	private static final String APPEND = "void main() {\n"
+			+ " [int] xs = [];\n"
+			+ " while(true) {\n"
+			+ "  xs = xs ++ [1];\n"
+			+ " }\n"
+			+ "}";
+
+	private static final String COUNT = "void main() {\n"
+			+ " int i = 0;\n"
+			+ " while(i < 10) {\n"
+			+ "  i = i + 1;\n"
+			+ " }\n"
+			+ " print i;\n"
+			+ "}";
+
+	public LimitTests() {
+		super("tests/valid", "tests/valid", "sysout");
+	}
+
+	@Test public void Statements_Exceeded() {
+		LimitExceededException e = runOutOf(LOOP, new Limits(10000,
+				Limits.UNLIMITED, Limits.UNLIMITED));
+		assertEquals(LimitExceededException.Kind.STATEMENTS, e.kind());
+		assertEquals(10001, e.used());
+	}
+
+	@Test public void Statements_None() {
+		LimitExceededException e = runOutOf(COUNT, new Limits(0,
+				Limits.UNLIMITED, Limits.UNLIMITED));
+		assertEquals(LimitExceededException.Kind.STATEMENTS, e.kind());
+		assertEquals(1, e.used());
+	}
+
+	@Test public void Memory_Exceeded() {
+		LimitExceededException e = runOutOf(APPEND, new Limits(
+				Limits.UNLIMITED, 1 << 20, Limits.UNLIMITED));
+		assertEquals(LimitExceededException.Kind.MEMORY, e.kind());
+		assertTrue(e.used() > e.limit());
+	}
+
+	@Test public void Time_Exceeded() {
+		LimitExceededException e = runOutOf(LOOP, new Limits(
+				Limits.UNLIMITED, Limits.UNLIMITED, 100));
+		assertEquals(LimitExceededException.Kind.TIME, e.kind());
+		assertTrue(e.used() > e.limit());
+	}
+
+	@Test public void Within_Limits() {
+		PreparedProgram program = PreparedProgram.prepare(
+				compile("Count.while", COUNT), false, new Limits(100, 1000,
+						10000));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		program.call(output, "main");
+		assertEquals("10", output.toString().trim());
+	}
+
+	@Test public void Unsupported_Engines() {
+		// Only the interpreter enforces limits, so other engines must refuse
+		// them rather than running without them.
+		String file = "tests/valid/While_Valid_1.while";
+		assertFalse(Main.run(new String[] { "-engine=closure",
+				"-limit-statements=100", file }));
+		assertFalse(Main.run(new String[] { "-vm", "-limit-memory=100", file }));
+		assertFalse(Main.run(new String[] { "-unboxed", "-limit-time=100",
+				file }));
+	}
+
+	@Test public void Negative_Limits() {
+		String file = "tests/valid/While_Valid_1.while";
+		assertFalse(Main.run(new String[] { "-limit-statements=-1", file }));
+		assertFalse(Main.run(new String[] { "-limit-memory=-1", file }));
+		assertFalse(Main.run(new String[] { "-limit-time=-1", file }));
+		try {
+			new Limits(-1, Limits.UNLIMITED, Limits.UNLIMITED);
+			fail("negative limit was accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private static LimitExceededException runOutOf(String source,
+			Limits limits) {
+		PreparedProgram program = PreparedProgram.prepare(
+				compile("Limit.while", source), false, limits);
+		try {
+			program.call(new ByteArrayOutputStream(), "main");
+		} catch (LimitExceededException e) {
+			return e;
+		}
+		fail("run was not stopped");
+		return null;
+	}
+}
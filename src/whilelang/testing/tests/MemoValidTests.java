@@ -0,0 +1,71 @@
+package whilelang.testing.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.*;
+
+import whilelang.Interpreter;
+import whilelang.Main;
+import whilelang.runtime.LimitExceededException;
+import whilelang.runtime.Limits;
+import whilelang.runtime.MemoTable;
+
+/**
+ * Runs the valid tests with calls to pure functions memoised.
+ */
+public class MemoValidTests extends InterpreterValidTests {
+ private static final String FIB = "int fib(int n) {\n"
+   + " if(n < 2) {\n"
+   + "  return n;\n"
+   + " }\n"
+   + " return fib(n - 1) + fib(n - 2);\n"
+   + "}\n"
+   + "\n"
+   + "void main() {\n"
+   + " print fib(25);\n"
+   + "}\n";
+
+ public MemoValidTests() {
+  super("-memo=64");
+ }
+
+ @Test public void Memo_Hits() {
+  // Unmemoised, fib(25) executes about a million statements. Memoised, each
+  // fib(n) is only computed once.
+  Limits limits = new Limits(1000, Limits.UNLIMITED, Limits.UNLIMITED);
+  assertEquals("75025", run(limits, 64));
+  try {
+   run(limits, 0);
+   fail("run was not stopped");
+  } catch (LimitExceededException e) {
+  }
+ }
+
+ @Test public void Memo_Eviction() {
+  Object f = new Object();
+  MemoTable table = new MemoTable(2);
+  table.put(f, new Object[] { 1 }, "a");
+  table.put(f, new Object[] { 2 }, "b");
+  // Using the first result makes the second the least recently used.
+  assertEquals("a", table.get(f, new Object[] { 1 }));
+  table.put(f, new Object[] { 3 }, "c");
+  assertEquals("a", table.get(f, new Object[] { 1 }));
+  assertNull(table.get(f, new Object[] { 2 }));
+  assertEquals("c", table.get(f, new Object[] { 3 }));
+  assertNull(table.get(new Object(), new Object[] { 3 }));
+ }
+
+ @Test public void Memo_Negative() {
+  assertFalse(Main.run(new String[] { "-memo=-1",
+    "tests/valid/While_Valid_1.while" }));
+ }
+
+ private static String run(Limits limits, int memo) {
+  ByteArrayOutputStream output = new ByteArrayOutputStream();
+  new Interpreter(false, limits, output, memo).run(compile("Fib.while",
+    FIB));
+  return output.toString().trim();
+ }
+}
@@ -0,0 +1,150 @@
+package whilelang.testing.tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import whilelang.lang.WhileFile;
+import whilelang.util.CommonSubexpressionElimination;
+import whilelang.util.ConstantPropagation;
+import whilelang.util.DeadCodeElimination;
+import whilelang.util.Inliner;
+import whilelang.util.LoopInvariantCodeMotion;
+
+/**
+ * Runs the valid tests with the optimisations enabled.
+ */
+public class OptimiseValidTests extends InterpreterValidTests {
+ private static final String SOURCE = "const K is 10\n"
+   + "\n"
+   + "int f(int x) {\n"
+   + " int y = 2 * 3;\n"
+   + " return x + y * K;\n"
+   + "}\n"
+   + "\n"
+   + "void main() {\n"
+   + " int a = K + 1;\n"
+   + " print f(a * 2);\n"
+   + " print a / 0;\n"
+   + "}\n";
+ private static final String COMMON = "void main() {\n"
+   + " [int] xs = [1, 2];\n"
+   + " int j = 3;\n"
+   + " int k = 5;\n"
+   + " int y = xs[j] + xs[k] + xs[k];\n"
+   + " int z = xs[k] + xs[k];\n"
+   + "}\n";
+
+ public OptimiseValidTests() {
+  super("-O");
+ }
+
+ @Test public void Optimise_Constants() {
+  WhileFile wf = compile("Optimise.while", SOURCE);
+  new ConstantPropagation().optimise(wf);
+  assertEquals("[int y = 6, return (+ x 60)]", body("f", wf));
+  // Division by zero is left to fail when it is executed.
+  assertEquals("[int a = 11, print f(22), print (/ 11 0)]", body("main", wf));
+ }
+
+ @Test public void Optimise_DeadCode() {
+  WhileFile wf = compile("tests/valid/DeadCode_Valid_1.while");
+  new DeadCodeElimination().optimise(wf);
+  // The call to noisy is kept for its effect, whilst the index is kept since
+  // it can fail, and a is kept since d reads it.
+  assertEquals("[int a = (* x 2), noisy(x), int c = xs[x], "
+    + "int d = (+ noisy(a) 1), return x]", body("f", wf));
+  assertEquals("[print f(1, [1, 2, 3]), int i = 0, print i]", body("main",
+    wf));
+  assertNull(body("unused", wf));
+  wf = compile("tests/valid/DeadCode_Valid_2.while");
+  new DeadCodeElimination().optimise(wf);
+  assertEquals("[int x = xs[i], return i]", body("index", wf));
+  wf = compile("tests/valid/DeadCode_Valid_3.while");
+  new DeadCodeElimination().optimise(wf);
+  assertEquals("[int q = (/ x y), return x]", body("divide", wf));
+ }
+
+ @Test public void Optimise_Hoist() {
+  WhileFile wf = compile("tests/valid/Hoist_Valid_1.while");
+  new LoopInvariantCodeMotion().optimise(wf);
+  // Within a loop body only what cannot fail is moved, such as k + 5 but not
+  // the index it is used for.
+  assertEquals("[[int] xs = [1, 2, 3], int k = 2, int i = 0, int t = 0, "
+    + "int $hoist0 = LENGTHOFxs, int $hoist1 = (* k 2), "
+    + "while (&& (< i $hoist0) (< noisy(i) 5)) "
+    + "[t = (+ t (+ $hoist1 i)), i = (+ i 1)], print t, "
+    + "bool $hoist2 = (< i 0), int $hoist3 = (+ k 5), "
+    + "int $hoist4 = (- k 2), while $hoist2 "
+    + "[t = (+ t (+ xs[$hoist3] (/ i $hoist4)))], "
+    + "int $hoist5 = (- LENGTHOFxs k), for int j = 0; (< j $hoist5); "
+    + "j = (+ j 1) [print (+ xs[k] j)]]", body("main", wf));
+  // An index which might fail stays behind the call evaluated before it.
+  for (String name : new String[] { "Hoist_Valid_2", "Hoist_Valid_3" }) {
+   wf = compile("tests/valid/" + name + ".while");
+   String before = body("main", wf);
+   new LoopInvariantCodeMotion().optimise(wf);
+   assertEquals(before, body("main", wf));
+  }
+ }
+
+ @Test public void Optimise_Common() {
+  WhileFile wf = compile("tests/valid/Common_Valid_1.while");
+  new CommonSubexpressionElimination().optimise(wf);
+  // ps[i].x is no longer available once i is assigned, and calls to noisy
+  // are not reused, since it prints.
+  assertEquals("[[point] ps = [{x: 1, y: 2}, {x: 3, y: 4}], int i = 1, "
+    + "int $cse0 = ps[i].x, int a = (* $cse0 2), int b = (+ $cse0 1), "
+    + "print (+ a b), int $cse1 = square(i), int c = (+ $cse1 $cse1), "
+    + "i = 0, int d = (+ ps[i].x 1), print (+ c d), "
+    + "int e = (+ noisy(i) noisy(i)), print e, int $cse2 = (* a b), "
+    + "print (+ $cse2 $cse2)]", body("main", wf));
+  // An index which might fail is not evaluated ahead of a statement which
+  // prints, or which might not evaluate it, or might fail before it.
+  wf = compile("tests/valid/Common_Valid_2.while");
+  String before = body("main", wf);
+  new CommonSubexpressionElimination().optimise(wf);
+  assertEquals(before, body("main", wf));
+  wf = compile("Common.while", COMMON);
+  new CommonSubexpressionElimination().optimise(wf);
+  assertEquals("[[int] xs = [1, 2], int j = 3, int k = 5, "
+    + "int y = (+ xs[j] (+ xs[k] xs[k])), int $cse0 = xs[k], "
+    + "int z = (+ $cse0 $cse0)]", body("main", wf));
+ }
+
+ // Constants are only supported once they have been propagated, so this is
+ // not run by the other engines.
+ @Test public void Inline_Valid_1() { runInterpreterTest("Inline_Valid_1"); }
+
+ @Test public void Optimise_Inline() {
+  WhileFile wf = compile("tests/valid/Inline_Valid_1.while");
+  new Inliner(Inliner.DEFAULT_MAX_SIZE).optimise(wf);
+  // A constant is replaced by its value, rather than referring to the
+  // parameter of the same name.
+  assertEquals("[int $inline0_x = K, int $inline0, "
+    + "$inline0 = (+ $inline0_x 10), return $inline0]", body("g", wf));
+  assertEquals("[int $inline1_x = K, int $inline1, "
+    + "$inline1 = (* $inline1_x (+ 10 1)), return (+ L $inline1)]", body(
+    "h", wf));
+  wf = compile("tests/valid/Inline_Valid_2.while");
+  new Inliner(Inliner.DEFAULT_MAX_SIZE).optimise(wf);
+  String main = body("main", wf);
+  // Locals of the callee are renamed apart from those of the caller.
+  assertTrue(main, main.contains("int $inline1_t = (+ $inline1_x $inline1_y)"));
+  assertTrue(main, main.contains("print (+ $inline5 $inline6)"));
+  // An invocation evaluated after something which might fail is left alone.
+  assertTrue(main, main.endsWith("print (+ xs[5] noisy(8))]"));
+ }
+
+ /**
+  * Get the statements of a given function, as a string.
+  */
+ static String body(String name, WhileFile wf) {
+  for (WhileFile.Decl decl : wf.declarations) {
+   if (decl.name().equals(name)) {
+    return ((WhileFile.FunDecl) decl).statements.toString();
+   }
+  }
+  return null;
+ }
+}
@@ -0,0 +1,121 @@
+package whilelang.testing.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import whilelang.PreparedProgram;
+import whilelang.testing.TestHarness;
+
+/**
+ * Checks that functions of a prepared program can be called with Java values,
+ * including by many threads at once.
+ */
+public class PreparedProgramTests extends TestHarness {
+	private static final String SOURCE = "type point is {int x, int y}\n"
+			+ "\n"
+			+ "int sum([int] xs) {\n"
+			+ " int r = 0;\n"
+			+ " for(int i = 0; i < |xs|; i = i + 1) {\n"
+			+ "  r = r + xs[i];\n"
+			+ " }\n"
+			+ " return r;\n"
+			+ "}\n"
+			+ "\n"
+			+ "point swap(point p) {\n"
+			+ " return {x: p.y, y: p.x};\n"
+			+ "}\n"
+			+ "\n"
+			+ "[int] update([int] xs, int i) {\n"
+			+ " xs[i] = 0;\n"
+			+ " return xs;\n"
+			+ "}\n"
+			+ "\n"
+			+ "int fib(int n) {\n"
+			+ " print n;\n"
+			+ " if(n < 2) {\n"
+			+ "  return n;\n"
+			+ " }\n"
+			+ " return fib(n - 1) + fib(n - 2);\n"
+			+ "}\n"
+			+ "\n"
+			+ "[int|null] orNulls([int|null] xs) {\n"
+			+ " return xs;\n"
+			+ "}\n"
+			+ "\n"
+			+ "int|null orNull(int|null x) {\n"
+			+ " return x;\n"
+			+ "}\n";
+
+	private final PreparedProgram program = PreparedProgram.prepare(compile(
+			"Prepared.while", SOURCE));
+
+	public PreparedProgramTests() {
+		super("tests/valid", "tests/valid", "sysout");
+	}
+
+	@Test public void Call_List() {
+		assertEquals(6, program.call("sum", Arrays.asList(1, 2, 3)));
+	}
+
+	@Test public void Call_Record() {
+		HashMap<String, Object> p = new HashMap<String, Object>();
+		p.put("x", 1);
+		p.put("y", 2);
+		Map<?, ?> r = (Map<?, ?>) program.call("swap", p);
+		assertEquals(2, r.get("x"));
+		assertEquals(1, r.get("y"));
+	}
+
+	@Test public void Call_ValueSemantics() {
+		List<Integer> xs = Arrays.asList(1, 2, 3);
+		assertEquals(Arrays.asList(1, 0, 3), program.call("update", xs, 1));
+		assertEquals(Arrays.asList(1, 2, 3), xs);
+	}
+
+	@Test public void Call_Null() {
+		// Java's null is passed and returned as While's null.
+		assertNull(program.call("orNull", (Object) null));
+		assertEquals(3, program.call("orNull", 3));
+		assertEquals(Arrays.asList(1, null),
+				program.call("orNulls", Arrays.asList(1, null)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void Call_UnknownFunction() {
+		program.call("missing");
+	}
+
+	@Test public void Call_Concurrently() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			ArrayList<Future<String>> calls = new ArrayList<Future<String>>();
+			for (int i = 0; i != 32; ++i) {
+				final int n = i % 12;
+				calls.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						ByteArrayOutputStream output = new ByteArrayOutputStream();
+						Object r = program.call(output, "fib", n);
+						return r + ":" + output.toString("UTF8").split("\\s+").length;
+					}
+				}));
+			}
+			for (int i = 0; i != calls.size(); ++i) {
+				int n = i % 12;
+				// Each call prints once per invocation of fib
+				assertEquals(fib(n) + ":" + (2 * fib(n + 1) - 1), calls.get(i)
+						.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static int fib(int n) {
+		return n < 2 ? n : fib(n - 1) + fib(n - 2);
+	}
+}
@@ -0,0 +1,65 @@
+package whilelang.testing.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.regex.*;
+
+import org.junit.*;
+
+import whilelang.Interpreter;
+import whilelang.lang.WhileFile;
+import whilelang.runtime.Limits;
+import whilelang.util.Profiler;
+
+/**
+ * Runs the valid tests whilst profiling them, which must not change what they
+ * print.
+ */
+public class ProfileValidTests extends InterpreterValidTests {
+ private static final String FILE = "tests/valid/Memo_Valid_1.while";
+
+ public ProfileValidTests() {
+  super("-profile");
+ }
+
+ @Test public void Profile_Report() throws Exception {
+  String report = profile(FILE);
+  // fib(25) makes 2 * fib(26) - 1 calls, and each executes its if.
+  Matcher fib = function("fib", 1, report);
+  assertEquals("242785", fib.group(1));
+  assertEquals("3", function("noisy", 8, report).group(1));
+  Matcher main = function("main", 13, report);
+  assertEquals("1", main.group(1));
+  assertTrue(report, report.contains("242785      2  if(n < 2) {"));
+  assertTrue(report, report.contains("3     17  print noisy(1);"));
+  // Whenever fib is running, so is main.
+  assertTrue(report, Double.parseDouble(main.group(2)) >= Double
+    .parseDouble(fib.group(2)));
+ }
+
+ /**
+  * Find the line of a profile report for a given function, whose groups are
+  * its calls and inclusive time.
+  */
+ private static Matcher function(String name, int line, String report) {
+  Matcher m = Pattern.compile(
+    "(\\d+) +([0-9.]+) +[0-9.]+  " + name + " \\(line " + line + "\\)")
+    .matcher(report);
+  assertTrue(report, m.find());
+  return m;
+ }
+
+ private static String profile(String filename) throws Exception {
+  WhileFile wf = compile(filename);
+  Interpreter interpreter = new Interpreter(false, Limits.NONE,
+    new ByteArrayOutputStream());
+  Profiler profiler = new Profiler(wf);
+  interpreter.setProfiler(profiler);
+  interpreter.run(wf);
+  profiler.stop();
+  ByteArrayOutputStream report = new ByteArrayOutputStream();
+  profiler.report(new PrintStream(report, true, "UTF8"));
+  return report.toString("UTF8");
+ }
+}
@@ -0,0 +1,82 @@
+package whilelang.testing.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import org.junit.*;
+
+import whilelang.Interpreter;
+import whilelang.lang.WhileFile;
+import whilelang.runtime.Limits;
+import whilelang.util.Sampler;
+import whilelang.util.VariableResolver;
+
+/**
+ * Runs the valid tests whilst sampling their call stacks, which must not
+ * change what they print.
+ */
+public class SampleValidTests extends InterpreterValidTests {
+ private static final String FILE = "tests/valid/Memo_Valid_1.while";
+
+ public SampleValidTests() {
+  super("-sample=" + new File(System.getProperty("java.io.tmpdir"), "samples.txt"));
+ }
+
+ @Test public void Sample_Stacks() throws Exception {
+  // Whilst the shadow stack stays the same, every sample is of it. A
+  // function which has not reached a statement is at its own line.
+  WhileFile wf = compile(FILE);
+  new VariableResolver().resolve(wf);
+  WhileFile.FunDecl main = function("main", wf);
+  WhileFile.FunDecl fib = function("fib", wf);
+  Sampler sampler = new Sampler(wf, 1);
+  sampler.push(main);
+  sampler.at(main.statements.get(0));
+  sampler.push(fib);
+  assertTrue(sample(sampler).matches("main:14;fib:1 \\d+\n"));
+  sampler = new Sampler(wf, 1);
+  sampler.push(main);
+  sampler.at(main.statements.get(0));
+  sampler.push(fib);
+  sampler.at(fib.statements.get(0));
+  assertTrue(sample(sampler).matches("main:14;fib:2 \\d+\n"));
+ }
+
+ @Test public void Sample_Run() throws Exception {
+  WhileFile wf = compile(FILE);
+  Interpreter interpreter = new Interpreter(false, Limits.NONE,
+    new ByteArrayOutputStream());
+  Sampler sampler = new Sampler(wf, 1);
+  interpreter.setSampler(sampler);
+  sampler.start();
+  interpreter.run(wf);
+  sampler.stop();
+  ByteArrayOutputStream output = new ByteArrayOutputStream();
+  sampler.write(new PrintStream(output, true, "UTF8"));
+  String samples = output.toString("UTF8");
+  // The run is spent almost entirely in fib, called from line 14 of main.
+  assertTrue(samples, samples.startsWith("main:14;fib:"));
+  for (String line : samples.split("\n")) {
+   assertTrue(samples, line.matches("main:\\d+(;(fib|noisy):\\d+)* \\d+"));
+  }
+ }
+
+ private static String sample(Sampler sampler) throws Exception {
+  sampler.start();
+  Thread.sleep(20);
+  sampler.stop();
+  ByteArrayOutputStream output = new ByteArrayOutputStream();
+  sampler.write(new PrintStream(output, true, "UTF8"));
+  return output.toString("UTF8");
+ }
+
+ private static WhileFile.FunDecl function(String name, WhileFile wf) {
+  for (WhileFile.Decl decl : wf.declarations) {
+   if (decl.name().equals(name)) {
+    return (WhileFile.FunDecl) decl;
+   }
+  }
+  return null;
+ }
+}
@@ -0,0 +1,58 @@
+package whilelang.testing.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import whilelang.closure.ClosureInterpreter;
+import whilelang.closure.Function;
+import whilelang.runtime.PersistentVector;
+
+/**
+ * Runs the valid tests on the closure-compiling engine, with int and real
+ * variables unboxed.
+ */
+public class UnboxedValidTests extends InterpreterValidTests {
+ private static final String SOURCE = "type count is int\n"
+   + "\n"
+   + "real scale([real] xs, real k) {\n"
+   + " real sum = 0.0;\n"
+   + " for(count i = 0; i < |xs|; i = i + 1) {\n"
+   + "  sum = sum + xs[i] * k;\n"
+   + " }\n"
+   + " return sum;\n"
+   + "}\n";
+ private static final String CAST = "real widen(int n) {\n"
+   + " return (real) n;\n"
+   + "}\n";
+
+ public UnboxedValidTests() {
+  super("-unboxed");
+ }
+
+ @Test public void Unboxed_Kinds() {
+  // Variables whose type expands to int or real are given unboxed slots,
+  // whilst the list parameter remains boxed.
+  Map<String, Function> functions = new ClosureInterpreter(false, true)
+    .compile(compile("Unboxed.while", SOURCE));
+  Function scale = functions.get("scale");
+  assertArrayEquals(new int[] { Function.OBJECT, Function.REAL,
+    Function.REAL, Function.INT }, scale.kinds());
+  assertEquals(6.0, scale.invoke(PersistentVector.of(Arrays
+    .<Object> asList(1.0, 2.0)), 2.0));
+  // Without -unboxed, every slot is boxed.
+  assertNull(new ClosureInterpreter().compile(compile("Unboxed.while",
+    SOURCE)).get("scale").kinds());
+ }
+
+ @Test public void Unboxed_Casts() {
+  // Casts are not implemented by the reference interpreter, so a file
+  // containing one keeps every slot boxed and gives the same results.
+  Map<String, Function> functions = new ClosureInterpreter(false, true)
+    .compile(compile("Unboxed.while", SOURCE + CAST));
+  assertNull(functions.get("scale").kinds());
+  assertEquals(1, functions.get("widen").invoke(1));
+ }
+}
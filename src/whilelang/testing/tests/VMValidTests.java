@@ -0,0 +1,85 @@
+package whilelang.testing.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import org.junit.*;
+
+import whilelang.vm.BytecodeCompiler;
+import whilelang.vm.BytecodeProgram;
+import whilelang.vm.VirtualMachine;
+
+/**
+ * Runs the valid tests on the bytecode virtual machine.
+ */
+public class VMValidTests extends InterpreterValidTests {
+ private static final String SOURCE = "type point is {int x, int y}\n"
+   + "\n"
+   + "int depth(int n) {\n"
+   + " if(n == 0) {\n"
+   + "  return 0;\n"
+   + " }\n"
+   + " return 1 + depth(n - 1);\n"
+   + "}\n"
+   + "\n"
+   + "void main() {\n"
+   + " point p = {x: 1, y: 2};\n"
+   + " [real] xs = [1.5, 2.5];\n"
+   + " print p;\n"
+   + " print xs ++ [3.5];\n"
+   + " print \"depth \" ++ depth(10000);\n"
+   + "}\n";
+
+ public VMValidTests() {
+  super("-vm");
+ }
+
+ @Test public void VM_Run() throws IOException {
+  BytecodeProgram program = new BytecodeCompiler().compile(compile(
+    "VM.while", SOURCE));
+  assertEquals("{x:1,y:2}\n[1.5, 2.5, 3.5]\ndepth 10000\n", run(program,
+    VirtualMachine.DEFAULT_MAX_REGISTERS));
+ }
+
+ @Test public void VM_RoundTrip() throws IOException {
+  // A program read back from its binary form is identical, and runs the
+  // same.
+  BytecodeProgram program = new BytecodeCompiler().compile(compile(
+    "VM.while", SOURCE));
+  ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+  program.write(new DataOutputStream(bytes));
+  BytecodeProgram copy = BytecodeProgram.read(new DataInputStream(
+    new ByteArrayInputStream(bytes.toByteArray())));
+  assertEquals(program.toString(), copy.toString());
+  assertEquals(run(program, VirtualMachine.DEFAULT_MAX_REGISTERS), run(copy,
+    VirtualMachine.DEFAULT_MAX_REGISTERS));
+ }
+
+ @Test public void VM_StackOverflow() throws IOException {
+  BytecodeProgram program = new BytecodeCompiler().compile(compile(
+    "VM.while", SOURCE));
+  try {
+   run(program, 1000);
+   fail("stack limit was not enforced");
+  } catch (RuntimeException e) {
+   assertTrue(e.getMessage().startsWith("stack overflow"));
+  }
+ }
+
+ /**
+  * Run the main function of a given program, returning what it prints.
+  */
+ private static String run(BytecodeProgram program, int maxRegisters)
+   throws IOException {
+  PrintStream out = System.out;
+  ByteArrayOutputStream output = new ByteArrayOutputStream();
+  System.setOut(new PrintStream(output, true, "UTF8"));
+  try {
+   new VirtualMachine(program, false, maxRegisters).run();
+  } finally {
+   System.setOut(out);
+  }
+  return output.toString("UTF8");
+ }
+}
@@ -0,0 +1,595 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.util;
+
+import static whilelang.util.Expressions.attributes;
+import static whilelang.util.Expressions.isComputation;
+import static whilelang.util.Expressions.isPrimitive;
+import static whilelang.util.Expressions.isSafe;
+import static whilelang.util.Expressions.root;
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.*;
+
+import whilelang.lang.*;
+
+/**
+ * <p>
+ * Responsible for ensuring that an expression computed more than once within
+ * a straight-line sequence of statements (i.e. a basic block) is only
+ * evaluated once. For example, consider this sequence:
+ * </p>
+ *
+ * <pre>
+ * int x = xs[i].f * 2;
+ * print xs[i].f + 1;
+ * </pre>
+ * <p>
+ * Here, <code>xs[i].f</code> is the same in both statements, since neither
+ * <code>xs</code> nor <code>i</code> is assigned in between (and, since While
+ * has value semantics, nothing else can change them). Therefore, it is
+ * evaluated once into a fresh variable declared before the first statement,
+ * and that variable is used in both places.
+ * </p>
+ * <p>
+ * Expressions are numbered by their structure, so two expressions have the
+ * same number if they apply the same operators to the same variables and
+ * constants. Assigning a variable (or any part of it) kills the numbers of all
+ * expressions which read it. Only expressions of primitive type which invoke
+ * only pure functions (see <code>EffectAnalysis</code>) are reused, and an
+ * expression is only evaluated ahead of the statement containing it if that
+ * cannot change the behaviour of the statement. That is, either it cannot
+ * fail, or it is always evaluated, the statement has no other effects, and
+ * nothing evaluated before it in the statement can fail.
+ * </p>
+ * <p>
+ * This must be applied after type checking, since the declared type of each
+ * fresh variable is the type attribute of its expression. Slots must be
+ * allocated afterwards (see <code>VariableResolver</code>).
+ * </p>
+ *
+ */
+public class CommonSubexpressionElimination {
+
+	/**
+	 * The first occurrence of an expression within a block, which is
+	 * evaluated into a fresh variable if it is ever reused.
+	 */
+	private static final class Definition {
+		final Expr expr;
+		final Type type;
+		final Set<String> reads;
+		String variable;
+
+		Definition(Expr expr, Type type, Set<String> reads) {
+			this.expr = expr;
+			this.type = type;
+			this.reads = reads;
+		}
+	}
+
+	private WhileFile file;
+	private int fresh;
+
+	public void optimise(WhileFile wf) {
+		this.file = wf;
+		this.fresh = 0;
+		new FunctionResolver().resolve(wf);
+		new EffectAnalysis().analyse(wf);
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.FunDecl) {
+				optimise((WhileFile.FunDecl) declaration);
+			}
+		}
+	}
+
+	public void optimise(WhileFile.FunDecl fd) {
+		List<Stmt> statements = optimise(fd.statements);
+		fd.statements.clear();
+		fd.statements.addAll(statements);
+	}
+
+	/**
+	 * Split a sequence of statements into basic blocks, which are separated
+	 * by compound statements, and optimise each in turn (including those
+	 * nested within compound statements).
+	 *
+	 * @param statements
+	 * @return
+	 */
+	private List<Stmt> optimise(List<Stmt> statements) {
+		ArrayList<Stmt> nstatements = new ArrayList<Stmt>();
+		ArrayList<Stmt> block = new ArrayList<Stmt>();
+		for (Stmt stmt : statements) {
+			if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				nstatements.addAll(optimiseBlock(block));
+				block.clear();
+				nstatements.add(new Stmt.IfElse(s.getCondition(), optimise(s
+						.getTrueBranch()), optimise(s.getFalseBranch()), s
+						.attributes()));
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				nstatements.addAll(optimiseBlock(block));
+				block.clear();
+				nstatements.add(new Stmt.For(s.getDeclaration(), s
+						.getCondition(), s.getIncrement(), optimise(s
+						.getBody()), s.attributes()));
+			} else if (stmt instanceof Stmt.While) {
+				Stmt.While s = (Stmt.While) stmt;
+				nstatements.addAll(optimiseBlock(block));
+				block.clear();
+				nstatements.add(new Stmt.While(s.getCondition(), optimise(s
+						.getBody()), attributes(s)));
+			} else {
+				block.add(stmt);
+			}
+		}
+		nstatements.addAll(optimiseBlock(block));
+		return nstatements;
+	}
+
+	// ==========================================
+	// Basic Blocks
+	// ==========================================
+
+	private List<Stmt> optimiseBlock(List<Stmt> block) {
+		HashMap<String, Definition> available = new HashMap<String, Definition>();
+		IdentityHashMap<Expr, Definition> uses = new IdentityHashMap<Expr, Definition>();
+		IdentityHashMap<Expr, Definition> definitions = new IdentityHashMap<Expr, Definition>();
+		ArrayList<List<Definition>> defined = new ArrayList<List<Definition>>();
+		// First, number the expressions in each statement, noting where each
+		// is first defined, and where it is reused.
+		for (Stmt stmt : block) {
+			ArrayList<Definition> ds = new ArrayList<Definition>();
+			boolean movable = !hasEffects(stmt);
+			boolean[] clean = { true };
+			for (Expr e : expressions(stmt)) {
+				number(e, true, movable, clean, available, uses, definitions,
+						ds);
+			}
+			String killed = assigned(stmt);
+			if (killed != null) {
+				Iterator<Definition> i = available.values().iterator();
+				while (i.hasNext()) {
+					if (i.next().reads.contains(killed)) {
+						i.remove();
+					}
+				}
+			}
+			defined.add(ds);
+		}
+		if (uses.isEmpty()) {
+			return block;
+		}
+		// Second, evaluate each reused expression into a fresh variable ahead
+		// of the statement which first defines it.
+		ArrayList<Stmt> nblock = new ArrayList<Stmt>();
+		for (int i = 0; i != block.size(); ++i) {
+			for (Definition d : defined.get(i)) {
+				if (d.variable != null) {
+					Expr expr = rewriteOperands(d.expr, uses, definitions);
+					nblock.add(new Stmt.VariableDeclaration(d.type, d.variable,
+							expr, d.expr.attributes()));
+				}
+			}
+			nblock.add(rewrite(block.get(i), uses, definitions));
+		}
+		return nblock;
+	}
+
+	/**
+	 * Number an expression and its subexpressions, in the order they are
+	 * evaluated.
+	 *
+	 * @param expr
+	 * @param always
+	 *            Whether the expression is always evaluated by its statement.
+	 * @param movable
+	 *            Whether the statement has no other effects, and so
+	 *            expressions which are always evaluated can be evaluated
+	 *            ahead of it.
+	 * @param clean
+	 *            Whether nothing evaluated so far by the statement can fail,
+	 *            so that an expression which might fail can be evaluated
+	 *            ahead of it without changing how the statement fails.
+	 * @param available
+	 *            The expressions computed so far, by number.
+	 * @param uses
+	 *            The reuses of an earlier expression found so far.
+	 * @param definitions
+	 *            The first occurrences of expressions found so far.
+	 * @param defined
+	 *            The first occurrences of expressions in this statement.
+	 */
+	private void number(Expr expr, boolean always, boolean movable,
+			boolean[] clean, Map<String, Definition> available,
+			Map<Expr, Definition> uses, Map<Expr, Definition> definitions,
+			List<Definition> defined) {
+		boolean first = clean[0];
+		String number = null;
+		HashSet<String> reads = new HashSet<String>();
+		Attribute.Type type = expr.attribute(Attribute.Type.class);
+		if (isComputation(expr) && type != null && isPrimitive(type.type)) {
+			number = number(expr, reads);
+		}
+		if (number != null) {
+			Definition d = available.get(number);
+			if (d != null) {
+				if (d.variable == null) {
+					d.variable = "$cse" + fresh++;
+				}
+				uses.put(expr, d);
+				return;
+			}
+		}
+		for (Expr operand : operands(expr)) {
+			// The right-hand side of a short-circuiting operator is not
+			// always evaluated.
+			boolean evaluated = !isShortCircuit(expr, operand);
+			number(operand, always && evaluated, movable, clean, available,
+					uses, definitions, defined);
+		}
+		if (number != null
+				&& (isSafe(expr) || (always && movable && first))) {
+			Definition d = new Definition(expr, type.type, reads);
+			available.put(number, d);
+			definitions.put(expr, d);
+			defined.add(d);
+		}
+		clean[0] &= isSafe(expr);
+	}
+
+	/**
+	 * Determine the number of a given expression, which is a string
+	 * describing its structure.
+	 *
+	 * @param expr
+	 * @param reads
+	 *            The variables read by the expression.
+	 * @return The number, or <code>null</code> if the expression cannot be
+	 *         reused (i.e. it constructs a compound value, or invokes an
+	 *         impure function).
+	 */
+	private static String number(Expr expr, Set<String> reads) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			String lhs = number(e.getLhs(), reads);
+			String rhs = number(e.getRhs(), reads);
+			return lhs == null || rhs == null ? null : "(" + lhs + " "
+					+ e.getOp() + " " + rhs + ")";
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			String source = number(e.getSource(), reads);
+			return source == null ? null : "((" + e.getType() + ") " + source
+					+ ")";
+		} else if (expr instanceof Expr.Constant) {
+			Object value = ((Expr.Constant) expr).getValue();
+			if (value instanceof String) {
+				String s = (String) value;
+				return "\"" + s.length() + ":" + s + "\"";
+			}
+			return value == null ? "null" : value.getClass().getSimpleName()
+					+ ":" + value;
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			String source = number(e.getSource(), reads);
+			String index = number(e.getIndex(), reads);
+			return source == null || index == null ? null : source + "["
+					+ index + "]";
+		} else if (expr instanceof Expr.Invoke) {
+			Expr.Invoke e = (Expr.Invoke) expr;
+			if (e.getTarget() == null || !e.getTarget().isPure()) {
+				return null;
+			}
+			StringBuilder r = new StringBuilder(e.getName()).append("(");
+			for (Expr arg : e.getArguments()) {
+				String n = number(arg, reads);
+				if (n == null) {
+					return null;
+				}
+				r.append(n).append(",");
+			}
+			return r.append(")").toString();
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			String source = number(e.getSource(), reads);
+			return source == null ? null : source + "." + e.getName();
+		} else if (expr instanceof Expr.Unary) {
+			Expr.Unary e = (Expr.Unary) expr;
+			String operand = number(e.getExpr(), reads);
+			return operand == null ? null : "(" + e.getOp() + " " + operand
+					+ ")";
+		} else if (expr instanceof Expr.Variable) {
+			String name = ((Expr.Variable) expr).getName();
+			reads.add(name);
+			return name;
+		}
+		return null;
+	}
+
+	// ==========================================
+	// Rewriting
+	// ==========================================
+
+	private Stmt rewrite(Stmt stmt, Map<Expr, Definition> uses,
+			Map<Expr, Definition> definitions) {
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			return new Stmt.Assign(rewrite(s.getLhs(), uses, definitions),
+					rewrite(s.getRhs(), uses, definitions), s.attributes());
+		} else if (stmt instanceof Stmt.Print) {
+			Stmt.Print s = (Stmt.Print) stmt;
+			return new Stmt.Print(rewrite(s.getExpr(), uses, definitions),
+					s.attributes());
+		} else if (stmt instanceof Stmt.Return) {
+			Stmt.Return s = (Stmt.Return) stmt;
+			if (s.getExpr() == null) {
+				return s;
+			}
+			return new Stmt.Return(rewrite(s.getExpr(), uses, definitions),
+					s.attributes());
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			if (s.getExpr() == null) {
+				return s;
+			}
+			return new Stmt.VariableDeclaration(s.getType(), s.getName(),
+					rewrite(s.getExpr(), uses, definitions), s.attributes());
+		} else if (stmt instanceof Expr.Invoke) {
+			return (Expr.Invoke) rewriteOperands((Expr) stmt, uses,
+					definitions);
+		}
+		internalFailure("unknown statement encountered (" + stmt + ")",
+				file.filename, stmt);
+		return null;
+	}
+
+	private Expr.LVal rewrite(Expr.LVal lval, Map<Expr, Definition> uses,
+			Map<Expr, Definition> definitions) {
+		if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) lval;
+			return new Expr.IndexOf(rewrite((Expr.LVal) e.getSource(), uses,
+					definitions), rewrite(e.getIndex(), uses, definitions),
+					e.attributes());
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) lval;
+			return new Expr.RecordAccess(rewrite((Expr.LVal) e.getSource(),
+					uses, definitions), e.getName(), attributes(e));
+		}
+		return lval;
+	}
+
+	/**
+	 * Replace a given expression by the fresh variable holding its value, if
+	 * there is one.
+	 *
+	 * @param expr
+	 * @param uses
+	 * @param definitions
+	 * @return
+	 */
+	private Expr rewrite(Expr expr, Map<Expr, Definition> uses,
+			Map<Expr, Definition> definitions) {
+		Definition d = uses.get(expr);
+		if (d == null) {
+			d = definitions.get(expr);
+		}
+		if (d != null && d.variable != null) {
+			return new Expr.Variable(d.variable, attributes(expr));
+		}
+		return rewriteOperands(expr, uses, definitions);
+	}
+
+	/**
+	 * Replace the operands of a given expression by the fresh variables
+	 * holding their values, where there are any.
+	 *
+	 * @param expr
+	 * @param uses
+	 * @param definitions
+	 * @return
+	 */
+	private Expr rewriteOperands(Expr expr, Map<Expr, Definition> uses,
+			Map<Expr, Definition> definitions) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			return new Expr.Binary(e.getOp(), rewrite(e.getLhs(), uses,
+					definitions), rewrite(e.getRhs(), uses, definitions),
+					e.attributes());
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			return new Expr.Cast(e.getType(), rewrite(e.getSource(), uses,
+					definitions), e.attributes());
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return new Expr.IndexOf(rewrite(e.getSource(), uses, definitions),
+					rewrite(e.getIndex(), uses, definitions), e.attributes());
+		} else if (expr instanceof Expr.Invoke) {
+			List<Expr> arguments = ((Expr.Invoke) expr).getArguments();
+			for (int i = 0; i != arguments.size(); ++i) {
+				arguments.set(i, rewrite(arguments.get(i), uses, definitions));
+			}
+			return expr;
+		} else if (expr instanceof Expr.ListConstructor) {
+			List<Expr> arguments = ((Expr.ListConstructor) expr).getArguments();
+			for (int i = 0; i != arguments.size(); ++i) {
+				arguments.set(i, rewrite(arguments.get(i), uses, definitions));
+			}
+			return expr;
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			return new Expr.RecordAccess(rewrite(e.getSource(), uses,
+					definitions), e.getName(), attributes(e));
+		} else if (expr instanceof Expr.RecordConstructor) {
+			List<Pair<String, Expr>> fields = ((Expr.RecordConstructor) expr)
+					.getFields();
+			for (int i = 0; i != fields.size(); ++i) {
+				Pair<String, Expr> p = fields.get(i);
+				fields.set(i, new Pair<String, Expr>(p.first(), rewrite(
+						p.second(), uses, definitions)));
+			}
+			return expr;
+		} else if (expr instanceof Expr.Unary) {
+			Expr.Unary e = (Expr.Unary) expr;
+			return new Expr.Unary(e.getOp(), rewrite(e.getExpr(), uses,
+					definitions), attributes(e));
+		}
+		return expr;
+	}
+
+	// ==========================================
+	// Helpers
+	// ==========================================
+
+	/**
+	 * Get the expressions evaluated by a statement within a basic block, in
+	 * order. For an assignment, these are the indices on the left-hand side
+	 * and the right-hand side.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	private List<Expr> expressions(Stmt stmt) {
+		ArrayList<Expr> exprs = new ArrayList<Expr>();
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			exprs.add(s.getRhs());
+			Expr lval = s.getLhs();
+			while (!(lval instanceof Expr.Variable)) {
+				if (lval instanceof Expr.IndexOf) {
+					exprs.add(((Expr.IndexOf) lval).getIndex());
+					lval = ((Expr.IndexOf) lval).getSource();
+				} else {
+					lval = ((Expr.RecordAccess) lval).getSource();
+				}
+			}
+		} else if (stmt instanceof Stmt.Print) {
+			exprs.add(((Stmt.Print) stmt).getExpr());
+		} else if (stmt instanceof Stmt.Return) {
+			if (((Stmt.Return) stmt).getExpr() != null) {
+				exprs.add(((Stmt.Return) stmt).getExpr());
+			}
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			if (((Stmt.VariableDeclaration) stmt).getExpr() != null) {
+				exprs.add(((Stmt.VariableDeclaration) stmt).getExpr());
+			}
+		} else if (stmt instanceof Expr.Invoke) {
+			exprs.addAll(((Expr.Invoke) stmt).getArguments());
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")",
+					file.filename, stmt);
+		}
+		return exprs;
+	}
+
+	/**
+	 * Get the operands of an expression, in the order they are evaluated.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static List<Expr> operands(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			return Arrays.asList(e.getLhs(), e.getRhs());
+		} else if (expr instanceof Expr.Cast) {
+			return Collections.singletonList(((Expr.Cast) expr).getSource());
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return Arrays.asList(e.getSource(), e.getIndex());
+		} else if (expr instanceof Expr.Invoke) {
+			return ((Expr.Invoke) expr).getArguments();
+		} else if (expr instanceof Expr.ListConstructor) {
+			return ((Expr.ListConstructor) expr).getArguments();
+		} else if (expr instanceof Expr.RecordAccess) {
+			return Collections.singletonList(((Expr.RecordAccess) expr)
+					.getSource());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			ArrayList<Expr> operands = new ArrayList<Expr>();
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				operands.add(p.second());
+			}
+			return operands;
+		} else if (expr instanceof Expr.Unary) {
+			return Collections.singletonList(((Expr.Unary) expr).getExpr());
+		}
+		return Collections.emptyList();
+	}
+
+	private static boolean isShortCircuit(Expr expr, Expr operand) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			return (e.getOp() == Expr.BOp.AND || e.getOp() == Expr.BOp.OR)
+					&& operand == e.getRhs();
+		}
+		return false;
+	}
+
+	/**
+	 * Determine the variable assigned (in whole or in part) by a statement.
+	 *
+	 * @param stmt
+	 * @return The variable's name, or <code>null</code> if there is none.
+	 */
+	private static String assigned(Stmt stmt) {
+		if (stmt instanceof Stmt.Assign) {
+			return root(((Stmt.Assign) stmt).getLhs());
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			return ((Stmt.VariableDeclaration) stmt).getName();
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether a statement has any effect other than assigning a
+	 * variable. That is, it prints or invokes an impure function.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	private boolean hasEffects(Stmt stmt) {
+		if (stmt instanceof Stmt.Print) {
+			return true;
+		}
+		for (Expr e : expressions(stmt)) {
+			if (hasEffects(e)) {
+				return true;
+			}
+		}
+		return stmt instanceof Expr.Invoke && hasEffects((Expr) stmt);
+	}
+
+	private static boolean hasEffects(Expr expr) {
+		if (expr instanceof Expr.Invoke) {
+			Expr.Invoke e = (Expr.Invoke) expr;
+			if (e.getTarget() == null || !e.getTarget().isPure()) {
+				return true;
+			}
+		}
+		for (Expr operand : operands(expr)) {
+			if (hasEffects(operand)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
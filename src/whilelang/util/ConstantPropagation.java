@@ -0,0 +1,625 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.util;
+
+import static whilelang.util.Expressions.attributes;
+import static whilelang.util.Expressions.root;
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.*;
+
+import whilelang.lang.*;
+
+/**
+ * <p>
+ * Responsible for simplifying the expressions in a file whose values can be
+ * determined at compile time. This does three things:
+ * </p>
+ * <ul>
+ * <li>Unary and binary operations on constants are folded (e.g.
+ * <code>2 * 3</code> becomes <code>6</code>). Operations which would fail at
+ * run time (e.g. division by zero) are left alone, so that they still fail
+ * when executed.</li>
+ * <li>Uses of a local variable holding a known primitive value are replaced by
+ * that value (e.g. <code>int x = 1; print x + 1</code> becomes
+ * <code>int x = 1; print 2</code>).</li>
+ * <li>References to a constant declaration are replaced by its value (e.g.
+ * <code>const PI is 3.1415</code>).</li>
+ * </ul>
+ * <p>
+ * This must be applied after type checking, since it relies on the type
+ * attributes of variables, and preserves them on any expressions it creates.
+ * Expressions are replaced (rather than updated), so slots must be allocated
+ * afterwards (see <code>VariableResolver</code>).
+ * </p>
+ *
+ */
+public class ConstantPropagation {
+	private WhileFile file;
+	private HashMap<String, Expr> constants;
+	private HashSet<String> locals;
+
+	public void optimise(WhileFile wf) {
+		this.file = wf;
+		this.constants = new HashMap<String, Expr>();
+		// First, fold the value of every constant declaration. Constants can
+		// only refer to those declared before them.
+		this.locals = new HashSet<String>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.ConstDecl) {
+				WhileFile.ConstDecl cd = (WhileFile.ConstDecl) declaration;
+				Expr value = optimise(cd.constant,
+						new HashMap<String, Object>());
+				if (isConstant(value)) {
+					constants.put(cd.name(), value);
+				}
+			}
+		}
+		// Second, propagate constants through each function.
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.FunDecl) {
+				optimise((WhileFile.FunDecl) declaration);
+			}
+		}
+	}
+
+	public void optimise(WhileFile.FunDecl fd) {
+		// A local variable may hide a constant of the same name, in which
+		// case the constant is never inlined within this function.
+		locals = new HashSet<String>();
+		for (WhileFile.Parameter p : fd.parameters) {
+			locals.add(p.name);
+		}
+		declared(fd.statements, locals);
+		List<Stmt> statements = optimise(fd.statements,
+				new HashMap<String, Object>());
+		fd.statements.clear();
+		fd.statements.addAll(statements);
+	}
+
+	// ==========================================
+	// Statements
+	// ==========================================
+
+	/**
+	 * Optimise a sequence of statements, given the variables known to hold
+	 * constant values on entry. The environment is updated to reflect the
+	 * variables known to hold constant values on exit.
+	 *
+	 * @param statements
+	 * @param environment
+	 * @return
+	 */
+	private List<Stmt> optimise(List<Stmt> statements,
+			Map<String, Object> environment) {
+		ArrayList<Stmt> nstatements = new ArrayList<Stmt>();
+		for (Stmt s : statements) {
+			nstatements.add(optimise(s, environment));
+		}
+		return nstatements;
+	}
+
+	private Stmt optimise(Stmt stmt, Map<String, Object> environment) {
+		if (stmt instanceof Stmt.Assign) {
+			return optimise((Stmt.Assign) stmt, environment);
+		} else if (stmt instanceof Stmt.Print) {
+			Stmt.Print s = (Stmt.Print) stmt;
+			return new Stmt.Print(optimise(s.getExpr(), environment),
+					s.attributes());
+		} else if (stmt instanceof Stmt.Return) {
+			Stmt.Return s = (Stmt.Return) stmt;
+			if (s.getExpr() == null) {
+				return s;
+			}
+			return new Stmt.Return(optimise(s.getExpr(), environment),
+					s.attributes());
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			return optimise((Stmt.VariableDeclaration) stmt, environment);
+		} else if (stmt instanceof Expr.Invoke) {
+			optimise((Expr) stmt, environment);
+			return stmt;
+		} else if (stmt instanceof Stmt.IfElse) {
+			return optimise((Stmt.IfElse) stmt, environment);
+		} else if (stmt instanceof Stmt.For) {
+			return optimise((Stmt.For) stmt, environment);
+		} else if (stmt instanceof Stmt.While) {
+			return optimise((Stmt.While) stmt, environment);
+		}
+		internalFailure("unknown statement encountered (" + stmt + ")",
+				file.filename, stmt);
+		return null;
+	}
+
+	private Stmt optimise(Stmt.Assign stmt, Map<String, Object> environment) {
+		Expr rhs = optimise(stmt.getRhs(), environment);
+		Expr.LVal lhs = optimise(stmt.getLhs(), environment);
+		if (lhs instanceof Expr.Variable) {
+			assign((Expr.Variable) lhs, rhs, environment);
+		} else {
+			// An element or field of the variable has been updated.
+			environment.remove(root(lhs));
+		}
+		return new Stmt.Assign(lhs, rhs, stmt.attributes());
+	}
+
+	private Stmt optimise(Stmt.VariableDeclaration stmt,
+			Map<String, Object> environment) {
+		environment.remove(stmt.getName());
+		if (stmt.getExpr() == null) {
+			return stmt;
+		}
+		Expr expr = optimise(stmt.getExpr(), environment);
+		if (expr instanceof Expr.Constant
+				&& isPrimitive(stmt.getType(), ((Expr.Constant) expr).getValue())) {
+			environment.put(stmt.getName(), ((Expr.Constant) expr).getValue());
+		}
+		return new Stmt.VariableDeclaration(stmt.getType(), stmt.getName(),
+				expr, stmt.attributes());
+	}
+
+	private Stmt optimise(Stmt.IfElse stmt, Map<String, Object> environment) {
+		Expr condition = optimise(stmt.getCondition(), environment);
+		HashMap<String, Object> trueEnvironment = new HashMap<String, Object>(
+				environment);
+		List<Stmt> trueBranch = optimise(stmt.getTrueBranch(), trueEnvironment);
+		List<Stmt> falseBranch = optimise(stmt.getFalseBranch(), environment);
+		// Only those variables with the same value on both branches are known
+		// after the conditional.
+		join(environment, trueEnvironment);
+		return new Stmt.IfElse(condition, trueBranch, falseBranch,
+				stmt.attributes());
+	}
+
+	private Stmt optimise(Stmt.While stmt, Map<String, Object> environment) {
+		// Variables updated in the loop are unknown on every iteration,
+		// including the first.
+		HashSet<String> modified = new HashSet<String>();
+		declared(stmt.getBody(), modified);
+		environment.keySet().removeAll(modified);
+		Expr condition = optimise(stmt.getCondition(), environment);
+		List<Stmt> body = optimise(stmt.getBody(),
+				new HashMap<String, Object>(environment));
+		return new Stmt.While(condition, body, attributes(stmt));
+	}
+
+	private Stmt optimise(Stmt.For stmt, Map<String, Object> environment) {
+		Stmt.VariableDeclaration declaration = stmt.getDeclaration();
+		if (declaration != null) {
+			declaration = (Stmt.VariableDeclaration) optimise(declaration,
+					environment);
+		}
+		HashSet<String> modified = new HashSet<String>();
+		declared(stmt.getBody(), modified);
+		if (stmt.getIncrement() != null) {
+			declared(Collections.singletonList(stmt.getIncrement()), modified);
+		}
+		environment.keySet().removeAll(modified);
+		Expr condition = stmt.getCondition();
+		if (condition != null) {
+			condition = optimise(condition, environment);
+		}
+		HashMap<String, Object> bodyEnvironment = new HashMap<String, Object>(
+				environment);
+		List<Stmt> body = optimise(stmt.getBody(), bodyEnvironment);
+		Stmt increment = stmt.getIncrement();
+		if (increment != null) {
+			increment = optimise(increment, bodyEnvironment);
+		}
+		return new Stmt.For(declaration, condition, increment, body,
+				stmt.attributes());
+	}
+
+	/**
+	 * Record the effect of assigning a given (optimised) expression to a
+	 * variable.
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @param environment
+	 */
+	private void assign(Expr.Variable lhs, Expr rhs,
+			Map<String, Object> environment) {
+		Attribute.Type attr = lhs.attribute(Attribute.Type.class);
+		if (attr != null && rhs instanceof Expr.Constant
+				&& isPrimitive(attr.type, ((Expr.Constant) rhs).getValue())) {
+			environment.put(lhs.getName(), ((Expr.Constant) rhs).getValue());
+		} else {
+			environment.remove(lhs.getName());
+		}
+	}
+
+	/**
+	 * Remove from one environment any variable which does not have the same
+	 * value in another.
+	 *
+	 * @param environment
+	 * @param other
+	 */
+	private static void join(Map<String, Object> environment,
+			Map<String, Object> other) {
+		Iterator<Map.Entry<String, Object>> i = environment.entrySet()
+				.iterator();
+		while (i.hasNext()) {
+			Map.Entry<String, Object> e = i.next();
+			if (!other.containsKey(e.getKey())
+					|| !equal(e.getValue(), other.get(e.getKey()))) {
+				i.remove();
+			}
+		}
+	}
+
+	// ==========================================
+	// Expressions
+	// ==========================================
+
+	private Expr.LVal optimise(Expr.LVal lval, Map<String, Object> environment) {
+		if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) lval;
+			Expr.LVal source = optimise((Expr.LVal) e.getSource(), environment);
+			Expr index = optimise(e.getIndex(), environment);
+			return new Expr.IndexOf(source, index, e.attributes());
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) lval;
+			Expr.LVal source = optimise((Expr.LVal) e.getSource(), environment);
+			return new Expr.RecordAccess(source, e.getName(),
+					attributes(e));
+		}
+		// The variable being assigned is never replaced.
+		return lval;
+	}
+
+	private Expr optimise(Expr expr, Map<String, Object> environment) {
+		if (expr instanceof Expr.Binary) {
+			return optimise((Expr.Binary) expr, environment);
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			return new Expr.Cast(e.getType(), optimise(e.getSource(),
+					environment), e.attributes());
+		} else if (expr instanceof Expr.Constant) {
+			return expr;
+		} else if (expr instanceof Expr.IndexOf) {
+			return optimise((Expr.IndexOf) expr, environment);
+		} else if (expr instanceof Expr.Invoke) {
+			List<Expr> arguments = ((Expr.Invoke) expr).getArguments();
+			for (int i = 0; i != arguments.size(); ++i) {
+				arguments.set(i, optimise(arguments.get(i), environment));
+			}
+			return expr;
+		} else if (expr instanceof Expr.ListConstructor) {
+			List<Expr> arguments = ((Expr.ListConstructor) expr).getArguments();
+			for (int i = 0; i != arguments.size(); ++i) {
+				arguments.set(i, optimise(arguments.get(i), environment));
+			}
+			return expr;
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			return new Expr.RecordAccess(optimise(e.getSource(), environment),
+					e.getName(), attributes(e));
+		} else if (expr instanceof Expr.RecordConstructor) {
+			List<Pair<String, Expr>> fields = ((Expr.RecordConstructor) expr)
+					.getFields();
+			for (int i = 0; i != fields.size(); ++i) {
+				Pair<String, Expr> p = fields.get(i);
+				fields.set(i, new Pair<String, Expr>(p.first(), optimise(
+						p.second(), environment)));
+			}
+			return expr;
+		} else if (expr instanceof Expr.Unary) {
+			return optimise((Expr.Unary) expr, environment);
+		} else if (expr instanceof Expr.Variable) {
+			return optimise((Expr.Variable) expr, environment);
+		}
+		internalFailure("unknown expression encountered (" + expr + ")",
+				file.filename, expr);
+		return null;
+	}
+
+	private Expr optimise(Expr.Binary expr, Map<String, Object> environment) {
+		Expr lhs = optimise(expr.getLhs(), environment);
+		Expr rhs = optimise(expr.getRhs(), environment);
+		if (lhs instanceof Expr.Constant) {
+			Object l = ((Expr.Constant) lhs).getValue();
+			// The right-hand side of a short-circuiting operator is only
+			// evaluated when the left-hand side does not determine the result.
+			switch (expr.getOp()) {
+			case AND:
+				return l.equals(Boolean.TRUE) ? rhs : lhs;
+			case OR:
+				return l.equals(Boolean.TRUE) ? lhs : rhs;
+			}
+			if (rhs instanceof Expr.Constant) {
+				Object value = evaluate(expr.getOp(), l,
+						((Expr.Constant) rhs).getValue());
+				if (value != UNKNOWN) {
+					return new Expr.Constant(value, attributes(expr));
+				}
+			}
+		}
+		return new Expr.Binary(expr.getOp(), lhs, rhs, expr.attributes());
+	}
+
+	private Expr optimise(Expr.IndexOf expr, Map<String, Object> environment) {
+		Expr source = optimise(expr.getSource(), environment);
+		Expr index = optimise(expr.getIndex(), environment);
+		if (source instanceof Expr.Constant && index instanceof Expr.Constant) {
+			Object s = ((Expr.Constant) source).getValue();
+			Object i = ((Expr.Constant) index).getValue();
+			if (s instanceof String && i instanceof Integer
+					&& (Integer) i >= 0 && (Integer) i < ((String) s).length()) {
+				return new Expr.Constant(((String) s).charAt((Integer) i),
+						attributes(expr));
+			}
+		}
+		return new Expr.IndexOf(source, index, expr.attributes());
+	}
+
+	private Expr optimise(Expr.Unary expr, Map<String, Object> environment) {
+		Expr operand = optimise(expr.getExpr(), environment);
+		if (operand instanceof Expr.Constant) {
+			Object value = ((Expr.Constant) operand).getValue();
+			switch (expr.getOp()) {
+			case NOT:
+				if (value instanceof Boolean) {
+					return new Expr.Constant(!(Boolean) value, attributes(expr));
+				}
+				break;
+			case NEG:
+				if (value instanceof Integer) {
+					return new Expr.Constant(-(Integer) value, attributes(expr));
+				} else if (value instanceof Double) {
+					return new Expr.Constant(-(Double) value, attributes(expr));
+				}
+				break;
+			case LENGTHOF:
+				if (value instanceof String) {
+					return new Expr.Constant(((String) value).length(),
+							attributes(expr));
+				}
+				break;
+			}
+		}
+		return new Expr.Unary(expr.getOp(), operand, attributes(expr));
+	}
+
+	private Expr optimise(Expr.Variable expr, Map<String, Object> environment) {
+		String name = expr.getName();
+		if (environment.containsKey(name)) {
+			return new Expr.Constant(environment.get(name), attributes(expr));
+		} else if (!locals.contains(name) && constants.containsKey(name)) {
+			return copy(constants.get(name), attributes(expr));
+		}
+		return expr;
+	}
+
+	/**
+	 * Marker returned when a binary operation cannot be evaluated at compile
+	 * time.
+	 */
+	private static final Object UNKNOWN = new Object();
+
+	/**
+	 * Evaluate a binary operation on two constant values, following the
+	 * semantics of the interpreter.
+	 *
+	 * @param op
+	 * @param lhs
+	 * @param rhs
+	 * @return The result, or <code>UNKNOWN</code> if the operation cannot (or
+	 *         should not) be evaluated at compile time.
+	 */
+	private static Object evaluate(Expr.BOp op, Object lhs, Object rhs) {
+		switch (op) {
+		case EQ:
+			return equal(lhs, rhs);
+		case NEQ:
+			return !equal(lhs, rhs);
+		case APPEND:
+			if ((lhs instanceof String && isPrintable(rhs))
+					|| (rhs instanceof String && isPrintable(lhs))) {
+				return String.valueOf(lhs) + rhs;
+			}
+			return UNKNOWN;
+		}
+		if (lhs instanceof Integer && rhs instanceof Integer) {
+			int l = (Integer) lhs;
+			int r = (Integer) rhs;
+			switch (op) {
+			case ADD:
+				return l + r;
+			case SUB:
+				return l - r;
+			case MUL:
+				return l * r;
+			case DIV:
+				return r == 0 ? UNKNOWN : l / r;
+			case REM:
+				return r == 0 ? UNKNOWN : l % r;
+			case LT:
+				return l < r;
+			case LTEQ:
+				return l <= r;
+			case GT:
+				return l > r;
+			case GTEQ:
+				return l >= r;
+			}
+		} else if (lhs instanceof Double && rhs instanceof Double) {
+			double l = (Double) lhs;
+			double r = (Double) rhs;
+			switch (op) {
+			case ADD:
+				return l + r;
+			case SUB:
+				return l - r;
+			case MUL:
+				return l * r;
+			case DIV:
+				return l / r;
+			case REM:
+				return l % r;
+			case LT:
+				return l < r;
+			case LTEQ:
+				return l <= r;
+			case GT:
+				return l > r;
+			case GTEQ:
+				return l >= r;
+			}
+		}
+		return UNKNOWN;
+	}
+
+	// ==========================================
+	// Helpers
+	// ==========================================
+
+	/**
+	 * Check whether a given value is one which can be propagated into uses of
+	 * a variable of the given type. Only values of primitive type (including
+	 * strings) are propagated, and only into variables of exactly that type,
+	 * so that the type attributes of replaced variables remain accurate.
+	 *
+	 * @param type
+	 * @param value
+	 * @return
+	 */
+	private static boolean isPrimitive(Type type, Object value) {
+		return (type instanceof Type.Int && value instanceof Integer)
+				|| (type instanceof Type.Real && value instanceof Double)
+				|| (type instanceof Type.Bool && value instanceof Boolean)
+				|| (type instanceof Type.Char && value instanceof Character)
+				|| (type instanceof Type.Strung && value instanceof String);
+	}
+
+	/**
+	 * Check whether a value has the same string form in every backend when
+	 * appended onto a string.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static boolean isPrintable(Object value) {
+		return value instanceof String || value instanceof Character
+				|| value instanceof Integer || value instanceof Boolean;
+	}
+
+	/**
+	 * Check whether an expression is built only from constants, and so can be
+	 * inlined in place of a constant declaration.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static boolean isConstant(Expr expr) {
+		if (expr instanceof Expr.Constant) {
+			return true;
+		} else if (expr instanceof Expr.Cast) {
+			return isConstant(((Expr.Cast) expr).getSource());
+		} else if (expr instanceof Expr.ListConstructor) {
+			for (Expr e : ((Expr.ListConstructor) expr).getArguments()) {
+				if (!isConstant(e)) {
+					return false;
+				}
+			}
+			return true;
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				if (!isConstant(p.second())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Copy an expression built only from constants (see
+	 * <code>isConstant()</code>), so that each use of a constant declaration
+	 * gets its own tree.
+	 *
+	 * @param expr
+	 * @param attributes
+	 *            The attributes for the root of the copy.
+	 * @return
+	 */
+	private static Expr copy(Expr expr, Attribute... attributes) {
+		if (expr instanceof Expr.Constant) {
+			return new Expr.Constant(((Expr.Constant) expr).getValue(),
+					attributes);
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			return new Expr.Cast(e.getType(), copy(e.getSource(),
+					attributes(e.getSource())), attributes);
+		} else if (expr instanceof Expr.ListConstructor) {
+			ArrayList<Expr> arguments = new ArrayList<Expr>();
+			for (Expr e : ((Expr.ListConstructor) expr).getArguments()) {
+				arguments.add(copy(e, attributes(e)));
+			}
+			return new Expr.ListConstructor(arguments, attributes);
+		} else {
+			ArrayList<Pair<String, Expr>> fields = new ArrayList<Pair<String, Expr>>();
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				fields.add(new Pair<String, Expr>(p.first(), copy(p.second(),
+						attributes(p.second()))));
+			}
+			return new Expr.RecordConstructor(fields, attributes);
+		}
+	}
+
+	/**
+	 * Collect the names of all variables declared or assigned within a given
+	 * sequence of statements.
+	 *
+	 * @param statements
+	 * @param names
+	 */
+	private static void declared(List<Stmt> statements, Set<String> names) {
+		for (Stmt stmt : statements) {
+			if (stmt instanceof Stmt.Assign) {
+				names.add(root(((Stmt.Assign) stmt).getLhs()));
+			} else if (stmt instanceof Stmt.VariableDeclaration) {
+				names.add(((Stmt.VariableDeclaration) stmt).getName());
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				declared(s.getTrueBranch(), names);
+				declared(s.getFalseBranch(), names);
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				if (s.getDeclaration() != null) {
+					names.add(s.getDeclaration().getName());
+				}
+				if (s.getIncrement() != null) {
+					declared(Collections.singletonList(s.getIncrement()), names);
+				}
+				declared(s.getBody(), names);
+			} else if (stmt instanceof Stmt.While) {
+				declared(((Stmt.While) stmt).getBody(), names);
+			}
+		}
+	}
+
+	private static boolean equal(Object lhs, Object rhs) {
+		return lhs == null ? rhs == null : lhs.equals(rhs);
+	}
+}
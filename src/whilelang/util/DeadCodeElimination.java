@@ -0,0 +1,416 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.util;
+
+import static whilelang.util.Expressions.attributes;
+import static whilelang.util.Expressions.invokes;
+import static whilelang.util.Expressions.isSafe;
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.*;
+
+import whilelang.lang.*;
+
+/**
+ * <p>
+ * Responsible for removing code from a file which can never affect its
+ * output. This does three things:
+ * </p>
+ * <ul>
+ * <li>Statements which can never be executed are removed. These include the
+ * branches of a conditional, and the bodies of loops, whose condition is a
+ * constant (e.g. after <code>ConstantPropagation</code>), and any statements
+ * following a <code>return</code>.</li>
+ * <li>Assignments to variables which are never read are removed. An assigned
+ * expression is kept (as a statement) if it invokes a function, and the
+ * variable is kept entirely if any expression assigned to it might fail at
+ * run time (e.g. through division by zero), so that it still does so.</li>
+ * <li>Functions which cannot be reached from <code>main</code> are removed.
+ * </li>
+ * </ul>
+ * <p>
+ * Statements are replaced (rather than updated), so slots must be allocated
+ * afterwards (see <code>VariableResolver</code>).
+ * </p>
+ *
+ */
+public class DeadCodeElimination {
+	private WhileFile file;
+
+	public void optimise(WhileFile wf) {
+		this.file = wf;
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.FunDecl) {
+				optimise((WhileFile.FunDecl) declaration);
+			}
+		}
+		removeUnreachableFunctions(wf);
+	}
+
+	public void optimise(WhileFile.FunDecl fd) {
+		List<Stmt> statements = removeUnreachable(fd.statements);
+		// Removing the assignments to one variable can mean another is no
+		// longer read, so repeat until nothing changes.
+		HashSet<String> dead;
+		do {
+			HashSet<String> read = new HashSet<String>();
+			HashSet<String> kept = new HashSet<String>();
+			dead = new HashSet<String>();
+			variables(statements, read, kept, dead);
+			dead.removeAll(read);
+			dead.removeAll(kept);
+			statements = removeAssignments(statements, dead);
+		} while (!dead.isEmpty());
+		fd.statements.clear();
+		fd.statements.addAll(statements);
+	}
+
+	// ==========================================
+	// Unreachable Statements
+	// ==========================================
+
+	private List<Stmt> removeUnreachable(List<Stmt> statements) {
+		ArrayList<Stmt> nstatements = new ArrayList<Stmt>();
+		for (Stmt stmt : statements) {
+			if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				List<Stmt> trueBranch = removeUnreachable(s.getTrueBranch());
+				List<Stmt> falseBranch = removeUnreachable(s.getFalseBranch());
+				Object condition = constant(s.getCondition());
+				if (condition == Boolean.TRUE) {
+					nstatements.addAll(trueBranch);
+				} else if (condition == Boolean.FALSE) {
+					nstatements.addAll(falseBranch);
+				} else {
+					nstatements.add(new Stmt.IfElse(s.getCondition(),
+							trueBranch, falseBranch, s.attributes()));
+				}
+			} else if (stmt instanceof Stmt.While) {
+				Stmt.While s = (Stmt.While) stmt;
+				if (constant(s.getCondition()) != Boolean.FALSE) {
+					nstatements.add(new Stmt.While(s.getCondition(),
+							removeUnreachable(s.getBody()), attributes(s)));
+				}
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				if (constant(s.getCondition()) != Boolean.FALSE) {
+					nstatements.add(new Stmt.For(s.getDeclaration(), s
+							.getCondition(), s.getIncrement(),
+							removeUnreachable(s.getBody()), s.attributes()));
+				} else if (s.getDeclaration() != null) {
+					// The declaration is still executed once.
+					nstatements.add(s.getDeclaration());
+				}
+			} else {
+				nstatements.add(stmt);
+			}
+			if (!nstatements.isEmpty()
+					&& terminates(nstatements.get(nstatements.size() - 1))) {
+				// Nothing after this point can be reached.
+				break;
+			}
+		}
+		return nstatements;
+	}
+
+	/**
+	 * Check whether control can never continue past a given statement.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	private static boolean terminates(Stmt stmt) {
+		if (stmt instanceof Stmt.Return) {
+			return true;
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			return terminates(s.getTrueBranch())
+					&& terminates(s.getFalseBranch());
+		}
+		return false;
+	}
+
+	private static boolean terminates(List<Stmt> statements) {
+		return !statements.isEmpty()
+				&& terminates(statements.get(statements.size() - 1));
+	}
+
+	/**
+	 * Get the value of a condition, if it is a constant.
+	 *
+	 * @param condition
+	 *            The condition, which may be <code>null</code> (for a loop
+	 *            with no condition).
+	 * @return The value, or <code>null</code> if it is not a constant.
+	 */
+	private static Object constant(Expr condition) {
+		if (condition instanceof Expr.Constant) {
+			return ((Expr.Constant) condition).getValue();
+		}
+		return null;
+	}
+
+	// ==========================================
+	// Dead Assignments
+	// ==========================================
+
+	/**
+	 * Determine how the variables in a sequence of statements are used.
+	 *
+	 * @param statements
+	 * @param read
+	 *            Variables which are read.
+	 * @param kept
+	 *            Variables which are assigned an expression that might fail,
+	 *            and so whose assignments must be kept.
+	 * @param assigned
+	 *            Variables which are assigned.
+	 */
+	private void variables(List<Stmt> statements, Set<String> read,
+			Set<String> kept, Set<String> assigned) {
+		for (Stmt stmt : statements) {
+			variables(stmt, read, kept, assigned);
+		}
+	}
+
+	private void variables(Stmt stmt, Set<String> read, Set<String> kept,
+			Set<String> assigned) {
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			if (s.getLhs() instanceof Expr.Variable) {
+				String name = ((Expr.Variable) s.getLhs()).getName();
+				assigned.add(name);
+				if (!isRemovable(s.getRhs())) {
+					kept.add(name);
+				}
+			} else {
+				// Updating part of a variable also reads the remainder.
+				reads(s.getLhs(), read);
+			}
+			reads(s.getRhs(), read);
+		} else if (stmt instanceof Stmt.Print) {
+			reads(((Stmt.Print) stmt).getExpr(), read);
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			if (e != null) {
+				reads(e, read);
+			}
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			assigned.add(s.getName());
+			if (s.getExpr() != null) {
+				if (!isRemovable(s.getExpr())) {
+					kept.add(s.getName());
+				}
+				reads(s.getExpr(), read);
+			}
+		} else if (stmt instanceof Expr.Invoke) {
+			reads((Expr) stmt, read);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			reads(s.getCondition(), read);
+			variables(s.getTrueBranch(), read, kept, assigned);
+			variables(s.getFalseBranch(), read, kept, assigned);
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			// The declaration and increment of a loop are never removed, so
+			// their variables are treated as read.
+			if (s.getDeclaration() != null) {
+				read.add(s.getDeclaration().getName());
+				variables(s.getDeclaration(), read, kept, assigned);
+			}
+			if (s.getCondition() != null) {
+				reads(s.getCondition(), read);
+			}
+			if (s.getIncrement() != null) {
+				HashSet<String> incremented = new HashSet<String>();
+				variables(s.getIncrement(), read, kept, incremented);
+				read.addAll(incremented);
+			}
+			variables(s.getBody(), read, kept, assigned);
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			reads(s.getCondition(), read);
+			variables(s.getBody(), read, kept, assigned);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")",
+					file.filename, stmt);
+		}
+	}
+
+	private void reads(Expr expr, Set<String> read) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			reads(e.getLhs(), read);
+			reads(e.getRhs(), read);
+		} else if (expr instanceof Expr.Cast) {
+			reads(((Expr.Cast) expr).getSource(), read);
+		} else if (expr instanceof Expr.Constant) {
+			// nothing to do
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			reads(e.getSource(), read);
+			reads(e.getIndex(), read);
+		} else if (expr instanceof Expr.Invoke) {
+			for (Expr arg : ((Expr.Invoke) expr).getArguments()) {
+				reads(arg, read);
+			}
+		} else if (expr instanceof Expr.ListConstructor) {
+			for (Expr arg : ((Expr.ListConstructor) expr).getArguments()) {
+				reads(arg, read);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			reads(((Expr.RecordAccess) expr).getSource(), read);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				reads(p.second(), read);
+			}
+		} else if (expr instanceof Expr.Unary) {
+			reads(((Expr.Unary) expr).getExpr(), read);
+		} else if (expr instanceof Expr.Variable) {
+			read.add(((Expr.Variable) expr).getName());
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")",
+					file.filename, expr);
+		}
+	}
+
+	/**
+	 * Remove all assignments to the given variables from a sequence of
+	 * statements. An assigned invocation is kept as a statement, since it
+	 * may have effects.
+	 *
+	 * @param statements
+	 * @param dead
+	 * @return
+	 */
+	private static List<Stmt> removeAssignments(List<Stmt> statements,
+			Set<String> dead) {
+		if (dead.isEmpty()) {
+			return statements;
+		}
+		ArrayList<Stmt> nstatements = new ArrayList<Stmt>();
+		for (Stmt stmt : statements) {
+			Expr assigned = null;
+			if (stmt instanceof Stmt.Assign) {
+				Stmt.Assign s = (Stmt.Assign) stmt;
+				if (s.getLhs() instanceof Expr.Variable
+						&& dead.contains(((Expr.Variable) s.getLhs()).getName())) {
+					assigned = s.getRhs();
+				} else {
+					nstatements.add(stmt);
+					continue;
+				}
+			} else if (stmt instanceof Stmt.VariableDeclaration) {
+				Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+				if (dead.contains(s.getName())) {
+					assigned = s.getExpr();
+				} else {
+					nstatements.add(stmt);
+					continue;
+				}
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				nstatements.add(new Stmt.IfElse(s.getCondition(),
+						removeAssignments(s.getTrueBranch(), dead),
+						removeAssignments(s.getFalseBranch(), dead), s
+								.attributes()));
+				continue;
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				nstatements.add(new Stmt.For(s.getDeclaration(), s
+						.getCondition(), s.getIncrement(), removeAssignments(
+						s.getBody(), dead), s.attributes()));
+				continue;
+			} else if (stmt instanceof Stmt.While) {
+				Stmt.While s = (Stmt.While) stmt;
+				nstatements.add(new Stmt.While(s.getCondition(),
+						removeAssignments(s.getBody(), dead), attributes(s)));
+				continue;
+			} else {
+				nstatements.add(stmt);
+				continue;
+			}
+			if (assigned instanceof Expr.Invoke) {
+				nstatements.add((Expr.Invoke) assigned);
+			}
+		}
+		return nstatements;
+	}
+
+	/**
+	 * Check whether the assignment of a given expression can be removed, or
+	 * replaced by the invocation it consists of.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static boolean isRemovable(Expr expr) {
+		if (expr instanceof Expr.Invoke) {
+			for (Expr arg : ((Expr.Invoke) expr).getArguments()) {
+				if (!isSafe(arg)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return isSafe(expr);
+	}
+
+	// ==========================================
+	// Unreachable Functions
+	// ==========================================
+
+	/**
+	 * Remove all functions which cannot be reached by calls from
+	 * <code>main</code>. Files without a <code>main</code> function are left
+	 * alone.
+	 *
+	 * @param wf
+	 */
+	private void removeUnreachableFunctions(WhileFile wf) {
+		List<WhileFile.FunDecl> roots = wf.functions("main");
+		if (roots.isEmpty()) {
+			return;
+		}
+		HashSet<String> reached = new HashSet<String>();
+		ArrayList<WhileFile.FunDecl> worklist = new ArrayList<WhileFile.FunDecl>(
+				roots);
+		reached.add("main");
+		while (!worklist.isEmpty()) {
+			WhileFile.FunDecl fd = worklist.remove(worklist.size() - 1);
+			HashSet<String> callees = new HashSet<String>();
+			invokes(fd.statements, callees);
+			for (String callee : callees) {
+				if (reached.add(callee)) {
+					worklist.addAll(wf.functions(callee));
+				}
+			}
+		}
+		Iterator<WhileFile.Decl> i = wf.declarations.iterator();
+		while (i.hasNext()) {
+			WhileFile.Decl d = i.next();
+			if (d instanceof WhileFile.FunDecl && !reached.contains(d.name())) {
+				i.remove();
+			}
+		}
+	}
+}
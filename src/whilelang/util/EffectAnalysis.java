@@ -0,0 +1,196 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.util;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.*;
+
+import whilelang.lang.*;
+
+/**
+ * <p>
+ * Responsible for determining which functions in a file are pure. A function
+ * is pure if calling it has no effect other than returning a value, which
+ * depends only on its arguments. In While, the only effect a function can
+ * have is printing. Since values are never shared between callers and callees
+ * (and there are no global variables), a function is pure if it contains no
+ * print statement and calls only pure functions. Pure functions are marked as
+ * such (see <code>WhileFile.FunDecl.isPure()</code>), so that calls to them can
+ * be memoised.
+ * </p>
+ * <p>
+ * Invocations must already have been linked to their targets (see
+ * <code>FunctionResolver</code>).
+ * </p>
+ *
+ */
+public class EffectAnalysis {
+	private WhileFile file;
+
+	public void analyse(WhileFile wf) {
+		this.file = wf;
+		// First, determine which functions print directly, and which
+		// functions each function calls.
+		HashMap<WhileFile.FunDecl, Set<WhileFile.FunDecl>> callers = new HashMap<WhileFile.FunDecl, Set<WhileFile.FunDecl>>();
+		ArrayList<WhileFile.FunDecl> worklist = new ArrayList<WhileFile.FunDecl>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.FunDecl) {
+				WhileFile.FunDecl fd = (WhileFile.FunDecl) declaration;
+				HashSet<WhileFile.FunDecl> callees = new HashSet<WhileFile.FunDecl>();
+				boolean prints = analyse(fd.statements, callees);
+				for (WhileFile.FunDecl callee : callees) {
+					Set<WhileFile.FunDecl> cs = callers.get(callee);
+					if (cs == null) {
+						cs = new HashSet<WhileFile.FunDecl>();
+						callers.put(callee, cs);
+					}
+					cs.add(fd);
+				}
+				fd.setPure(!prints);
+				if (prints) {
+					worklist.add(fd);
+				}
+			}
+		}
+		// Second, any function which (transitively) calls an impure function
+		// is itself impure.
+		while (!worklist.isEmpty()) {
+			WhileFile.FunDecl fd = worklist.remove(worklist.size() - 1);
+			Set<WhileFile.FunDecl> cs = callers.get(fd);
+			if (cs != null) {
+				for (WhileFile.FunDecl caller : cs) {
+					if (caller.isPure()) {
+						caller.setPure(false);
+						worklist.add(caller);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Analyse a block of statements, recording the functions it calls.
+	 *
+	 * @param statements
+	 * @param callees
+	 * @return True if the block contains a print statement.
+	 */
+	private boolean analyse(List<Stmt> statements, Set<WhileFile.FunDecl> callees) {
+		boolean prints = false;
+		for (Stmt s : statements) {
+			prints |= analyse(s, callees);
+		}
+		return prints;
+	}
+
+	private boolean analyse(Stmt stmt, Set<WhileFile.FunDecl> callees) {
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			analyse(s.getLhs(), callees);
+			analyse(s.getRhs(), callees);
+			return false;
+		} else if (stmt instanceof Stmt.Print) {
+			analyse(((Stmt.Print) stmt).getExpr(), callees);
+			return true;
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			if (e != null) {
+				analyse(e, callees);
+			}
+			return false;
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			if (s.getExpr() != null) {
+				analyse(s.getExpr(), callees);
+			}
+			return false;
+		} else if (stmt instanceof Expr.Invoke) {
+			analyse((Expr) stmt, callees);
+			return false;
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			analyse(s.getCondition(), callees);
+			boolean prints = analyse(s.getTrueBranch(), callees);
+			return analyse(s.getFalseBranch(), callees) | prints;
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			boolean prints = false;
+			if (s.getDeclaration() != null) {
+				prints |= analyse(s.getDeclaration(), callees);
+			}
+			if (s.getCondition() != null) {
+				analyse(s.getCondition(), callees);
+			}
+			if (s.getIncrement() != null) {
+				prints |= analyse(s.getIncrement(), callees);
+			}
+			return analyse(s.getBody(), callees) | prints;
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			analyse(s.getCondition(), callees);
+			return analyse(s.getBody(), callees);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")",
+					file.filename, stmt);
+			return true;
+		}
+	}
+
+	private void analyse(Expr expr, Set<WhileFile.FunDecl> callees) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			analyse(e.getLhs(), callees);
+			analyse(e.getRhs(), callees);
+		} else if (expr instanceof Expr.Cast) {
+			analyse(((Expr.Cast) expr).getSource(), callees);
+		} else if (expr instanceof Expr.Constant) {
+			// nothing to do
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			analyse(e.getSource(), callees);
+			analyse(e.getIndex(), callees);
+		} else if (expr instanceof Expr.Invoke) {
+			Expr.Invoke e = (Expr.Invoke) expr;
+			callees.add(e.getTarget());
+			for (Expr arg : e.getArguments()) {
+				analyse(arg, callees);
+			}
+		} else if (expr instanceof Expr.ListConstructor) {
+			for (Expr arg : ((Expr.ListConstructor) expr).getArguments()) {
+				analyse(arg, callees);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			analyse(((Expr.RecordAccess) expr).getSource(), callees);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				analyse(p.second(), callees);
+			}
+		} else if (expr instanceof Expr.Unary) {
+			analyse(((Expr.Unary) expr).getExpr(), callees);
+		} else if (expr instanceof Expr.Variable) {
+			// nothing to do
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")",
+					file.filename, expr);
+		}
+	}
+}
@@ -0,0 +1,221 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.util;
+
+import java.util.*;
+
+import whilelang.lang.*;
+
+/**
+ * <p>
+ * Helpers shared by the optimisation passes, which answer simple questions
+ * about individual expressions and statements.
+ * </p>
+ *
+ */
+public final class Expressions {
+	private Expressions() {
+	}
+
+	/**
+	 * Check whether an expression does some work, and so is worth moving or
+	 * reusing rather than evaluating again.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	public static boolean isComputation(Expr expr) {
+		return expr instanceof Expr.Binary || expr instanceof Expr.Unary
+				|| expr instanceof Expr.IndexOf
+				|| expr instanceof Expr.RecordAccess
+				|| expr instanceof Expr.Invoke;
+	}
+
+	/**
+	 * Check whether values of a given type are held directly, rather than
+	 * being copied when read from a variable.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static boolean isPrimitive(Type type) {
+		return type instanceof Type.Int || type instanceof Type.Real
+				|| type instanceof Type.Bool || type instanceof Type.Char;
+	}
+
+	/**
+	 * Check whether evaluating a given expression can have no effect, and
+	 * cannot fail. Division and remainder are only safe for a non-zero
+	 * constant divisor, whilst indexing, casting and invocation are never
+	 * considered safe.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	public static boolean isSafe(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			if (e.getOp() == Expr.BOp.DIV || e.getOp() == Expr.BOp.REM) {
+				Expr divisor = e.getRhs();
+				if (!(divisor instanceof Expr.Constant)
+						|| ((Expr.Constant) divisor).getValue().equals(0)) {
+					return false;
+				}
+			}
+			return isSafe(e.getLhs()) && isSafe(e.getRhs());
+		} else if (expr instanceof Expr.Constant
+				|| expr instanceof Expr.Variable) {
+			return true;
+		} else if (expr instanceof Expr.ListConstructor) {
+			for (Expr arg : ((Expr.ListConstructor) expr).getArguments()) {
+				if (!isSafe(arg)) {
+					return false;
+				}
+			}
+			return true;
+		} else if (expr instanceof Expr.RecordAccess) {
+			return isSafe(((Expr.RecordAccess) expr).getSource());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				if (!isSafe(p.second())) {
+					return false;
+				}
+			}
+			return true;
+		} else if (expr instanceof Expr.Unary) {
+			return isSafe(((Expr.Unary) expr).getExpr());
+		}
+		return false;
+	}
+
+	/**
+	 * Determine the variable updated by an assignment to a given lval.
+	 *
+	 * @param lval
+	 * @return
+	 */
+	public static String root(Expr lval) {
+		while (!(lval instanceof Expr.Variable)) {
+			if (lval instanceof Expr.IndexOf) {
+				lval = ((Expr.IndexOf) lval).getSource();
+			} else {
+				lval = ((Expr.RecordAccess) lval).getSource();
+			}
+		}
+		return ((Expr.Variable) lval).getName();
+	}
+
+	/**
+	 * Collect the names of all functions invoked within a sequence of
+	 * statements.
+	 *
+	 * @param statements
+	 * @param callees
+	 */
+	public static void invokes(List<Stmt> statements, Set<String> callees) {
+		for (Stmt stmt : statements) {
+			if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				invokes(s.getCondition(), callees);
+				invokes(s.getTrueBranch(), callees);
+				invokes(s.getFalseBranch(), callees);
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				if (s.getDeclaration() != null) {
+					invokes(s.getDeclaration().getExpr(), callees);
+				}
+				invokes(s.getCondition(), callees);
+				if (s.getIncrement() != null) {
+					invokes(Collections.singletonList(s.getIncrement()),
+							callees);
+				}
+				invokes(s.getBody(), callees);
+			} else if (stmt instanceof Stmt.While) {
+				Stmt.While s = (Stmt.While) stmt;
+				invokes(s.getCondition(), callees);
+				invokes(s.getBody(), callees);
+			} else if (stmt instanceof Stmt.Assign) {
+				Stmt.Assign s = (Stmt.Assign) stmt;
+				invokes(s.getLhs(), callees);
+				invokes(s.getRhs(), callees);
+			} else if (stmt instanceof Stmt.Print) {
+				invokes(((Stmt.Print) stmt).getExpr(), callees);
+			} else if (stmt instanceof Stmt.Return) {
+				invokes(((Stmt.Return) stmt).getExpr(), callees);
+			} else if (stmt instanceof Stmt.VariableDeclaration) {
+				invokes(((Stmt.VariableDeclaration) stmt).getExpr(), callees);
+			} else if (stmt instanceof Expr.Invoke) {
+				invokes((Expr) stmt, callees);
+			}
+		}
+	}
+
+	/**
+	 * Collect the names of all functions invoked within an expression, which
+	 * may be <code>null</code>.
+	 *
+	 * @param expr
+	 * @param callees
+	 */
+	public static void invokes(Expr expr, Set<String> callees) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			invokes(e.getLhs(), callees);
+			invokes(e.getRhs(), callees);
+		} else if (expr instanceof Expr.Cast) {
+			invokes(((Expr.Cast) expr).getSource(), callees);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			invokes(e.getSource(), callees);
+			invokes(e.getIndex(), callees);
+		} else if (expr instanceof Expr.Invoke) {
+			Expr.Invoke e = (Expr.Invoke) expr;
+			callees.add(e.getName());
+			for (Expr arg : e.getArguments()) {
+				invokes(arg, callees);
+			}
+		} else if (expr instanceof Expr.ListConstructor) {
+			for (Expr arg : ((Expr.ListConstructor) expr).getArguments()) {
+				invokes(arg, callees);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			invokes(((Expr.RecordAccess) expr).getSource(), callees);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				invokes(p.second(), callees);
+			}
+		} else if (expr instanceof Expr.Unary) {
+			invokes(((Expr.Unary) expr).getExpr(), callees);
+		}
+	}
+
+	/**
+	 * Get the attributes of a given element, for passing on to a replacement.
+	 *
+	 * @param element
+	 * @return
+	 */
+	public static Attribute[] attributes(SyntacticElement element) {
+		List<Attribute> attributes = element.attributes();
+		return attributes.toArray(new Attribute[attributes.size()]);
+	}
+}
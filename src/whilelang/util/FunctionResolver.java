@@ -0,0 +1,157 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.util;
+
+import static whilelang.util.SyntaxError.internalFailure;
+import static whilelang.util.SyntaxError.syntaxError;
+
+import java.util.*;
+
+import whilelang.lang.*;
+
+/**
+ * <p>
+ * Responsible for linking every function invocation in a file to the function
+ * declaration it calls. Thus, an interpreter or code generator can follow the
+ * target of an invocation directly, rather than looking up the function by name
+ * every time the invocation is executed.
+ * </p>
+ * <p>
+ * Since every invocation is linked before the program is run, an invocation of
+ * a function which does not exist is reported as a syntax error up front,
+ * instead of only when (or if) that invocation is reached.
+ * </p>
+ *
+ */
+public class FunctionResolver {
+	private WhileFile file;
+	private HashMap<String, WhileFile.FunDecl> functions;
+
+	public void resolve(WhileFile wf) {
+		this.file = wf;
+		this.functions = new HashMap<String, WhileFile.FunDecl>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.FunDecl) {
+				WhileFile.FunDecl fd = (WhileFile.FunDecl) declaration;
+				functions.put(fd.name(), fd);
+			}
+		}
+		for (WhileFile.FunDecl fd : functions.values()) {
+			resolve(fd.statements);
+		}
+	}
+
+	private void resolve(List<Stmt> statements) {
+		for (Stmt s : statements) {
+			resolve(s);
+		}
+	}
+
+	private void resolve(Stmt stmt) {
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			resolve(s.getLhs());
+			resolve(s.getRhs());
+		} else if (stmt instanceof Stmt.Print) {
+			resolve(((Stmt.Print) stmt).getExpr());
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			if (e != null) {
+				resolve(e);
+			}
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			if (s.getExpr() != null) {
+				resolve(s.getExpr());
+			}
+		} else if (stmt instanceof Expr.Invoke) {
+			resolve((Expr) stmt);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			resolve(s.getCondition());
+			resolve(s.getTrueBranch());
+			resolve(s.getFalseBranch());
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			if (s.getDeclaration() != null) {
+				resolve(s.getDeclaration());
+			}
+			if (s.getCondition() != null) {
+				resolve(s.getCondition());
+			}
+			if (s.getIncrement() != null) {
+				resolve(s.getIncrement());
+			}
+			resolve(s.getBody());
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			resolve(s.getCondition());
+			resolve(s.getBody());
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")",
+					file.filename, stmt);
+		}
+	}
+
+	private void resolve(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			resolve(e.getLhs());
+			resolve(e.getRhs());
+		} else if (expr instanceof Expr.Cast) {
+			resolve(((Expr.Cast) expr).getSource());
+		} else if (expr instanceof Expr.Constant) {
+			// nothing to do
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			resolve(e.getSource());
+			resolve(e.getIndex());
+		} else if (expr instanceof Expr.Invoke) {
+			Expr.Invoke e = (Expr.Invoke) expr;
+			WhileFile.FunDecl fd = functions.get(e.getName());
+			if (fd == null) {
+				syntaxError("unknown function \"" + e.getName() + "\"",
+						file.filename, e);
+			}
+			e.setTarget(fd);
+			for (Expr arg : e.getArguments()) {
+				resolve(arg);
+			}
+		} else if (expr instanceof Expr.ListConstructor) {
+			for (Expr arg : ((Expr.ListConstructor) expr).getArguments()) {
+				resolve(arg);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			resolve(((Expr.RecordAccess) expr).getSource());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				resolve(p.second());
+			}
+		} else if (expr instanceof Expr.Unary) {
+			resolve(((Expr.Unary) expr).getExpr());
+		} else if (expr instanceof Expr.Variable) {
+			// nothing to do
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")",
+					file.filename, expr);
+		}
+	}
+}
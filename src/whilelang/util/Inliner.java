@@ -0,0 +1,833 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.util;
+
+import static whilelang.util.Expressions.attributes;
+import static whilelang.util.Expressions.invokes;
+import static whilelang.util.Expressions.isSafe;
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.io.PrintStream;
+import java.util.*;
+
+import whilelang.lang.*;
+
+/**
+ * <p>
+ * Responsible for replacing invocations of small functions with the bodies of
+ * those functions, thus avoiding the overhead of the call (e.g. creating a
+ * stack frame, and copying the arguments). For example, consider:
+ * </p>
+ *
+ * <pre>
+ * int sq(int x) {
+ * 	return x * x;
+ * }
+ *
+ * void main() {
+ * 	int t = 0;
+ * 	t = t + sq(t + 1);
+ * }
+ * </pre>
+ * <p>
+ * Here, the invocation of <code>sq</code> is replaced so that the body of
+ * <code>main</code> becomes:
+ * </p>
+ *
+ * <pre>
+ * int t = 0;
+ * int $inline0_x = t + 1;
+ * int $inline0;
+ * $inline0 = $inline0_x * $inline0_x;
+ * t = t + $inline0;
+ * </pre>
+ * <p>
+ * Each argument is evaluated into a fresh variable standing for the
+ * parameter, and every local variable of the inlined function is renamed so
+ * as not to clash with those of the caller. Likewise, every constant it
+ * refers to is replaced by its value. Since While has value semantics,
+ * this is exactly equivalent to the invocation. A function is only inlined if
+ * it is not recursive, its body is no larger than a given number of nodes,
+ * and it only returns at the end of its body (possibly in both branches of a
+ * conditional). An invocation is only inlined where it can be evaluated ahead
+ * of its statement without changing the behaviour of that statement (i.e.
+ * everything evaluated before it cannot fail), and never in the condition of
+ * a loop, since that is evaluated repeatedly.
+ * </p>
+ * <p>
+ * This must be applied after type checking, since the inlined code must keep
+ * its type attributes. Slots must be allocated afterwards (see
+ * <code>VariableResolver</code>).
+ * </p>
+ *
+ */
+public class Inliner {
+	/**
+	 * The default limit on the number of nodes in an inlined function body.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 32;
+
+	/**
+	 * The maximum number of nodes which inlining may add to a single
+	 * function. This prevents an explosion in code size when small functions
+	 * call each other.
+	 */
+	private static final int MAX_GROWTH = 2000;
+
+	private final int maxSize;
+	private final ArrayList<String> inlined = new ArrayList<String>();
+	private WhileFile file;
+	private SourceLines lines;
+	private HashMap<String, WhileFile.FunDecl> functions;
+	private HashMap<String, WhileFile.ConstDecl> constants;
+	private HashMap<WhileFile.FunDecl, Integer> sizes;
+	private int fresh;
+	private int growth;
+
+	/**
+	 * Construct an inliner.
+	 *
+	 * @param maxSize
+	 *            The maximum number of nodes in the body of an inlined
+	 *            function.
+	 */
+	public Inliner(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public void optimise(WhileFile wf) {
+		this.file = wf;
+		this.lines = new SourceLines(wf.filename);
+		this.fresh = 0;
+		// First, determine which functions can be inlined.
+		HashMap<String, Set<String>> callees = new HashMap<String, Set<String>>();
+		HashMap<String, Integer> declared = new HashMap<String, Integer>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.FunDecl) {
+				WhileFile.FunDecl fd = (WhileFile.FunDecl) declaration;
+				HashSet<String> cs = new HashSet<String>();
+				invokes(fd.statements, cs);
+				callees.put(fd.name(), cs);
+				Integer n = declared.get(fd.name());
+				declared.put(fd.name(), n == null ? 1 : n + 1);
+			}
+		}
+		functions = new HashMap<String, WhileFile.FunDecl>();
+		constants = new HashMap<String, WhileFile.ConstDecl>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.ConstDecl) {
+				constants.put(declaration.name(),
+						(WhileFile.ConstDecl) declaration);
+			}
+		}
+		sizes = new HashMap<WhileFile.FunDecl, Integer>();
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.FunDecl) {
+				WhileFile.FunDecl fd = (WhileFile.FunDecl) declaration;
+				int size = PhaseStats.countNodes(fd.statements, wf);
+				if (declared.get(fd.name()) == 1 && size <= maxSize
+						&& !isRecursive(fd.name(), callees)
+						&& returnsAtEnd(normalise(fd.statements))) {
+					functions.put(fd.name(), fd);
+					sizes.put(fd, size);
+				}
+			}
+		}
+		if (functions.isEmpty()) {
+			return;
+		}
+		// Second, inline them.
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.FunDecl) {
+				optimise((WhileFile.FunDecl) declaration);
+			}
+		}
+	}
+
+	private void optimise(WhileFile.FunDecl fd) {
+		growth = 0;
+		List<Stmt> statements = optimise(fd.statements, fd);
+		fd.statements.clear();
+		fd.statements.addAll(statements);
+	}
+
+	/**
+	 * Print the invocations which were inlined.
+	 *
+	 * @param output
+	 */
+	public void report(PrintStream output) {
+		for (String s : inlined) {
+			output.println(s);
+		}
+	}
+
+	// ==========================================
+	// Inlining
+	// ==========================================
+
+	private List<Stmt> optimise(List<Stmt> statements, WhileFile.FunDecl caller) {
+		ArrayList<Stmt> nstatements = new ArrayList<Stmt>();
+		LinkedList<Stmt> worklist = new LinkedList<Stmt>(statements);
+		while (!worklist.isEmpty()) {
+			Stmt stmt = worklist.removeFirst();
+			if (stmt instanceof Stmt.While) {
+				Stmt.While s = (Stmt.While) stmt;
+				nstatements.add(new Stmt.While(s.getCondition(), optimise(
+						s.getBody(), caller), attributes(s)));
+				continue;
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				nstatements.add(new Stmt.For(s.getDeclaration(), s
+						.getCondition(), s.getIncrement(), optimise(
+						s.getBody(), caller), s.attributes()));
+				continue;
+			}
+			Expr.Invoke site = site(stmt);
+			if (site != null && growth <= MAX_GROWTH) {
+				// The expanded statements may themselves contain invocations
+				// which can be inlined.
+				worklist.addAll(0, inline(stmt, site, caller));
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				nstatements.add(new Stmt.IfElse(s.getCondition(), optimise(
+						s.getTrueBranch(), caller), optimise(
+						s.getFalseBranch(), caller), s.attributes()));
+			} else {
+				nstatements.add(stmt);
+			}
+		}
+		return nstatements;
+	}
+
+	/**
+	 * Replace a given invocation within a statement with the body of the
+	 * function it invokes.
+	 *
+	 * @param stmt
+	 * @param site
+	 * @param caller
+	 * @return The statements to replace the given statement with.
+	 */
+	private List<Stmt> inline(Stmt stmt, Expr.Invoke site,
+			WhileFile.FunDecl caller) {
+		WhileFile.FunDecl callee = functions.get(site.getName());
+		String prefix = "$inline" + fresh++;
+		ArrayList<Stmt> nstatements = new ArrayList<Stmt>();
+		// First, bind the arguments to the (renamed) parameters.
+		HashMap<String, String> renaming = new HashMap<String, String>();
+		for (WhileFile.Parameter p : callee.parameters) {
+			renaming.put(p.name, prefix + "_" + p.name);
+		}
+		declared(callee.statements, prefix, renaming);
+		List<Expr> arguments = site.getArguments();
+		for (int i = 0; i != arguments.size(); ++i) {
+			WhileFile.Parameter p = callee.parameters.get(i);
+			nstatements.add(new Stmt.VariableDeclaration(p.type, renaming
+					.get(p.name), arguments.get(i), p.attributes()));
+		}
+		// Second, declare the result and copy the body, replacing each
+		// return with an assignment to the result.
+		Expr.Variable result = null;
+		if (!(callee.ret instanceof Type.Void)) {
+			result = new Expr.Variable(prefix, attributes(site));
+			nstatements.add(new Stmt.VariableDeclaration(callee.ret, prefix,
+					null, site.attributes()));
+		}
+		List<Stmt> body = normalise(copy(callee.statements, renaming));
+		nstatements.addAll(returns(body, result));
+		// Third, use the result in place of the invocation.
+		if (stmt != site) {
+			nstatements.add(replace(stmt, site, result));
+		}
+		int size = sizes.get(callee);
+		growth += size;
+		inlined.add("inlined " + callee.name() + " into " + caller.name()
+				+ " at line " + lines.line(site) + " (" + size + " nodes)");
+		return nstatements;
+	}
+
+	/**
+	 * Find an invocation within a statement which can be inlined. That is, it
+	 * invokes a function which can be inlined, it is always evaluated, and
+	 * nothing evaluated before it in the statement can fail.
+	 *
+	 * @param stmt
+	 * @return The invocation, or <code>null</code> if there is none.
+	 */
+	private Expr.Invoke site(Stmt stmt) {
+		boolean[] clean = { true };
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			Expr lval = s.getLhs();
+			while (!(lval instanceof Expr.Variable)) {
+				if (lval instanceof Expr.IndexOf) {
+					// The order in which the index and right-hand side are
+					// evaluated cannot matter if the index cannot fail.
+					clean[0] &= isSafe(((Expr.IndexOf) lval).getIndex());
+					lval = ((Expr.IndexOf) lval).getSource();
+				} else {
+					lval = ((Expr.RecordAccess) lval).getSource();
+				}
+			}
+			return site(s.getRhs(), true, clean);
+		} else if (stmt instanceof Stmt.Print) {
+			return site(((Stmt.Print) stmt).getExpr(), true, clean);
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			return e == null ? null : site(e, true, clean);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Expr e = ((Stmt.VariableDeclaration) stmt).getExpr();
+			return e == null ? null : site(e, true, clean);
+		} else if (stmt instanceof Expr.Invoke) {
+			return site((Expr) stmt, true, clean);
+		} else if (stmt instanceof Stmt.IfElse) {
+			return site(((Stmt.IfElse) stmt).getCondition(), true, clean);
+		}
+		internalFailure("unknown statement encountered (" + stmt + ")",
+				file.filename, stmt);
+		return null;
+	}
+
+	/**
+	 * Find an invocation within an expression which can be inlined, visiting
+	 * subexpressions in the order they are evaluated.
+	 *
+	 * @param expr
+	 * @param always
+	 *            Whether the expression is always evaluated.
+	 * @param clean
+	 *            Whether nothing evaluated so far can fail. This is updated
+	 *            as the expression is visited.
+	 * @return
+	 */
+	private Expr.Invoke site(Expr expr, boolean always, boolean[] clean) {
+		if (expr instanceof Expr.Invoke) {
+			Expr.Invoke e = (Expr.Invoke) expr;
+			boolean before = clean[0];
+			for (Expr arg : e.getArguments()) {
+				Expr.Invoke site = site(arg, always, clean);
+				if (site != null) {
+					return site;
+				}
+			}
+			if (always && before && functions.containsKey(e.getName())) {
+				return e;
+			}
+			clean[0] = false;
+			return null;
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			Expr.Invoke site = site(e.getLhs(), always, clean);
+			if (site == null) {
+				// The right-hand side of a short-circuiting operator is not
+				// always evaluated.
+				boolean first = e.getOp() != Expr.BOp.AND
+						&& e.getOp() != Expr.BOp.OR;
+				site = site(e.getRhs(), always && first, clean);
+			}
+			if (e.getOp() == Expr.BOp.DIV || e.getOp() == Expr.BOp.REM) {
+				clean[0] = false;
+			}
+			return site;
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Invoke site = site(((Expr.Cast) expr).getSource(), always,
+					clean);
+			clean[0] = false;
+			return site;
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			Expr.Invoke site = site(e.getSource(), always, clean);
+			if (site == null) {
+				site = site(e.getIndex(), always, clean);
+			}
+			clean[0] = false;
+			return site;
+		} else if (expr instanceof Expr.ListConstructor) {
+			for (Expr arg : ((Expr.ListConstructor) expr).getArguments()) {
+				Expr.Invoke site = site(arg, always, clean);
+				if (site != null) {
+					return site;
+				}
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			return site(((Expr.RecordAccess) expr).getSource(), always, clean);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				Expr.Invoke site = site(p.second(), always, clean);
+				if (site != null) {
+					return site;
+				}
+			}
+		} else if (expr instanceof Expr.Unary) {
+			return site(((Expr.Unary) expr).getExpr(), always, clean);
+		}
+		return null;
+	}
+
+	/**
+	 * Replace each return at the end of an inlined body with an assignment to
+	 * the result variable.
+	 *
+	 * @param statements
+	 * @param result
+	 *            The result variable, or <code>null</code> if the function
+	 *            returns nothing.
+	 * @return
+	 */
+	private static List<Stmt> returns(List<Stmt> statements,
+			Expr.Variable result) {
+		if (statements.isEmpty()) {
+			return statements;
+		}
+		ArrayList<Stmt> nstatements = new ArrayList<Stmt>(statements);
+		Stmt last = nstatements.remove(nstatements.size() - 1);
+		if (last instanceof Stmt.Return) {
+			Stmt.Return s = (Stmt.Return) last;
+			if (s.getExpr() != null) {
+				nstatements.add(new Stmt.Assign(result, s.getExpr(), s
+						.attributes()));
+			}
+		} else if (last instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) last;
+			nstatements.add(new Stmt.IfElse(s.getCondition(), returns(
+					s.getTrueBranch(), result), returns(s.getFalseBranch(),
+					result), s.attributes()));
+		} else {
+			nstatements.add(last);
+		}
+		return nstatements;
+	}
+
+	// ==========================================
+	// Normalisation
+	// ==========================================
+
+	/**
+	 * Restructure a function body so that, where possible, it only returns at
+	 * the end. Specifically, statements following a conditional where one
+	 * branch returns are moved into the other branch. For example,
+	 * <code>if(x < 0) { return -x; } return x;</code> becomes
+	 * <code>if(x < 0) { return -x; } else { return x; }</code>.
+	 *
+	 * @param statements
+	 * @return
+	 */
+	private static List<Stmt> normalise(List<Stmt> statements) {
+		ArrayList<Stmt> nstatements = new ArrayList<Stmt>();
+		for (int i = 0; i != statements.size(); ++i) {
+			Stmt stmt = statements.get(i);
+			if (!(stmt instanceof Stmt.IfElse)) {
+				nstatements.add(stmt);
+				if (stmt instanceof Stmt.Return) {
+					break;
+				}
+				continue;
+			}
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			List<Stmt> trueBranch = normalise(s.getTrueBranch());
+			List<Stmt> falseBranch = normalise(s.getFalseBranch());
+			List<Stmt> rest = statements.subList(i + 1, statements.size());
+			boolean trueReturns = returnsOnAllPaths(trueBranch);
+			boolean falseReturns = returnsOnAllPaths(falseBranch);
+			if (trueReturns && falseReturns) {
+				// The remaining statements are unreachable.
+				nstatements.add(new Stmt.IfElse(s.getCondition(), trueBranch,
+						falseBranch, s.attributes()));
+				break;
+			} else if ((trueReturns || falseReturns) && !rest.isEmpty()) {
+				if (trueReturns) {
+					falseBranch = normalise(concat(falseBranch, rest));
+				} else {
+					trueBranch = normalise(concat(trueBranch, rest));
+				}
+				nstatements.add(new Stmt.IfElse(s.getCondition(), trueBranch,
+						falseBranch, s.attributes()));
+				break;
+			}
+			nstatements.add(new Stmt.IfElse(s.getCondition(), trueBranch,
+					falseBranch, s.attributes()));
+		}
+		return nstatements;
+	}
+
+	private static List<Stmt> concat(List<Stmt> first, List<Stmt> second) {
+		ArrayList<Stmt> r = new ArrayList<Stmt>(first);
+		r.addAll(second);
+		return r;
+	}
+
+	private static boolean returnsOnAllPaths(List<Stmt> statements) {
+		if (statements.isEmpty()) {
+			return false;
+		}
+		Stmt last = statements.get(statements.size() - 1);
+		if (last instanceof Stmt.Return) {
+			return true;
+		} else if (last instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) last;
+			return returnsOnAllPaths(s.getTrueBranch())
+					&& returnsOnAllPaths(s.getFalseBranch());
+		}
+		return false;
+	}
+
+	/**
+	 * Check that a (normalised) function body only returns at its end. That
+	 * is, the only return statements are the last statement in the body, or
+	 * (recursively) the last statements of the branches of a final
+	 * conditional.
+	 *
+	 * @param statements
+	 * @return
+	 */
+	private static boolean returnsAtEnd(List<Stmt> statements) {
+		for (int i = 0; i != statements.size(); ++i) {
+			Stmt stmt = statements.get(i);
+			boolean last = i == statements.size() - 1;
+			if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				if (last) {
+					if (!returnsAtEnd(s.getTrueBranch())
+							|| !returnsAtEnd(s.getFalseBranch())) {
+						return false;
+					}
+				} else if (hasReturn(s.getTrueBranch())
+						|| hasReturn(s.getFalseBranch())) {
+					return false;
+				}
+			} else if (stmt instanceof Stmt.While) {
+				if (hasReturn(((Stmt.While) stmt).getBody())) {
+					return false;
+				}
+			} else if (stmt instanceof Stmt.For) {
+				if (hasReturn(((Stmt.For) stmt).getBody())) {
+					return false;
+				}
+			} else if (stmt instanceof Stmt.Return && !last) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean hasReturn(List<Stmt> statements) {
+		for (Stmt stmt : statements) {
+			if (stmt instanceof Stmt.Return) {
+				return true;
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				if (hasReturn(s.getTrueBranch())
+						|| hasReturn(s.getFalseBranch())) {
+					return true;
+				}
+			} else if (stmt instanceof Stmt.While) {
+				if (hasReturn(((Stmt.While) stmt).getBody())) {
+					return true;
+				}
+			} else if (stmt instanceof Stmt.For) {
+				if (hasReturn(((Stmt.For) stmt).getBody())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// ==========================================
+	// Copying
+	// ==========================================
+
+	private List<Stmt> copy(List<Stmt> statements, Map<String, String> renaming) {
+		ArrayList<Stmt> nstatements = new ArrayList<Stmt>();
+		for (Stmt s : statements) {
+			nstatements.add(copy(s, renaming));
+		}
+		return nstatements;
+	}
+
+	/**
+	 * Copy a statement from an inlined function, renaming its variables.
+	 *
+	 * @param stmt
+	 * @param renaming
+	 * @return
+	 */
+	private Stmt copy(Stmt stmt, Map<String, String> renaming) {
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			return new Stmt.Assign((Expr.LVal) copy(s.getLhs(), renaming),
+					copy(s.getRhs(), renaming), s.attributes());
+		} else if (stmt instanceof Stmt.Print) {
+			Stmt.Print s = (Stmt.Print) stmt;
+			return new Stmt.Print(copy(s.getExpr(), renaming), s.attributes());
+		} else if (stmt instanceof Stmt.Return) {
+			Stmt.Return s = (Stmt.Return) stmt;
+			Expr e = s.getExpr() == null ? null : copy(s.getExpr(), renaming);
+			return new Stmt.Return(e, s.attributes());
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			Expr e = s.getExpr() == null ? null : copy(s.getExpr(), renaming);
+			return new Stmt.VariableDeclaration(s.getType(),
+					renaming.get(s.getName()), e, s.attributes());
+		} else if (stmt instanceof Expr.Invoke) {
+			return (Expr.Invoke) copy((Expr) stmt, renaming);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			return new Stmt.IfElse(copy(s.getCondition(), renaming), copy(
+					s.getTrueBranch(), renaming), copy(s.getFalseBranch(),
+					renaming), s.attributes());
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			Stmt.VariableDeclaration declaration = s.getDeclaration();
+			if (declaration != null) {
+				declaration = (Stmt.VariableDeclaration) copy(declaration,
+						renaming);
+			}
+			Expr condition = s.getCondition();
+			if (condition != null) {
+				condition = copy(condition, renaming);
+			}
+			Stmt increment = s.getIncrement();
+			if (increment != null) {
+				increment = copy(increment, renaming);
+			}
+			return new Stmt.For(declaration, condition, increment, copy(
+					s.getBody(), renaming), s.attributes());
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			return new Stmt.While(copy(s.getCondition(), renaming), copy(
+					s.getBody(), renaming), attributes(s));
+		}
+		internalFailure("unknown statement encountered (" + stmt + ")",
+				file.filename, stmt);
+		return null;
+	}
+
+	private Expr copy(Expr expr, Map<String, String> renaming) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			return new Expr.Binary(e.getOp(), copy(e.getLhs(), renaming),
+					copy(e.getRhs(), renaming), e.attributes());
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			return new Expr.Cast(e.getType(), copy(e.getSource(), renaming),
+					e.attributes());
+		} else if (expr instanceof Expr.Constant) {
+			return new Expr.Constant(((Expr.Constant) expr).getValue(),
+					attributes(expr));
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return new Expr.IndexOf(copy(e.getSource(), renaming), copy(
+					e.getIndex(), renaming), e.attributes());
+		} else if (expr instanceof Expr.Invoke) {
+			Expr.Invoke e = (Expr.Invoke) expr;
+			ArrayList<Expr> arguments = new ArrayList<Expr>();
+			for (Expr arg : e.getArguments()) {
+				arguments.add(copy(arg, renaming));
+			}
+			Expr.Invoke r = new Expr.Invoke(e.getName(), arguments,
+					attributes(e));
+			r.setTarget(e.getTarget());
+			return r;
+		} else if (expr instanceof Expr.ListConstructor) {
+			ArrayList<Expr> arguments = new ArrayList<Expr>();
+			for (Expr arg : ((Expr.ListConstructor) expr).getArguments()) {
+				arguments.add(copy(arg, renaming));
+			}
+			return new Expr.ListConstructor(arguments, attributes(expr));
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			return new Expr.RecordAccess(copy(e.getSource(), renaming),
+					e.getName(), attributes(e));
+		} else if (expr instanceof Expr.RecordConstructor) {
+			ArrayList<Pair<String, Expr>> fields = new ArrayList<Pair<String, Expr>>();
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				fields.add(new Pair<String, Expr>(p.first(), copy(p.second(),
+						renaming)));
+			}
+			return new Expr.RecordConstructor(fields, attributes(expr));
+		} else if (expr instanceof Expr.Unary) {
+			Expr.Unary e = (Expr.Unary) expr;
+			return new Expr.Unary(e.getOp(), copy(e.getExpr(), renaming),
+					attributes(e));
+		} else if (expr instanceof Expr.Variable) {
+			Expr.Variable e = (Expr.Variable) expr;
+			String name = renaming.get(e.getName());
+			if (name != null) {
+				return new Expr.Variable(name, attributes(e));
+			}
+			// Any variable not renamed refers to a constant. Its value is
+			// copied in place, since the caller may have a variable of the
+			// same name. Any constants it refers to are copied in turn.
+			WhileFile.ConstDecl cd = constants.get(e.getName());
+			if (cd != null) {
+				return copy(cd.constant,
+						Collections.<String, String> emptyMap());
+			}
+		}
+		internalFailure("unknown expression encountered (" + expr + ")",
+				file.filename, expr);
+		return null;
+	}
+
+	/**
+	 * Replace a given invocation within a statement by the variable holding
+	 * its result.
+	 *
+	 * @param stmt
+	 * @param site
+	 * @param result
+	 * @return
+	 */
+	private Stmt replace(Stmt stmt, Expr.Invoke site, Expr result) {
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			return new Stmt.Assign(s.getLhs(), replace(s.getRhs(), site,
+					result), s.attributes());
+		} else if (stmt instanceof Stmt.Print) {
+			Stmt.Print s = (Stmt.Print) stmt;
+			return new Stmt.Print(replace(s.getExpr(), site, result),
+					s.attributes());
+		} else if (stmt instanceof Stmt.Return) {
+			Stmt.Return s = (Stmt.Return) stmt;
+			return new Stmt.Return(replace(s.getExpr(), site, result),
+					s.attributes());
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			return new Stmt.VariableDeclaration(s.getType(), s.getName(),
+					replace(s.getExpr(), site, result), s.attributes());
+		} else if (stmt instanceof Expr.Invoke) {
+			return (Expr.Invoke) replace((Expr) stmt, site, result);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			return new Stmt.IfElse(replace(s.getCondition(), site, result),
+					s.getTrueBranch(), s.getFalseBranch(), s.attributes());
+		}
+		internalFailure("unknown statement encountered (" + stmt + ")",
+				file.filename, stmt);
+		return null;
+	}
+
+	private Expr replace(Expr expr, Expr.Invoke site, Expr result) {
+		if (expr == site) {
+			return result;
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			return new Expr.Binary(e.getOp(), replace(e.getLhs(), site,
+					result), replace(e.getRhs(), site, result), e.attributes());
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			return new Expr.Cast(e.getType(), replace(e.getSource(), site,
+					result), e.attributes());
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return new Expr.IndexOf(replace(e.getSource(), site, result),
+					replace(e.getIndex(), site, result), e.attributes());
+		} else if (expr instanceof Expr.Invoke) {
+			List<Expr> arguments = ((Expr.Invoke) expr).getArguments();
+			for (int i = 0; i != arguments.size(); ++i) {
+				arguments.set(i, replace(arguments.get(i), site, result));
+			}
+		} else if (expr instanceof Expr.ListConstructor) {
+			List<Expr> arguments = ((Expr.ListConstructor) expr).getArguments();
+			for (int i = 0; i != arguments.size(); ++i) {
+				arguments.set(i, replace(arguments.get(i), site, result));
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			return new Expr.RecordAccess(replace(e.getSource(), site, result),
+					e.getName(), attributes(e));
+		} else if (expr instanceof Expr.RecordConstructor) {
+			List<Pair<String, Expr>> fields = ((Expr.RecordConstructor) expr)
+					.getFields();
+			for (int i = 0; i != fields.size(); ++i) {
+				Pair<String, Expr> p = fields.get(i);
+				fields.set(i, new Pair<String, Expr>(p.first(), replace(
+						p.second(), site, result)));
+			}
+		} else if (expr instanceof Expr.Unary) {
+			Expr.Unary e = (Expr.Unary) expr;
+			return new Expr.Unary(e.getOp(), replace(e.getExpr(), site, result),
+					attributes(e));
+		}
+		return expr;
+	}
+
+	// ==========================================
+	// Helpers
+	// ==========================================
+
+	/**
+	 * Give a fresh name to every variable declared within a given sequence of
+	 * statements.
+	 *
+	 * @param statements
+	 * @param prefix
+	 * @param renaming
+	 */
+	private static void declared(List<Stmt> statements, String prefix,
+			Map<String, String> renaming) {
+		for (Stmt stmt : statements) {
+			if (stmt instanceof Stmt.VariableDeclaration) {
+				String name = ((Stmt.VariableDeclaration) stmt).getName();
+				renaming.put(name, prefix + "_" + name);
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				declared(s.getTrueBranch(), prefix, renaming);
+				declared(s.getFalseBranch(), prefix, renaming);
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				if (s.getDeclaration() != null) {
+					declared(Collections.<Stmt> singletonList(s
+							.getDeclaration()), prefix, renaming);
+				}
+				declared(s.getBody(), prefix, renaming);
+			} else if (stmt instanceof Stmt.While) {
+				declared(((Stmt.While) stmt).getBody(), prefix, renaming);
+			}
+		}
+	}
+
+	/**
+	 * Check whether a function can (directly or indirectly) invoke itself.
+	 *
+	 * @param name
+	 * @param callees
+	 *            The functions invoked directly by each function.
+	 * @return
+	 */
+	private static boolean isRecursive(String name,
+			Map<String, Set<String>> callees) {
+		HashSet<String> visited = new HashSet<String>();
+		ArrayList<String> worklist = new ArrayList<String>(callees.get(name));
+		while (!worklist.isEmpty()) {
+			String callee = worklist.remove(worklist.size() - 1);
+			if (callee.equals(name)) {
+				return true;
+			} else if (visited.add(callee) && callees.containsKey(callee)) {
+				worklist.addAll(callees.get(callee));
+			}
+		}
+		return false;
+	}
+}
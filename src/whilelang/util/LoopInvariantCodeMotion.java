@@ -0,0 +1,448 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.util;
+
+import static whilelang.util.Expressions.attributes;
+import static whilelang.util.Expressions.isComputation;
+import static whilelang.util.Expressions.isPrimitive;
+import static whilelang.util.Expressions.isSafe;
+import static whilelang.util.Expressions.root;
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.*;
+
+import whilelang.lang.*;
+
+/**
+ * <p>
+ * Responsible for moving computations which give the same result on every
+ * iteration of a loop out of that loop. For example, consider this loop:
+ * </p>
+ *
+ * <pre>
+ * while (i &lt; |xs|) {
+ * 	t = t + r.f * 2;
+ * 	i = i + 1;
+ * }
+ * </pre>
+ * <p>
+ * Here, neither <code>xs</code> nor <code>r</code> are modified by the loop.
+ * Since While has value semantics, <code>|xs|</code> and <code>r.f * 2</code>
+ * therefore cannot change either, and so they are evaluated once into fresh
+ * variables declared before the loop.
+ * </p>
+ * <p>
+ * An expression is only moved if it does not depend on any variable modified
+ * in the loop, and invokes only pure functions (see
+ * <code>EffectAnalysis</code>). Since the body of a loop may never be
+ * executed, an expression is only moved out of the body if it cannot fail
+ * (e.g. it does not index a list, or divide by a variable). However, the
+ * condition of a loop is always evaluated at least once, so any invariant
+ * expression evaluated unconditionally by the condition can be moved. Only
+ * expressions of primitive type are moved, since the interpreters copy
+ * compound values read from variables.
+ * </p>
+ * <p>
+ * This must be applied after type checking, since the declared type of each
+ * fresh variable is the type attribute of its expression. Slots must be
+ * allocated afterwards (see <code>VariableResolver</code>).
+ * </p>
+ *
+ */
+public class LoopInvariantCodeMotion {
+	private WhileFile file;
+	private int fresh;
+
+	public void optimise(WhileFile wf) {
+		this.file = wf;
+		this.fresh = 0;
+		new FunctionResolver().resolve(wf);
+		new EffectAnalysis().analyse(wf);
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.FunDecl) {
+				optimise((WhileFile.FunDecl) declaration);
+			}
+		}
+	}
+
+	public void optimise(WhileFile.FunDecl fd) {
+		List<Stmt> statements = optimise(fd.statements);
+		fd.statements.clear();
+		fd.statements.addAll(statements);
+	}
+
+	// ==========================================
+	// Loops
+	// ==========================================
+
+	/**
+	 * Move invariant expressions out of every loop in a sequence of
+	 * statements. Inner loops are considered before the loops enclosing them,
+	 * so that an expression can move out of several loops.
+	 *
+	 * @param statements
+	 * @return
+	 */
+	private List<Stmt> optimise(List<Stmt> statements) {
+		ArrayList<Stmt> nstatements = new ArrayList<Stmt>();
+		for (Stmt stmt : statements) {
+			if (stmt instanceof Stmt.While) {
+				Stmt.While s = (Stmt.While) stmt;
+				List<Stmt> body = optimise(s.getBody());
+				HashSet<String> modified = new HashSet<String>();
+				modified(body, modified);
+				ArrayList<Stmt> hoisted = new ArrayList<Stmt>();
+				Expr condition = hoist(s.getCondition(), modified, true,
+						hoisted);
+				body = hoist(body, modified, hoisted);
+				nstatements.addAll(hoisted);
+				nstatements.add(new Stmt.While(condition, body, attributes(s)));
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				List<Stmt> body = optimise(s.getBody());
+				Stmt.VariableDeclaration declaration = s.getDeclaration();
+				Stmt increment = s.getIncrement();
+				HashSet<String> modified = new HashSet<String>();
+				modified(body, modified);
+				if (declaration != null) {
+					modified.add(declaration.getName());
+				}
+				if (increment != null) {
+					modified(Collections.singletonList(increment), modified);
+				}
+				// The condition is evaluated after the declaration, so an
+				// expression which might fail can only be moved in front of
+				// a declaration which cannot.
+				boolean first = declaration == null
+						|| declaration.getExpr() == null
+						|| isSafe(declaration.getExpr());
+				ArrayList<Stmt> hoisted = new ArrayList<Stmt>();
+				Expr condition = s.getCondition();
+				if (condition != null) {
+					condition = hoist(condition, modified, first, hoisted);
+				}
+				body = hoist(body, modified, hoisted);
+				if (increment != null) {
+					increment = hoist(Collections.singletonList(increment),
+							modified, hoisted).get(0);
+				}
+				nstatements.addAll(hoisted);
+				nstatements.add(new Stmt.For(declaration, condition,
+						increment, body, s.attributes()));
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				nstatements.add(new Stmt.IfElse(s.getCondition(), optimise(s
+						.getTrueBranch()), optimise(s.getFalseBranch()), s
+						.attributes()));
+			} else {
+				nstatements.add(stmt);
+			}
+		}
+		return nstatements;
+	}
+
+	/**
+	 * Collect the names of all variables declared or assigned (in whole or in
+	 * part) within a given sequence of statements.
+	 *
+	 * @param statements
+	 * @param names
+	 */
+	private static void modified(List<Stmt> statements, Set<String> names) {
+		for (Stmt stmt : statements) {
+			if (stmt instanceof Stmt.Assign) {
+				names.add(root(((Stmt.Assign) stmt).getLhs()));
+			} else if (stmt instanceof Stmt.VariableDeclaration) {
+				names.add(((Stmt.VariableDeclaration) stmt).getName());
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				modified(s.getTrueBranch(), names);
+				modified(s.getFalseBranch(), names);
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				if (s.getDeclaration() != null) {
+					names.add(s.getDeclaration().getName());
+				}
+				if (s.getIncrement() != null) {
+					modified(Collections.singletonList(s.getIncrement()), names);
+				}
+				modified(s.getBody(), names);
+			} else if (stmt instanceof Stmt.While) {
+				modified(((Stmt.While) stmt).getBody(), names);
+			}
+		}
+	}
+
+	// ==========================================
+	// Hoisting
+	// ==========================================
+
+	/**
+	 * Move invariant expressions out of a sequence of statements within a
+	 * loop. Since these statements may not be executed, only expressions
+	 * which cannot fail are moved.
+	 *
+	 * @param statements
+	 * @param modified
+	 *            Variables modified by the loop.
+	 * @param hoisted
+	 *            Declarations of the fresh variables to place before the
+	 *            loop.
+	 * @return
+	 */
+	private List<Stmt> hoist(List<Stmt> statements, Set<String> modified,
+			List<Stmt> hoisted) {
+		ArrayList<Stmt> nstatements = new ArrayList<Stmt>();
+		for (Stmt stmt : statements) {
+			nstatements.add(hoist(stmt, modified, hoisted));
+		}
+		return nstatements;
+	}
+
+	private Stmt hoist(Stmt stmt, Set<String> modified, List<Stmt> hoisted) {
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			return new Stmt.Assign(hoist(s.getLhs(), modified, hoisted),
+					hoist(s.getRhs(), modified, false, hoisted),
+					s.attributes());
+		} else if (stmt instanceof Stmt.Print) {
+			Stmt.Print s = (Stmt.Print) stmt;
+			return new Stmt.Print(hoist(s.getExpr(), modified, false, hoisted),
+					s.attributes());
+		} else if (stmt instanceof Stmt.Return) {
+			Stmt.Return s = (Stmt.Return) stmt;
+			if (s.getExpr() == null) {
+				return s;
+			}
+			return new Stmt.Return(
+					hoist(s.getExpr(), modified, false, hoisted),
+					s.attributes());
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			if (s.getExpr() == null) {
+				return s;
+			}
+			return new Stmt.VariableDeclaration(s.getType(), s.getName(),
+					hoist(s.getExpr(), modified, false, hoisted),
+					s.attributes());
+		} else if (stmt instanceof Expr.Invoke) {
+			hoistArguments((Expr.Invoke) stmt, modified, false, hoisted);
+			return stmt;
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			return new Stmt.IfElse(hoist(s.getCondition(), modified, false,
+					hoisted), hoist(s.getTrueBranch(), modified, hoisted),
+					hoist(s.getFalseBranch(), modified, hoisted),
+					s.attributes());
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			Stmt.VariableDeclaration declaration = s.getDeclaration();
+			if (declaration != null) {
+				declaration = (Stmt.VariableDeclaration) hoist(declaration,
+						modified, hoisted);
+			}
+			Expr condition = s.getCondition();
+			if (condition != null) {
+				condition = hoist(condition, modified, false, hoisted);
+			}
+			Stmt increment = s.getIncrement();
+			if (increment != null) {
+				increment = hoist(increment, modified, hoisted);
+			}
+			return new Stmt.For(declaration, condition, increment, hoist(
+					s.getBody(), modified, hoisted), s.attributes());
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			return new Stmt.While(hoist(s.getCondition(), modified, false,
+					hoisted), hoist(s.getBody(), modified, hoisted),
+					attributes(s));
+		}
+		internalFailure("unknown statement encountered (" + stmt + ")",
+				file.filename, stmt);
+		return null;
+	}
+
+	private Expr.LVal hoist(Expr.LVal lval, Set<String> modified,
+			List<Stmt> hoisted) {
+		if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) lval;
+			return new Expr.IndexOf(hoist((Expr.LVal) e.getSource(), modified,
+					hoisted), hoist(e.getIndex(), modified, false, hoisted),
+					e.attributes());
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) lval;
+			return new Expr.RecordAccess(hoist((Expr.LVal) e.getSource(),
+					modified, hoisted), e.getName(), attributes(e));
+		}
+		return lval;
+	}
+
+	/**
+	 * Move the largest invariant subexpressions of a given expression out of
+	 * the loop.
+	 *
+	 * @param expr
+	 * @param modified
+	 *            Variables modified by the loop.
+	 * @param first
+	 *            Whether the expression is evaluated before anything else in
+	 *            the loop which has an effect or might fail, and so may be
+	 *            moved even if it might fail itself.
+	 * @param hoisted
+	 *            Declarations of the fresh variables to place before the
+	 *            loop.
+	 * @return
+	 */
+	private Expr hoist(Expr expr, Set<String> modified, boolean first,
+			List<Stmt> hoisted) {
+		Attribute.Type type = expr.attribute(Attribute.Type.class);
+		if (isComputation(expr) && type != null && isPrimitive(type.type)
+				&& isInvariant(expr, modified) && (first || isSafe(expr))) {
+			String name = "$hoist" + fresh++;
+			hoisted.add(new Stmt.VariableDeclaration(type.type, name, expr,
+					expr.attributes()));
+			return new Expr.Variable(name, attributes(expr));
+		}
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			// The right-hand side of a short-circuiting operator is not
+			// always evaluated.
+			boolean always = e.getOp() != Expr.BOp.AND
+					&& e.getOp() != Expr.BOp.OR;
+			Expr lhs = hoist(e.getLhs(), modified, first, hoisted);
+			// Nothing which might fail can be moved in front of an operand
+			// left in the loop which has an effect or might fail.
+			first &= always && isSafe(lhs);
+			Expr rhs = hoist(e.getRhs(), modified, first, hoisted);
+			return new Expr.Binary(e.getOp(), lhs, rhs, e.attributes());
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			return new Expr.Cast(e.getType(), hoist(e.getSource(), modified,
+					first, hoisted), e.attributes());
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			Expr source = hoist(e.getSource(), modified, first, hoisted);
+			Expr index = hoist(e.getIndex(), modified, first
+					&& isSafe(source), hoisted);
+			return new Expr.IndexOf(source, index, e.attributes());
+		} else if (expr instanceof Expr.Invoke) {
+			hoistArguments((Expr.Invoke) expr, modified, first, hoisted);
+			return expr;
+		} else if (expr instanceof Expr.ListConstructor) {
+			List<Expr> arguments = ((Expr.ListConstructor) expr).getArguments();
+			for (int i = 0; i != arguments.size(); ++i) {
+				arguments.set(i, hoist(arguments.get(i), modified, first,
+						hoisted));
+				first &= isSafe(arguments.get(i));
+			}
+			return expr;
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			return new Expr.RecordAccess(hoist(e.getSource(), modified, first,
+					hoisted), e.getName(), attributes(e));
+		} else if (expr instanceof Expr.RecordConstructor) {
+			List<Pair<String, Expr>> fields = ((Expr.RecordConstructor) expr)
+					.getFields();
+			for (int i = 0; i != fields.size(); ++i) {
+				Pair<String, Expr> p = fields.get(i);
+				fields.set(i, new Pair<String, Expr>(p.first(), hoist(
+						p.second(), modified, first, hoisted)));
+				first &= isSafe(fields.get(i).second());
+			}
+			return expr;
+		} else if (expr instanceof Expr.Unary) {
+			Expr.Unary e = (Expr.Unary) expr;
+			return new Expr.Unary(e.getOp(), hoist(e.getExpr(), modified,
+					first, hoisted), attributes(e));
+		}
+		return expr;
+	}
+
+	private void hoistArguments(Expr.Invoke expr, Set<String> modified,
+			boolean first, List<Stmt> hoisted) {
+		List<Expr> arguments = expr.getArguments();
+		for (int i = 0; i != arguments.size(); ++i) {
+			arguments.set(i, hoist(arguments.get(i), modified, first, hoisted));
+			first &= isSafe(arguments.get(i));
+		}
+	}
+
+	// ==========================================
+	// Helpers
+	// ==========================================
+
+	/**
+	 * Check whether an expression gives the same result on every iteration of
+	 * a loop. That is, it reads no variable modified by the loop, and invokes
+	 * only pure functions.
+	 *
+	 * @param expr
+	 * @param modified
+	 * @return
+	 */
+	private static boolean isInvariant(Expr expr, Set<String> modified) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			return isInvariant(e.getLhs(), modified)
+					&& isInvariant(e.getRhs(), modified);
+		} else if (expr instanceof Expr.Cast) {
+			return isInvariant(((Expr.Cast) expr).getSource(), modified);
+		} else if (expr instanceof Expr.Constant) {
+			return true;
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return isInvariant(e.getSource(), modified)
+					&& isInvariant(e.getIndex(), modified);
+		} else if (expr instanceof Expr.Invoke) {
+			Expr.Invoke e = (Expr.Invoke) expr;
+			if (e.getTarget() == null || !e.getTarget().isPure()) {
+				return false;
+			}
+			for (Expr arg : e.getArguments()) {
+				if (!isInvariant(arg, modified)) {
+					return false;
+				}
+			}
+			return true;
+		} else if (expr instanceof Expr.ListConstructor) {
+			for (Expr arg : ((Expr.ListConstructor) expr).getArguments()) {
+				if (!isInvariant(arg, modified)) {
+					return false;
+				}
+			}
+			return true;
+		} else if (expr instanceof Expr.RecordAccess) {
+			return isInvariant(((Expr.RecordAccess) expr).getSource(), modified);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				if (!isInvariant(p.second(), modified)) {
+					return false;
+				}
+			}
+			return true;
+		} else if (expr instanceof Expr.Unary) {
+			return isInvariant(((Expr.Unary) expr).getExpr(), modified);
+		} else if (expr instanceof Expr.Variable) {
+			return !modified.contains(((Expr.Variable) expr).getName());
+		}
+		return false;
+	}
+}
@@ -0,0 +1,268 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.util;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+import whilelang.lang.*;
+
+/**
+ * <p>
+ * Records the cost of each phase of compiling or running a file (e.g. lexing,
+ * parsing, type checking and interpreting), so that a regression can be
+ * attributed to the phase responsible. For every phase, this records the wall
+ * clock time taken, the bytes allocated by the current thread (where the JVM
+ * can report this), and optionally the size of what the phase produced (e.g.
+ * the number of tokens or AST nodes).
+ * </p>
+ * <p>
+ * A disabled instance records nothing, so phases can be marked
+ * unconditionally.
+ * </p>
+ *
+ */
+public final class PhaseStats {
+	private static final class Phase {
+		final String name;
+		final long nanos;
+		final long bytes;
+		final String size;
+
+		Phase(String name, long nanos, long bytes, String size) {
+			this.name = name;
+			this.nanos = nanos;
+			this.bytes = bytes;
+			this.size = size;
+		}
+	}
+
+	private final boolean enabled;
+	private final ArrayList<Phase> phases = new ArrayList<Phase>();
+	private String current;
+	private long start;
+	private long allocated;
+
+	public PhaseStats(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Record that a given phase is starting.
+	 *
+	 * @param phase
+	 */
+	public void begin(String phase) {
+		if (enabled) {
+			current = phase;
+			allocated = allocatedBytes();
+			start = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Record that the current phase has finished.
+	 *
+	 * @param size
+	 *            Description of the size of what the phase produced, or
+	 *            <code>null</code>.
+	 */
+	public void end(String size) {
+		if (enabled && current != null) {
+			long nanos = System.nanoTime() - start;
+			long bytes = allocated < 0 ? -1 : allocatedBytes() - allocated;
+			phases.add(new Phase(current, nanos, bytes, size));
+			current = null;
+		}
+	}
+
+	/**
+	 * Print the cost of each phase. A phase which never finished (because it
+	 * failed) is reported up to this point.
+	 *
+	 * @param output
+	 */
+	public void report(PrintStream output) {
+		if (!enabled) {
+			return;
+		}
+		end("(failed)");
+		output.println(String.format("%-12s %12s %14s  %s", "phase",
+				"time ms", "allocated KB", "size"));
+		long nanos = 0;
+		long bytes = 0;
+		for (Phase p : phases) {
+			output.println(String.format("%-12s %12.3f %14s  %s", p.name,
+					p.nanos / 1e6, kilobytes(p.bytes), p.size == null ? ""
+							: p.size));
+			nanos += p.nanos;
+			bytes = bytes < 0 || p.bytes < 0 ? -1 : bytes + p.bytes;
+		}
+		output.println(String.format("%-12s %12.3f %14s", "total",
+				nanos / 1e6, kilobytes(bytes)));
+	}
+
+	private static String kilobytes(long bytes) {
+		return bytes < 0 ? "-" : Long.toString(bytes / 1024);
+	}
+
+	/**
+	 * Get the number of bytes allocated by the current thread so far, if the
+	 * JVM supports this. The extended <code>ThreadMXBean</code> which reports
+	 * it is only present on some JVMs (e.g. HotSpot from 6u25), and may still
+	 * refuse to.
+	 *
+	 * @return The number of bytes, or -1 if unknown.
+	 */
+	private static long allocatedBytes() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory
+					.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				return ((com.sun.management.ThreadMXBean) bean)
+						.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		} catch (LinkageError e) {
+			// the extended bean does not exist on this JVM
+		} catch (UnsupportedOperationException e) {
+			// the bean exists, but cannot measure allocation
+		}
+		return -1;
+	}
+
+	// ==========================================
+	// Node Counts
+	// ==========================================
+
+	/**
+	 * Count the declarations, statements and expressions in a given file.
+	 *
+	 * @param wf
+	 * @return
+	 */
+	public static int countNodes(WhileFile wf) {
+		int count = 0;
+		for (WhileFile.Decl decl : wf.declarations) {
+			count++;
+			if (decl instanceof WhileFile.FunDecl) {
+				count += countNodes(((WhileFile.FunDecl) decl).statements, wf);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Count the statements and expressions in a given block.
+	 *
+	 * @param statements
+	 * @param wf
+	 * @return
+	 */
+	static int countNodes(List<Stmt> statements, WhileFile wf) {
+		int count = 0;
+		for (Stmt s : statements) {
+			count += countNodes(s, wf);
+		}
+		return count;
+	}
+
+	private static int countNodes(Stmt stmt, WhileFile wf) {
+		if (stmt == null) {
+			return 0;
+		} else if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			return 1 + countNodes(s.getLhs(), wf) + countNodes(s.getRhs(), wf);
+		} else if (stmt instanceof Stmt.Print) {
+			return 1 + countNodes(((Stmt.Print) stmt).getExpr(), wf);
+		} else if (stmt instanceof Stmt.Return) {
+			return 1 + countNodes(((Stmt.Return) stmt).getExpr(), wf);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			return 1 + countNodes(((Stmt.VariableDeclaration) stmt).getExpr(),
+					wf);
+		} else if (stmt instanceof Expr.Invoke) {
+			return countNodes((Expr) stmt, wf);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			return 1 + countNodes(s.getCondition(), wf)
+					+ countNodes(s.getTrueBranch(), wf)
+					+ countNodes(s.getFalseBranch(), wf);
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			return 1 + countNodes(s.getDeclaration(), wf)
+					+ countNodes(s.getCondition(), wf)
+					+ countNodes(s.getIncrement(), wf)
+					+ countNodes(s.getBody(), wf);
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			return 1 + countNodes(s.getCondition(), wf)
+					+ countNodes(s.getBody(), wf);
+		}
+		internalFailure("unknown statement encountered (" + stmt + ")",
+				wf.filename, stmt);
+		return 0;
+	}
+
+	private static int countNodes(Expr expr, WhileFile wf) {
+		if (expr == null) {
+			return 0;
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			return 1 + countNodes(e.getLhs(), wf) + countNodes(e.getRhs(), wf);
+		} else if (expr instanceof Expr.Cast) {
+			return 1 + countNodes(((Expr.Cast) expr).getSource(), wf);
+		} else if (expr instanceof Expr.Constant
+				|| expr instanceof Expr.Variable) {
+			return 1;
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return 1 + countNodes(e.getSource(), wf)
+					+ countNodes(e.getIndex(), wf);
+		} else if (expr instanceof Expr.Invoke) {
+			int count = 1;
+			for (Expr arg : ((Expr.Invoke) expr).getArguments()) {
+				count += countNodes(arg, wf);
+			}
+			return count;
+		} else if (expr instanceof Expr.ListConstructor) {
+			int count = 1;
+			for (Expr arg : ((Expr.ListConstructor) expr).getArguments()) {
+				count += countNodes(arg, wf);
+			}
+			return count;
+		} else if (expr instanceof Expr.RecordAccess) {
+			return 1 + countNodes(((Expr.RecordAccess) expr).getSource(), wf);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			int count = 1;
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				count += countNodes(p.second(), wf);
+			}
+			return count;
+		} else if (expr instanceof Expr.Unary) {
+			return 1 + countNodes(((Expr.Unary) expr).getExpr(), wf);
+		}
+		internalFailure("unknown expression encountered (" + expr + ")",
+				wf.filename, expr);
+		return 0;
+	}
+}
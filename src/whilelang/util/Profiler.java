@@ -0,0 +1,252 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.util;
+
+import java.io.*;
+import java.util.*;
+
+import whilelang.lang.*;
+
+/**
+ * <p>
+ * Records where time is spent whilst interpreting a While program. For every
+ * function, this records the number of calls, and the time spent in it both
+ * inclusive and exclusive of the functions it calls. For every statement, this
+ * records the number of times it was executed. Afterwards, a report of the
+ * hotspots can be printed, which identifies statements by their line in the
+ * source file (see <code>Attribute.Source</code>).
+ * </p>
+ * <p>
+ * The interpreter calls <code>enter()</code> and <code>exit()</code> around
+ * the body of every function, and <code>count()</code> before every
+ * statement. Each of these does a small, constant amount of work, such that
+ * profiling can be left on without distorting the results too much. Time spent
+ * in a recursive call is only included once in its function's inclusive time.
+ * </p>
+ * <p>
+ * Reading the system clock on every call would cost more than executing a
+ * small function. Instead, <code>enter()</code> and <code>exit()</code> only
+ * maintain a shadow stack of the functions executing, and a background thread
+ * wakes up roughly every millisecond and charges the time since it last woke
+ * to the functions on that stack. Thus, the time of a function is measured by
+ * sampling, and only its totals (rather than individual calls) are accurate.
+ * The shadow stack is read without synchronisation, for the same reasons as
+ * in <code>Sampler</code>.
+ * </p>
+ *
+ */
+public final class Profiler {
+	private static final int REPORTED_STATEMENTS = 20;
+
+	/**
+	 * The information recorded for a single function.
+	 */
+	private static final class Function {
+		final WhileFile.FunDecl decl;
+		long calls;
+		long inclusive;
+		long exclusive;
+		// The last tick charged to this function's inclusive time, so that
+		// a recursive function is charged once per tick.
+		long tick;
+
+		Function(WhileFile.FunDecl decl) {
+			this.decl = decl;
+		}
+	}
+
+	private final SourceLines source;
+	private final Thread clock;
+	private volatile boolean stopped;
+	private final IdentityHashMap<WhileFile.FunDecl, Function> functions = new IdentityHashMap<WhileFile.FunDecl, Function>();
+	// The number of times each statement was executed, along with the
+	// statement itself, indexed by statement (see Stmt.getIndex()).
+	private long[] counts = new long[64];
+	private Stmt[] statements = new Stmt[64];
+
+	// The shadow stack of functions currently executing, which the clock
+	// thread charges time to.
+	private Function[] stack = new Function[16];
+	private int depth;
+	private long ticks;
+	// The function most recently entered, which is often entered again next
+	// (e.g. when it is recursive, or called in a loop).
+	private Function last;
+
+	/**
+	 * Construct a profiler, which starts its clock immediately.
+	 *
+	 * @param file
+	 *            File being profiled.
+	 */
+	public Profiler(WhileFile file) {
+		this.source = new SourceLines(file.filename);
+		this.clock = new Thread("profiler-clock") {
+			public void run() {
+				long then = System.nanoTime();
+				while (!stopped) {
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						// carry on until stopped
+					}
+					long now = System.nanoTime();
+					charge(now - then);
+					then = now;
+				}
+			}
+		};
+		clock.setDaemon(true);
+		clock.start();
+	}
+
+	/**
+	 * Stop the profiler's clock, once nothing more is to be recorded. This
+	 * waits for the clock to charge its last tick.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		stopped = true;
+		clock.interrupt();
+		clock.join();
+	}
+
+	/**
+	 * Record that the body of a given function is about to be executed.
+	 *
+	 * @param decl
+	 */
+	public void enter(WhileFile.FunDecl decl) {
+		Function f = last;
+		if (f == null || f.decl != decl) {
+			f = functions.get(decl);
+			if (f == null) {
+				f = new Function(decl);
+				functions.put(decl, f);
+			}
+			last = f;
+		}
+		f.calls++;
+		if (depth == stack.length) {
+			stack = Arrays.copyOf(stack, depth * 2);
+		}
+		stack[depth++] = f;
+	}
+
+	/**
+	 * Record that the body of the function most recently entered has finished
+	 * executing (either normally, or because of an exception).
+	 */
+	public void exit() {
+		depth--;
+	}
+
+	/**
+	 * Record that a given statement is about to be executed. The statement
+	 * must have been given an index (see <code>VariableResolver</code>).
+	 *
+	 * @param stmt
+	 */
+	public void count(Stmt stmt) {
+		int index = ((Stmt.Impl) stmt).getIndex();
+		if (index >= counts.length) {
+			int n = Math.max(index + 1, counts.length * 2);
+			counts = Arrays.copyOf(counts, n);
+			statements = Arrays.copyOf(statements, n);
+		}
+		if (counts[index]++ == 0) {
+			statements[index] = stmt;
+		}
+	}
+
+	/**
+	 * Print a report of the functions, sorted by exclusive time, followed by
+	 * the most frequently executed statements.
+	 *
+	 * @param output
+	 */
+	public void report(PrintStream output) {
+		ArrayList<Function> fs = new ArrayList<Function>(functions.values());
+		Collections.sort(fs, new Comparator<Function>() {
+			public int compare(Function f1, Function f2) {
+				return f1.exclusive < f2.exclusive ? 1
+						: f1.exclusive == f2.exclusive ? 0 : -1;
+			}
+		});
+		output.println("Functions (by exclusive time):");
+		output.println(String.format("  %12s %14s %14s  %s", "calls",
+				"inclusive ms", "exclusive ms", "function"));
+		for (Function f : fs) {
+			output.println(String.format("  %12d %14.3f %14.3f  %s (line %d)",
+					f.calls, f.inclusive / 1e6, f.exclusive / 1e6,
+					f.decl.name, source.line(f.decl)));
+		}
+
+		ArrayList<Integer> cs = new ArrayList<Integer>();
+		for (int i = 0; i != counts.length; ++i) {
+			if (counts[i] != 0) {
+				cs.add(i);
+			}
+		}
+		Collections.sort(cs, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				return counts[i1] < counts[i2] ? 1
+						: counts[i1] == counts[i2] ? 0 : -1;
+			}
+		});
+		output.println("Statements (by execution count):");
+		output.println(String.format("  %12s %6s  %s", "count", "line",
+				"statement"));
+		for (int i = 0; i != Math.min(REPORTED_STATEMENTS, cs.size()); ++i) {
+			int index = cs.get(i);
+			int line = source.line(statements[index]);
+			output.println(String.format("  %12d %6d  %s", counts[index],
+					line, source.text(line)));
+		}
+	}
+
+	/**
+	 * Charge a given amount of time to the functions on the shadow stack. This
+	 * is called by the clock thread on every tick.
+	 *
+	 * @param elapsed
+	 *            Time since the last tick, in nanoseconds.
+	 */
+	private void charge(long elapsed) {
+		Function[] fs = stack;
+		int n = Math.min(depth, fs.length);
+		if (n <= 0) {
+			return;
+		}
+		long tick = ++ticks;
+		Function top = fs[n - 1];
+		if (top != null) {
+			top.exclusive += elapsed;
+		}
+		for (int i = 0; i != n; ++i) {
+			Function f = fs[i];
+			if (f != null && f.tick != tick) {
+				f.tick = tick;
+				f.inclusive += elapsed;
+			}
+		}
+	}
+}
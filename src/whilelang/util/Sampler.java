@@ -0,0 +1,268 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.util;
+
+import java.io.*;
+import java.util.*;
+
+import whilelang.lang.*;
+
+/**
+ * <p>
+ * A sampling profiler for interpreted While programs. The interpreter
+ * maintains a shadow stack of the functions being executed, along with the
+ * statement each is currently executing, by calling <code>push()</code>,
+ * <code>pop()</code> and <code>at()</code>. These only store into arrays,
+ * and so cost next to nothing. Meanwhile, a background thread periodically
+ * reads the shadow stack and counts how often each distinct stack was seen.
+ * </p>
+ * <p>
+ * The shadow stack is read without synchronisation, so a sample taken whilst
+ * a call or return is in progress may be slightly wrong. This does not matter
+ * for a statistical profile, and avoids slowing down the interpreter. For the
+ * same reason, the position of each frame is held as the index of the
+ * statement (see <code>Stmt.getIndex()</code>) rather than a reference to it,
+ * since storing references into a long-lived array on every statement is
+ * surprisingly expensive with some garbage collectors. Indices are only
+ * converted into lines when the samples are written.
+ * </p>
+ * <p>
+ * The samples are written in the "collapsed stack" format accepted by flame
+ * graph tools. Each line holds the frames of a stack from the outermost
+ * inwards, separated by semi-colons, followed by the number of samples. Each
+ * frame is a function name and the line it was executing, e.g.
+ * <code>main:12;fib:9 153</code>.
+ * </p>
+ *
+ */
+public final class Sampler {
+	/**
+	 * A distinct stack which has been sampled, and the number of times it was
+	 * seen.
+	 */
+	private static final class Sample {
+		final WhileFile.FunDecl[] functions;
+		final int[] statements;
+		int count;
+
+		Sample(WhileFile.FunDecl[] functions, int[] statements) {
+			this.functions = functions;
+			this.statements = statements;
+		}
+	}
+
+	private final WhileFile file;
+	private final SourceLines source;
+	private final long interval;
+	private final Thread thread;
+	private final HashMap<String, Sample> samples = new HashMap<String, Sample>();
+	private volatile boolean stopped;
+
+	// The shadow stack, which holds the function executing in each frame and
+	// the index of the statement it is executing (or -1, if it has not
+	// started yet).
+	private WhileFile.FunDecl[] functions = new WhileFile.FunDecl[64];
+	private int[] positions = new int[64];
+	private int depth;
+
+	/**
+	 * Construct a sampler.
+	 *
+	 * @param file
+	 *            File being profiled.
+	 * @param interval
+	 *            Time between samples, in milliseconds.
+	 */
+	public Sampler(WhileFile file, long interval) {
+		this.file = file;
+		this.source = new SourceLines(file.filename);
+		this.interval = interval;
+		this.thread = new Thread("sampler") {
+			public void run() {
+				while (!stopped) {
+					try {
+						Thread.sleep(Sampler.this.interval);
+					} catch (InterruptedException e) {
+						// carry on until stopped
+					}
+					sample();
+				}
+			}
+		};
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Start taking samples.
+	 */
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stop taking samples, and wait for the last sample to be recorded.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		stopped = true;
+		thread.interrupt();
+		thread.join();
+	}
+
+	/**
+	 * Record that the body of a given function is about to be executed.
+	 *
+	 * @param function
+	 */
+	public void push(WhileFile.FunDecl function) {
+		if (depth == functions.length) {
+			// NOTE: the sampling thread may still be reading the old arrays,
+			// which is harmless.
+			functions = Arrays.copyOf(functions, depth * 2);
+			positions = Arrays.copyOf(positions, depth * 2);
+		}
+		functions[depth] = function;
+		positions[depth] = -1;
+		depth++;
+	}
+
+	/**
+	 * Record that the body of the function most recently pushed has finished
+	 * executing.
+	 */
+	public void pop() {
+		depth--;
+	}
+
+	/**
+	 * Record that the innermost function is about to execute a given
+	 * statement. The statement must have been given an index (see
+	 * <code>VariableResolver</code>).
+	 *
+	 * @param stmt
+	 */
+	public void at(Stmt stmt) {
+		positions[depth - 1] = stmt.getIndex();
+	}
+
+	/**
+	 * Write the samples taken in collapsed stack format, with the most
+	 * frequent stacks first.
+	 *
+	 * @param output
+	 */
+	public void write(PrintStream output) {
+		HashMap<Integer, Integer> lines = new HashMap<Integer, Integer>();
+		for (WhileFile.Decl declaration : file.declarations) {
+			if (declaration instanceof WhileFile.FunDecl) {
+				lines(((WhileFile.FunDecl) declaration).statements, lines);
+			}
+		}
+		// NOTE: stacks which differ only in statements on the same line are
+		// written as one.
+		HashMap<String, Integer> stacks = new HashMap<String, Integer>();
+		for (Sample s : samples.values()) {
+			StringBuilder stack = new StringBuilder();
+			for (int i = 0; i != s.functions.length; ++i) {
+				WhileFile.FunDecl f = s.functions[i];
+				Integer line = lines.get(s.statements[i]);
+				if (i != 0) {
+					stack.append(';');
+				}
+				stack.append(f.name).append(':')
+						.append(line == null ? source.line(f) : line);
+			}
+			String key = stack.toString();
+			Integer count = stacks.get(key);
+			stacks.put(key, count == null ? s.count : count + s.count);
+		}
+		ArrayList<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(
+				stacks.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+			public int compare(Map.Entry<String, Integer> e1,
+					Map.Entry<String, Integer> e2) {
+				return e2.getValue().compareTo(e1.getValue());
+			}
+		});
+		for (Map.Entry<String, Integer> e : entries) {
+			output.println(e.getKey() + " " + e.getValue());
+		}
+	}
+
+	private void sample() {
+		WhileFile.FunDecl[] fs = functions;
+		int[] ps = positions;
+		int n = Math.min(depth, Math.min(fs.length, ps.length));
+		if (n <= 0) {
+			return;
+		}
+		WhileFile.FunDecl[] functions = new WhileFile.FunDecl[n];
+		int[] statements = new int[n];
+		int m = 0;
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i != n; ++i) {
+			WhileFile.FunDecl f = fs[i];
+			if (f == null) {
+				continue;
+			}
+			functions[m] = f;
+			statements[m++] = ps[i];
+			key.append(f.name).append(':').append(ps[i]).append(';');
+		}
+		Sample s = samples.get(key.toString());
+		if (s == null) {
+			s = new Sample(Arrays.copyOf(functions, m), Arrays.copyOf(
+					statements, m));
+			samples.put(key.toString(), s);
+		}
+		s.count++;
+	}
+
+	/**
+	 * Determine the line of every statement within a given block, indexed by
+	 * statement.
+	 *
+	 * @param statements
+	 * @param lines
+	 */
+	private void lines(List<Stmt> statements, Map<Integer, Integer> lines) {
+		for (Stmt stmt : statements) {
+			lines.put(stmt.getIndex(), source.line(stmt));
+			if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				lines(s.getTrueBranch(), lines);
+				lines(s.getFalseBranch(), lines);
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				if (s.getDeclaration() != null) {
+					lines(Collections.<Stmt> singletonList(s.getDeclaration()),
+							lines);
+				}
+				if (s.getIncrement() != null) {
+					lines(Collections.singletonList(s.getIncrement()), lines);
+				}
+				lines(s.getBody(), lines);
+			} else if (stmt instanceof Stmt.While) {
+				lines(((Stmt.While) stmt).getBody(), lines);
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Maps the positions recorded in <code>Attribute.Source</code> back to lines
+ * of the source file, for reports which refer to the program being run. The
+ * file is read when first needed; if it cannot be read, no lines are known.
+ *
+ */
+public final class SourceLines {
+	private final String filename;
+	private List<String> lines;
+	private int[] offsets;
+
+	public SourceLines(String filename) {
+		this.filename = filename;
+	}
+
+	/**
+	 * Determine the line on which a given element starts.
+	 *
+	 * @param element
+	 * @return The line number (starting from 1), or 0 if unknown.
+	 */
+	public int line(SyntacticElement element) {
+		Attribute.Source source = element.attribute(Attribute.Source.class);
+		return source == null ? 0 : line(source.start);
+	}
+
+	/**
+	 * Determine the line containing a given position.
+	 *
+	 * @param position
+	 *            Offset from the start of the file.
+	 * @return The line number (starting from 1), or 0 if unknown.
+	 */
+	public int line(int position) {
+		if (position < 0 || !read()) {
+			return 0;
+		}
+		int i = Arrays.binarySearch(offsets, position);
+		// NOTE: when not found, binarySearch gives -(insertion point) - 1,
+		// and the line is the one before the insertion point.
+		return i >= 0 ? i + 1 : -i - 1;
+	}
+
+	/**
+	 * Get the text of a given line, without surrounding whitespace.
+	 *
+	 * @param line
+	 *            Line number (starting from 1).
+	 * @return The text, or an empty string if the line is not known.
+	 */
+	public String text(int line) {
+		if (!read() || line < 1 || line > lines.size()) {
+			return "";
+		}
+		return lines.get(line - 1).trim();
+	}
+
+	private boolean read() {
+		if (lines == null && filename != null) {
+			ArrayList<String> ls = new ArrayList<String>();
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						new FileInputStream(filename), "UTF-8"));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						ls.add(line);
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				return false;
+			}
+			// NOTE: the lexer separates lines with a single newline, so
+			// positions are relative to that.
+			int[] os = new int[ls.size()];
+			int offset = 0;
+			for (int i = 0; i != os.length; ++i) {
+				os[i] = offset;
+				offset += ls.get(i).length() + 1;
+			}
+			this.offsets = os;
+			this.lines = ls;
+		}
+		return lines != null;
+	}
+}
@@ -23,11 +23,13 @@ public class TypeChecker {
     private WhileFile.FunDecl function;
     private HashMap<String,WhileFile.FunDecl> functions;
     private HashMap<String,WhileFile.TypeDecl> types;
+    private HashMap<String,Type> constants;
 
     public void check(WhileFile wf) {
         this.file = wf;
         this.functions = new HashMap<String,WhileFile.FunDecl>();
         this.types = new HashMap<String,WhileFile.TypeDecl>();
+        this.constants = new HashMap<String,Type>();
 
         for(WhileFile.Decl declaration : wf.declarations) {
             if(declaration instanceof WhileFile.FunDecl) {
@@ -39,6 +41,14 @@ public class TypeChecker {
             }
         }
 
+        for(WhileFile.Decl declaration : wf.declarations) {
+            if(declaration instanceof WhileFile.ConstDecl) {
+                WhileFile.ConstDecl cd = (WhileFile.ConstDecl) declaration;
+                Type type = check(cd.constant, new HashMap<String,Type>(constants));
+                this.constants.put(cd.name(), type);
+            }
+        }
+
         for(WhileFile.Decl declaration : wf.declarations) {
             if(declaration instanceof WhileFile.FunDecl) {
                 check((WhileFile.FunDecl) declaration);
@@ -50,7 +60,7 @@ public class TypeChecker {
         this.function = fd;
 
         // First, initialise the typing environment
-        HashMap<String,Type> environment = new HashMap<String,Type>();
+        HashMap<String,Type> environment = new HashMap<String,Type>(constants);
         for (WhileFile.Parameter p : fd.parameters) {
             environment.put(p.name(), p.type);
         }
@@ -123,19 +133,19 @@ public class TypeChecker {
     public void check(Stmt.IfElse stmt, Map<String,Type> environment) {
         Type cond = check(stmt.getCondition(),environment);
         checkSubtype(new Type.Bool(), cond, stmt.getCondition());
-        check(stmt.getTrueBranch(),environment);
-        check(stmt.getFalseBranch(),environment);
+        // Clone the environment for each branch, so that variables declared
+        // in a branch are only scoped for the life of that branch.
+        check(stmt.getTrueBranch(),new HashMap<String,Type>(environment));
+        check(stmt.getFalseBranch(),new HashMap<String,Type>(environment));
     }
 
     public void check(Stmt.For stmt, Map<String,Type> environment) {
 
-        Stmt.VariableDeclaration vd = stmt.getDeclaration();
-        check(vd,environment);
-
         // Clone the environment in order that the loop variable is only scoped
         // for the life of the loop itself.
         environment = new HashMap<String,Type>(environment);
-        environment.put(vd.getName(), vd.getType());
+        Stmt.VariableDeclaration vd = stmt.getDeclaration();
+        check(vd,environment);
 
         Type type = check(stmt.getCondition(),environment);
         checkSubtype(new Type.Bool(), type, stmt.getCondition());
@@ -146,7 +156,7 @@ public class TypeChecker {
     public void check(Stmt.While stmt, Map<String,Type> environment) {
         Type type = check(stmt.getCondition(),environment);
         checkSubtype(new Type.Bool(), type, stmt.getCondition());
-        check(stmt.getBody(),environment);
+        check(stmt.getBody(),new HashMap<String,Type>(environment));
     }
 
     public Type check(Expr expr, Map<String,Type> environment) {
@@ -188,7 +198,11 @@ public class TypeChecker {
         Type leftType = check(expr.getLhs(), environment);
         Type rightType = check(expr.getRhs(), environment);
 
-        if (expr.getOp() != Expr.BOp.APPEND
+        if (expr.getOp() == Expr.BOp.APPEND
+                && (isString(leftType) || isString(rightType))) {
+            // Appending anything onto a string converts it to a string.
+            return new Type.Strung();
+        } else if (expr.getOp() != Expr.BOp.APPEND
                 && !equivalent(leftType, rightType, expr)) {
             syntaxError("operands must have identical types, found " + leftType
                     + " and " + rightType, file.filename, expr);
@@ -525,6 +539,19 @@ public class TypeChecker {
                 syntaxError("unknown type encountered: " + t2, file.filename,
                         element);
             }
+        } else if (t2 instanceof Type.Union) {
+            // NOTE: this must be considered before t1 is a union, since each
+            // bound of t2 may be a subtype of a different bound of t1.
+            Type.Union u2 = (Type.Union) t2;
+            for(Type b2 : u2.getBounds()) {
+                if(!isSubtype(t1,b2,element)) {
+                    return false;
+                }
+            }
+        } else if (t1 instanceof Type.Union && t2 instanceof Type.Record
+                && distribute((Type.Record) t2) != null) {
+            // e.g. {int|null f} is a subtype of {int f}|{null f}
+            return isSubtype(t1, distribute((Type.Record) t2), element);
         } else if (t1 instanceof Type.Union) {
             Type.Union u1 = (Type.Union) t1;
             for(Type b1 : u1.getBounds()) {
@@ -533,19 +560,57 @@ public class TypeChecker {
                 }
             }
             return false;
-        } else if (t2 instanceof Type.Union) {
-            Type.Union u2 = (Type.Union) t2;
-            for(Type b2 : u2.getBounds()) {
-                if(!isSubtype(t1,b2,element)) { // todo !
-                    return false;
-                }
-            }
         } else {
             return false;
         }
         return true;
     }
 
+    /**
+     * Distribute a record type over the first of its fields which has a union
+     * type. For example, <code>{int|null f}</code> becomes
+     * <code>{int f}|{null f}</code>.
+     *
+     * @param type
+     * @return The equivalent union of record types, or null if no field has a
+     *         union type.
+     */
+    private Type.Union distribute(Type.Record type) {
+        for (Map.Entry<String, Type> field : type.getFields().entrySet()) {
+            Type ft = field.getValue();
+            while (ft instanceof Type.Named
+                    && types.containsKey(((Type.Named) ft).getName())) {
+                ft = types.get(((Type.Named) ft).getName()).type;
+            }
+            if (ft instanceof Type.Union) {
+                ArrayList<Type> bounds = new ArrayList<Type>();
+                for (Type b : ((Type.Union) ft).getBounds()) {
+                    HashMap<String, Type> fields = new HashMap<String, Type>(
+                            type.getFields());
+                    fields.put(field.getKey(), b);
+                    bounds.add(new Type.Record(fields));
+                }
+                return new Type.Union(bounds);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determine whether a given type is the string type (possibly via a named
+     * type).
+     *
+     * @param type
+     * @return
+     */
+    private boolean isString(Type type) {
+        while (type instanceof Type.Named
+                && types.containsKey(((Type.Named) type).getName())) {
+            type = types.get(((Type.Named) type).getName()).type;
+        }
+        return type instanceof Type.Strung;
+    }
+
     /**
      * Determine whether two given types are euivalent. Identical types are always
      * equivalent. Furthermore, e.g. "int|null" is equivalent to "null|int".
@@ -0,0 +1,178 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.*;
+
+import whilelang.lang.*;
+
+/**
+ * <p>
+ * Responsible for allocating every variable in a function to a fixed slot in
+ * that function's stack frame. This allows a stack frame to be represented as
+ * a flat array, rather than a map from variable names to their values.
+ * </p>
+ * <p>
+ * Each distinct variable name used within a function is given exactly one
+ * slot, with parameters being allocated first (in order). Thus, two
+ * declarations of the same variable in different blocks share a slot. This
+ * matches the behaviour of a name-indexed frame, where such declarations would
+ * simply overwrite the same entry.
+ * </p>
+ * <p>
+ * Every statement in the file is also given a distinct index, numbering them
+ * consecutively from zero. This allows information about each statement to be
+ * kept in an array indexed by statement (e.g. when profiling).
+ * </p>
+ *
+ */
+public class VariableResolver {
+	private WhileFile file;
+	private int statements;
+
+	public void resolve(WhileFile wf) {
+		this.file = wf;
+		this.statements = 0;
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.FunDecl) {
+				resolve((WhileFile.FunDecl) declaration);
+			}
+		}
+	}
+
+	public void resolve(WhileFile.FunDecl fd) {
+		HashMap<String, Integer> slots = new HashMap<String, Integer>();
+
+		// First, allocate parameters so that they occupy the lowest slots.
+		for (WhileFile.Parameter p : fd.parameters) {
+			p.setSlot(allocate(p.name, slots));
+		}
+
+		// Second, allocate all variables used in the function body.
+		resolve(fd.statements, slots);
+
+		fd.setFrameSize(slots.size());
+	}
+
+	private void resolve(List<Stmt> statements, Map<String, Integer> slots) {
+		for (Stmt s : statements) {
+			resolve(s, slots);
+		}
+	}
+
+	private void resolve(Stmt stmt, Map<String, Integer> slots) {
+		stmt.setIndex(statements++);
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			resolve(s.getLhs(), slots);
+			resolve(s.getRhs(), slots);
+		} else if (stmt instanceof Stmt.Print) {
+			resolve(((Stmt.Print) stmt).getExpr(), slots);
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			if (e != null) {
+				resolve(e, slots);
+			}
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			if (s.getExpr() != null) {
+				resolve(s.getExpr(), slots);
+			}
+			s.setSlot(allocate(s.getName(), slots));
+		} else if (stmt instanceof Expr.Invoke) {
+			resolve((Expr) stmt, slots);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			resolve(s.getCondition(), slots);
+			resolve(s.getTrueBranch(), slots);
+			resolve(s.getFalseBranch(), slots);
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			if (s.getDeclaration() != null) {
+				resolve(s.getDeclaration(), slots);
+			}
+			if (s.getCondition() != null) {
+				resolve(s.getCondition(), slots);
+			}
+			if (s.getIncrement() != null) {
+				resolve(s.getIncrement(), slots);
+			}
+			resolve(s.getBody(), slots);
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			resolve(s.getCondition(), slots);
+			resolve(s.getBody(), slots);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")",
+					file.filename, stmt);
+		}
+	}
+
+	private void resolve(Expr expr, Map<String, Integer> slots) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			resolve(e.getLhs(), slots);
+			resolve(e.getRhs(), slots);
+		} else if (expr instanceof Expr.Cast) {
+			resolve(((Expr.Cast) expr).getSource(), slots);
+		} else if (expr instanceof Expr.Constant) {
+			// nothing to do
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			resolve(e.getSource(), slots);
+			resolve(e.getIndex(), slots);
+		} else if (expr instanceof Expr.Invoke) {
+			for (Expr arg : ((Expr.Invoke) expr).getArguments()) {
+				resolve(arg, slots);
+			}
+		} else if (expr instanceof Expr.ListConstructor) {
+			for (Expr arg : ((Expr.ListConstructor) expr).getArguments()) {
+				resolve(arg, slots);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			resolve(((Expr.RecordAccess) expr).getSource(), slots);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				resolve(p.second(), slots);
+			}
+		} else if (expr instanceof Expr.Unary) {
+			resolve(((Expr.Unary) expr).getExpr(), slots);
+		} else if (expr instanceof Expr.Variable) {
+			Expr.Variable e = (Expr.Variable) expr;
+			// NOTE: a variable which is never declared (e.g. a constant) still
+			// gets a slot; it will simply never be assigned.
+			e.setSlot(allocate(e.getName(), slots));
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")",
+					file.filename, expr);
+		}
+	}
+
+	private static int allocate(String name, Map<String, Integer> slots) {
+		Integer slot = slots.get(name);
+		if (slot == null) {
+			slot = slots.size();
+			slots.put(name, slot);
+		}
+		return slot;
+	}
+}
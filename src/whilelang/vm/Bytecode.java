@@ -0,0 +1,162 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.vm;
+
+/**
+ * <p>
+ * The instruction set of the While virtual machine. Code is a flat array of
+ * <code>int</code>s, where each instruction is an opcode followed by a fixed
+ * number of operands. Most operands identify registers, which hold the
+ * variables (in the slots allocated by <code>VariableResolver</code>) and
+ * temporaries of the current function. Others identify entries in the
+ * function's constant pool, other functions, or jump targets (i.e. positions
+ * in the code array).
+ * </p>
+ * <p>
+ * In the descriptions below, <code>d</code> is the destination register,
+ * <code>a</code>, <code>b</code> and <code>s</code> are source registers,
+ * <code>k</code> is a constant and <code>t</code> a jump target. A sequence of
+ * <code>n</code> consecutive registers starting at <code>s</code> is written
+ * <code>s..n</code>.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Bytecode {
+	/** <code>CONST d k</code>: load constant <code>k</code>. */
+	public static final int CONST = 0;
+	/** <code>MOVE d s</code>: copy register <code>s</code>. */
+	public static final int MOVE = 1;
+	/**
+	 * <code>ASSIGN d s</code>: copy register <code>s</code>, releasing the
+	 * value previously held in <code>d</code>.
+	 */
+	public static final int ASSIGN = 2;
+	/** <code>SHARE d</code>: the value held in <code>d</code> gains an owner. */
+	public static final int SHARE = 3;
+
+	public static final int ADD = 4;
+	public static final int SUB = 5;
+	public static final int MUL = 6;
+	public static final int DIV = 7;
+	public static final int REM = 8;
+	public static final int EQ = 9;
+	public static final int NEQ = 10;
+	public static final int LT = 11;
+	public static final int LTEQ = 12;
+	public static final int GT = 13;
+	public static final int GTEQ = 14;
+	/** <code>APPEND d a b</code>: append lists, or concatenate strings. */
+	public static final int APPEND = 15;
+	/**
+	 * <code>APPENDINPLACE d s</code>: as <code>APPEND d d s</code>, except
+	 * that the list held in <code>d</code> may be extended in place.
+	 */
+	public static final int APPENDINPLACE = 16;
+
+	public static final int NOT = 17;
+	public static final int NEG = 18;
+	public static final int LENGTHOF = 19;
+
+	/** <code>INDEXOF d a b</code>: element <code>b</code> of <code>a</code>. */
+	public static final int INDEXOF = 20;
+	/** <code>FIELD d s k</code>: field looked up by constant <code>k</code>. */
+	public static final int FIELD = 21;
+	/** <code>LIST d s n</code>: construct a list from <code>s..n</code>. */
+	public static final int LIST = 22;
+	/**
+	 * <code>RECORD d s k</code>: construct a record from <code>s..n</code>,
+	 * where constant <code>k</code> is the layout of its <code>n</code>
+	 * fields.
+	 */
+	public static final int RECORD = 23;
+	/**
+	 * <code>UPDATE d s n a</code>: update the location within <code>d</code>
+	 * identified by the path of field lookups and indices <code>s..n</code> to
+	 * hold <code>a</code>.
+	 */
+	public static final int UPDATE = 24;
+
+	/**
+	 * <code>INVOKE d f s n</code>: call function <code>f</code> with arguments
+	 * <code>s..n</code>.
+	 */
+	public static final int INVOKE = 25;
+	/** <code>RETURN s</code>: return the value held in <code>s</code>. */
+	public static final int RETURN = 26;
+	/** <code>RETURNVOID</code>: return without a value. */
+	public static final int RETURNVOID = 27;
+	/** <code>END</code>: fall off the end of the function. */
+	public static final int END = 28;
+
+	/** <code>JUMP t</code>. */
+	public static final int JUMP = 29;
+	/** <code>IFTRUE s t</code>: jump if <code>s</code> holds true. */
+	public static final int IFTRUE = 30;
+	/** <code>IFFALSE s t</code>: jump if <code>s</code> holds false. */
+	public static final int IFFALSE = 31;
+
+	/** <code>PRINT s</code>. */
+	public static final int PRINT = 32;
+
+	private static final String[] NAMES = { "const", "move", "assign",
+			"share", "add", "sub", "mul", "div", "rem", "eq", "neq", "lt",
+			"lteq", "gt", "gteq", "append", "appendinplace", "not", "neg",
+			"lengthof", "indexof", "field", "list", "record", "update",
+			"invoke", "return", "returnvoid", "end", "jump", "iftrue",
+			"iffalse", "print" };
+
+	private static final int[] OPERANDS = { 2, 2, 2, 1, 3, 3, 3, 3, 3, 3, 3,
+			3, 3, 3, 3, 3, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 1, 0, 0, 1, 2, 2, 1 };
+
+	private Bytecode() {
+	}
+
+	/**
+	 * Get the number of operands taken by a given opcode.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public static int operands(int opcode) {
+		return OPERANDS[opcode];
+	}
+
+	/**
+	 * Get the mnemonic of a given opcode.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public static String name(int opcode) {
+		return NAMES[opcode];
+	}
+
+	/**
+	 * Check whether a given integer is a valid opcode.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public static boolean isValid(int opcode) {
+		return opcode >= 0 && opcode < OPERANDS.length;
+	}
+}
@@ -0,0 +1,583 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.vm;
+
+import static whilelang.util.SyntaxError.internalFailure;
+import static whilelang.vm.Bytecode.*;
+
+import java.util.*;
+
+import whilelang.lang.*;
+import whilelang.runtime.FieldLookup;
+import whilelang.util.Pair;
+import whilelang.util.FunctionResolver;
+import whilelang.util.VariableResolver;
+
+/**
+ * <p>
+ * Responsible for lowering a While program into bytecode (see
+ * <code>Bytecode</code>). Each variable is assigned the register matching its
+ * slot (as allocated by <code>VariableResolver</code>), whilst intermediate
+ * results are held in temporary registers above these. Temporaries are
+ * allocated in a stack-like fashion, and are all released at the end of each
+ * statement.
+ * </p>
+ * <p>
+ * As for the interpreter, lists and records may be represented with
+ * copy-on-write values. In this case, additional instructions are generated
+ * to record when a value gains an owner (<code>SHARE</code>), or loses one
+ * (<code>ASSIGN</code>).
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BytecodeCompiler {
+	private final boolean copyOnWrite;
+	private WhileFile file;
+	private HashMap<String, Integer> functions;
+
+	// The state of the function currently being compiled.
+	private int[] code;
+	private int pc;
+	private ArrayList<Object> constants;
+	private HashMap<Object, Integer> constantIndex;
+	private int variables;
+	private int nextRegister;
+	private int maxRegister;
+
+	public BytecodeCompiler() {
+		this(false);
+	}
+
+	/**
+	 * Construct a bytecode compiler.
+	 *
+	 * @param copyOnWrite
+	 *            If true, generate code for copy-on-write values.
+	 */
+	public BytecodeCompiler(boolean copyOnWrite) {
+		this.copyOnWrite = copyOnWrite;
+	}
+
+	public BytecodeProgram compile(WhileFile wf) {
+		this.file = wf;
+		this.functions = new HashMap<String, Integer>();
+
+		// First, allocate every variable to a fixed slot (and hence register)
+		// in its function's stack frame.
+		new VariableResolver().resolve(wf);
+		new FunctionResolver().resolve(wf);
+
+		// Second, assign every function a position in the function table.
+		ArrayList<WhileFile.FunDecl> decls = new ArrayList<WhileFile.FunDecl>();
+		for (WhileFile.Decl decl : wf.declarations) {
+			if (decl instanceof WhileFile.FunDecl) {
+				WhileFile.FunDecl fd = (WhileFile.FunDecl) decl;
+				functions.put(fd.name, decls.size());
+				decls.add(fd);
+			}
+		}
+
+		// Third, compile every function.
+		ArrayList<BytecodeFunction> bfs = new ArrayList<BytecodeFunction>();
+		for (WhileFile.FunDecl fd : decls) {
+			bfs.add(compile(fd));
+		}
+
+		return new BytecodeProgram(bfs.toArray(new BytecodeFunction[bfs
+				.size()]));
+	}
+
+	private BytecodeFunction compile(WhileFile.FunDecl fd) {
+		code = new int[64];
+		pc = 0;
+		constants = new ArrayList<Object>();
+		constantIndex = new HashMap<Object, Integer>();
+		variables = fd.getFrameSize();
+		nextRegister = variables;
+		maxRegister = variables;
+
+		compile(fd.statements);
+		emit(END);
+
+		int[] parameters = new int[fd.parameters.size()];
+		for (int i = 0; i != parameters.length; ++i) {
+			parameters[i] = fd.parameters.get(i).getSlot();
+		}
+		return new BytecodeFunction(fd.name, parameters, variables,
+				maxRegister, Arrays.copyOf(code, pc), constants.toArray());
+	}
+
+	// ==========================================
+	// Statements
+	// ==========================================
+
+	private void compile(List<Stmt> block) {
+		for (Stmt s : block) {
+			compile(s);
+		}
+	}
+
+	private void compile(Stmt stmt) {
+		int mark = nextRegister;
+		if (stmt instanceof Stmt.Assign) {
+			compile((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			compile((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			compile((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.IfElse) {
+			compile((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.Return) {
+			compile((Stmt.Return) stmt);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			compile((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Stmt.Print) {
+			emit(PRINT, operand(((Stmt.Print) stmt).getExpr()));
+		} else if (stmt instanceof Expr.Invoke) {
+			// the value returned (if any) is discarded
+			compile((Expr.Invoke) stmt, allocate());
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")",
+					file.filename, stmt);
+		}
+		nextRegister = mark;
+	}
+
+	private void compile(Stmt.Assign stmt) {
+		Expr lhs = stmt.getLhs();
+		Expr rhs = stmt.getRhs();
+		if (lhs instanceof Expr.Variable) {
+			int slot = ((Expr.Variable) lhs).getSlot();
+			if (copyOnWrite && isSelfAppend(slot, rhs)) {
+				emit(APPENDINPLACE, slot, operand(((Expr.Binary) rhs).getRhs()));
+			} else {
+				assign(slot, rhs);
+			}
+		} else {
+			// First, evaluate the path of fields and indices being assigned
+			// into consecutive registers.
+			ArrayList<Object> path = new ArrayList<Object>();
+			int root = flatten(lhs, path);
+			int start = nextRegister;
+			for (Object key : path) {
+				int target = allocate();
+				if (key instanceof FieldLookup) {
+					emit(CONST, target, constant(key));
+				} else {
+					compile((Expr) key, target);
+				}
+			}
+			// Second, evaluate the value being assigned and update the root.
+			int value = allocate();
+			compileStored(rhs, value);
+			emit(UPDATE, root, start, path.size(), value);
+		}
+	}
+
+	/**
+	 * Assign the value of a given expression to a variable.
+	 *
+	 * @param slot
+	 * @param rhs
+	 */
+	private void assign(int slot, Expr rhs) {
+		if (copyOnWrite) {
+			int t = allocate();
+			compileStored(rhs, t);
+			emit(ASSIGN, slot, t);
+		} else {
+			compile(rhs, slot);
+		}
+	}
+
+	/**
+	 * Check whether an assignment to a given variable slot has the form
+	 * <code>x = x ++ e</code>.
+	 *
+	 * @param slot
+	 * @param rhs
+	 * @return
+	 */
+	private static boolean isSelfAppend(int slot, Expr rhs) {
+		if (!(rhs instanceof Expr.Binary)) {
+			return false;
+		}
+		Expr.Binary e = (Expr.Binary) rhs;
+		return e.getOp() == Expr.BOp.APPEND
+				&& e.getLhs() instanceof Expr.Variable
+				&& ((Expr.Variable) e.getLhs()).getSlot() == slot;
+	}
+
+	/**
+	 * Determine the root variable of a given lval, and the path from it to the
+	 * location being assigned. Each element of the path is either a field
+	 * lookup or an index expression.
+	 *
+	 * @param lval
+	 * @param path
+	 * @return The slot of the root variable.
+	 */
+	private int flatten(Expr lval, List<Object> path) {
+		if (lval instanceof Expr.Variable) {
+			return ((Expr.Variable) lval).getSlot();
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			int root = flatten(ra.getSource(), path);
+			path.add(ra.getLookup());
+			return root;
+		} else if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			int root = flatten(io.getSource(), path);
+			path.add(io.getIndex());
+			return root;
+		} else {
+			internalFailure("unknown lval encountered (" + lval + ")",
+					file.filename, lval);
+			return -1;
+		}
+	}
+
+	private void compile(Stmt.For stmt) {
+		compile(stmt.getDeclaration());
+		int loop = pc;
+		int exit = branch(IFFALSE, stmt.getCondition());
+		compile(stmt.getBody());
+		compile(stmt.getIncrement());
+		emit(JUMP, loop);
+		patch(exit, pc);
+	}
+
+	private void compile(Stmt.While stmt) {
+		int loop = pc;
+		int exit = branch(IFFALSE, stmt.getCondition());
+		compile(stmt.getBody());
+		emit(JUMP, loop);
+		patch(exit, pc);
+	}
+
+	private void compile(Stmt.IfElse stmt) {
+		int falseBranch = branch(IFFALSE, stmt.getCondition());
+		compile(stmt.getTrueBranch());
+		if (stmt.getFalseBranch().isEmpty()) {
+			patch(falseBranch, pc);
+		} else {
+			emit(JUMP, -1);
+			int end = pc - 1;
+			patch(falseBranch, pc);
+			compile(stmt.getFalseBranch());
+			patch(end, pc);
+		}
+	}
+
+	private void compile(Stmt.Return stmt) {
+		Expr re = stmt.getExpr();
+		if (re == null) {
+			emit(RETURNVOID);
+		} else if (copyOnWrite) {
+			int t = allocate();
+			compileStored(re, t);
+			emit(RETURN, t);
+		} else {
+			emit(RETURN, operand(re));
+		}
+	}
+
+	private void compile(Stmt.VariableDeclaration stmt) {
+		Expr re = stmt.getExpr();
+		if (re != null) {
+			assign(stmt.getSlot(), re);
+		} else {
+			// used to indicate a variable has been declared
+			assign(stmt.getSlot(), new Expr.Constant(Collections.EMPTY_SET));
+		}
+	}
+
+	/**
+	 * Emit a conditional branch on the value of a given condition, whose
+	 * target is yet to be determined.
+	 *
+	 * @param opcode
+	 *            Either <code>IFTRUE</code> or <code>IFFALSE</code>.
+	 * @param condition
+	 * @return Position of the target operand, for patching.
+	 */
+	private int branch(int opcode, Expr condition) {
+		int mark = nextRegister;
+		emit(opcode, operand(condition), -1);
+		nextRegister = mark;
+		return pc - 1;
+	}
+
+	private void patch(int position, int target) {
+		code[position] = target;
+	}
+
+	// ==========================================
+	// Expressions
+	// ==========================================
+
+	/**
+	 * Get a register holding the value of a given expression. For a variable,
+	 * this is simply the variable's own register; otherwise, the value is
+	 * computed into a new temporary.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private int operand(Expr expr) {
+		Expr e = stripCasts(expr);
+		if (e instanceof Expr.Variable) {
+			return ((Expr.Variable) e).getSlot();
+		}
+		int target = allocate();
+		compile(e, target);
+		return target;
+	}
+
+	/**
+	 * Compile an expression whose value is to be stored in a new location
+	 * (e.g. a variable, list element or argument). For copy-on-write values,
+	 * if the expression only reads a value held elsewhere (e.g. <code>x</code>
+	 * or <code>x[i]</code>), then that value must gain an additional owner.
+	 *
+	 * @param expr
+	 * @param target
+	 */
+	private void compileStored(Expr expr, int target) {
+		compile(expr, target);
+		Expr e = stripCasts(expr);
+		if (copyOnWrite
+				&& (e instanceof Expr.Variable || e instanceof Expr.IndexOf
+						|| e instanceof Expr.RecordAccess)) {
+			emit(SHARE, target);
+		}
+	}
+
+	/**
+	 * Compile a given expression, such that its value is written into a given
+	 * target register. Note that the target may be a variable read by the
+	 * expression itself (e.g. <code>x = x + 1</code>), hence the target must
+	 * not be written until the last instruction.
+	 *
+	 * @param expr
+	 * @param target
+	 */
+	private void compile(Expr expr, int target) {
+		if (expr instanceof Expr.Binary) {
+			compile((Expr.Binary) expr, target);
+		} else if (expr instanceof Expr.Cast) {
+			// TODO: we need to actually implement casting here!
+			compile(((Expr.Cast) expr).getSource(), target);
+		} else if (expr instanceof Expr.Constant) {
+			emit(CONST, target, constant(((Expr.Constant) expr).getValue()));
+		} else if (expr instanceof Expr.Invoke) {
+			compile((Expr.Invoke) expr, target);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			int src = operand(e.getSource());
+			int index = operand(e.getIndex());
+			emit(INDEXOF, target, src, index);
+		} else if (expr instanceof Expr.ListConstructor) {
+			List<Expr> es = ((Expr.ListConstructor) expr).getArguments();
+			int start = consecutive(es);
+			emit(LIST, target, start, es.size());
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			emit(FIELD, target, operand(e.getSource()),
+					constant(e.getLookup()));
+		} else if (expr instanceof Expr.RecordConstructor) {
+			compile((Expr.RecordConstructor) expr, target);
+		} else if (expr instanceof Expr.Unary) {
+			compile((Expr.Unary) expr, target);
+		} else if (expr instanceof Expr.Variable) {
+			int slot = ((Expr.Variable) expr).getSlot();
+			if (slot != target) {
+				emit(MOVE, target, slot);
+			}
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")",
+					file.filename, expr);
+		}
+	}
+
+	private void compile(Expr.Binary expr, int target) {
+		switch (expr.getOp()) {
+		case AND:
+		case OR: {
+			// Short-circuiting writes the left operand's value before the right
+			// is evaluated, so this must not go directly into a variable.
+			int t = target < variables ? allocate() : target;
+			compile(expr.getLhs(), t);
+			emit(expr.getOp() == Expr.BOp.AND ? IFFALSE : IFTRUE, t, -1);
+			int end = pc - 1;
+			compile(expr.getRhs(), t);
+			patch(end, pc);
+			if (t != target) {
+				emit(MOVE, target, t);
+			}
+			return;
+		}
+		}
+
+		int lhs = operand(expr.getLhs());
+		int rhs = operand(expr.getRhs());
+
+		switch (expr.getOp()) {
+		case ADD:
+			emit(ADD, target, lhs, rhs);
+			return;
+		case SUB:
+			emit(SUB, target, lhs, rhs);
+			return;
+		case MUL:
+			emit(MUL, target, lhs, rhs);
+			return;
+		case DIV:
+			emit(DIV, target, lhs, rhs);
+			return;
+		case REM:
+			emit(REM, target, lhs, rhs);
+			return;
+		case EQ:
+			emit(EQ, target, lhs, rhs);
+			return;
+		case NEQ:
+			emit(NEQ, target, lhs, rhs);
+			return;
+		case LT:
+			emit(LT, target, lhs, rhs);
+			return;
+		case LTEQ:
+			emit(LTEQ, target, lhs, rhs);
+			return;
+		case GT:
+			emit(GT, target, lhs, rhs);
+			return;
+		case GTEQ:
+			emit(GTEQ, target, lhs, rhs);
+			return;
+		case APPEND:
+			emit(APPEND, target, lhs, rhs);
+			return;
+		}
+
+		internalFailure("unknown binary expression encountered (" + expr + ")",
+				file.filename, expr);
+	}
+
+	private void compile(Expr.Unary expr, int target) {
+		int operand = operand(expr.getExpr());
+
+		switch (expr.getOp()) {
+		case NOT:
+			emit(NOT, target, operand);
+			return;
+		case NEG:
+			emit(NEG, target, operand);
+			return;
+		case LENGTHOF:
+			emit(LENGTHOF, target, operand);
+			return;
+		}
+
+		internalFailure("unknown unary expression encountered (" + expr + ")",
+				file.filename, expr);
+	}
+
+	private void compile(Expr.Invoke expr, int target) {
+		List<Expr> arguments = expr.getArguments();
+		int start = consecutive(arguments);
+		int index = functions.get(expr.getTarget().name);
+		emit(INVOKE, target, index, start, arguments.size());
+	}
+
+	private void compile(Expr.RecordConstructor expr, int target) {
+		ArrayList<Expr> values = new ArrayList<Expr>();
+		for (Pair<String, Expr> e : expr.getFields()) {
+			values.add(e.second());
+		}
+		int start = consecutive(values);
+		emit(RECORD, target, start, constant(expr.getLayout()));
+	}
+
+	/**
+	 * Compile a sequence of expressions, whose values are to be stored (e.g.
+	 * as list elements), into consecutive registers.
+	 *
+	 * @param exprs
+	 * @return The first register of the sequence.
+	 */
+	private int consecutive(List<Expr> exprs) {
+		int start = nextRegister;
+		for (int i = 0; i != exprs.size(); ++i) {
+			allocate();
+		}
+		for (int i = 0; i != exprs.size(); ++i) {
+			compileStored(exprs.get(i), start + i);
+		}
+		return start;
+	}
+
+	private static Expr stripCasts(Expr expr) {
+		while (expr instanceof Expr.Cast) {
+			expr = ((Expr.Cast) expr).getSource();
+		}
+		return expr;
+	}
+
+	// ==========================================
+	// Helpers
+	// ==========================================
+
+	private int allocate() {
+		int r = nextRegister++;
+		maxRegister = Math.max(maxRegister, nextRegister);
+		return r;
+	}
+
+	/**
+	 * Get the index of a given value in the constant pool, adding it if
+	 * necessary.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private int constant(Object value) {
+		// NOTE: field lookups and record layouts are compared by identity,
+		// hence are only shared by the expression they belong to.
+		Integer index = constantIndex.get(value);
+		if (index == null) {
+			index = constants.size();
+			constants.add(value);
+			constantIndex.put(value, index);
+		}
+		return index;
+	}
+
+	private void emit(int... instruction) {
+		if (pc + instruction.length > code.length) {
+			code = Arrays.copyOf(code, code.length * 2 + instruction.length);
+		}
+		System.arraycopy(instruction, 0, code, pc, instruction.length);
+		pc += instruction.length;
+	}
+}
@@ -0,0 +1,123 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.vm;
+
+import java.util.Arrays;
+
+import whilelang.runtime.FieldLookup;
+import whilelang.runtime.RecordLayout;
+
+/**
+ * A function lowered to bytecode. The function's registers are numbered from
+ * zero, with its variables occupying the first <code>variables()</code>
+ * registers and its temporaries the remainder.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class BytecodeFunction {
+	private final String name;
+	private final int[] parameters;
+	private final int variables;
+	private final int registers;
+	private final int[] code;
+	private final Object[] constants;
+
+	/**
+	 * Construct a bytecode function.
+	 *
+	 * @param name
+	 *            Name of the function.
+	 * @param parameters
+	 *            Register holding each parameter, in order.
+	 * @param variables
+	 *            Number of registers allocated to variables.
+	 * @param registers
+	 *            Total number of registers.
+	 * @param code
+	 *            Bytecode of the function's body, or <code>null</code> if the
+	 *            function is not defined.
+	 * @param constants
+	 *            Constant pool referred to by the code.
+	 */
+	public BytecodeFunction(String name, int[] parameters, int variables,
+			int registers, int[] code, Object[] constants) {
+		this.name = name;
+		this.parameters = parameters;
+		this.variables = variables;
+		this.registers = registers;
+		this.code = code;
+		this.constants = constants;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public int[] parameters() {
+		return parameters;
+	}
+
+	public int variables() {
+		return variables;
+	}
+
+	public int registers() {
+		return registers;
+	}
+
+	public int[] code() {
+		return code;
+	}
+
+	public Object[] constants() {
+		return constants;
+	}
+
+	/**
+	 * Produce a human-readable listing of this function's bytecode.
+	 */
+	public String toString() {
+		StringBuilder r = new StringBuilder(name);
+		r.append(" (").append(registers).append(" registers)\n");
+		if (code == null) {
+			return r.append("\t<undefined>\n").toString();
+		}
+		for (int pc = 0; pc < code.length;) {
+			int opcode = code[pc];
+			r.append(pc).append(":\t").append(Bytecode.name(opcode));
+			for (int i = 1; i <= Bytecode.operands(opcode); ++i) {
+				r.append(" ").append(code[pc + i]);
+			}
+			r.append("\n");
+			pc += 1 + Bytecode.operands(opcode);
+		}
+		for (int i = 0; i != constants.length; ++i) {
+			Object c = constants[i];
+			if (c instanceof FieldLookup) {
+				c = "." + ((FieldLookup) c).field();
+			} else if (c instanceof RecordLayout) {
+				c = Arrays.toString(((RecordLayout) c).fields());
+			}
+			r.append("\t#").append(i).append(" = ").append(c).append("\n");
+		}
+		return r.toString();
+	}
+}
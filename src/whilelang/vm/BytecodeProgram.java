@@ -0,0 +1,235 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.vm;
+
+import java.io.*;
+import java.util.*;
+
+import whilelang.runtime.FieldLookup;
+import whilelang.runtime.RecordLayout;
+
+/**
+ * <p>
+ * A While program lowered to bytecode, made up of a table of functions.
+ * Calls refer to their target by its position in this table.
+ * </p>
+ * <p>
+ * A program can be written to (and read back from) a compact binary form,
+ * allowing the result of compilation to be cached between runs.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class BytecodeProgram {
+	private static final int MAGIC = 0x5768696C; // "Whil"
+	private static final int VERSION = 2;
+
+	// Tags identifying the kind of each constant in the binary form.
+	private static final int NULL = 0;
+	private static final int BOOL = 1;
+	private static final int CHAR = 2;
+	private static final int INT = 3;
+	private static final int REAL = 4;
+	private static final int STRING = 5;
+	private static final int LAYOUT = 6;
+	private static final int EMPTY = 7;
+	private static final int LOOKUP = 8;
+
+	private final BytecodeFunction[] functions;
+
+	public BytecodeProgram(BytecodeFunction[] functions) {
+		this.functions = functions;
+	}
+
+	public BytecodeFunction[] functions() {
+		return functions;
+	}
+
+	/**
+	 * Get the function with a given name, or <code>null</code> if there is
+	 * none.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public BytecodeFunction function(String name) {
+		for (BytecodeFunction f : functions) {
+			if (f.name().equals(name)) {
+				return f;
+			}
+		}
+		return null;
+	}
+
+	public String toString() {
+		StringBuilder r = new StringBuilder();
+		for (BytecodeFunction f : functions) {
+			r.append(f).append("\n");
+		}
+		return r.toString();
+	}
+
+	/**
+	 * Write this program in binary form to a given stream.
+	 *
+	 * @param output
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream output) throws IOException {
+		output.writeInt(MAGIC);
+		output.writeInt(VERSION);
+		output.writeInt(functions.length);
+		for (BytecodeFunction f : functions) {
+			output.writeUTF(f.name());
+			writeInts(f.parameters(), output);
+			output.writeInt(f.variables());
+			output.writeInt(f.registers());
+			output.writeBoolean(f.code() != null);
+			if (f.code() != null) {
+				writeInts(f.code(), output);
+				Object[] constants = f.constants();
+				output.writeInt(constants.length);
+				for (Object c : constants) {
+					writeConstant(c, output);
+				}
+			}
+		}
+		output.flush();
+	}
+
+	/**
+	 * Read a program in binary form from a given stream.
+	 *
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 *             if the stream does not hold a valid program.
+	 */
+	public static BytecodeProgram read(DataInputStream input)
+			throws IOException {
+		if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+			throw new IOException("invalid bytecode file");
+		}
+		BytecodeFunction[] functions = new BytecodeFunction[input.readInt()];
+		for (int i = 0; i != functions.length; ++i) {
+			String name = input.readUTF();
+			int[] parameters = readInts(input);
+			int variables = input.readInt();
+			int registers = input.readInt();
+			int[] code = null;
+			Object[] constants = null;
+			if (input.readBoolean()) {
+				code = readInts(input);
+				constants = new Object[input.readInt()];
+				for (int j = 0; j != constants.length; ++j) {
+					constants[j] = readConstant(input);
+				}
+			}
+			functions[i] = new BytecodeFunction(name, parameters, variables,
+					registers, code, constants);
+		}
+		return new BytecodeProgram(functions);
+	}
+
+	private static void writeInts(int[] ints, DataOutputStream output)
+			throws IOException {
+		output.writeInt(ints.length);
+		for (int i : ints) {
+			output.writeInt(i);
+		}
+	}
+
+	private static int[] readInts(DataInputStream input) throws IOException {
+		int[] ints = new int[input.readInt()];
+		for (int i = 0; i != ints.length; ++i) {
+			ints[i] = input.readInt();
+		}
+		return ints;
+	}
+
+	private static void writeConstant(Object c, DataOutputStream output)
+			throws IOException {
+		if (c == null) {
+			output.writeByte(NULL);
+		} else if (c instanceof Boolean) {
+			output.writeByte(BOOL);
+			output.writeBoolean((Boolean) c);
+		} else if (c instanceof Character) {
+			output.writeByte(CHAR);
+			output.writeChar((Character) c);
+		} else if (c instanceof Integer) {
+			output.writeByte(INT);
+			output.writeInt((Integer) c);
+		} else if (c instanceof Double) {
+			output.writeByte(REAL);
+			output.writeDouble((Double) c);
+		} else if (c instanceof String) {
+			output.writeByte(STRING);
+			output.writeUTF((String) c);
+		} else if (c instanceof FieldLookup) {
+			output.writeByte(LOOKUP);
+			output.writeUTF(((FieldLookup) c).field());
+		} else if (c instanceof RecordLayout) {
+			String[] fields = ((RecordLayout) c).fields();
+			output.writeByte(LAYOUT);
+			output.writeInt(fields.length);
+			for (String field : fields) {
+				output.writeUTF(field);
+			}
+		} else if (c == Collections.EMPTY_SET) {
+			output.writeByte(EMPTY);
+		} else {
+			throw new IllegalArgumentException("invalid constant: " + c);
+		}
+	}
+
+	private static Object readConstant(DataInputStream input)
+			throws IOException {
+		int tag = input.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case BOOL:
+			return input.readBoolean();
+		case CHAR:
+			return input.readChar();
+		case INT:
+			return input.readInt();
+		case REAL:
+			return input.readDouble();
+		case STRING:
+			return input.readUTF();
+		case LOOKUP:
+			return new FieldLookup(input.readUTF());
+		case LAYOUT: {
+			String[] fields = new String[input.readInt()];
+			for (int i = 0; i != fields.length; ++i) {
+				fields[i] = input.readUTF();
+			}
+			return new RecordLayout(fields);
+		}
+		case EMPTY:
+			return Collections.EMPTY_SET;
+		default:
+			throw new IOException("invalid constant tag: " + tag);
+		}
+	}
+}
@@ -0,0 +1,542 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+
+package whilelang.vm;
+
+import static whilelang.vm.Bytecode.*;
+
+import java.util.*;
+
+import whilelang.runtime.*;
+
+/**
+ * <p>
+ * Executes a While program which has been lowered to bytecode (see
+ * <code>BytecodeCompiler</code>). All code is executed by a single loop which
+ * dispatches on each opcode in turn.
+ * </p>
+ * <p>
+ * Calls do not recurse on the Java stack. Instead, the machine maintains its
+ * own stack of registers, where each active call has a window of registers
+ * directly above that of its caller. Thus, the depth of recursion in a While
+ * program is limited only by the number of registers the stack may hold,
+ * which is configurable.
+ * </p>
+ * <p>
+ * The semantics are intended to be identical to those of
+ * <code>Interpreter</code>, which remains the reference implementation.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class VirtualMachine {
+	/**
+	 * The default limit on the number of registers held in the stack (which
+	 * occupy roughly 4-8 bytes each).
+	 */
+	public static final int DEFAULT_MAX_REGISTERS = 1 << 24;
+
+	private static final int INITIAL_STACK = 1024;
+
+	private final BytecodeProgram program;
+	private final boolean copyOnWrite;
+	private final int maxRegisters;
+	private final ValuePrinter output;
+
+	/**
+	 * Construct a virtual machine for a given program.
+	 *
+	 * @param program
+	 * @param copyOnWrite
+	 *            If true, lists and records are represented with copy-on-write
+	 *            values (and the program must have been compiled for this);
+	 *            otherwise, persistent values are used.
+	 */
+	public VirtualMachine(BytecodeProgram program, boolean copyOnWrite) {
+		this(program, copyOnWrite, DEFAULT_MAX_REGISTERS);
+	}
+
+	/**
+	 * Construct a virtual machine for a given program.
+	 *
+	 * @param program
+	 * @param copyOnWrite
+	 *            If true, lists and records are represented with copy-on-write
+	 *            values (and the program must have been compiled for this);
+	 *            otherwise, persistent values are used.
+	 * @param maxRegisters
+	 *            Limit on the number of registers held in the stack. A call
+	 *            which would exceed this fails with a stack overflow.
+	 */
+	public VirtualMachine(BytecodeProgram program, boolean copyOnWrite,
+			int maxRegisters) {
+		this.program = program;
+		this.copyOnWrite = copyOnWrite;
+		this.maxRegisters = maxRegisters;
+		this.output = new ValuePrinter(System.out);
+	}
+
+	public void run() {
+		BytecodeFunction main = program.function("main");
+		if (main != null && main.code() != null) {
+			try {
+				execute(main);
+			} finally {
+				output.flush();
+			}
+		} else {
+			System.out.println("Cannot find a main() function");
+		}
+	}
+
+	/**
+	 * Execute a given function (which takes no arguments) to completion,
+	 * including any functions it calls.
+	 *
+	 * @param entry
+	 * @return
+	 */
+	private Object execute(BytecodeFunction entry) {
+		// The register windows of all active calls, one after the other.
+		Object[] stack = new Object[Math.min(INITIAL_STACK, maxRegisters)];
+		// The records of all active calls except the current one, which
+		// identify where to resume the caller.
+		BytecodeFunction[] callers = new BytecodeFunction[16];
+		int[] returnPcs = new int[16];
+		int[] returnFps = new int[16];
+		int[] returnTargets = new int[16];
+		int depth = 0;
+
+		BytecodeFunction function = entry;
+		int[] code = function.code();
+		Object[] constants = function.constants();
+		int fp = 0;
+		int pc = 0;
+
+		if (function.registers() > maxRegisters) {
+			throw new RuntimeException("stack overflow (function \""
+					+ function.name() + "\" needs more than " + maxRegisters
+					+ " registers)");
+		} else if (function.registers() > stack.length) {
+			stack = grow(stack, function.registers());
+		}
+
+		while (true) {
+			switch (code[pc]) {
+			case CONST:
+				stack[fp + code[pc + 1]] = constants[code[pc + 2]];
+				pc += 3;
+				break;
+			case MOVE:
+				stack[fp + code[pc + 1]] = stack[fp + code[pc + 2]];
+				pc += 3;
+				break;
+			case ASSIGN: {
+				int d = fp + code[pc + 1];
+				Object old = stack[d];
+				stack[d] = stack[fp + code[pc + 2]];
+				CompoundValue.release(old);
+				pc += 3;
+				break;
+			}
+			case SHARE:
+				CompoundValue.share(stack[fp + code[pc + 1]]);
+				pc += 2;
+				break;
+			case ADD: {
+				Object l = stack[fp + code[pc + 2]];
+				Object r = stack[fp + code[pc + 3]];
+				if (l instanceof Integer) {
+					stack[fp + code[pc + 1]] = ((Integer) l) + ((Integer) r);
+				} else {
+					stack[fp + code[pc + 1]] = ((Double) l) + ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case SUB: {
+				Object l = stack[fp + code[pc + 2]];
+				Object r = stack[fp + code[pc + 3]];
+				if (l instanceof Integer) {
+					stack[fp + code[pc + 1]] = ((Integer) l) - ((Integer) r);
+				} else {
+					stack[fp + code[pc + 1]] = ((Double) l) - ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case MUL: {
+				Object l = stack[fp + code[pc + 2]];
+				Object r = stack[fp + code[pc + 3]];
+				if (l instanceof Integer) {
+					stack[fp + code[pc + 1]] = ((Integer) l) * ((Integer) r);
+				} else {
+					stack[fp + code[pc + 1]] = ((Double) l) * ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case DIV: {
+				Object l = stack[fp + code[pc + 2]];
+				Object r = stack[fp + code[pc + 3]];
+				if (l instanceof Integer) {
+					stack[fp + code[pc + 1]] = ((Integer) l) / ((Integer) r);
+				} else {
+					stack[fp + code[pc + 1]] = ((Double) l) / ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case REM: {
+				Object l = stack[fp + code[pc + 2]];
+				Object r = stack[fp + code[pc + 3]];
+				if (l instanceof Integer) {
+					stack[fp + code[pc + 1]] = ((Integer) l) % ((Integer) r);
+				} else {
+					stack[fp + code[pc + 1]] = ((Double) l) % ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case EQ:
+				stack[fp + code[pc + 1]] = StringValue.equal(stack[fp + code[pc + 2]], stack[fp + code[pc + 3]]);
+				pc += 4;
+				break;
+			case NEQ:
+				stack[fp + code[pc + 1]] = !StringValue.equal(stack[fp + code[pc + 2]], stack[fp + code[pc + 3]]);
+				pc += 4;
+				break;
+			case LT: {
+				Object l = stack[fp + code[pc + 2]];
+				Object r = stack[fp + code[pc + 3]];
+				if (l instanceof Integer) {
+					stack[fp + code[pc + 1]] = ((Integer) l) < ((Integer) r);
+				} else {
+					stack[fp + code[pc + 1]] = ((Double) l) < ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case LTEQ: {
+				Object l = stack[fp + code[pc + 2]];
+				Object r = stack[fp + code[pc + 3]];
+				if (l instanceof Integer) {
+					stack[fp + code[pc + 1]] = ((Integer) l) <= ((Integer) r);
+				} else {
+					stack[fp + code[pc + 1]] = ((Double) l) <= ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case GT: {
+				Object l = stack[fp + code[pc + 2]];
+				Object r = stack[fp + code[pc + 3]];
+				if (l instanceof Integer) {
+					stack[fp + code[pc + 1]] = ((Integer) l) > ((Integer) r);
+				} else {
+					stack[fp + code[pc + 1]] = ((Double) l) > ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case GTEQ: {
+				Object l = stack[fp + code[pc + 2]];
+				Object r = stack[fp + code[pc + 3]];
+				if (l instanceof Integer) {
+					stack[fp + code[pc + 1]] = ((Integer) l) >= ((Integer) r);
+				} else {
+					stack[fp + code[pc + 1]] = ((Double) l) >= ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case APPEND:
+				stack[fp + code[pc + 1]] = append(stack[fp + code[pc + 2]], stack[fp + code[pc + 3]]);
+				pc += 4;
+				break;
+			case APPENDINPLACE: {
+				int d = fp + code[pc + 1];
+				Object old = stack[d];
+				Object r = stack[fp + code[pc + 2]];
+				Object value;
+				if (old instanceof ListValue && r instanceof ListValue) {
+					value = ((ListValue) old).appendInPlace((ListValue) r);
+				} else {
+					value = append(old, r);
+				}
+				stack[d] = value;
+				if (old != value) {
+					CompoundValue.release(old);
+				}
+				pc += 3;
+				break;
+			}
+			case NOT:
+				stack[fp + code[pc + 1]] = !((Boolean) stack[fp + code[pc + 2]]);
+				pc += 3;
+				break;
+			case NEG: {
+				Object value = stack[fp + code[pc + 2]];
+				if (value instanceof Double) {
+					stack[fp + code[pc + 1]] = -((Double) value);
+				} else {
+					stack[fp + code[pc + 1]] = -((Integer) value);
+				}
+				pc += 3;
+				break;
+			}
+			case LENGTHOF: {
+				Object value = stack[fp + code[pc + 2]];
+				if (value instanceof CharSequence) {
+					stack[fp + code[pc + 1]] = ((CharSequence) value).length();
+				} else {
+					stack[fp + code[pc + 1]] = ((ListValue) value).size();
+				}
+				pc += 3;
+				break;
+			}
+			case INDEXOF: {
+				Object src = stack[fp + code[pc + 2]];
+				int index = (Integer) stack[fp + code[pc + 3]];
+				if (src instanceof CharSequence) {
+					stack[fp + code[pc + 1]] = ((CharSequence) src).charAt(index);
+				} else {
+					stack[fp + code[pc + 1]] = ((ListValue) src).get(index);
+				}
+				pc += 4;
+				break;
+			}
+			case FIELD: {
+				RecordValue src = (RecordValue) stack[fp + code[pc + 2]];
+				stack[fp + code[pc + 1]] = ((FieldLookup) constants[code[pc + 3]])
+						.get(src);
+				pc += 4;
+				break;
+			}
+			case LIST: {
+				int start = fp + code[pc + 2];
+				Object[] elements = Arrays.copyOfRange(stack, start, start
+						+ code[pc + 3]);
+				if (copyOnWrite) {
+					stack[fp + code[pc + 1]] = CowList.of(elements);
+				} else {
+					stack[fp + code[pc + 1]] = PersistentVector.of(Arrays
+							.asList(elements));
+				}
+				pc += 4;
+				break;
+			}
+			case RECORD: {
+				int start = fp + code[pc + 2];
+				RecordLayout layout = (RecordLayout) constants[code[pc + 3]];
+				Object[] values = Arrays.copyOfRange(stack, start, start
+						+ layout.fields().length);
+				stack[fp + code[pc + 1]] = layout.construct(values,
+						copyOnWrite);
+				pc += 4;
+				break;
+			}
+			case UPDATE: {
+				int d = fp + code[pc + 1];
+				stack[d] = update(stack[d], stack, fp + code[pc + 2],
+						code[pc + 3], stack[fp + code[pc + 4]]);
+				pc += 5;
+				break;
+			}
+			case INVOKE: {
+				BytecodeFunction callee = program.functions()[code[pc + 2]];
+				int start = fp + code[pc + 3];
+				int n = code[pc + 4];
+				if (callee.code() == null) {
+					throw new RuntimeException("unknown function \""
+							+ callee.name() + "\"");
+				} else if (callee.parameters().length != n) {
+					throw new RuntimeException(
+							"invalid number of arguments supplied to execution of function \""
+									+ callee.name() + "\"");
+				}
+				// First, allocate the callee's register window directly above
+				// the caller's.
+				int nfp = fp + function.registers();
+				int top = nfp + callee.registers();
+				if (top > stack.length) {
+					if (top > maxRegisters) {
+						throw new RuntimeException("stack overflow (call depth "
+								+ (depth + 1) + " exceeds the limit of "
+								+ maxRegisters + " registers)");
+					}
+					stack = grow(stack, top);
+				}
+				// Second, record where the caller is to be resumed.
+				if (depth == callers.length) {
+					int length = depth * 2;
+					callers = Arrays.copyOf(callers, length);
+					returnPcs = Arrays.copyOf(returnPcs, length);
+					returnFps = Arrays.copyOf(returnFps, length);
+					returnTargets = Arrays.copyOf(returnTargets, length);
+				}
+				callers[depth] = function;
+				returnPcs[depth] = pc + 5;
+				returnFps[depth] = fp;
+				returnTargets[depth] = fp + code[pc + 1];
+				depth++;
+				// Third, pass the arguments and enter the callee.
+				int[] parameters = callee.parameters();
+				for (int i = 0; i != n; ++i) {
+					stack[nfp + parameters[i]] = stack[start + i];
+				}
+				function = callee;
+				code = callee.code();
+				constants = callee.constants();
+				fp = nfp;
+				pc = 0;
+				break;
+			}
+			case RETURN:
+			case RETURNVOID:
+			case END: {
+				Object value;
+				if (code[pc] == RETURN) {
+					value = stack[fp + code[pc + 1]];
+				} else if (code[pc] == RETURNVOID) {
+					value = Collections.EMPTY_SET;
+				} else {
+					value = null;
+				}
+				// First, the function's variables no longer hold their values.
+				if (copyOnWrite) {
+					for (int i = 0; i != function.variables(); ++i) {
+						CompoundValue.release(stack[fp + i]);
+					}
+				}
+				// Second, discard the register window, such that every
+				// register above the current window is always null.
+				Arrays.fill(stack, fp, fp + function.registers(), null);
+				if (depth == 0) {
+					return value;
+				}
+				// Third, resume the caller.
+				depth--;
+				function = callers[depth];
+				callers[depth] = null;
+				code = function.code();
+				constants = function.constants();
+				pc = returnPcs[depth];
+				fp = returnFps[depth];
+				stack[returnTargets[depth]] = value;
+				break;
+			}
+			case JUMP:
+				pc = code[pc + 1];
+				break;
+			case IFTRUE:
+				if ((Boolean) stack[fp + code[pc + 1]]) {
+					pc = code[pc + 2];
+				} else {
+					pc += 3;
+				}
+				break;
+			case IFFALSE:
+				if ((Boolean) stack[fp + code[pc + 1]]) {
+					pc += 3;
+				} else {
+					pc = code[pc + 2];
+				}
+				break;
+			case PRINT:
+				output.println(stack[fp + code[pc + 1]]);
+				pc += 2;
+				break;
+			default:
+				throw new IllegalStateException("invalid opcode " + code[pc]
+						+ " at " + pc + " in " + function.name());
+			}
+		}
+	}
+
+	/**
+	 * Enlarge the register stack, such that it has at least a given length
+	 * (but never more than the limit).
+	 *
+	 * @param stack
+	 * @param length
+	 * @return
+	 */
+	private Object[] grow(Object[] stack, int length) {
+		length = Math.max(length, (int) Math.min(maxRegisters,
+				stack.length * 2L));
+		return Arrays.copyOf(stack, length);
+	}
+
+	/**
+	 * Append two values, which are either both lists or (at least one) a
+	 * string.
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	private static Object append(Object lhs, Object rhs) {
+		if (lhs instanceof CharSequence || rhs instanceof CharSequence) {
+			return StringValue.append(text(lhs), text(rhs));
+		} else {
+			return ((ListValue) lhs).append((ListValue) rhs);
+		}
+	}
+
+	private static CharSequence text(Object value) {
+		if (value instanceof CharSequence) {
+			return (CharSequence) value;
+		}
+		return String.valueOf(value);
+	}
+
+	/**
+	 * Produce a copy of a given value where the location identified by a path
+	 * of field lookups and indices (held in consecutive registers) is replaced
+	 * with a new value.
+	 *
+	 * @param value
+	 * @param rs
+	 *            Registers holding the path.
+	 * @param index
+	 *            Register holding the current position within the path.
+	 * @param n
+	 *            Number of path elements remaining.
+	 * @param rhs
+	 * @return
+	 */
+	private static Object update(Object value, Object[] rs, int index, int n,
+			Object rhs) {
+		if (n == 0) {
+			return rhs;
+		}
+		Object key = rs[index];
+		if (key instanceof FieldLookup) {
+			RecordValue r = ((RecordValue) value).unique();
+			int i = ((FieldLookup) key).indexIn(r.shape());
+			return r.set(i, update(r.get(i), rs, index + 1, n - 1, rhs));
+		} else {
+			int i = (Integer) key;
+			ListValue l = ((ListValue) value).unique();
+			return l.set(i, update(l.get(i), rs, index + 1, n - 1, rhs));
+		}
+	}
+}